@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Encodes a whole batch of words at once by fanning the work out over a fork join pool. Identical inputs are only
+ * encoded once and the results come back in the same order as the inputs (duplicate inputs share the same result
+ * list instance). Each result list is truncated to the requested topK
+ * (we're still on java 7 so this is a decorator instead of a default method on Encoder).
+ * Closing shuts down the pool only if this encoder made it (the parallelism constructor); pools that are passed in
+ * (and the default pool) belong to the caller
+ * @author Steve Ash
+ */
+public class BatchEncoder implements Encoder, Closeable {
+
+  /**
+   * how many distinct words a single fork join task will encode before it stops splitting
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 16;
+
+  private static class DefaultPoolHolder {
+    static final ForkJoinPool pool = new ForkJoinPool();
+  }
+
+  /**
+   * @return the lazily created, process-wide pool (sized by available processors) used when no pool is given
+   */
+  public static ForkJoinPool defaultPool() {
+    return DefaultPoolHolder.pool;
+  }
+
+  private final Encoder encoder;
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+  private final boolean ownsPool;
+
+  public BatchEncoder(Encoder encoder) {
+    this(encoder, defaultPool());
+  }
+
+  /**
+   * Makes its own pool of the given parallelism which is shut down by close
+   */
+  public BatchEncoder(Encoder encoder, int parallelism) {
+    this(encoder, new ForkJoinPool(parallelism), DEFAULT_CHUNK_SIZE, true);
+  }
+
+  public BatchEncoder(Encoder encoder, ForkJoinPool pool) {
+    this(encoder, pool, DEFAULT_CHUNK_SIZE);
+  }
+
+  public BatchEncoder(Encoder encoder, ForkJoinPool pool, int chunkSize) {
+    this(encoder, pool, chunkSize, false);
+  }
+
+  private BatchEncoder(Encoder encoder, ForkJoinPool pool, int chunkSize, boolean ownsPool) {
+    checkArgument(chunkSize > 0, "chunk size must be positive");
+    this.encoder = checkNotNull(encoder);
+    this.pool = checkNotNull(pool);
+    this.chunkSize = chunkSize;
+    this.ownsPool = ownsPool;
+  }
+
+  @Override
+  public List<? extends EncodingResult> encode(Word input) {
+    return encoder.encode(input);
+  }
+
+  /**
+   * Encodes all of the inputs in parallel returning a list that is parallel to the inputs; each entry
+   * has at most topK results
+   */
+  public List<List<EncodingResult>> encodeAll(List<Word> inputs, int topK) {
+    return encodeAll(pool, chunkSize, inputs, topK, new Function<Word, List<? extends EncodingResult>>() {
+      @Override
+      public List<? extends EncodingResult> apply(Word input) {
+        return encoder.encode(input);
+      }
+    });
+  }
+
+  public Encoder getEncoder() {
+    return encoder;
+  }
+
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Shuts down the pool if this encoder made it (waiting for any batches that are running); otherwise does nothing
+   */
+  @Override
+  public void close() {
+    if (!ownsPool) {
+      return;
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(60, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The actual batching logic that is shared by the encoders that have a more specific result type than
+   * EncodingResult (like the PipelineEncoder)
+   */
+  public static <R> List<List<R>> encodeAll(ForkJoinPool pool, int chunkSize, List<Word> inputs, int topK,
+                                            Function<Word, ? extends List<? extends R>> encodeFunc) {
+    checkArgument(topK > 0, "must ask for at least one result");
+    Map<Word, Integer> distinct = Maps.newLinkedHashMap();
+    int[] inputToDistinct = new int[inputs.size()];
+    for (int i = 0; i < inputs.size(); i++) {
+      Word input = inputs.get(i);
+      Integer index = distinct.get(input);
+      if (index == null) {
+        index = distinct.size();
+        distinct.put(input, index);
+      }
+      inputToDistinct[i] = index;
+    }
+    Word[] words = distinct.keySet().toArray(new Word[distinct.size()]);
+    List<?>[] results = new List<?>[words.length];
+    pool.invoke(new EncodeTask<R>(words, results, 0, words.length, topK, chunkSize, encodeFunc));
+
+    List<List<R>> output = Lists.newArrayListWithCapacity(inputs.size());
+    for (int i = 0; i < inputToDistinct.length; i++) {
+      @SuppressWarnings("unchecked")
+      List<R> result = (List<R>) results[inputToDistinct[i]];
+      output.add(result);
+    }
+    return output;
+  }
+
+  private static class EncodeTask<R> extends RecursiveAction {
+
+    private static final long serialVersionUID = -2398127012358364409L;
+
+    private final Word[] words;
+    private final List<?>[] results;
+    private final int start;
+    private final int end;
+    private final int topK;
+    private final int chunkSize;
+    private final Function<Word, ? extends List<? extends R>> encodeFunc;
+
+    private EncodeTask(Word[] words, List<?>[] results, int start, int end, int topK, int chunkSize,
+                       Function<Word, ? extends List<? extends R>> encodeFunc) {
+      this.words = words;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+      this.topK = topK;
+      this.chunkSize = chunkSize;
+      this.encodeFunc = encodeFunc;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= chunkSize) {
+        for (int i = start; i < end; i++) {
+          results[i] = truncate(encodeFunc.apply(words[i]));
+        }
+        return;
+      }
+      int mid = (start + end) >>> 1;
+      invokeAll(new EncodeTask<R>(words, results, start, mid, topK, chunkSize, encodeFunc),
+                new EncodeTask<R>(words, results, mid, end, topK, chunkSize, encodeFunc));
+    }
+
+    private List<R> truncate(List<? extends R> encoded) {
+      if (topK == 1) {
+        // don't ask for the size as lazy result lists might have to compute the rest of their results for it
+        return encoded.isEmpty() ? ImmutableList.<R>of() : ImmutableList.<R>of(encoded.get(0));
+      }
+      if (encoded.size() <= topK) {
+        return ImmutableList.copyOf(encoded);
+      }
+      return ImmutableList.copyOf(encoded.subList(0, topK));
+    }
+  }
+}
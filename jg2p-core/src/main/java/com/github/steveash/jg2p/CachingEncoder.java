@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.io.CharSource;
+import com.google.common.io.Files;
+import com.google.common.io.LineProcessor;
+import com.google.common.primitives.Longs;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Decorator for encoders that caches the (immutable) results list for each input word. The cache is bounded to
+ * a maximum number of words and uses guava's segmented LRU eviction so that a zipfian workload (where a small number
+ * of words make up most of the traffic) can skip the whole pipeline most of the time. Hit, miss, and eviction counts
+ * are available from stats().
+ * NOTE the encodings in the cached lists are shared between callers so this should be the outermost decorator
+ * (i.e. wrap the DuplicateStrippingEncoder and not the other way around) and callers shouldn't mutate them
+ * @author Steve Ash
+ */
+public class CachingEncoder implements Encoder {
+
+  private static final Logger log = LoggerFactory.getLogger(CachingEncoder.class);
+  private static final Splitter whitespaceSplit = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
+
+  public static final long DEFAULT_MAX_WORDS = 50000;
+
+  private final Encoder encoder;
+  private final long maxWords;
+  private final LoadingCache<Word, List<EncodingResult>> cache;
+
+  public CachingEncoder(Encoder encoder) {
+    this(encoder, DEFAULT_MAX_WORDS);
+  }
+
+  public CachingEncoder(final Encoder encoder, long maxWords) {
+    this.encoder = encoder;
+    this.maxWords = maxWords;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maxWords)
+        .recordStats()
+        .build(new CacheLoader<Word, List<EncodingResult>>() {
+          @Override
+          public List<EncodingResult> load(Word key) throws Exception {
+            return unmodifiable(encoder.encode(key));
+          }
+        });
+  }
+
+  // wraps instead of copying so lazy results (like a pipeline's rule-first results) aren't forced on a miss
+  private static List<EncodingResult> unmodifiable(List<? extends EncodingResult> results) {
+    if (results instanceof ImmutableList) {
+      return ImmutableList.<EncodingResult>copyOf(results); // a no-op for immutable lists
+    }
+    return Collections.<EncodingResult>unmodifiableList(results);
+  }
+
+  @Override
+  public List<EncodingResult> encode(Word input) {
+    return cache.getUnchecked(input);
+  }
+
+  /**
+   * Encodes and caches each of the given words (in iteration order); stops once the cache is full so pass the
+   * most frequent words first
+   */
+  public void preload(Iterable<Word> words) {
+    int count = 0;
+    for (Word word : words) {
+      if (count >= maxWords) {
+        break;
+      }
+      cache.getUnchecked(word);
+      count += 1;
+    }
+    log.info("Preloaded {} words in to the encoder cache", count);
+  }
+
+  /**
+   * Preloads the cache from a frequency list file: one word per line optionally followed by whitespace and
+   * its count. Words are loaded in descending order of count (if there are no counts then file order is kept)
+   */
+  public void preloadFromFrequencyFile(File frequencyFile) throws IOException {
+    preload(readFrequencyList(Files.asCharSource(frequencyFile, Charsets.UTF_8)));
+  }
+
+  static List<Word> readFrequencyList(CharSource source) throws IOException {
+    List<Pair<String, Long>> entries = source.readLines(new LineProcessor<List<Pair<String, Long>>>() {
+      private final List<Pair<String, Long>> entries = Lists.newArrayList();
+
+      @Override
+      public boolean processLine(String line) throws IOException {
+        if (isBlank(line)) {
+          return true;
+        }
+        Iterator<String> iter = whitespaceSplit.split(line).iterator();
+        String word = iter.next();
+        long count = 0;
+        if (iter.hasNext()) {
+          Long maybe = Longs.tryParse(iter.next());
+          if (maybe != null) {
+            count = maybe;
+          }
+        }
+        entries.add(Pair.of(word, count));
+        return true;
+      }
+
+      @Override
+      public List<Pair<String, Long>> getResult() {
+        return entries;
+      }
+    });
+    // stable sort so that ties (or files without counts) keep the file order
+    List<Pair<String, Long>> sorted = OrderByCount.sortedCopy(entries);
+    List<Word> words = Lists.newArrayListWithCapacity(sorted.size());
+    for (Pair<String, Long> entry : sorted) {
+      words.add(Word.fromNormalString(entry.getLeft()));
+    }
+    return words;
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public long hitCount() {
+    return cache.stats().hitCount();
+  }
+
+  public long missCount() {
+    return cache.stats().missCount();
+  }
+
+  public long evictionCount() {
+    return cache.stats().evictionCount();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public Encoder getEncoder() {
+    return encoder;
+  }
+
+  private static final Ordering<Pair<String, Long>> OrderByCount = new Ordering<Pair<String, Long>>() {
+    @Override
+    public int compare(Pair<String, Long> left, Pair<String, Long> right) {
+      return Long.compare(left.getRight(), right.getRight());
+    }
+  }.reverse();
+}
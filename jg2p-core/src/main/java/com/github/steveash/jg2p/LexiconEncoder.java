@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import com.github.steveash.jg2p.lexicon.Lexicon;
+
+import java.util.List;
+
+/**
+ * Encoder that looks the word up in an (authoritative) pronunciation dictionary first and only falls back to the
+ * delegate (usually the PipelineEncoder) when the word isn't in the dictionary. For in-vocabulary words the
+ * dictionary variants are returned in dictionary order as the results (so the top-k are the first k variants)
+ * @author Steve Ash
+ */
+public class LexiconEncoder implements Encoder {
+
+  private final Lexicon lexicon;
+  private final Encoder fallback;
+
+  public LexiconEncoder(Lexicon lexicon, Encoder fallback) {
+    this.lexicon = lexicon;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public List<? extends EncodingResult> encode(Word input) {
+    List<List<String>> variants = lexicon.lookup(input);
+    if (variants.isEmpty()) {
+      return fallback.encode(input);
+    }
+    List<PhoneticEncoder.Encoding> results = Lists.newArrayListWithCapacity(variants.size());
+    for (List<String> variant : variants) {
+      PhoneticEncoder.Encoding encoding = PhoneticEncoder.Encoding.createEncoding(
+          input.getValue(), variant, ImmutableList.<String>of(), 0, 0, 0, 0);
+      encoding.setRank(results.size());
+      results.add(encoding);
+    }
+    return results;
+  }
+
+  public Lexicon getLexicon() {
+    return lexicon;
+  }
+
+  public Encoder getFallback() {
+    return fallback;
+  }
+}
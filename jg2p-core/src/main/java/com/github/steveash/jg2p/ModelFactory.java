@@ -30,6 +30,7 @@ public class ModelFactory {
     try {
       PipelineModel model = ReadWrite.readFromClasspath(PipelineModel.class, resourceName);
       model.makeSparse();
+      model.freezeForInference();
       return new PipelineEncoder(model);
     } catch (Exception e) {
       throw new ModelException("Problem loading the cmu default model from the classpath for " +
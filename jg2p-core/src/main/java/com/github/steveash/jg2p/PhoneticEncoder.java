@@ -40,6 +40,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * TODO eventually make this implement Encoder but only after all of the models have been converted to PipelineModel
  * classes
@@ -249,6 +251,54 @@ public class PhoneticEncoder implements Serializable {
     return result.overallResults;
   }
 
+  /**
+   * Fast path for when only the single best encoding is wanted: only the top alignmentBudget alignments are tagged,
+   * each with just its viterbi tagging, and the best by tag score wins (no one-to-one alignment, no graphone LM, no
+   * reranking). The returned tagScore is the normalized log probability of the tagging (the same as encode's)
+   * @return the best encoding or null if there isn't one
+   */
+  @Nullable
+  public Encoding encodeBest(Word input, int alignmentBudget) {
+    return encodeBest(input, alignmentBudget, true);
+  }
+
+  /**
+   * @param normalize if false and only one alignment is tagged then the partition function isn't computed (nothing
+   *                  is compared across lattices) and the returned tagScore is the unnormalized log weight of the
+   *                  tagging: it isn't a probability (tagProbability can be more than 1) and can't be compared to
+   *                  the scores of other words or of encode. With more than one alignment the scores are always
+   *                  normalized because the taggings of different alignments are ranked against each other
+   * @see #encodeBest(Word, int)
+   */
+  @Nullable
+  public Encoding encodeBest(Word input, int alignmentBudget, boolean normalize) {
+    Preconditions.checkArgument(alignmentBudget > 0, "must allow at least one alignment");
+    List<Alignment> alignments = aligner.inferAlignments(input, alignmentBudget);
+    int count = Math.min(alignmentBudget, alignments.size());
+    boolean normalizeTags = normalize || count > 1;
+    Encoding best = null;
+    for (int i = 0; i < count; i++) {
+      Alignment alignment = alignments.get(i);
+      List<TagResult> tagResults = phoneTagger.tag(alignment, 1, normalizeTags);
+      if (tagResults.isEmpty()) {
+        continue;
+      }
+      TagResult tagResult = tagResults.get(0);
+      if (tagResult.phones() == null || tagResult.phones().isEmpty()) {
+        continue;
+      }
+      Set<Integer> graphemeSyllStarts = alignment.getGraphemeSyllStarts();
+      int syllCount = (graphemeSyllStarts != null ? graphemeSyllStarts.size() : 0);
+      Encoding e = Encoding.createEncoding(alignment.getAllXTokensAsList(), tagResult.phones(), tagResult.phoneGrams(),
+                                           alignment.getScore(), tagResult.sequenceLogProbability(),
+                                           tagResult.getLogScore2(), syllCount);
+      if (best == null || OrderByTagScore.compare(e, best) < 0) {
+        best = e;
+      }
+    }
+    return best;
+  }
+
   private Alignment makeOneToOne(Word input, Alignment sample) {
 
     if (sample.getGraphoneSyllableGrams() == null) {
@@ -16,29 +16,58 @@
 
 package com.github.steveash.jg2p;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import com.github.steveash.jg2p.abb.PatternFacade;
 import com.github.steveash.jg2p.phoseq.Graphemes;
 import com.github.steveash.jg2p.rerank.RerankExample;
+import com.github.steveash.jg2p.rerank.RerankGate;
 import com.github.steveash.jg2p.rerank.RerankableEncoder;
 import com.github.steveash.jg2p.rerank.RerankableResult;
 import com.github.steveash.jg2p.rerank.RerankerResult;
 
+import java.util.AbstractList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * The encoder that uses the phoneticEncoder to produce a candidate list and then reranks it using the reranking
- * algorithm and delegating to the Rerank Model
+ * algorithm and delegating to the Rerank Model.
+ * If the word is transcribed by a rule (acronyms, known patterns) then that transcription is the first result. With
+ * shortCircuitRules on, the model candidates after the rule result are only computed if something past the first
+ * result is asked for (so top-1 callers skip the model entirely for those words).
+ * encodeBest with bestOnly on skips the candidate list, graphone LM, and reranker and just takes the best viterbi
+ * tagging of the best alignment(s) from the phonetic encoder; it's a lot faster but less accurate than the reranked
+ * results (BestOnlyCompare.groovy measures both on the cmu7b test set so you can pick).
+ * If a RerankGate is set then candidate lists whose top candidate the gate considers confident are returned in the
+ * CRF order without graphone LM scoring or reranking (RerankGateSweep.groovy reports the trade off per threshold).
+ * This doesn't change the model; to encode from more than one thread the model must be done training and frozen with
+ * PipelineModel.freezeForInference first (ModelFactory does that when it loads one) or the alphabets would grow
  * @author Steve Ash
  */
 public class PipelineEncoder implements Encoder {
 
   private final PipelineModel model;
   private final RerankableEncoder rerankEncoder;
+  private final PhoneticEncoder phoneticEncoder;
   private final boolean useRules;
+  private volatile boolean shortCircuitRules = false;
+  private volatile boolean bestOnly = false;
+  private volatile int bestOnlyAlignments = 1;
+  private volatile boolean bestOnlyNormalized = true;
+  private volatile RerankGate rerankGate = null;
+  private volatile ForkJoinPool batchPool = BatchEncoder.defaultPool();
+  private volatile int batchChunkSize = BatchEncoder.DEFAULT_CHUNK_SIZE;
 
   public PipelineEncoder(PipelineModel model) {
     this(model, true);
@@ -48,24 +77,205 @@ public class PipelineEncoder implements Encoder {
     this.model = model;
     this.useRules = useRules;
     this.rerankEncoder = model.getRerankEncoder();
+    this.phoneticEncoder = model.getPhoneticEncoder();
   }
 
   @Override
   public List<PhoneticEncoder.Encoding> encode(Word input) {
+    Optional<String> maybe = PatternFacade.maybeTranscode(input);
+    final Word xformedInput = Graphemes.xformForEval(input);
+    if (!maybe.isPresent()) {
+      return encodeWithModel(xformedInput);
+    }
+    PhoneticEncoder.Encoding ruleResult = PhoneticEncoder.Encoding.createEncoding(
+        xformedInput.getValue(), Word.fromSpaceSeparated(maybe.get()).getValue(), ImmutableList.<String>of(), 0, 0, 0, 0);
+    if (shortCircuitRules) {
+      return new RuleFirstResults(ruleResult, new Supplier<List<PhoneticEncoder.Encoding>>() {
+        @Override
+        public List<PhoneticEncoder.Encoding> get() {
+          return encodeWithModel(xformedInput);
+        }
+      });
+    }
+    return ImmutableList.<PhoneticEncoder.Encoding>builder()
+        .add(ruleResult)
+        .addAll(encodeWithModel(xformedInput))
+        .build();
+  }
+
+  /**
+   * @return the best encoding for the input (the same as the first result of encode unless bestOnly is on, in which
+   * case this uses the fast best-only decoding for words that aren't transcribed by a rule) or null if there isn't one
+   */
+  @Nullable
+  public PhoneticEncoder.Encoding encodeBest(Word input) {
+    if (!bestOnly) {
+      List<PhoneticEncoder.Encoding> results = encode(input);
+      return (results.isEmpty() ? null : results.get(0));
+    }
     Optional<String> maybe = PatternFacade.maybeTranscode(input);
     Word xformedInput = Graphemes.xformForEval(input);
-    RerankableResult result = rerankEncoder.encode(xformedInput);
-    List<RerankExample> rre = RerankExample.makeExamples(result, xformedInput, null);
-    List<RerankerResult> reranked = model.getRerankerModel().probabilities(rre);
-    List<PhoneticEncoder.Encoding> finalResults = Lists.transform(reranked, RerankerResult.SelectEncoding);
     if (maybe.isPresent()) {
-      PhoneticEncoder.Encoding newFirst = PhoneticEncoder.Encoding.createEncoding(
+      return PhoneticEncoder.Encoding.createEncoding(
           xformedInput.getValue(), Word.fromSpaceSeparated(maybe.get()).getValue(), ImmutableList.<String>of(), 0, 0, 0, 0);
-      finalResults = ImmutableList.<PhoneticEncoder.Encoding>builder()
-          .add(newFirst)
-          .addAll(finalResults)
-          .build();
     }
-    return finalResults;
+    return phoneticEncoder.encodeBest(xformedInput, bestOnlyAlignments, bestOnlyNormalized);
+  }
+
+  private List<PhoneticEncoder.Encoding> encodeWithModel(Word xformedInput) {
+    PhoneticEncoder.Result encoderResult = rerankEncoder.getEncoder().complexEncode(xformedInput);
+    RerankGate gate = this.rerankGate;
+    if (gate != null && gate.canSkipRerank(encoderResult)) {
+      return encoderResult.overallResults;
+    }
+    RerankableResult result = rerankEncoder.toRerankable(encoderResult);
+    List<RerankExample> rre = RerankExample.makeExamples(result, xformedInput, null);
+    List<RerankerResult> reranked = model.getRerankerModel().probabilities(rre);
+    return Lists.transform(reranked, RerankerResult.SelectEncoding);
+  }
+
+  /**
+   * Encodes all of the given words in parallel on the batch pool, returning the topK results for each input in the
+   * same order as the inputs. Duplicate inputs are only encoded once
+   */
+  public List<List<PhoneticEncoder.Encoding>> encodeAll(List<Word> inputs, int topK) {
+    return BatchEncoder.encodeAll(batchPool, batchChunkSize, inputs, topK,
+                                  new Function<Word, List<PhoneticEncoder.Encoding>>() {
+                                    @Override
+                                    public List<PhoneticEncoder.Encoding> apply(Word input) {
+                                      return encode(input);
+                                    }
+                                  });
+  }
+
+  public boolean isShortCircuitRules() {
+    return shortCircuitRules;
+  }
+
+  /**
+   * If true then for words transcribed by a rule the model candidates are computed lazily: the result list returns
+   * the rule's encoding as the first element immediately and only runs the model when a later element (or the
+   * size) is asked for
+   */
+  public void setShortCircuitRules(boolean shortCircuitRules) {
+    this.shortCircuitRules = shortCircuitRules;
+  }
+
+  /**
+   * Batch version of encodeBest; the result list is parallel to the inputs and each entry has at most one result
+   */
+  public List<List<PhoneticEncoder.Encoding>> encodeBestAll(List<Word> inputs) {
+    return BatchEncoder.encodeAll(batchPool, batchChunkSize, inputs, 1,
+                                  new Function<Word, List<PhoneticEncoder.Encoding>>() {
+                                    @Override
+                                    public List<PhoneticEncoder.Encoding> apply(Word input) {
+                                      PhoneticEncoder.Encoding best = encodeBest(input);
+                                      return (best == null ? ImmutableList.<PhoneticEncoder.Encoding>of()
+                                                           : ImmutableList.of(best));
+                                    }
+                                  });
+  }
+
+  public boolean isBestOnly() {
+    return bestOnly;
+  }
+
+  /**
+   * If true then encodeBest uses the fast best-only decoding instead of the full reranked candidate list
+   */
+  public void setBestOnly(boolean bestOnly) {
+    this.bestOnly = bestOnly;
+  }
+
+  public int getBestOnlyAlignments() {
+    return bestOnlyAlignments;
+  }
+
+  /**
+   * How many alignments the best-only decoding tags (default 1); with more than one the taggings are always
+   * normalized so they can be compared
+   */
+  public void setBestOnlyAlignments(int bestOnlyAlignments) {
+    checkArgument(bestOnlyAlignments > 0, "must allow at least one alignment");
+    this.bestOnlyAlignments = bestOnlyAlignments;
+  }
+
+  public boolean isBestOnlyNormalized() {
+    return bestOnlyNormalized;
+  }
+
+  /**
+   * If false (and the best-only decoding tags one alignment) then the partition function is skipped and the tagScore
+   * of the best-only encodings is an unnormalized log weight; use that when you only want the phones, as the score
+   * isn't a probability and can't be compared to other words' scores or to the reranked mode's. Default true
+   */
+  public void setBestOnlyNormalized(boolean bestOnlyNormalized) {
+    this.bestOnlyNormalized = bestOnlyNormalized;
+  }
+
+  @Nullable
+  public RerankGate getRerankGate() {
+    return rerankGate;
+  }
+
+  /**
+   * Sets the early exit policy for reranking (null, the default, always reranks)
+   */
+  public void setRerankGate(@Nullable RerankGate rerankGate) {
+    this.rerankGate = rerankGate;
+  }
+
+  public ForkJoinPool getBatchPool() {
+    return batchPool;
+  }
+
+  /**
+   * Sets the pool that encodeAll and encodeBestAll fan out over (the default is the shared BatchEncoder pool); the
+   * pool still belongs to the caller
+   */
+  public void setBatchPool(ForkJoinPool batchPool) {
+    this.batchPool = checkNotNull(batchPool);
+  }
+
+  public int getBatchChunkSize() {
+    return batchChunkSize;
+  }
+
+  public void setBatchChunkSize(int batchChunkSize) {
+    checkArgument(batchChunkSize > 0, "chunk size must be positive");
+    this.batchChunkSize = batchChunkSize;
+  }
+
+  /**
+   * Result list whose first element is the rule result and whose remaining elements are the model's candidates,
+   * computed (once) the first time they're needed
+   */
+  static class RuleFirstResults extends AbstractList<PhoneticEncoder.Encoding> {
+
+    private final PhoneticEncoder.Encoding ruleResult;
+    private final Supplier<List<PhoneticEncoder.Encoding>> candidates;
+
+    RuleFirstResults(PhoneticEncoder.Encoding ruleResult, Supplier<List<PhoneticEncoder.Encoding>> candidates) {
+      this.ruleResult = ruleResult;
+      this.candidates = Suppliers.memoize(candidates);
+    }
+
+    @Override
+    public PhoneticEncoder.Encoding get(int index) {
+      if (index == 0) {
+        return ruleResult;
+      }
+      return candidates.get().get(index - 1);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return false;
+    }
+
+    @Override
+    public int size() {
+      return 1 + candidates.get().size();
+    }
   }
 }
@@ -17,6 +17,8 @@
 package com.github.steveash.jg2p;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import com.github.steveash.jg2p.align.AlignModel;
 import com.github.steveash.jg2p.align.Aligner;
@@ -26,6 +28,9 @@ import com.github.steveash.jg2p.rerank.Rerank3Model;
 import com.github.steveash.jg2p.rerank.RerankableEncoder;
 import com.github.steveash.jg2p.seq.PhonemeCrfModel;
 import com.github.steveash.jg2p.syll.SyllTagModel;
+import com.github.steveash.jg2p.syllchain.SyllTagAlignerAdapter;
+import com.github.steveash.jg2p.util.FrozenAlphabet;
+import com.github.steveash.jg2p.util.FrozenTokenSequence2FeatureVectorSequence;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +38,15 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+
+import cc.mallet.classify.Classifier;
+import cc.mallet.fst.CRF;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence;
+import cc.mallet.types.Alphabet;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -109,6 +123,135 @@ public class PipelineModel implements Serializable {
     }
   }
 
+  /**
+   * Stops the growth of every alphabet reachable from the models (crf input/output/weight alphabets, pipe
+   * alphabets, the reranker's alphabets) and builds their lock-free frozen lookups. The feature vector pipes of
+   * the CRFs' input pipes are swapped for ones that look the features up in those frozen lookups. After this
+   * encoding never adds entries to an alphabet: features that weren't seen in training are dropped. Only call this
+   * on a model that is done training and before encoding with it from more than one thread; ModelFactory does this
+   * when it loads one
+   */
+  public void freezeForInference() {
+    Set<Alphabet> alphabets = reachableAlphabets();
+    for (Alphabet alphabet : alphabets) {
+      alphabet.stopGrowth();
+      FrozenAlphabet.forAlphabet(alphabet);
+    }
+    int swapped = 0;
+    for (CRF crf : reachableCrfs()) {
+      swapped += freezePipes(crf.getInputPipe());
+    }
+    log.info("Froze {} alphabets and {} feature pipes for inference", alphabets.size(), swapped);
+  }
+
+  // replaces the feature vector pipes (in place) with their frozen versions and returns how many were replaced
+  private static int freezePipes(Pipe pipe) {
+    if (!(pipe instanceof SerialPipes)) {
+      return 0;
+    }
+    int swapped = 0;
+    List<Pipe> pipes = ((SerialPipes) pipe).pipes();
+    for (int i = 0; i < pipes.size(); i++) {
+      Pipe child = pipes.get(i);
+      if (child instanceof TokenSequence2FeatureVectorSequence &&
+          !(child instanceof FrozenTokenSequence2FeatureVectorSequence)) {
+        pipes.set(i, FrozenTokenSequence2FeatureVectorSequence.replacing((TokenSequence2FeatureVectorSequence) child));
+        swapped += 1;
+      } else {
+        swapped += freezePipes(child);
+      }
+    }
+    return swapped;
+  }
+
+  /**
+   * Switches every CRF model in this pipeline between the compiled CRF inference (what they use by default) and
+   * mallet's lattices; both give the same results
+   */
+  public void setUseCompiledCrfs(boolean useCompiled) {
+    setUseCompiled(testingAlignerModel, useCompiled);
+    if (pronouncerModel != null) {
+      pronouncerModel.setUseCompiled(useCompiled);
+    }
+  }
+
+  private static void setUseCompiled(Aligner aligner, boolean useCompiled) {
+    if (aligner instanceof AlignTagModel) {
+      ((AlignTagModel) aligner).setUseCompiled(useCompiled);
+    } else if (aligner instanceof SyllTagModel) {
+      ((SyllTagModel) aligner).setUseCompiled(useCompiled);
+    } else if (aligner instanceof SyllTagAlignerAdapter) {
+      SyllTagAlignerAdapter adapter = (SyllTagAlignerAdapter) aligner;
+      setUseCompiled(adapter.getBaseAligner(), useCompiled);
+      adapter.getSyllTagger().setUseCompiled(useCompiled);
+    }
+  }
+
+  /**
+   * @return all of the (distinct) alphabets used by the models in this pipeline
+   */
+  public Set<Alphabet> reachableAlphabets() {
+    Set<Alphabet> alphabets = Sets.newIdentityHashSet();
+    for (CRF crf : reachableCrfs()) {
+      addCrf(alphabets, crf);
+    }
+    if (rerankerModel != null) {
+      Classifier classifier = rerankerModel.getClassifier();
+      addAlphabet(alphabets, classifier.getAlphabet());
+      addAlphabet(alphabets, classifier.getLabelAlphabet());
+      addPipe(alphabets, classifier.getInstancePipe());
+    }
+    return alphabets;
+  }
+
+  private List<CRF> reachableCrfs() {
+    List<CRF> crfs = Lists.newArrayList();
+    addAligner(crfs, testingAlignerModel);
+    if (pronouncerModel != null) {
+      crfs.add(pronouncerModel.getCrf());
+    }
+    return crfs;
+  }
+
+  private static void addAligner(List<CRF> crfs, Aligner aligner) {
+    if (aligner instanceof AlignTagModel) {
+      crfs.add(((AlignTagModel) aligner).getCrf());
+    } else if (aligner instanceof SyllTagModel) {
+      crfs.add(((SyllTagModel) aligner).getCrf());
+    } else if (aligner instanceof SyllTagAlignerAdapter) {
+      SyllTagAlignerAdapter adapter = (SyllTagAlignerAdapter) aligner;
+      addAligner(crfs, adapter.getBaseAligner());
+      crfs.add(adapter.getSyllTagger().getCrf());
+    }
+  }
+
+  private static void addCrf(Set<Alphabet> alphabets, CRF crf) {
+    addAlphabet(alphabets, crf.getInputAlphabet());
+    addAlphabet(alphabets, crf.getOutputAlphabet());
+    addAlphabet(alphabets, crf.getParameters().weightAlphabet);
+    addPipe(alphabets, crf.getInputPipe());
+    addPipe(alphabets, crf.getOutputPipe());
+  }
+
+  private static void addPipe(Set<Alphabet> alphabets, Pipe pipe) {
+    if (pipe == null) {
+      return;
+    }
+    addAlphabet(alphabets, pipe.getDataAlphabet());
+    addAlphabet(alphabets, pipe.getTargetAlphabet());
+    if (pipe instanceof SerialPipes) {
+      for (Pipe child : ((SerialPipes) pipe).pipes()) {
+        addPipe(alphabets, child);
+      }
+    }
+  }
+
+  private static void addAlphabet(Set<Alphabet> alphabets, Alphabet alphabet) {
+    if (alphabet != null) {
+      alphabets.add(alphabet);
+    }
+  }
+
   private Object writeReplace() {
     return new PipelineModelProxy(this);
   }
@@ -16,12 +16,14 @@
 
 package com.github.steveash.jg2p;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Adapter for the encoder that presents a simplified interface if you're just looking for the top encoding or a simple
@@ -33,12 +35,23 @@ public class SimpleEncoder {
 
   private static final Joiner joiner = Joiner.on(' ');
   private final Encoder encoder;
+  private final BatchEncoder batchEncoder;
 
   public SimpleEncoder(Encoder encoder) {
+    this(encoder, BatchEncoder.defaultPool());
+  }
+
+  public SimpleEncoder(Encoder encoder, ForkJoinPool batchPool) {
     this.encoder = encoder;
+    this.batchEncoder = new BatchEncoder(encoder, batchPool);
   }
 
   public List<String> encodeBest(String word) {
+    if (encoder instanceof PipelineEncoder) {
+      // the pipeline might have a faster best-only mode turned on
+      EncodingResult best = ((PipelineEncoder) encoder).encodeBest(Word.fromNormalString(word));
+      return (best == null ? ImmutableList.<String>of() : best.getPhones());
+    }
     List<? extends EncodingResult> results = encoder.encode(Word.fromNormalString(word));
     if (results.isEmpty()) {
       return ImmutableList.of();
@@ -76,4 +89,58 @@ public class SimpleEncoder {
     }
     return phoneList;
   }
+
+  /**
+   * Batch version of encodeBest; the words are encoded in parallel and the result list is parallel to the input
+   */
+  public List<List<String>> encodeBestAll(List<String> words) {
+    List<? extends List<? extends EncodingResult>> results;
+    if (encoder instanceof PipelineEncoder) {
+      final PipelineEncoder pipelineEncoder = (PipelineEncoder) encoder;
+      results = BatchEncoder.encodeAll(batchEncoder.getPool(), BatchEncoder.DEFAULT_CHUNK_SIZE, toWords(words), 1,
+                                       new Function<Word, List<EncodingResult>>() {
+                                         @Override
+                                         public List<EncodingResult> apply(Word input) {
+                                           EncodingResult best = pipelineEncoder.encodeBest(input);
+                                           return (best == null ? ImmutableList.<EncodingResult>of()
+                                                                : ImmutableList.of(best));
+                                         }
+                                       });
+    } else {
+      results = batchEncoder.encodeAll(toWords(words), 1);
+    }
+    ArrayList<List<String>> output = Lists.newArrayListWithCapacity(results.size());
+    for (List<? extends EncodingResult> result : results) {
+      if (result.isEmpty()) {
+        output.add(ImmutableList.<String>of());
+      } else {
+        output.add(result.get(0).getPhones());
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Batch version of encode; the words are encoded in parallel and the result list is parallel to the input
+   */
+  public List<List<List<String>>> encodeAll(List<String> words, int topKResults) {
+    List<List<EncodingResult>> results = batchEncoder.encodeAll(toWords(words), topKResults);
+    ArrayList<List<List<String>>> output = Lists.newArrayListWithCapacity(results.size());
+    for (List<EncodingResult> result : results) {
+      ArrayList<List<String>> phoneList = Lists.newArrayListWithCapacity(result.size());
+      for (EncodingResult encodingResult : result) {
+        phoneList.add(encodingResult.getPhones());
+      }
+      output.add(phoneList);
+    }
+    return output;
+  }
+
+  private static List<Word> toWords(List<String> words) {
+    ArrayList<Word> inputs = Lists.newArrayListWithCapacity(words.size());
+    for (String word : words) {
+      inputs.add(Word.fromNormalString(word));
+    }
+    return inputs;
+  }
 }
@@ -32,14 +32,14 @@ public class AlignModel implements Externalizable, Aligner {
 
   private /*final*/ GramOptions opts;
   private /*final*/ ProbTable t;
+  private /*final*/ AlignScores scores;
   private /*final*/ AlignerViterbi viterbi;
   private /*final*/ AlignerInferencer inferencer;
 
   public AlignModel(GramOptions opts, ProbTable t) {
     this.opts = opts;
     this.t = t;
-    viterbi = new AlignerViterbi(opts, t);
-    inferencer = new AlignerInferencer(opts, t);
+    initScores();
   }
 
   // for serialization
@@ -55,6 +55,23 @@ public class AlignModel implements Externalizable, Aligner {
     return inferencer.bestGraphemes(x, nBest);
   }
 
+  private void initScores() {
+    this.scores = new AlignScores(t, opts.makePenalizer());
+    this.viterbi = new AlignerViterbi(opts, scores);
+    this.inferencer = new AlignerInferencer(opts, scores);
+  }
+
+  /**
+   * @return the precomputed (penalized) log2 scores of the transitions that the viterbi and inferencer use
+   */
+  public AlignScores getScores() {
+    return scores;
+  }
+
+  public GramOptions getGramOptions() {
+    return opts;
+  }
+
   public ProbTable getTransitions() {
     return t;
   }
@@ -69,7 +86,6 @@ public class AlignModel implements Externalizable, Aligner {
   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
     this.opts = (GramOptions) in.readObject();
     this.t = (ProbTable) in.readObject();
-    this.viterbi = new AlignerViterbi(opts, t);
-    this.inferencer = new AlignerInferencer(opts, t);
+    initScores();
   }
 }
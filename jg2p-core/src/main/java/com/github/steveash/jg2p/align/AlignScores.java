@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.collect.Table;
+import com.google.common.math.DoubleMath;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.LongDoubleOpenHashMap;
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
+
+import com.github.steveash.jg2p.Grams;
+import com.github.steveash.jg2p.Word;
+
+import java.util.List;
+
+/**
+ * Read-only log2 scores of an align model's prob table keyed by interned gram ids so that the viterbi aligner and
+ * the grapheme inferencer only do primitive lookups per lattice edge. A gram's id is built up from the ids of its
+ * unigrams (each n-gram id is the extension of its (n-1)-gram prefix by its last unigram) so the grams of a word
+ * are looked up straight from its unigrams without building the gram strings. The joint scores are
+ * log2(penalize(x, y, p(x, y))) with the model's penalizer folded in and the x scores are log2 of the x marginal.
+ * Grams or pairs that aren't in the table score negative infinity (the same as log2 of a zero probability).
+ * Built once from the table when the model is constructed or loaded; later changes to the table aren't seen.
+ * After it's built every lookup is a plain read that keeps no state between calls (only getOrDefault on the hppc
+ * maps, never containsKey/lget), so one instance can be shared by any number of aligner threads
+ * @author Steve Ash
+ */
+public class AlignScores {
+
+  public static final int UNKNOWN = -1;
+  public static final int EPSILON = 0;
+
+  private final ObjectIntOpenHashMap<String> unigramIds = new ObjectIntOpenHashMap<>();
+  private final LongIntOpenHashMap extensions = new LongIntOpenHashMap();
+  private final LongDoubleOpenHashMap joint = new LongDoubleOpenHashMap();
+  private final DoubleArrayList xMarginal = new DoubleArrayList();
+  private int nextId = EPSILON + 1;
+
+  public AlignScores(ProbTable probs, Penalizer penalizer) {
+    ProbTable.Marginals marginals = probs.calculateMarginals();
+    for (Table.Cell<String, String, Double> cell : probs) {
+      String x = cell.getRowKey();
+      String y = cell.getColumnKey();
+      int xId = intern(x);
+      int yId = intern(y);
+      if (xId == UNKNOWN || yId == UNKNOWN) {
+        continue; // blank but not epsilon; the walkers never make these
+      }
+      joint.put(key(xId, yId), DoubleMath.log2(penalizer.penalize(x, y, cell.getValue())));
+      while (xMarginal.size() <= xId) {
+        xMarginal.add(Double.NaN);
+      }
+      xMarginal.set(xId, DoubleMath.log2(marginals.probX(x)));
+    }
+  }
+
+  private int intern(String gram) {
+    if (Grams.EPSILON.equals(gram)) {
+      return EPSILON;
+    }
+    int id = UNKNOWN;
+    for (String unigram : Grams.iterateSymbols(gram)) {
+      int unigramId = unigramIds.getOrDefault(unigram, UNKNOWN);
+      if (unigramId == UNKNOWN) {
+        unigramId = nextId++;
+        unigramIds.put(unigram, unigramId);
+      }
+      if (id == UNKNOWN) {
+        id = unigramId;
+        continue;
+      }
+      long ext = key(id, unigramId);
+      int extended = extensions.getOrDefault(ext, UNKNOWN);
+      if (extended == UNKNOWN) {
+        extended = nextId++;
+        extensions.put(ext, extended);
+      }
+      id = extended;
+    }
+    return id;
+  }
+
+  private static long key(int left, int right) {
+    return (((long) left) << 32) | (right & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Fills gramIds with the id of every gram of the word up to maxGram long: the gram starting at index i of size n
+   * is at gramIds[i * maxGram + n - 1] (UNKNOWN if the table never saw it)
+   */
+  public void gramIds(Word word, int maxGram, int[] gramIds) {
+    List<String> unigrams = word.getValue();
+    int count = unigrams.size();
+    for (int i = 0; i < count; i++) {
+      int id = unigramIds.getOrDefault(unigrams.get(i), UNKNOWN);
+      gramIds[i * maxGram] = id;
+      for (int n = 2; n <= maxGram; n++) {
+        if (i + n > count) {
+          gramIds[i * maxGram + n - 1] = UNKNOWN;
+          continue;
+        }
+        if (id != UNKNOWN) {
+          int last = unigramIds.getOrDefault(unigrams.get(i + n - 1), UNKNOWN);
+          id = (last == UNKNOWN ? UNKNOWN : extensions.getOrDefault(key(id, last), UNKNOWN));
+        }
+        gramIds[i * maxGram + n - 1] = id;
+      }
+    }
+  }
+
+  /**
+   * @return log2 of the penalized joint probability of the x gram and y gram (by id)
+   */
+  public double jointScore(int xGramId, int yGramId) {
+    if (xGramId == UNKNOWN || yGramId == UNKNOWN) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    // a single read: containsKey + lget would go through the map's shared lastSlot which races between threads
+    return joint.getOrDefault(key(xGramId, yGramId), Double.NEGATIVE_INFINITY);
+  }
+
+  /**
+   * @return log2 of the marginal probability of the x gram (by id)
+   */
+  public double xScore(int xGramId) {
+    if (xGramId == UNKNOWN || xGramId >= xMarginal.size()) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    double score = xMarginal.get(xGramId);
+    return (Double.isNaN(score) ? Double.NEGATIVE_INFINITY : score);
+  }
+}
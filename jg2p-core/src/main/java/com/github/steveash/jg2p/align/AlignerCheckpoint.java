@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
+import com.google.common.io.Files;
+import com.google.common.primitives.Doubles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The state of the aligner's EM between two rounds: the probabilities after the M step, the round number, and the
+ * mass delta of every round so far. The counts are always empty at that point and everything else in the
+ * AlignerTrainer is rebuilt from the records, so resuming from here gives the same result as a run that was never
+ * interrupted (as long as the records and the number of aligner threads are the same, since the expected counts
+ * are summed per worker shard). The gram sizes and walker that shaped the lattices are stored too so a resume with
+ * different ones is rejected instead of quietly continuing EM over different alignment candidates.
+ * Written as a small binary file: the distinct x and y grams once and then each cell as two int ids and a double
+ * @author Steve Ash
+ */
+class AlignerCheckpoint {
+
+  private static final Logger log = LoggerFactory.getLogger(AlignerCheckpoint.class);
+
+  private static final int MAGIC = 0x6A326163; // "j2ac"
+  private static final int VERSION = 2;
+  private static final Pattern fileName = Pattern.compile("aligner-em-(\\d+)\\.ckpt");
+
+  final int iteration;
+  final int recordCount;
+  final int workerCount;
+  final String walkerOptions;
+  final double[] massDeltas;
+  final ProbTable probs;
+
+  AlignerCheckpoint(int iteration, int recordCount, int workerCount, String walkerOptions, double[] massDeltas,
+                    ProbTable probs) {
+    this.iteration = iteration;
+    this.recordCount = recordCount;
+    this.workerCount = workerCount;
+    this.walkerOptions = walkerOptions;
+    this.massDeltas = massDeltas;
+    this.probs = probs;
+  }
+
+  /**
+   * @return a description of everything that decides which alignments the EM lattices enumerate; two runs can only
+   * share a checkpoint if these are equal
+   */
+  static String walkerOptionsOf(GramOptions opts, XyWalker walker) {
+    return "xGrams=" + opts.getMinXGram() + "-" + opts.getMaxXGram() +
+           " yGrams=" + opts.getMinYGram() + "-" + opts.getMaxYGram() +
+           " includeXEpsilons=" + opts.isIncludeXEpsilons() +
+           " includeEpsilonYs=" + opts.isIncludeEpsilonYs() +
+           " onlyOneGrams=" + opts.isOnlyOneGrams() +
+           " windowPadding=" + opts.getWindowPadding() +
+           " cityBlockPenalty=" + opts.isCityBlockPenalty() +
+           " walker=" + walker.getClass().getSimpleName();
+  }
+
+  static File fileFor(File dir, int iteration) {
+    return new File(dir, String.format("aligner-em-%06d.ckpt", iteration));
+  }
+
+  /**
+   * Writes the checkpoint for its iteration into the dir (through a temp file so a crash mid-write never leaves a
+   * partial checkpoint) and then deletes all but the newest keepLast checkpoints in the dir
+   */
+  File writeTo(File dir, int keepLast) throws IOException {
+    if (!dir.exists()) {
+      checkState(dir.mkdirs(), "couldnt create the checkpoint dir %s", dir);
+    }
+    File target = fileFor(dir, iteration);
+    File temp = new File(dir, target.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(Files.asByteSink(temp).openBufferedStream())) {
+      write(out);
+    }
+    if (target.exists()) {
+      checkState(target.delete(), "couldnt replace the checkpoint %s", target);
+    }
+    checkState(temp.renameTo(target), "couldnt move the checkpoint %s into place", temp);
+    deleteAllButLast(dir, keepLast);
+    return target;
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(iteration);
+    out.writeInt(recordCount);
+    out.writeInt(workerCount);
+    out.writeUTF(walkerOptions);
+    out.writeInt(massDeltas.length);
+    for (double delta : massDeltas) {
+      out.writeDouble(delta);
+    }
+    Map<String, Integer> xIds = writeNames(out, Lists.newArrayList(probs.xRows()));
+    Map<String, Integer> yIds = writeNames(out, Lists.newArrayList(probs.yCols()));
+    out.writeLong(probs.entryCount());
+    for (Table.Cell<String, String, Double> cell : probs) {
+      out.writeInt(xIds.get(cell.getRowKey()));
+      out.writeInt(yIds.get(cell.getColumnKey()));
+      out.writeDouble(cell.getValue());
+    }
+  }
+
+  private static Map<String, Integer> writeNames(DataOutputStream out, List<String> names) throws IOException {
+    Map<String, Integer> ids = Maps.newHashMapWithExpectedSize(names.size());
+    out.writeInt(names.size());
+    for (String name : names) {
+      ids.put(name, ids.size());
+      out.writeUTF(name);
+    }
+    return ids;
+  }
+
+  static AlignerCheckpoint readFrom(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.asByteSource(file).openBufferedStream())) {
+      checkState(in.readInt() == MAGIC, "%s isnt an aligner checkpoint", file);
+      int version = in.readInt();
+      checkState(version == VERSION, "unsupported aligner checkpoint version %s", version);
+      int iteration = in.readInt();
+      int recordCount = in.readInt();
+      int workerCount = in.readInt();
+      String walkerOptions = in.readUTF();
+      double[] massDeltas = new double[in.readInt()];
+      for (int i = 0; i < massDeltas.length; i++) {
+        massDeltas[i] = in.readDouble();
+      }
+      String[] xs = readNames(in);
+      String[] ys = readNames(in);
+      long cells = in.readLong();
+      ProbTable probs = new ProbTable();
+      for (long i = 0; i < cells; i++) {
+        String x = xs[in.readInt()];
+        String y = ys[in.readInt()];
+        probs.setProb(x, y, in.readDouble());
+      }
+      return new AlignerCheckpoint(iteration, recordCount, workerCount, walkerOptions, massDeltas, probs);
+    }
+  }
+
+  private static String[] readNames(DataInputStream in) throws IOException {
+    String[] names = new String[in.readInt()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = in.readUTF();
+    }
+    return names;
+  }
+
+  /**
+   * @return the checkpoint files in the dir ordered from the oldest iteration to the newest
+   */
+  static List<File> checkpointsIn(File dir) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return fileName.matcher(name).matches();
+      }
+    });
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    List<File> result = Lists.newArrayList(files);
+    Collections.sort(result, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        return Integer.compare(iterationOf(o1), iterationOf(o2));
+      }
+    });
+    return result;
+  }
+
+  private static int iterationOf(File file) {
+    Matcher matcher = fileName.matcher(file.getName());
+    checkState(matcher.matches(), "not a checkpoint file %s", file);
+    return Integer.parseInt(matcher.group(1));
+  }
+
+  private static void deleteAllButLast(File dir, int keepLast) {
+    if (keepLast <= 0) {
+      return; // keep them all
+    }
+    List<File> existing = checkpointsIn(dir);
+    for (int i = 0; i < existing.size() - keepLast; i++) {
+      if (!existing.get(i).delete()) {
+        log.warn("Couldnt delete the old aligner checkpoint " + existing.get(i));
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "AlignerCheckpoint{" +
+           "iteration=" + iteration +
+           ", recordCount=" + recordCount +
+           ", workerCount=" + workerCount +
+           ", massDeltas=" + Doubles.join(", ", massDeltas) +
+           ", cells=" + probs.entryCount() +
+           '}';
+  }
+}
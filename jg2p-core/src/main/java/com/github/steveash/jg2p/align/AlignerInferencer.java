@@ -18,7 +18,6 @@ package com.github.steveash.jg2p.align;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
-import com.google.common.math.DoubleMath;
 
 import com.github.steveash.jg2p.Word;
 
@@ -33,58 +32,60 @@ import java.util.List;
 public class AlignerInferencer {
 
   private final GramOptions opts;
-  private final ProbTable probs;
-  private final ProbTable.Marginals margs;
+  private final AlignScores scores;
 
   public AlignerInferencer(GramOptions opts, ProbTable probs) {
+    this(opts, new AlignScores(probs, opts.makePenalizer()));
+  }
+
+  public AlignerInferencer(GramOptions opts, AlignScores scores) {
     this.opts = opts;
-    this.probs = probs;
-    this.margs = probs.calculateMarginals();
+    this.scores = scores;
   }
 
   public List<Alignment> bestGraphemes(Word x, int bestPathCount) {
-    PathXTable t = new PathXTable(x.unigramCount() + 1, bestPathCount);
-    t.offer(0, t.make(0, -1, -1));
+    KBestLattice t = KBestLattice.forThread(x.unigramCount() + 1, 1, bestPathCount);
+    t.start();
+    int maxX = opts.getMaxXGram();
+    int[] xGrams = new int[x.unigramCount() * maxX];
+    scores.gramIds(x, maxX, xGrams);
 
     for (int xx = 1; xx < x.unigramCount() + 1; xx++) {
-      for (int i = 1; (i <= opts.getMaxXGram()) && (xx - i >= 0); i++) {
-        String xGram = x.gram(xx - i, i);
-        double margX = margs.probX(xGram);
-
-        double score = DoubleMath.log2(margX) * i;
-        t.extendPath(xx, xx - i, PathXTable.Entry.sample(score, i));
+      for (int i = 1; (i <= maxX) && (xx - i >= 0); i++) {
+        double score = scores.xScore(xGrams[(xx - i) * maxX + i - 1]) * i;
+        t.extend(xx, 0, xx - i, 0, score, i, 0);
       }
     }
 
     return createAlignments(x, t, bestPathCount);
   }
 
-  private List<Alignment> createAlignments(Word x, PathXTable t, int bestPathCount) {
+  private List<Alignment> createAlignments(Word x, KBestLattice t, int bestPathCount) {
     List<Alignment> results = Lists.newArrayListWithCapacity(bestPathCount);
+    int lastX = x.unigramCount();
 
-    Iterable<PathXTable.Entry> lastEntries = t.get(x.unigramCount());
-
-    for (PathXTable.Entry lastEntry : lastEntries) {
-      if (lastEntry.score < ProbTable.minLogProb) {
+    for (int slot = 0; slot < t.size(lastX, 0); slot++) {
+      if (t.score(lastX, 0, slot) < ProbTable.minLogProb) {
         continue;
       }
 
-      results.add(decodePathFrom(x, t, lastEntry));
+      results.add(decodePathFrom(x, t, slot));
     }
     Collections.sort(results, Ordering.natural().reverse());
     return results;
   }
 
-  private Alignment decodePathFrom(Word x, PathXTable t, PathXTable.Entry entry) {
+  private Alignment decodePathFrom(Word x, KBestLattice t, int slot) {
     int xx = x.unigramCount();
-    Alignment a = new Alignment(x, entry.score);
+    Alignment a = new Alignment(x, t.score(xx, 0, slot));
 
     while (xx > 0) {
-      String xGram = x.gram(xx - entry.xBackRef, entry.xBackRef);
+      int xBackRef = t.xBackRef(xx, 0, slot);
+      String xGram = x.gram(xx - xBackRef, xBackRef);
       a.append(xGram, "");
 
-      xx -= entry.xBackRef;
-      entry = t.get(xx, entry.pathBackRef);
+      slot = t.parentSlot(xx, 0, slot);
+      xx -= xBackRef;
     }
     return a.finish();
   }
@@ -16,16 +16,13 @@
 
 package com.github.steveash.jg2p.align;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.collect.Table;
+import com.google.common.primitives.Doubles;
 
-import com.github.steveash.jg2p.Word;
-import com.github.steveash.jg2p.util.DoubleTable;
 import com.github.steveash.jg2p.util.ReadWrite;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -34,16 +31,15 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 import static com.github.steveash.jg2p.util.Assert.assertProb;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Tables.immutableCell;
-import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
-import static java.util.concurrent.Executors.newCachedThreadPool;
 
 /**
  * Owns the training algorithms for an Aligner
@@ -65,6 +61,7 @@ public class AlignerTrainer {
   private final Set<Pair<String,String>> blocked;
   private final Penalizer penalizer;
   private ProbTable initFrom = null;
+  private int underflowedRecords = 0;
 
   public AlignerTrainer(TrainOptions trainOpts) {
     this(trainOpts, null);
@@ -75,11 +72,7 @@ public class AlignerTrainer {
     this.gramOpts = trainOpts.makeGramOptions();
     XyWalker w;
     if (overrideWalker == null) {
-      if (trainOpts.useWindowWalker) {
-        w = new WindowXyWalker(gramOpts);
-      } else {
-        w = new FullXyWalker(gramOpts);
-      }
+      w = makeWalker(trainOpts, gramOpts);
 //      if (trainOpts.useSyllableTagger) {
 //        w = new SyllPreserving(w);
 //      }
@@ -101,6 +94,17 @@ public class AlignerTrainer {
     this.penalizer = gramOpts.makePenalizer();
   }
 
+  static XyWalker makeWalker(TrainOptions trainOpts, GramOptions gramOpts) {
+    if (trainOpts.useWindowWalker) {
+      return new WindowXyWalker(gramOpts);
+    }
+    return new FullXyWalker(gramOpts);
+  }
+
+  static int workerCount(TrainOptions trainOpts) {
+    return (trainOpts.alignerThreads > 0 ? trainOpts.alignerThreads : Runtime.getRuntime().availableProcessors());
+  }
+
   public void setInitFrom(ProbTable initFrom) {
     this.initFrom = initFrom;
   }
@@ -119,28 +123,84 @@ public class AlignerTrainer {
   }
 
   public AlignModel train(List<InputRecord> records, ProbTable labelledExamples) {
-    ListeningExecutorService service = listeningDecorator(newCachedThreadPool());
-    try {
+    int workerCount = workerCount(trainOpts);
+    try (ShardedExpectation sharded = new ShardedExpectation(workerCount)) {
       this.labelledProbs = labelledExamples.makeNormalizedCopy();
       initCounts(records);
       maximization(); // this just initializes the probabilities for the first time
 
       int iteration = 0;
-      boolean keepTraining = true;
-      log.info("Starting EM rounds...");
+      List<Double> massDeltas = Lists.newArrayList();
+      if (trainOpts.alignerResumeFrom != null) {
+        AlignerCheckpoint checkpoint = readCheckpoint(trainOpts.alignerResumeFrom);
+        checkState(checkpoint.recordCount == records.size(), "the checkpoint %s was for %s records not %s",
+                   trainOpts.alignerResumeFrom, checkpoint.recordCount, records.size());
+        String walkerOptions = AlignerCheckpoint.walkerOptionsOf(gramOpts, walker);
+        checkState(checkpoint.walkerOptions.equals(walkerOptions),
+                   "the checkpoint %s was written with the aligner options [%s] but this run has [%s]",
+                   trainOpts.alignerResumeFrom, checkpoint.walkerOptions, walkerOptions);
+        if (checkpoint.workerCount != workerCount) {
+          log.warn("The checkpoint was written with " + checkpoint.workerCount + " aligner threads and this run has " +
+                   workerCount + " so the result wont be identical to an uninterrupted run");
+        }
+        probs.clear();
+        probs.addAll(checkpoint.probs);
+        iteration = checkpoint.iteration;
+        massDeltas.addAll(Doubles.asList(checkpoint.massDeltas));
+        log.info("Resuming EM after round " + iteration + " from " + trainOpts.alignerResumeFrom + " (mass deltas " +
+                 massDeltas + ")");
+      }
+
+      Stopwatch compileWatch = Stopwatch.createStarted();
+      EmLattices lattices = EmLattices.compile(records, walker, trainOpts.alignerOffHeapLattices);
+      log.info("Compiled " + lattices.recordCount() + " EM lattices with " + lattices.edgeCount() + " edges over " +
+               lattices.pairCount() + " gram pairs in " + compileWatch + "; " + lattices.unalignableCount() +
+               " records have no possible alignment");
+
+      boolean keepTraining = (massDeltas.isEmpty() || !hasConverged(massDeltas.get(massDeltas.size() - 1), iteration));
+      log.info("Starting EM rounds with " + workerCount + " workers...");
+      Stopwatch total = Stopwatch.createStarted();
       while (keepTraining) {
         iteration += 1;
 
-        expectation(records, service);
+        Stopwatch watch = Stopwatch.createStarted();
+        expectation(lattices, sharded);
+        long expectMillis = watch.elapsed(TimeUnit.MILLISECONDS);
         double thisChange = maximization();
+        long maxMillis = watch.elapsed(TimeUnit.MILLISECONDS) - expectMillis;
 
         keepTraining = !hasConverged(thisChange, iteration);
-        log.info("Completed EM round " + iteration + " mass delta " + String.format("%.15f", thisChange));
+        massDeltas.add(thisChange);
+        log.info("Completed EM round " + iteration + " mass delta " + String.format("%.15f", thisChange) +
+                 " in " + watch + " (E " + expectMillis + " ms, M " + maxMillis + " ms)");
+        if (keepTraining && trainOpts.alignerCheckpointDir != null &&
+            iteration % trainOpts.alignerCheckpointEvery == 0) {
+          writeCheckpoint(iteration, records.size(), workerCount, massDeltas);
+        }
       }
-      log.info("Training complete in " + iteration + " rounds!");
+      log.info("Training complete in " + iteration + " rounds, took " + total);
       return new AlignModel(gramOpts, probs);
-    } finally {
-      MoreExecutors.shutdownAndAwaitTermination(service, 60, TimeUnit.SECONDS);
+    }
+  }
+
+  private static AlignerCheckpoint readCheckpoint(File checkpointFile) {
+    try {
+      return AlignerCheckpoint.readFrom(checkpointFile);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private void writeCheckpoint(int iteration, int recordCount, int workerCount, List<Double> massDeltas) {
+    AlignerCheckpoint checkpoint = new AlignerCheckpoint(iteration, recordCount, workerCount,
+                                                         AlignerCheckpoint.walkerOptionsOf(gramOpts, walker),
+                                                         Doubles.toArray(massDeltas), probs);
+    try {
+      File written = checkpoint.writeTo(trainOpts.alignerCheckpointDir, trainOpts.alignerCheckpointKeep);
+      log.info("Wrote aligner checkpoint " + written);
+    } catch (IOException e) {
+      // losing a checkpoint shouldnt lose the whole training run
+      log.warn("Couldnt write the aligner checkpoint for round " + iteration, e);
     }
   }
 
@@ -155,86 +215,25 @@ public class AlignerTrainer {
     return false;
   }
 
-  private void expectation(List<InputRecord> records, ListeningExecutorService service) {
-    int workerCount = Runtime.getRuntime().availableProcessors();
-    List<ListenableFuture<ProbTable>> consumers = Lists.newArrayList();
-    for (List<InputRecord> partition : Lists.partition(records, workerCount)) {
-      consumers.add(service.submit(makeConsumer(partition)));
-    }
-    try {
-      List<ProbTable> results = Futures.allAsList(consumers).get();
-      ProbTable.mergeAll(results, counts);
-    } catch (Exception e) {
-      throw Throwables.propagate(e);
-    }
-  }
-
-  private Callable<ProbTable> makeConsumer(final List<InputRecord> partition) {
-    return new Callable<ProbTable>() {
-      @Override
-      public ProbTable call() throws Exception {
-        ProbTable counts = new ProbTable();
-        for (InputRecord inputRecord : partition) {
-          expectationForRecord(inputRecord, counts);
-        }
-        return counts;
+  private void expectation(EmLattices lattices, ShardedExpectation sharded) {
+    double[] pairProbs = lattices.pairProbs(probs, penalizer);
+    this.underflowedRecords = sharded.expectation(lattices, pairProbs, trainOpts.alignerScaledEm, counts);
+    if (underflowedRecords > 0) {
+      if (trainOpts.alignerScaledEm) {
+        log.info(underflowedRecords + " records underflow unscaled EM; their counts were kept by the scaled EM");
+      } else {
+        log.warn(underflowedRecords + " records had zero probability (most likely underflow) and were skipped; " +
+                 "consider --alignerScaledEm");
       }
-    };
-  }
-
-  private void expectationForRecord(InputRecord record, final ProbTable outCounts) {
-    Word x = record.xWord;
-    Word y = record.yWord;
-    int xsize = x.unigramCount();
-    int ysize = y.unigramCount();
-    final DoubleTable alpha = new DoubleTable(xsize + 1, ysize + 1);
-    final DoubleTable beta = new DoubleTable(xsize + 1, ysize + 1);
-
-    forward(x, y, alpha);
-    backward(x, y, beta);
-
-    final double alphaXy = alpha.get(xsize, ysize);
-    if (alphaXy == 0) {
-      return;
     }
-
-    walker.forward(x, y, new XyWalker.Visitor() {
-      @Override
-      public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
-        double prob = alpha.get(xxBefore, yyBefore) *
-                      penalize(xGram, yGram, probs.prob(xGram, yGram)) *
-                      beta.get(xxAfter, yyAfter) /
-                      alphaXy;
-
-        outCounts.addProb(xGram, yGram, prob);
-      }
-    });
   }
 
-  private void backward(Word x, Word y, final DoubleTable beta) {
-    beta.put(x.unigramCount(), y.unigramCount(), 1.0);
-    walker.backward(x, y, new XyWalker.Visitor() {
-      @Override
-      public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
-        double newBeta = penalize(xGram, yGram, probs.prob(xGram, yGram)) * beta.get(xxAfter, yyAfter);
-        beta.add(xxBefore, yyBefore, newBeta);
-      }
-    });
-  }
-
-  private void forward(Word x, Word y, final DoubleTable alpha) {
-    alpha.put(0, 0, 1.0);
-    walker.forward(x, y, new XyWalker.Visitor() {
-      @Override
-      public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
-        double newAlpha = penalize(xGram, yGram, probs.prob(xGram, yGram)) * alpha.get(xxBefore, yyBefore);
-        alpha.add(xxAfter, yyAfter, newAlpha);
-      }
-    });
-  }
-
-  private double penalize(String xGram, String yGram, double prob) {
-    return penalizer.penalize(xGram, yGram, prob);
+  /**
+   * @return the number of records in the last EM round whose probability underflows the unscaled forward-backward
+   * (these are skipped unless the scaled EM is enabled)
+   */
+  public int getUnderflowedRecords() {
+    return underflowedRecords;
   }
 
   private double maximization() {
@@ -244,24 +243,36 @@ public class AlignerTrainer {
     double unsuperFactor = (1.0 - trainOpts.semiSupervisedFactor);
     double superFactor = trainOpts.semiSupervisedFactor;
 
-    for (Pair<String, String> xy : ProbTable.unionOfAllCells(counts, labelledProbs)) {
-      String x = xy.getLeft();
-      String y = xy.getRight();
-      double countExp = counts.prob(x, y);
-      double unsupervised = trainOpts.trainingAlignerMaximizer.maximize(immutableCell(x, y, countExp), marginals);
-      double supervised = labelledProbs.prob(x, y);
-      double update = (unsuperFactor * unsupervised) + (superFactor * supervised);
-      assertProb(update);
-
-      double current = probs.prob(x, y);
-      totalChange += Math.abs(current - update);
-      probs.setProb(x, y, update);
+    // every x,y that has mass in either the counts or the labelled probs; walked as the cells of the one and then
+    // the cells of the other that aren't in the first (instead of building the union)
+    for (Table.Cell<String, String, Double> cell : counts) {
+      if (cell.getValue() > 0) {
+        totalChange += maximizeCell(cell.getRowKey(), cell.getColumnKey(), marginals, unsuperFactor, superFactor);
+      }
+    }
+    for (Table.Cell<String, String, Double> cell : labelledProbs) {
+      if (cell.getValue() > 0 && !(counts.prob(cell.getRowKey(), cell.getColumnKey()) > 0)) {
+        totalChange += maximizeCell(cell.getRowKey(), cell.getColumnKey(), marginals, unsuperFactor, superFactor);
+      }
     }
 
     counts.clear();
     return trainOpts.trainingAlignerMaximizer.normalize(totalChange, marginals);
   }
 
+  private double maximizeCell(String x, String y, ProbTable.Marginals marginals, double unsuperFactor,
+                              double superFactor) {
+    double countExp = counts.prob(x, y);
+    double unsupervised = trainOpts.trainingAlignerMaximizer.maximize(immutableCell(x, y, countExp), marginals);
+    double supervised = labelledProbs.prob(x, y);
+    double update = (unsuperFactor * unsupervised) + (superFactor * supervised);
+    assertProb(update);
+
+    double current = probs.prob(x, y);
+    probs.setProb(x, y, update);
+    return Math.abs(current - update);
+  }
+
   private void smoothCounts() {
     if (allowed == null) return;
 
@@ -345,14 +356,19 @@ public class AlignerTrainer {
 
   public static AlignModel trainAndSave(String[] args) throws CmdLineException, IOException {
     TrainOptions opts = parseArgs(args);
-    AlignerTrainer trainer = new AlignerTrainer(opts);
 
-    log.info("Reading input training records...");
     InputReader reader = opts.makeReader();
-    List<InputRecord> inputRecords = reader.readFromFile(opts.trainingFile);
+    AlignModel model;
+    if (opts.alignerStepwise) {
+      log.info("Training the probabilistic model with stepwise EM streaming from " + opts.trainingFile + "...");
+      model = new StepwiseAlignerTrainer(opts).train(reader.streamFromFile(opts.trainingFile));
+    } else {
+      log.info("Reading input training records...");
+      List<InputRecord> inputRecords = reader.readFromFile(opts.trainingFile);
 
-    log.info("Training the probabilistic model...");
-    AlignModel model = trainer.train(inputRecords);
+      log.info("Training the probabilistic model...");
+      model = new AlignerTrainer(opts).train(inputRecords);
+    }
 
     log.info("Writing model to " + opts.outputFile + "...");
     ReadWrite.writeTo(model, opts.outputFile);
@@ -18,9 +18,7 @@ package com.github.steveash.jg2p.align;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
-import com.google.common.math.DoubleMath;
 
-import com.github.steveash.jg2p.Grams;
 import com.github.steveash.jg2p.Word;
 import com.github.steveash.jg2p.syll.SWord;
 
@@ -35,46 +33,49 @@ public class AlignerViterbi {
 
 
   public AlignerViterbi(GramOptions opts, ProbTable probs) {
+    this(opts, new AlignScores(probs, opts.makePenalizer()));
+  }
+
+  public AlignerViterbi(GramOptions opts, AlignScores scores) {
     this.opts = opts;
-    this.probs = probs;
-    this.penalizer = opts.makePenalizer();
+    this.scores = scores;
   }
 
   private final GramOptions opts;
-  private final ProbTable probs;
-  private final Penalizer penalizer;
+  private final AlignScores scores;
 
   public List<Alignment> align(Word x, Word y, int bestPathCount) {
-    PathXYTable t = new PathXYTable(x.unigramCount() + 1, y.unigramCount() + 1, bestPathCount);
-    t.offer(0, 0, t.make(0, -1, -1, -1));
+    KBestLattice t = KBestLattice.forThread(x.unigramCount() + 1, y.unigramCount() + 1, bestPathCount);
+    t.start();
+    int maxX = opts.getMaxXGram();
+    int maxY = opts.getMaxYGram();
+    int[] xGrams = new int[x.unigramCount() * maxX];
+    int[] yGrams = new int[y.unigramCount() * maxY];
+    scores.gramIds(x, maxX, xGrams);
+    scores.gramIds(y, maxY, yGrams);
 
     for (int xx = 0; xx < x.unigramCount() + 1; xx++) {
       for (int yy = 0; yy < y.unigramCount() + 1; yy++) {
 
         if (xx > 0 && opts.isIncludeXEpsilons()) {
-          for (int i = 1; (i <= opts.getMaxXGram()) && (xx - i >= 0); i++) {
-            String xGram = x.gram(xx - i, i);
-            double score = DoubleMath.log2(penalizer.penalize(xGram, Grams.EPSILON, probs.prob(xGram, Grams.EPSILON))); // what was this * i business
-            t.extendPath(xx, yy, xx - i, yy, PathXYTable.Entry.sample(score, i, 0));
+          for (int i = 1; (i <= maxX) && (xx - i >= 0); i++) {
+            double score = scores.jointScore(xGrams[(xx - i) * maxX + i - 1], AlignScores.EPSILON);
+            t.extend(xx, yy, xx - i, yy, score, i, 0);
           }
         }
 
         if (yy > 0 && opts.isIncludeEpsilonYs()) {
-          for (int j = 1; (j <= opts.getMaxYGram()) && (yy - j >= 0); j++) {
-            String yGram = y.gram(yy - j, j);
-            double score = DoubleMath.log2(penalizer.penalize(Grams.EPSILON, yGram, probs.prob(Grams.EPSILON, yGram))); // * j;
-            t.extendPath(xx, yy, xx, yy - j, PathXYTable.Entry.sample(score, 0, j));
+          for (int j = 1; (j <= maxY) && (yy - j >= 0); j++) {
+            double score = scores.jointScore(AlignScores.EPSILON, yGrams[(yy - j) * maxY + j - 1]);
+            t.extend(xx, yy, xx, yy - j, score, 0, j);
           }
         }
 
         if (xx > 0 && yy > 0) {
-          for (int i = 1; (i <= opts.getMaxXGram()) && (xx - i >= 0); i++) {
-            for (int j = 1; (j <= opts.getMaxYGram()) && (yy - j >= 0); j++) {
-              String xGram = x.gram(xx - i, i);
-              String yGram = y.gram(yy - j, j);
-
-              double score = DoubleMath.log2(penalizer.penalize(xGram, yGram, probs.prob(xGram, yGram))); // * Math.max(i, j);
-              t.extendPath(xx, yy, xx - i, yy - j, PathXYTable.Entry.sample(score, i, j));
+          for (int i = 1; (i <= maxX) && (xx - i >= 0); i++) {
+            for (int j = 1; (j <= maxY) && (yy - j >= 0); j++) {
+              double score = scores.jointScore(xGrams[(xx - i) * maxX + i - 1], yGrams[(yy - j) * maxY + j - 1]);
+              t.extend(xx, yy, xx - i, yy - j, score, i, j);
             }
           }
         }
@@ -84,33 +85,35 @@ public class AlignerViterbi {
     return createAlignments(x, y, t, bestPathCount);
   }
 
-  private List<Alignment> createAlignments(Word x, Word y, PathXYTable t, int bestPathCount) {
+  private List<Alignment> createAlignments(Word x, Word y, KBestLattice t, int bestPathCount) {
     List<Alignment> results = Lists.newArrayListWithCapacity(bestPathCount);
+    int lastX = x.unigramCount();
+    int lastY = y.unigramCount();
 
-    Iterable<PathXYTable.Entry> lastEntries = t.get(x.unigramCount(), y.unigramCount());
-
-    for (PathXYTable.Entry lastEntry : lastEntries) {
-      if (lastEntry.score < ProbTable.minLogProb) continue;
+    for (int slot = 0; slot < t.size(lastX, lastY); slot++) {
+      if (t.score(lastX, lastY, slot) < ProbTable.minLogProb) continue;
 
-      results.add(decodePathFrom(x, y, t, lastEntry));
+      results.add(decodePathFrom(x, y, t, slot));
     }
     Collections.sort(results, Ordering.natural().reverse());
     return results;
   }
 
-  private Alignment decodePathFrom(Word x, Word y, PathXYTable t, PathXYTable.Entry entry) {
+  private Alignment decodePathFrom(Word x, Word y, KBestLattice t, int slot) {
     int xx = x.unigramCount();
     int yy = y.unigramCount();
-    Alignment a = new Alignment(x, entry.score);
+    Alignment a = new Alignment(x, t.score(xx, yy, slot));
 
     while (xx > 0 || yy > 0) {
-      String xGram = x.gram(xx - entry.xBackRef, entry.xBackRef);
-      String yGram = y.gram(yy - entry.yBackRef, entry.yBackRef);
+      int xBackRef = t.xBackRef(xx, yy, slot);
+      int yBackRef = t.yBackRef(xx, yy, slot);
+      String xGram = x.gram(xx - xBackRef, xBackRef);
+      String yGram = y.gram(yy - yBackRef, yBackRef);
       a.append(xGram, yGram);
 
-      xx -= entry.xBackRef;
-      yy -= entry.yBackRef;
-      entry = t.get(xx, yy, entry.pathBackRef);
+      slot = t.parentSlot(xx, yy, slot);
+      xx -= xBackRef;
+      yy -= yBackRef;
     }
     Alignment finish = a.finish();
     if (y instanceof SWord) {
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Table;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
+
+import com.github.steveash.jg2p.Word;
+import com.github.steveash.jg2p.syll.SWord;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * On-disk cache of a force aligned training corpus so that a run with the same training records and the same
+ * training aligner (e.g. one loaded unchanged from a previous run) can skip aligning the whole corpus again. Each
+ * entry is a file in the cache dir named by a hash of the records, the aligner's gram options and transition
+ * probabilities, and the align options (k best, min score), so a change to any of them is just a cache miss.
+ * The file is a small binary format: every distinct string once and then each alignment as its input word, its
+ * graphones (as string ids), its score, and its syllable word (phones, syllable starts and stresses) if it has one;
+ * the syllable grams are rebuilt from the syllable word when they're asked for like any other alignment
+ * @author Steve Ash
+ */
+public class AlignmentCache {
+
+  private static final Logger log = LoggerFactory.getLogger(AlignmentCache.class);
+
+  private static final int MAGIC = 0x6A326164; // "j2ad"
+  private static final int VERSION = 1;
+  private static final Joiner spaceJoiner = Joiner.on(' ');
+
+  private final File dir;
+
+  public AlignmentCache(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * @return the key of the alignments of the records with the model for the given number of best alignments and
+   * min alignment score
+   */
+  public static String keyFor(Iterable<InputRecord> records, AlignModel model, int bestPathCount, int minAlignScore) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(VERSION);
+    hasher.putInt(bestPathCount);
+    hasher.putInt(minAlignScore);
+    hasher.putBytes(SerializationUtils.serialize(model.getGramOptions()));
+    List<String> cells = Lists.newArrayListWithCapacity((int) model.getTransitions().entryCount());
+    for (Table.Cell<String, String, Double> cell : model.getTransitions()) {
+      cells.add(cell.getRowKey() + '\t' + cell.getColumnKey() + '\t' + Double.doubleToLongBits(cell.getValue()));
+    }
+    for (String cell : Ordering.natural().sortedCopy(cells)) {
+      hasher.putString(cell, Charsets.UTF_8).putByte((byte) '\n');
+    }
+    for (InputRecord record : records) {
+      putWord(hasher, record.xWord);
+      putWord(hasher, record.yWord);
+      if (record.yWord instanceof SWord) {
+        SWord sword = (SWord) record.yWord;
+        hasher.putString(Ints.join(" ", sword.getBounds()), Charsets.UTF_8).putByte((byte) '\t');
+        if (sword.getSyllableStress() != null) {
+          hasher.putString(Ints.join(" ", sword.getSyllableStress()), Charsets.UTF_8);
+        }
+      }
+      hasher.putByte((byte) '\n');
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putWord(Hasher hasher, Word word) {
+    hasher.putString(word.getAsSpaceString(), Charsets.UTF_8).putByte((byte) '\t');
+  }
+
+  File fileFor(String key) {
+    return new File(dir, "aligned-" + key + ".bin");
+  }
+
+  /**
+   * @return the cached alignments for the key or null if there aren't any (or they couldn't be read)
+   */
+  public List<Alignment> read(String key) {
+    File file = fileFor(key);
+    if (!file.exists()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(Files.asByteSource(file).openBufferedStream())) {
+      checkState(in.readInt() == MAGIC, "%s isnt an alignment cache file", file);
+      int version = in.readInt();
+      checkState(version == VERSION, "unsupported alignment cache version %s", version);
+      String[] strings = new String[readVarInt(in)];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = in.readUTF();
+      }
+      int count = readVarInt(in);
+      List<Alignment> alignments = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+        alignments.add(readAlignment(in, strings));
+      }
+      return alignments;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Couldnt read the cached alignments in " + file + " so they will be re-aligned", e);
+      return null;
+    }
+  }
+
+  private static Alignment readAlignment(DataInput in, String[] strings) throws IOException {
+    Word input = Word.fromGrams(readStrings(in, strings));
+    int graphoneCount = readVarInt(in);
+    List<Pair<String, String>> graphones = Lists.newArrayListWithCapacity(graphoneCount);
+    for (int i = 0; i < graphoneCount; i++) {
+      graphones.add(Pair.of(strings[readVarInt(in)], strings[readVarInt(in)]));
+    }
+    double score = in.readDouble();
+    SWord syllWord = null;
+    if (in.readBoolean()) {
+      String phones = spaceJoiner.join(readStrings(in, strings));
+      String bounds = Ints.join(" ", readInts(in));
+      String stress = (in.readBoolean() ? Ints.join(" ", readInts(in)) : null);
+      syllWord = new SWord(phones, bounds, stress);
+    }
+    return new Alignment(input, graphones, score, null, syllWord);
+  }
+
+  /**
+   * Writes the alignments for the key (through a temp file so a crash mid-write never leaves a partial entry)
+   */
+  public void write(String key, List<Alignment> alignments) throws IOException {
+    for (Alignment alignment : alignments) {
+      SWord syllWord = alignment.getSyllWord();
+      if (syllWord != null && syllWord.getBounds().length == 0) {
+        log.warn("Cant cache alignments of syllable words without syllable starts so not caching " + key);
+        return;
+      }
+    }
+    if (!dir.exists()) {
+      checkState(dir.mkdirs(), "couldnt create the alignment cache dir %s", dir);
+    }
+    File target = fileFor(key);
+    File temp = new File(dir, target.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(Files.asByteSink(temp).openBufferedStream())) {
+      write(out, alignments);
+    }
+    if (target.exists()) {
+      checkState(target.delete(), "couldnt replace the cached alignments %s", target);
+    }
+    checkState(temp.renameTo(target), "couldnt move the cached alignments %s into place", temp);
+  }
+
+  private static void write(DataOutputStream out, List<Alignment> alignments) throws IOException {
+    ObjectIntOpenHashMap<String> ids = ObjectIntOpenHashMap.newInstance();
+    List<String> strings = Lists.newArrayList();
+    for (Alignment alignment : alignments) {
+      intern(alignment.getWordUnigrams(), ids, strings);
+      for (Pair<String, String> graphone : alignment.getGraphones()) {
+        intern(graphone.getLeft(), ids, strings);
+        intern(graphone.getRight(), ids, strings);
+      }
+      if (alignment.getSyllWord() != null) {
+        intern(alignment.getSyllWord().getValue(), ids, strings);
+      }
+    }
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeVarInt(out, strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+    writeVarInt(out, alignments.size());
+    for (Alignment alignment : alignments) {
+      writeStrings(out, alignment.getWordUnigrams(), ids);
+      writeVarInt(out, alignment.getGraphones().size());
+      for (Pair<String, String> graphone : alignment.getGraphones()) {
+        writeVarInt(out, ids.get(graphone.getLeft()));
+        writeVarInt(out, ids.get(graphone.getRight()));
+      }
+      out.writeDouble(alignment.getScore());
+      SWord syllWord = alignment.getSyllWord();
+      out.writeBoolean(syllWord != null);
+      if (syllWord != null) {
+        writeStrings(out, syllWord.getValue(), ids);
+        writeInts(out, syllWord.getBounds());
+        out.writeBoolean(syllWord.getSyllableStress() != null);
+        if (syllWord.getSyllableStress() != null) {
+          writeInts(out, syllWord.getSyllableStress());
+        }
+      }
+    }
+  }
+
+  private static void intern(List<String> values, ObjectIntOpenHashMap<String> ids, List<String> strings) {
+    for (String value : values) {
+      intern(value, ids, strings);
+    }
+  }
+
+  private static void intern(String value, ObjectIntOpenHashMap<String> ids, List<String> strings) {
+    if (!ids.containsKey(value)) {
+      ids.put(value, strings.size());
+      strings.add(value);
+    }
+  }
+
+  private static void writeStrings(DataOutput out, List<String> values, ObjectIntOpenHashMap<String> ids)
+      throws IOException {
+    writeVarInt(out, values.size());
+    for (String value : values) {
+      writeVarInt(out, ids.get(value));
+    }
+  }
+
+  private static List<String> readStrings(DataInput in, String[] strings) throws IOException {
+    int count = readVarInt(in);
+    List<String> values = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      values.add(strings[readVarInt(in)]);
+    }
+    return values;
+  }
+
+  private static void writeInts(DataOutput out, int[] values) throws IOException {
+    writeVarInt(out, values.length);
+    for (int value : values) {
+      writeVarInt(out, value);
+    }
+  }
+
+  private static int[] readInts(DataInput in) throws IOException {
+    int[] values = new int[readVarInt(in)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readVarInt(in);
+    }
+    return values;
+  }
+
+  // non-negative ints 7 bits at a time, low bits first; most ids and sizes here fit in one or two bytes
+  private static void writeVarInt(DataOutput out, int value) throws IOException {
+    checkState(value >= 0, "cant write negative value %s", value);
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed var int");
+  }
+}
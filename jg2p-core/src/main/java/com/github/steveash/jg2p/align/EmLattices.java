@@ -0,0 +1,461 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntOpenHashMap;
+
+import com.github.steveash.jg2p.Word;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The alignment lattices of all of the training records compiled once per training run so that each EM iteration
+ * doesn't have to re-walk the records, rebuild the gram strings, and hash them into the prob table for every edge.
+ * Every distinct (x gram, y gram) pair that the walker produces gets a pair id and each record's edges are packed
+ * into int buffers as (before cell, after cell, pair id) triples in the walker's forward order followed by the
+ * walker's backward order as indexes into those triples (cell = xx * (ysize + 1) + yy). The forward, backward, and
+ * expectation passes are then loops over the packed edges using a per-iteration array of the (penalized) pair
+ * probabilities; they visit in the same order as the walker so the sums come out the same.
+ * The packed edges can be kept off-heap (in direct buffers) for very large lexicons. They're stored in fixed size
+ * chunks (a record's block never spans two) so compiling walks each record once, builds its block on its own, and
+ * copies it straight in to the current chunk; only one record's edges are on the heap at a time even while
+ * compiling and at most the tail of the last chunk is unused.
+ * The forward-backward passes take a Scratch with the alpha and beta arrays so that each worker can reuse the same
+ * ones for every record of every iteration
+ * @author Steve Ash
+ */
+class EmLattices {
+
+  private static final int EDGE_INTS = 3;
+  private static final int CHUNK_INTS = 1 << 18; // 1MB chunks; bigger records get a chunk of their own
+  private static final double MAX_EXP = 700.0; // exp of more than this overflows a double
+  private static final double LOG_MIN_VALUE = Math.log(Double.MIN_VALUE);
+
+  private final String[] pairX;
+  private final String[] pairY;
+  private final int[] recordChunk; // which of the chunks holds the record's block
+  private final int[] recordOffset; // where the record's block starts in its chunk
+  private final int[] recordEdgeCount;
+  private final int[] recordCellCount;
+  private final int[] recordWidth; // cells per x row, i.e. ysize + 1
+  private final boolean[] recordAlignable; // if there is any path through the lattice at all
+  private final IntBuffer[] chunks;
+
+  /**
+   * The per-worker arrays of the forward-backward passes; they grow to fit the biggest record seen so far and are
+   * reused for every record after that. Not thread safe, so one per worker
+   */
+  static class Scratch {
+
+    private double[] alpha = new double[0];
+    private double[] beta = new double[0];
+    private double[] alphaScale = new double[0];
+    private double[] betaScale = new double[0];
+    private double[] logAlphaScale = new double[0];
+    private double[] logBetaScale = new double[0];
+    private double[] spanFactor = new double[0];
+    private double[] logEdgeFactor = new double[0];
+
+    private void prepare(int cellCount) {
+      if (alpha.length < cellCount) {
+        alpha = new double[cellCount];
+        beta = new double[cellCount];
+      } else {
+        Arrays.fill(alpha, 0, cellCount, 0.0);
+        Arrays.fill(beta, 0, cellCount, 0.0);
+      }
+    }
+
+    private void prepareScaled(int cellCount, int rows) {
+      prepare(cellCount);
+      if (alphaScale.length < rows) {
+        alphaScale = new double[rows];
+        betaScale = new double[rows];
+        logAlphaScale = new double[rows];
+        logBetaScale = new double[rows + 1];
+        spanFactor = new double[rows + 1];
+        logEdgeFactor = new double[rows];
+      }
+      logBetaScale[rows] = 0.0; // the (empty) product past the last row; the rest are written before being read
+    }
+  }
+
+  static EmLattices compile(List<InputRecord> records, XyWalker walker, boolean offHeap) {
+    return compile(records, walker, offHeap, CHUNK_INTS);
+  }
+
+  static EmLattices compile(List<InputRecord> records, XyWalker walker, boolean offHeap, int chunkInts) {
+    final Map<Pair<String, String>, Integer> pairIds = Maps.newHashMap();
+    final List<Pair<String, String>> pairs = Lists.newArrayList();
+    List<IntBuffer> chunks = Lists.newArrayList();
+    IntBuffer chunk = null;
+    // the block of the current record (forward triples then backward indexes), copied in to a chunk when done
+    final IntArrayList packed = new IntArrayList();
+    int[] recordChunk = new int[records.size()];
+    int[] recordOffset = new int[records.size()];
+    int[] recordEdgeCount = new int[records.size()];
+    int[] recordCellCount = new int[records.size()];
+    int[] recordWidth = new int[records.size()];
+    boolean[] recordAlignable = new boolean[records.size()];
+
+    for (int r = 0; r < records.size(); r++) {
+      InputRecord record = records.get(r);
+      Word x = record.xWord;
+      Word y = record.yWord;
+      final int width = y.unigramCount() + 1;
+      final int cellCount = (x.unigramCount() + 1) * width;
+      packed.clear();
+      // (before cell, after cell) identifies an edge so its how we find the forward index of each backward edge
+      final IntIntOpenHashMap edgeIndex = new IntIntOpenHashMap();
+      walker.forward(x, y, new XyWalker.Visitor() {
+        @Override
+        public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
+          Pair<String, String> pair = Pair.of(xGram, yGram);
+          Integer pairId = pairIds.get(pair);
+          if (pairId == null) {
+            pairId = pairs.size();
+            pairIds.put(pair, pairId);
+            pairs.add(pair);
+          }
+          int before = xxBefore * width + yyBefore;
+          int after = xxAfter * width + yyAfter;
+          edgeIndex.put(before * cellCount + after, packed.size() / EDGE_INTS);
+          packed.add(before);
+          packed.add(after);
+          packed.add(pairId);
+        }
+      });
+      final int edgeCount = packed.size() / EDGE_INTS;
+      boolean[] reachable = new boolean[cellCount];
+      reachable[0] = true;
+      for (int e = 0; e < edgeCount; e++) {
+        int base = e * EDGE_INTS;
+        reachable[packed.get(base + 1)] |= reachable[packed.get(base)];
+      }
+      walker.backward(x, y, new XyWalker.Visitor() {
+        @Override
+        public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
+          int key = (xxBefore * width + yyBefore) * cellCount + (xxAfter * width + yyAfter);
+          checkState(edgeIndex.containsKey(key), "backward walk visited an edge that the forward walk didnt");
+          packed.add(edgeIndex.get(key));
+        }
+      });
+      checkState(packed.size() == edgeCount * (EDGE_INTS + 1), "forward and backward walks differ");
+      if (chunk == null || chunk.remaining() < packed.size()) {
+        chunk = allocate(Math.max(chunkInts, packed.size()), offHeap);
+        chunks.add(chunk);
+      }
+      recordChunk[r] = chunks.size() - 1;
+      recordOffset[r] = chunk.position();
+      chunk.put(packed.buffer, 0, packed.size());
+      recordEdgeCount[r] = edgeCount;
+      recordCellCount[r] = cellCount;
+      recordWidth[r] = width;
+      recordAlignable[r] = reachable[cellCount - 1];
+    }
+
+    String[] pairX = new String[pairs.size()];
+    String[] pairY = new String[pairs.size()];
+    for (int i = 0; i < pairs.size(); i++) {
+      pairX[i] = pairs.get(i).getLeft();
+      pairY[i] = pairs.get(i).getRight();
+    }
+    return new EmLattices(pairX, pairY, recordChunk, recordOffset, recordEdgeCount, recordCellCount, recordWidth,
+                          recordAlignable, chunks.toArray(new IntBuffer[chunks.size()]));
+  }
+
+  private static IntBuffer allocate(int ints, boolean offHeap) {
+    if (offHeap) {
+      return ByteBuffer.allocateDirect(ints * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+    return IntBuffer.allocate(ints);
+  }
+
+  private EmLattices(String[] pairX, String[] pairY, int[] recordChunk, int[] recordOffset, int[] recordEdgeCount,
+                     int[] recordCellCount, int[] recordWidth, boolean[] recordAlignable, IntBuffer[] chunks) {
+    this.pairX = pairX;
+    this.pairY = pairY;
+    this.recordChunk = recordChunk;
+    this.recordOffset = recordOffset;
+    this.recordEdgeCount = recordEdgeCount;
+    this.recordCellCount = recordCellCount;
+    this.recordWidth = recordWidth;
+    this.recordAlignable = recordAlignable;
+    this.chunks = chunks;
+  }
+
+  int recordCount() {
+    return recordOffset.length;
+  }
+
+  int pairCount() {
+    return pairX.length;
+  }
+
+  String pairX(int pairId) {
+    return pairX[pairId];
+  }
+
+  String pairY(int pairId) {
+    return pairY[pairId];
+  }
+
+  /**
+   * @return the number of records that have no path through their lattice (e.g. more phones than letters without
+   * epsilon y's); these never contribute counts
+   */
+  int unalignableCount() {
+    int count = 0;
+    for (boolean alignable : recordAlignable) {
+      if (!alignable) {
+        count += 1;
+      }
+    }
+    return count;
+  }
+
+  long edgeCount() {
+    long total = 0;
+    for (int count : recordEdgeCount) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * @return the probability of every pair (by pair id) from the given table passed through the penalizer
+   */
+  double[] pairProbs(ProbTable probs, Penalizer penalizer) {
+    double[] result = new double[pairX.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = penalizer.penalize(pairX[i], pairY[i], probs.prob(pairX[i], pairY[i]));
+    }
+    return result;
+  }
+
+  /**
+   * Runs forward-backward over the record's lattice and adds the expected count of each pair to outCounts (by pair
+   * id), marking the pairs that it visited. Records with no probability mass contribute nothing, which includes
+   * long records whose probability underflows a double; see expectationScaled for those
+   * @return true if the record is alignable but contributed nothing because its probability came out zero
+   */
+  boolean expectation(int record, double[] pairProbs, double[] outCounts, boolean[] outVisited) {
+    return expectation(record, pairProbs, outCounts, outVisited, new Scratch());
+  }
+
+  boolean expectation(int record, double[] pairProbs, double[] outCounts, boolean[] outVisited, Scratch scratch) {
+    if (!recordAlignable[record]) {
+      return false;
+    }
+    IntBuffer edges = chunks[recordChunk[record]];
+    int offset = recordOffset[record];
+    int edgeCount = recordEdgeCount[record];
+    int cellCount = recordCellCount[record];
+    scratch.prepare(cellCount);
+    double[] alpha = scratch.alpha;
+    double[] beta = scratch.beta;
+
+    alpha[0] = 1.0;
+    for (int e = 0; e < edgeCount; e++) {
+      int base = offset + e * EDGE_INTS;
+      int after = edges.get(base + 1);
+      alpha[after] += pairProbs[edges.get(base + 2)] * alpha[edges.get(base)];
+    }
+
+    beta[cellCount - 1] = 1.0;
+    int backwardStart = offset + edgeCount * EDGE_INTS;
+    for (int b = 0; b < edgeCount; b++) {
+      int base = offset + edges.get(backwardStart + b) * EDGE_INTS;
+      int before = edges.get(base);
+      beta[before] += pairProbs[edges.get(base + 2)] * beta[edges.get(base + 1)];
+    }
+
+    double alphaXy = alpha[cellCount - 1];
+    if (alphaXy == 0) {
+      return true;
+    }
+    for (int e = 0; e < edgeCount; e++) {
+      int base = offset + e * EDGE_INTS;
+      int pairId = edges.get(base + 2);
+      double prob = alpha[edges.get(base)] * pairProbs[pairId] * beta[edges.get(base + 1)] / alphaXy;
+      outCounts[pairId] += prob;
+      outVisited[pairId] = true;
+    }
+    return false;
+  }
+
+  /**
+   * The same as expectation but numerically stable for records of any length: alpha and beta are rescaled after
+   * each x row is complete (the walkers visit the cells row by row) and the log of the scales is carried along so
+   * there is one Math.log per row instead of a log-sum-exp per edge. An edge that spans rows multiplies in the
+   * scales of the rows that it jumps over. The expected counts are the same as the unscaled version's up to
+   * rounding when that doesn't underflow
+   * @return true if the record's probability is too small for the unscaled expectation (i.e. it would have
+   * been skipped) but it contributed its counts here
+   */
+  boolean expectationScaled(int record, double[] pairProbs, double[] outCounts, boolean[] outVisited) {
+    return expectationScaled(record, pairProbs, outCounts, outVisited, new Scratch());
+  }
+
+  boolean expectationScaled(int record, double[] pairProbs, double[] outCounts, boolean[] outVisited,
+                            Scratch scratch) {
+    if (!recordAlignable[record]) {
+      return false;
+    }
+    IntBuffer edges = chunks[recordChunk[record]];
+    int offset = recordOffset[record];
+    int edgeCount = recordEdgeCount[record];
+    int cellCount = recordCellCount[record];
+    int width = recordWidth[record];
+    int rows = cellCount / width;
+    scratch.prepareScaled(cellCount, rows);
+    double[] alpha = scratch.alpha;
+    double[] beta = scratch.beta;
+    double[] alphaScale = scratch.alphaScale;
+    double[] betaScale = scratch.betaScale;
+    double[] logAlphaScale = scratch.logAlphaScale; // log of the product of the alpha scales of rows [0, r]
+    double[] logBetaScale = scratch.logBetaScale; // log of the product of the beta scales of rows [r, rows)
+    double[] spanFactor = scratch.spanFactor;
+    double[] logEdgeFactor = scratch.logEdgeFactor;
+
+    // forward; the edges come in ascending order of their after cell
+    alpha[0] = 1.0;
+    int row = 0;
+    int spanKnown = resetSpans(spanFactor);
+    for (int e = 0; e < edgeCount; e++) {
+      int base = offset + e * EDGE_INTS;
+      int before = edges.get(base);
+      int after = edges.get(base + 1);
+      int afterRow = after / width;
+      while (row < afterRow) {
+        closeRow(alpha, row, width, alphaScale, logAlphaScale, row > 0 ? logAlphaScale[row - 1] : 0.0);
+        row += 1;
+        spanKnown = resetSpans(spanFactor);
+      }
+      int span = afterRow - (before / width);
+      while (spanKnown < span) {
+        spanKnown += 1;
+        spanFactor[spanKnown] = spanFactor[spanKnown - 1] / alphaScale[afterRow - spanKnown + 1];
+      }
+      alpha[after] += pairProbs[edges.get(base + 2)] * alpha[before] * spanFactor[span];
+    }
+    for (; row < rows; row++) {
+      closeRow(alpha, row, width, alphaScale, logAlphaScale, row > 0 ? logAlphaScale[row - 1] : 0.0);
+    }
+    double alphaLast = alpha[cellCount - 1];
+    if (alphaLast == 0) {
+      return false; // only paths through zero probability pairs
+    }
+    double logAlphaXy = Math.log(alphaLast) + logAlphaScale[rows - 1];
+
+    // backward; the edges come in descending order of their before cell
+    beta[cellCount - 1] = 1.0;
+    row = rows - 1;
+    spanKnown = resetSpans(spanFactor);
+    int backwardStart = offset + edgeCount * EDGE_INTS;
+    for (int b = 0; b < edgeCount; b++) {
+      int base = offset + edges.get(backwardStart + b) * EDGE_INTS;
+      int before = edges.get(base);
+      int after = edges.get(base + 1);
+      int beforeRow = before / width;
+      while (row > beforeRow) {
+        closeRow(beta, row, width, betaScale, logBetaScale, logBetaScale[row + 1]);
+        row -= 1;
+        spanKnown = resetSpans(spanFactor);
+      }
+      int span = (after / width) - beforeRow;
+      while (spanKnown < span) {
+        spanKnown += 1;
+        spanFactor[spanKnown] = spanFactor[spanKnown - 1] / betaScale[beforeRow + spanKnown - 1];
+      }
+      beta[before] += pairProbs[edges.get(base + 2)] * beta[after] * spanFactor[span];
+    }
+    for (; row >= 0; row--) {
+      closeRow(beta, row, width, betaScale, logBetaScale, logBetaScale[row + 1]);
+    }
+
+    // expectation; alpha(before) * p * beta(after) / alphaXy where the scales of the before row's alpha and the
+    // after row's beta and the total are folded into one factor per (after row, span)
+    row = -1;
+    spanKnown = -1;
+    for (int e = 0; e < edgeCount; e++) {
+      int base = offset + e * EDGE_INTS;
+      int before = edges.get(base);
+      int after = edges.get(base + 1);
+      int pairId = edges.get(base + 2);
+      int afterRow = after / width;
+      if (afterRow != row) {
+        row = afterRow;
+        spanKnown = -1;
+      }
+      int span = afterRow - (before / width);
+      while (spanKnown < span) {
+        spanKnown += 1;
+        logEdgeFactor[spanKnown] = logAlphaScale[afterRow - spanKnown] + logBetaScale[afterRow] - logAlphaXy;
+      }
+      double scaled = alpha[before] * pairProbs[pairId] * beta[after];
+      double prob;
+      if (scaled == 0) {
+        prob = 0;
+      } else if (logEdgeFactor[span] < MAX_EXP) {
+        prob = scaled * Math.exp(logEdgeFactor[span]);
+      } else {
+        prob = Math.exp(Math.log(scaled) + logEdgeFactor[span]);
+      }
+      outCounts[pairId] += prob;
+      outVisited[pairId] = true;
+    }
+    return logAlphaXy < LOG_MIN_VALUE;
+  }
+
+  private static int resetSpans(double[] spanFactor) {
+    spanFactor[0] = 1.0; // within the row being filled
+    spanFactor[1] = 1.0; // from the adjacent row
+    return 1;
+  }
+
+  // rescales the completed row to sum to one, recording the scale and the running log of the scales
+  private static void closeRow(double[] cells, int row, int width, double[] scale, double[] logScale,
+                               double priorLogScale) {
+    int start = row * width;
+    double sum = 0;
+    for (int i = start; i < start + width; i++) {
+      sum += cells[i];
+    }
+    if (sum == 0) {
+      sum = 1.0;
+    }
+    for (int i = start; i < start + width; i++) {
+      cells[i] /= sum;
+    }
+    scale[row] = sum;
+    logScale[row] = priorLogScale + Math.log(sum);
+  }
+}
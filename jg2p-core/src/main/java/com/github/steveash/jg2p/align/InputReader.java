@@ -19,6 +19,8 @@ package com.github.steveash.jg2p.align;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharSource;
 import com.google.common.io.Files;
@@ -31,6 +33,7 @@ import com.github.steveash.jg2p.syll.SWord;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
@@ -114,6 +117,48 @@ public class InputReader {
     });
   }
 
+  /**
+   * Streams the records from the file without holding them all in memory; every iterator re-reads the file
+   */
+  public Iterable<InputRecord> streamFromFile(File input) {
+    return stream(Files.asCharSource(input, Charsets.UTF_8));
+  }
+
+  public Iterable<InputRecord> stream(final CharSource source) {
+    return new Iterable<InputRecord>() {
+      @Override
+      public Iterator<InputRecord> iterator() {
+        final BufferedReader lines;
+        try {
+          lines = source.openBufferedStream();
+        } catch (IOException e) {
+          throw Throwables.propagate(e);
+        }
+        return new AbstractIterator<InputRecord>() {
+          @Override
+          protected InputRecord computeNext() {
+            try {
+              String line;
+              while ((line = lines.readLine()) != null) {
+                if (isBlank(line) || isComment(line)) {
+                  continue;
+                }
+                InputRecord maybe = reader.parse(line);
+                if (maybe != null) {
+                  return maybe;
+                }
+              }
+              lines.close();
+              return endOfData();
+            } catch (IOException e) {
+              throw Throwables.propagate(e);
+            }
+          }
+        };
+      }
+    };
+  }
+
   private boolean isComment(String line) {
     return line.startsWith(";;");
   }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Dynamic programming table for the k-best viterbi paths through an x by y lattice (y size is 1 for the x only
+ * inferencer) kept in flat primitive arrays instead of an object per path. Each cell has k fixed slots that are a
+ * bounded min heap with the same layout as MinHeap, ordered by score, x back ref, y back ref, and then the id of the
+ * parent path (ids are handed out in the order the candidates are made) so ties always break the same way. Each
+ * path keeps the slot of its parent in the cell that it came from so decoding doesn't have to search. A lattice is
+ * reused by its thread across calls and only grows its arrays when it sees a bigger lattice
+ * @author Steve Ash
+ */
+class KBestLattice {
+
+  private static final ThreadLocal<KBestLattice> perThread = new ThreadLocal<KBestLattice>() {
+    @Override
+    protected KBestLattice initialValue() {
+      return new KBestLattice();
+    }
+  };
+
+  /**
+   * @return this thread's lattice reset for the given sizes
+   */
+  static KBestLattice forThread(int xSize, int ySize, int bestPathCount) {
+    KBestLattice lattice = perThread.get();
+    lattice.reset(xSize, ySize, bestPathCount);
+    return lattice;
+  }
+
+  private int ySize;
+  private int k;
+  private int nextId;
+  private int[] sizes = new int[0];
+  // slot arrays; the last slot is scratch space for the candidate being offered
+  private double[] scores = new double[1];
+  private int[] xBackRefs = new int[1];
+  private int[] yBackRefs = new int[1];
+  private int[] ids = new int[1];
+  private int[] parentIds = new int[1];
+  private int[] parentSlots = new int[1];
+
+  void reset(int xSize, int ySize, int bestPathCount) {
+    checkArgument(bestPathCount > 0, "need at least one path");
+    this.ySize = ySize;
+    this.k = bestPathCount;
+    this.nextId = 0;
+    int cells = xSize * ySize;
+    if (sizes.length < cells) {
+      sizes = new int[cells];
+    }
+    Arrays.fill(sizes, 0, cells, 0);
+    int slots = cells * bestPathCount + 1;
+    if (scores.length < slots) {
+      scores = new double[slots];
+      xBackRefs = new int[slots];
+      yBackRefs = new int[slots];
+      ids = new int[slots];
+      parentIds = new int[slots];
+      parentSlots = new int[slots];
+    }
+  }
+
+  /**
+   * Puts the starting (empty) path in the origin cell
+   */
+  void start() {
+    offer(0, 0, -1, -1, -1, -1);
+  }
+
+  /**
+   * Extends every path in the old cell by one step of the given score into the new cell
+   */
+  void extend(int newX, int newY, int oldX, int oldY, double stepScore, int xBackRef, int yBackRef) {
+    int oldCell = cell(oldX, oldY);
+    int oldBase = oldCell * k;
+    int newCell = cell(newX, newY);
+    int oldSize = sizes[oldCell];
+    for (int s = 0; s < oldSize; s++) {
+      int slot = oldBase + s;
+      offer(newCell, scores[slot] + stepScore, xBackRef, yBackRef, ids[slot], s);
+    }
+  }
+
+  int size(int x, int y) {
+    return sizes[cell(x, y)];
+  }
+
+  double score(int x, int y, int slot) {
+    return scores[cell(x, y) * k + slot];
+  }
+
+  int xBackRef(int x, int y, int slot) {
+    return xBackRefs[cell(x, y) * k + slot];
+  }
+
+  int yBackRef(int x, int y, int slot) {
+    return yBackRefs[cell(x, y) * k + slot];
+  }
+
+  /**
+   * @return the slot of the path's parent in the cell at (x - xBackRef, y - yBackRef)
+   */
+  int parentSlot(int x, int y, int slot) {
+    return parentSlots[cell(x, y) * k + slot];
+  }
+
+  private int cell(int x, int y) {
+    return x * ySize + y;
+  }
+
+  private void offer(int cell, double score, int xBackRef, int yBackRef, int parentId, int parentSlot) {
+    int scratch = scores.length - 1;
+    scores[scratch] = score;
+    xBackRefs[scratch] = xBackRef;
+    yBackRefs[scratch] = yBackRef;
+    ids[scratch] = nextId++;
+    parentIds[scratch] = parentId;
+    parentSlots[scratch] = parentSlot;
+
+    int base = cell * k;
+    if (sizes[cell] < k) {
+      add(cell, base, scratch);
+      return;
+    }
+    if (compare(base, scratch) < 0) {
+      removeMin(cell, base);
+      add(cell, base, scratch);
+    }
+  }
+
+  private void add(int cell, int base, int from) {
+    int index = sizes[cell];
+    copy(from, base + index);
+    sizes[cell] += 1;
+    while (index > 0) {
+      // the same parent index as MinHeap (i / 2 for even i) so that the evictions match it exactly
+      int parent = ((index & 1) == 0 ? index / 2 : (index - 1) / 2);
+      if (compare(base + index, base + parent) < 0) {
+        swap(base + index, base + parent);
+        index = parent;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void removeMin(int cell, int base) {
+    int size = sizes[cell] - 1;
+    copy(base + size, base);
+    sizes[cell] = size;
+    int index = 0;
+    while (2 * index + 1 < size) {
+      int smaller = 2 * index + 1;
+      int right = smaller + 1;
+      if (right < size && compare(base + right, base + smaller) < 0) {
+        smaller = right;
+      }
+      if (compare(base + smaller, base + index) < 0) {
+        swap(base + index, base + smaller);
+        index = smaller;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private int compare(int a, int b) {
+    int result = Double.compare(scores[a], scores[b]);
+    if (result != 0) {
+      return result;
+    }
+    result = Integer.compare(xBackRefs[a], xBackRefs[b]);
+    if (result != 0) {
+      return result;
+    }
+    result = Integer.compare(yBackRefs[a], yBackRefs[b]);
+    if (result != 0) {
+      return result;
+    }
+    return Integer.compare(parentIds[a], parentIds[b]);
+  }
+
+  private void copy(int from, int to) {
+    scores[to] = scores[from];
+    xBackRefs[to] = xBackRefs[from];
+    yBackRefs[to] = yBackRefs[from];
+    ids[to] = ids[from];
+    parentIds[to] = parentIds[from];
+    parentSlots[to] = parentSlots[from];
+  }
+
+  private void swap(int a, int b) {
+    double score = scores[a];
+    scores[a] = scores[b];
+    scores[b] = score;
+    int xBackRef = xBackRefs[a];
+    xBackRefs[a] = xBackRefs[b];
+    xBackRefs[b] = xBackRef;
+    int yBackRef = yBackRefs[a];
+    yBackRefs[a] = yBackRefs[b];
+    yBackRefs[b] = yBackRef;
+    int id = ids[a];
+    ids[a] = ids[b];
+    ids[b] = id;
+    int parentId = parentIds[a];
+    parentIds[a] = parentIds[b];
+    parentIds[b] = parentId;
+    int parentSlot = parentSlots[a];
+    parentSlots[a] = parentSlots[b];
+    parentSlots[b] = parentSlot;
+  }
+}
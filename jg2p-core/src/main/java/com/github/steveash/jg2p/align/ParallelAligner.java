@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Force aligns a stream of training records with a trained AlignModel over a pool of worker threads. The records are
+ * handed to the workers in chunks and the results come back in the same order as the records (one list of the k
+ * best alignments per record, empty if the record can't be aligned) as soon as each chunk is done, so the caller
+ * can start using the first alignments while the rest are still being aligned. Only a bounded number of chunks are
+ * in flight at once so the records can be streamed from disk too.
+ * Each iteration starts its own pool which is shut down when the iteration is exhausted (the threads are daemons
+ * so an abandoned iteration doesn't keep the JVM up).
+ * All of the workers share the one AlignModel. Its align and inferAlignments methods are safe to call concurrently:
+ * they only read the AlignScores built when the model was made or loaded (lookups that keep no state between
+ * calls) and decode in a lattice that belongs to the calling thread. The model's transition ProbTable mustn't be
+ * changed while aligning (the scores wouldn't see the change anyway)
+ * @author Steve Ash
+ */
+public class ParallelAligner {
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelAligner.class);
+
+  private static final int CHUNK_SIZE = 256;
+  private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+  private static final long LOG_EVERY_RECORDS = 25000;
+
+  private final AlignModel model;
+  private final int threadCount;
+  private final int bestPathCount;
+
+  public ParallelAligner(AlignModel model, int threadCount, int bestPathCount) {
+    checkArgument(threadCount > 0, "need at least one thread");
+    checkArgument(bestPathCount > 0, "need at least one path");
+    this.model = model;
+    this.threadCount = threadCount;
+    this.bestPathCount = bestPathCount;
+  }
+
+  /**
+   * @return the threads to use for the given option value; 0 (or less) means one per processor
+   */
+  public static int threadCount(int configured) {
+    return (configured > 0 ? configured : Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @return the k best alignments of each record in the same order as the records; each iteration aligns the
+   * records again
+   */
+  public Iterable<List<Alignment>> align(final Iterable<InputRecord> records) {
+    return new Iterable<List<Alignment>>() {
+      @Override
+      public Iterator<List<Alignment>> iterator() {
+        return new AlignIterator(records.iterator());
+      }
+    };
+  }
+
+  private class AlignIterator extends AbstractIterator<List<Alignment>> {
+
+    private final Iterator<InputRecord> source;
+    private final ListeningExecutorService service;
+    private final ArrayDeque<ListenableFuture<List<List<Alignment>>>> inFlight = new ArrayDeque<>();
+    private final int maxInFlight = threadCount * CHUNKS_IN_FLIGHT_PER_THREAD;
+    private final Stopwatch watch = Stopwatch.createStarted();
+    private Iterator<List<Alignment>> current = Collections.emptyIterator();
+    private long recordCount = 0;
+    private long unalignedCount = 0;
+
+    private AlignIterator(Iterator<InputRecord> source) {
+      this.source = source;
+      this.service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+          threadCount, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("force-align-%d").build()));
+      log.info("Force aligning the training records with " + threadCount + " threads...");
+    }
+
+    @Override
+    protected List<Alignment> computeNext() {
+      while (!current.hasNext()) {
+        fillInFlight();
+        if (inFlight.isEmpty()) {
+          service.shutdown();
+          log.info("Force aligned " + recordCount + " records (" + unalignedCount + " couldn't be aligned) in " +
+                   watch + ", " + throughput() + " records/sec");
+          return endOfData();
+        }
+        current = take(inFlight.removeFirst()).iterator();
+      }
+      List<Alignment> next = current.next();
+      recordCount += 1;
+      if (next.isEmpty()) {
+        unalignedCount += 1;
+      }
+      if (recordCount % LOG_EVERY_RECORDS == 0) {
+        log.info("Force aligned " + recordCount + " records so far, " + throughput() + " records/sec");
+      }
+      return next;
+    }
+
+    private void fillInFlight() {
+      while (inFlight.size() < maxInFlight && source.hasNext()) {
+        final List<InputRecord> chunk = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+        Iterators.addAll(chunk, Iterators.limit(source, CHUNK_SIZE));
+        inFlight.addLast(service.submit(new Callable<List<List<Alignment>>>() {
+          @Override
+          public List<List<Alignment>> call() throws Exception {
+            List<List<Alignment>> results = Lists.newArrayListWithCapacity(chunk.size());
+            for (InputRecord record : chunk) {
+              results.add(model.align(record.xWord, record.yWord, bestPathCount));
+            }
+            return results;
+          }
+        }));
+      }
+    }
+
+    private List<List<Alignment>> take(ListenableFuture<List<List<Alignment>>> future) {
+      try {
+        return future.get();
+      } catch (Exception e) {
+        service.shutdownNow();
+        throw Throwables.propagate(e);
+      }
+    }
+
+    private long throughput() {
+      long millis = Math.max(1, watch.elapsed(TimeUnit.MILLISECONDS));
+      return (recordCount * 1000) / millis;
+    }
+  }
+}
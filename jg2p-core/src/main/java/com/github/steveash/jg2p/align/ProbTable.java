@@ -16,12 +16,16 @@
 
 package com.github.steveash.jg2p.align;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
 
-import com.carrotsearch.hppc.ObjectDoubleMap;
-import com.carrotsearch.hppc.ObjectDoubleOpenHashMap;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongDoubleOpenHashMap;
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
 
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -29,6 +33,8 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +43,9 @@ import static com.github.steveash.jg2p.util.Assert.assertProb;
 
 /**
  * Table of probabilities from Xi to Yi
+ * The x and y grams are interned to int ids (per table) and the cells are kept in a primitive long -> double map
+ * keyed by (x id, y id) so that the EM updates don't box and the marginals/normalizations are array loops. The
+ * serialized form is still the guava HashBasedTable that older versions wrote so existing models load as before
  *
  * @author Steve Ash
  */
@@ -59,9 +68,7 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
 
   public static void mergeAll(Iterable<ProbTable> sources, ProbTable sink) {
     for (ProbTable source : sources) {
-      for (Table.Cell<String, String, Double> cell : source) {
-        sink.addProb(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
-      }
+      sink.addAll(source);
     }
   }
 
@@ -73,40 +80,99 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
     }
   }
 
+  private static long key(int x, int y) {
+    return (((long) x) << 32) | (y & 0xFFFFFFFFL);
+  }
+
+  private static int keyX(long key) {
+    return (int) (key >>> 32);
+  }
+
+  private static int keyY(long key) {
+    return (int) key;
+  }
+
   @Override
   public Iterator<Table.Cell<String, String, Double>> iterator() {
-    return xyProb.cellSet().iterator();
+    return new AbstractIterator<Table.Cell<String, String, Double>>() {
+      private int slot = -1;
+
+      @Override
+      protected Table.Cell<String, String, Double> computeNext() {
+        boolean[] allocated = xyProb.allocated;
+        while (++slot < allocated.length) {
+          if (allocated[slot]) {
+            long key = xyProb.keys[slot];
+            return Tables.immutableCell(xNames.get(keyX(key)), yNames.get(keyY(key)), xyProb.values[slot]);
+          }
+        }
+        return endOfData();
+      }
+    };
   }
 
   public Map<String, Double> getYProbForX(String x) {
-    return xyProb.row(x);
+    int xi = xIds.getOrDefault(x, -1);
+    if (xi < 0) {
+      return Maps.newHashMap();
+    }
+    IntArrayList ys = rowYs.get(xi);
+    Map<String, Double> row = Maps.newHashMapWithExpectedSize(ys.size());
+    for (int i = 0; i < ys.size(); i++) {
+      int yi = ys.get(i);
+      row.put(yNames.get(yi), xyProb.get(key(xi, yi)));
+    }
+    return row;
   }
 
   public static class Marginals {
-    private final ObjectDoubleMap<String> xMarginals;
-    private final ObjectDoubleMap<String> yMarginals;
+    private final ProbTable table;
+    private final double[] xMarginals; // by x id; NaN if that x has no cells
+    private final double[] yMarginals; // by y id; NaN if that y has no cells
+    private final int countX;
+    private final int countY;
     private final double sumJointMass; // sum of all probability mass across all X x Y joint distrib
 
-    Marginals(ObjectDoubleMap<String> xMarginals, ObjectDoubleMap<String> yMarginals, double sumJointMass) {
+    Marginals(ProbTable table, double[] xMarginals, double[] yMarginals, double sumJointMass) {
+      this.table = table;
       this.xMarginals = xMarginals;
       this.yMarginals = yMarginals;
+      this.countX = countPresent(xMarginals);
+      this.countY = countPresent(yMarginals);
       this.sumJointMass = sumJointMass;
     }
 
+    private static int countPresent(double[] marginals) {
+      int count = 0;
+      for (double marginal : marginals) {
+        if (!Double.isNaN(marginal)) {
+          count += 1;
+        }
+      }
+      return count;
+    }
+
+    private static double marginal(double[] marginals, int id, double missing) {
+      if (id < 0 || id >= marginals.length || Double.isNaN(marginals[id])) {
+        return missing;
+      }
+      return marginals[id];
+    }
+
     public double probY(String y) {
-      return assertProb(yMarginals.getOrDefault(y, -1));
+      return assertProb(marginal(yMarginals, table.yIds.getOrDefault(y, -1), -1));
     }
 
     public double probX(String x) {
-      return assertProb(xMarginals.getOrDefault(x, 0));
+      return assertProb(marginal(xMarginals, table.xIds.getOrDefault(x, -1), 0));
     }
 
     public int countY() {
-      return yMarginals.size();
+      return countY;
     }
 
     public int countX() {
-      return xMarginals.size();
+      return countX;
     }
 
     public double sumOfAllJointProbabilities() {
@@ -114,52 +180,143 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
     }
   }
 
-  private /*final*/ Table<String, String, Double> xyProb = HashBasedTable.create();
+  // interned grams; ids are never reused or removed (clear() only drops the cells)
+  private /*final*/ ObjectIntOpenHashMap<String> xIds = ObjectIntOpenHashMap.newInstance();
+  private /*final*/ ObjectIntOpenHashMap<String> yIds = ObjectIntOpenHashMap.newInstance();
+  private /*final*/ ArrayList<String> xNames = new ArrayList<>();
+  private /*final*/ ArrayList<String> yNames = new ArrayList<>();
+  // for each x id the y ids that have a cell with it
+  private /*final*/ ArrayList<IntArrayList> rowYs = new ArrayList<>();
+  private /*final*/ LongDoubleOpenHashMap xyProb = new LongDoubleOpenHashMap();
 
   public ProbTable() {
   }
 
   public double prob(String x, String y) {
-    Double maybe = xyProb.get(x, y);
-    if (maybe == null) {
+    int xi = xIds.getOrDefault(x, -1);
+    if (xi < 0) {
+      return 0;
+    }
+    int yi = yIds.getOrDefault(y, -1);
+    if (yi < 0) {
       return 0;
     }
-    return maybe;
+    return xyProb.get(key(xi, yi));
   }
 
-  public void clear() { xyProb.clear(); }
+  public void clear() {
+    xyProb.clear();
+    for (IntArrayList ys : rowYs) {
+      ys.clear();
+    }
+  }
 
   public void setProb(String x, String y, double value) {
-    xyProb.put(x, y, value);
+    setById(internX(x), internY(y), value);
   }
 
   public void addProb(String x, String y, double valueToAdd) {
-    Double maybe = xyProb.get(x, y);
-    if (maybe == null) maybe = 0.0;
-    xyProb.put(x, y, maybe + valueToAdd);
+    addById(internX(x), internY(y), valueToAdd);
+  }
+
+  /**
+   * Adds all of the cells of the given table to this one
+   */
+  public void addAll(ProbTable source) {
+    // map the source's ids to ours once instead of interning every cell's strings
+    int[] xMap = new int[source.xNames.size()];
+    int[] yMap = new int[source.yNames.size()];
+    Arrays.fill(xMap, -1);
+    Arrays.fill(yMap, -1);
+    boolean[] allocated = source.xyProb.allocated;
+    long[] keys = source.xyProb.keys;
+    double[] values = source.xyProb.values;
+    for (int i = 0; i < allocated.length; i++) {
+      if (!allocated[i]) {
+        continue;
+      }
+      int sx = keyX(keys[i]);
+      int sy = keyY(keys[i]);
+      if (xMap[sx] < 0) {
+        xMap[sx] = internX(source.xNames.get(sx));
+      }
+      if (yMap[sy] < 0) {
+        yMap[sy] = internY(source.yNames.get(sy));
+      }
+      addById(xMap[sx], yMap[sy], values[i]);
+    }
+  }
+
+  private int internX(String x) {
+    int xi = xIds.getOrDefault(x, -1);
+    if (xi < 0) {
+      xi = xNames.size();
+      xIds.put(x, xi);
+      xNames.add(x);
+      rowYs.add(new IntArrayList(4));
+    }
+    return xi;
+  }
+
+  private int internY(String y) {
+    int yi = yIds.getOrDefault(y, -1);
+    if (yi < 0) {
+      yi = yNames.size();
+      yIds.put(y, yi);
+      yNames.add(y);
+    }
+    return yi;
+  }
+
+  private void setById(int xi, int yi, double value) {
+    int before = xyProb.size();
+    xyProb.put(key(xi, yi), value);
+    if (xyProb.size() != before) {
+      rowYs.get(xi).add(yi);
+    }
+  }
+
+  private void addById(int xi, int yi, double valueToAdd) {
+    int before = xyProb.size();
+    xyProb.putOrAdd(key(xi, yi), valueToAdd, valueToAdd);
+    if (xyProb.size() != before) {
+      rowYs.get(xi).add(yi);
+    }
   }
 
   public long entryCount() { return xyProb.size(); }
 
   public Marginals calculateMarginals() {
-    ObjectDoubleOpenHashMap<String> x = ObjectDoubleOpenHashMap.newInstance();
-    ObjectDoubleOpenHashMap<String> y = ObjectDoubleOpenHashMap.newInstance();
+    double[] x = new double[xNames.size()];
+    double[] y = new double[yNames.size()];
+    Arrays.fill(x, Double.NaN);
+    Arrays.fill(y, Double.NaN);
     double sum = 0;
-    for (Table.Cell<String, String, Double> cell : xyProb.cellSet()) {
-      x.putOrAdd(cell.getRowKey(), cell.getValue(), cell.getValue());
-      y.putOrAdd(cell.getColumnKey(), cell.getValue(), cell.getValue());
-      sum += cell.getValue();
+    boolean[] allocated = xyProb.allocated;
+    for (int i = 0; i < allocated.length; i++) {
+      if (!allocated[i]) {
+        continue;
+      }
+      long key = xyProb.keys[i];
+      double value = xyProb.values[i];
+      int xi = keyX(key);
+      int yi = keyY(key);
+      x[xi] = (Double.isNaN(x[xi]) ? value : x[xi] + value);
+      y[yi] = (Double.isNaN(y[yi]) ? value : y[yi] + value);
+      sum += value;
     }
-    return new Marginals(x, y, sum);
+    return new Marginals(this, x, y, sum);
   }
 
   public ProbTable makeNormalizedCopy() {
-    ProbTable result = new ProbTable();
-    Marginals marginals = this.calculateMarginals();
-    double sum = marginals.sumOfAllJointProbabilities();
-    for (Table.Cell<String, String, Double> cell : this) {
-      double normalValue = cell.getValue() / sum;
-      result.setProb(cell.getRowKey(), cell.getColumnKey(), normalValue);
+    ProbTable result = emptyCopyOfIds();
+    double sum = calculateMarginals().sumOfAllJointProbabilities();
+    boolean[] allocated = xyProb.allocated;
+    for (int i = 0; i < allocated.length; i++) {
+      if (allocated[i]) {
+        long key = xyProb.keys[i];
+        result.setById(keyX(key), keyY(key), xyProb.values[i] / sum);
+      }
     }
     return result;
   }
@@ -170,41 +327,83 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
    * @return
    */
   public ProbTable makeRowNormalizedCopy() {
-    ProbTable result = new ProbTable();
-    for (String row : xRows()) {
-      Map<String, Double> yProbs = getYProbForX(row);
-      double total = 0;
-      for (Double dbl : yProbs.values()) {
-        total += dbl;
+    ProbTable result = emptyCopyOfIds();
+    double[] rowTotals = new double[xNames.size()];
+    boolean[] allocated = xyProb.allocated;
+    for (int i = 0; i < allocated.length; i++) {
+      if (allocated[i]) {
+        rowTotals[keyX(xyProb.keys[i])] += xyProb.values[i];
       }
+    }
+    for (int i = 0; i < allocated.length; i++) {
+      if (!allocated[i]) {
+        continue;
+      }
+      long key = xyProb.keys[i];
+      double total = rowTotals[keyX(key)];
       if (total != 0.0) {
-        for (String y : yProbs.keySet()) {
-          Double maybe = yProbs.get(y);
-          if (maybe == null) {
-            maybe = 0.0;
-          }
-          result.setProb(row, y, maybe / total);
-        }
+        result.setById(keyX(key), keyY(key), xyProb.values[i] / total);
       }
     }
     return result;
   }
 
+  // a new table with no cells that shares the same gram -> id assignments as this one
+  private ProbTable emptyCopyOfIds() {
+    ProbTable result = new ProbTable();
+    result.xIds = xIds.clone();
+    result.yIds = yIds.clone();
+    result.xNames = new ArrayList<>(xNames);
+    result.yNames = new ArrayList<>(yNames);
+    result.rowYs = new ArrayList<>(rowYs.size());
+    for (int i = 0; i < rowYs.size(); i++) {
+      result.rowYs.add(new IntArrayList(4));
+    }
+    return result;
+  }
+
   public Set<String> xRows() {
-    return xyProb.rowKeySet();
+    Set<String> rows = Sets.newHashSet();
+    for (int i = 0; i < rowYs.size(); i++) {
+      if (!rowYs.get(i).isEmpty()) {
+        rows.add(xNames.get(i));
+      }
+    }
+    return rows;
   }
 
   public Set<String> yCols() {
-    return xyProb.columnKeySet();
+    boolean[] present = new boolean[yNames.size()];
+    for (IntArrayList ys : rowYs) {
+      for (int i = 0; i < ys.size(); i++) {
+        present[ys.get(i)] = true;
+      }
+    }
+    Set<String> cols = Sets.newHashSet();
+    for (int i = 0; i < present.length; i++) {
+      if (present[i]) {
+        cols.add(yNames.get(i));
+      }
+    }
+    return cols;
   }
 
   @Override
    public void writeExternal(ObjectOutput out) throws IOException {
-     out.writeObject(this.xyProb);
+     // written as the same guava table that it used to be backed by to keep the format
+     Table<String, String, Double> table = HashBasedTable.create();
+     for (Table.Cell<String, String, Double> cell : this) {
+       table.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+     }
+     out.writeObject(table);
    }
 
    @Override
    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-    this.xyProb = (Table<String, String, Double>) in.readObject();
+    @SuppressWarnings("unchecked")
+    Table<String, String, Double> table = (Table<String, String, Double>) in.readObject();
+    for (Table.Cell<String, String, Double> cell : table.cellSet()) {
+      setProb(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+    }
    }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs the E step of EM over a fixed set of worker threads for a whole training run. The records are split into one
+ * contiguous shard per worker; each worker accumulates its expected counts into its own count array (indexed by the
+ * lattices' pair ids, kept and reused for every iteration, as are its forward-backward scratch arrays) and then the workers' arrays are merged pairwise in
+ * parallel (a tree) before the result is added to the sink. The shards and merge order only depend on the record
+ * count and worker count so the counts come out the same on every run
+ * @author Steve Ash
+ */
+class ShardedExpectation implements Closeable {
+
+  private final ListeningExecutorService service;
+  private final int workerCount;
+  private final double[][] workerCounts;
+  private final boolean[][] workerVisited;
+  private final EmLattices.Scratch[] workerScratch;
+
+  ShardedExpectation(int workerCount) {
+    checkArgument(workerCount > 0, "need at least one worker");
+    this.workerCount = workerCount;
+    this.service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(workerCount));
+    this.workerCounts = new double[workerCount][];
+    this.workerVisited = new boolean[workerCount][];
+    this.workerScratch = new EmLattices.Scratch[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      workerScratch[i] = new EmLattices.Scratch();
+    }
+  }
+
+  int getWorkerCount() {
+    return workerCount;
+  }
+
+  /**
+   * Runs the expectation for every record of the lattices (given the pair probabilities for this iteration) and
+   * adds the merged counts of every visited pair to the sink
+   * @param scaled if true uses the scaled (numerically stable) forward-backward
+   * @return the number of records whose probability underflows the unscaled forward-backward (which were skipped
+   * if !scaled)
+   */
+  int expectation(final EmLattices lattices, final double[] pairProbs, final boolean scaled, ProbTable sink) {
+    int recordCount = lattices.recordCount();
+    int shardSize = (recordCount + workerCount - 1) / workerCount;
+    final int[] underflows = new int[workerCount];
+    List<Callable<Void>> shards = Lists.newArrayListWithCapacity(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      if (workerCounts[i] == null || workerCounts[i].length != lattices.pairCount()) {
+        workerCounts[i] = new double[lattices.pairCount()];
+        workerVisited[i] = new boolean[lattices.pairCount()];
+      }
+      final int start = Math.min(recordCount, i * shardSize);
+      final int end = Math.min(recordCount, start + shardSize);
+      final double[] counts = workerCounts[i];
+      final boolean[] visited = workerVisited[i];
+      final EmLattices.Scratch scratch = workerScratch[i];
+      final int worker = i;
+      shards.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = start; j < end; j++) {
+            boolean underflow;
+            if (scaled) {
+              underflow = lattices.expectationScaled(j, pairProbs, counts, visited, scratch);
+            } else {
+              underflow = lattices.expectation(j, pairProbs, counts, visited, scratch);
+            }
+            if (underflow) {
+              underflows[worker] += 1;
+            }
+          }
+          return null;
+        }
+      });
+    }
+    runAll(shards);
+    treeMerge();
+    double[] counts = workerCounts[0];
+    boolean[] visited = workerVisited[0];
+    for (int i = 0; i < counts.length; i++) {
+      if (visited[i]) {
+        sink.addProb(lattices.pairX(i), lattices.pairY(i), counts[i]);
+      }
+    }
+    for (int i = 0; i < workerCount; i++) {
+      Arrays.fill(workerCounts[i], 0.0);
+      Arrays.fill(workerVisited[i], false);
+    }
+    int totalUnderflows = 0;
+    for (int underflow : underflows) {
+      totalUnderflows += underflow;
+    }
+    return totalUnderflows;
+  }
+
+  private void treeMerge() {
+    for (int step = 1; step < workerCount; step *= 2) {
+      List<Callable<Void>> merges = Lists.newArrayList();
+      for (int i = 0; i + step < workerCount; i += 2 * step) {
+        final double[] sinkCounts = workerCounts[i];
+        final boolean[] sinkVisited = workerVisited[i];
+        final double[] sourceCounts = workerCounts[i + step];
+        final boolean[] sourceVisited = workerVisited[i + step];
+        merges.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int j = 0; j < sinkCounts.length; j++) {
+              sinkCounts[j] += sourceCounts[j];
+              sinkVisited[j] |= sourceVisited[j];
+            }
+            return null;
+          }
+        });
+      }
+      runAll(merges);
+    }
+  }
+
+  private void runAll(List<Callable<Void>> tasks) {
+    List<ListenableFuture<Void>> futures = Lists.newArrayListWithCapacity(tasks.size());
+    for (Callable<Void> task : tasks) {
+      futures.add(service.submit(task));
+    }
+    try {
+      Futures.allAsList(futures).get();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    MoreExecutors.shutdownAndAwaitTermination(service, 60, TimeUnit.SECONDS);
+  }
+}
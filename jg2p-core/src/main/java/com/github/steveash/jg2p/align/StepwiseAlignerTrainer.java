@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Trains an AlignModel with stepwise (online) EM so that the training records can be streamed from disk instead of
+ * held in memory; only the prob tables (which are sized by the number of distinct gram pairs) and one mini-batch are
+ * kept. The first pass counts every gram pair the walker produces to initialize the model (like AlignerTrainer).
+ * Each following pass goes through the records in mini-batches: the expected counts of the batch (per record) are
+ * blended into the running sufficient statistics with a step size of (k + 2)^-decay for the k-th batch and then the
+ * probabilities are re-maximized from the statistics and blended with the labelled examples by the semi-supervised
+ * factor (the same as AlignerTrainer). Stops after the configured number of passes or when a pass moves less mass
+ * than the convergence threshold.
+ * The allowed alignments file isn't supported here
+ * @author Steve Ash
+ */
+public class StepwiseAlignerTrainer {
+
+  private static final Logger log = LoggerFactory.getLogger(StepwiseAlignerTrainer.class);
+
+  // when the running scale of the statistics gets this small it gets folded back into the statistics
+  private static final double MIN_STATS_SCALE = 1.0e-100;
+
+  private final TrainOptions trainOpts;
+  private final GramOptions gramOpts;
+  private final XyWalker walker;
+  private final Penalizer penalizer;
+  // the sufficient statistics are stats * statsScale; decaying the old statistics for each batch just shrinks the
+  // scale instead of touching every cell
+  private ProbTable stats = new ProbTable();
+  private double statsScale = 1.0;
+  private ProbTable probs = new ProbTable();
+  private ProbTable labelledProbs = new ProbTable();
+  private ProbTable initFrom = null;
+  private int batchesSeen = 0;
+
+  public StepwiseAlignerTrainer(TrainOptions trainOpts) {
+    checkArgument(trainOpts.alignAllowedFile == null, "stepwise EM doesnt support an allowed alignments file");
+    checkArgument(trainOpts.alignerBatchSize > 0, "the batch size must be positive");
+    checkArgument(trainOpts.alignerStepDecay > 0.5 && trainOpts.alignerStepDecay <= 1.0,
+                  "the step decay must be in (0.5, 1]");
+    this.trainOpts = trainOpts;
+    this.gramOpts = trainOpts.makeGramOptions();
+    this.walker = AlignerTrainer.makeWalker(trainOpts, gramOpts);
+    this.penalizer = gramOpts.makePenalizer();
+  }
+
+  public void setInitFrom(ProbTable initFrom) {
+    this.initFrom = initFrom;
+  }
+
+  /**
+   * @param records the training records; iterated once to initialize and then once per pass so this can be a
+   *                stream over a file (e.g. InputReader.streamFromFile)
+   */
+  public AlignModel train(Iterable<InputRecord> records) {
+    return train(records, new ProbTable());
+  }
+
+  public AlignModel train(Iterable<InputRecord> records, ProbTable labelledExamples) {
+    int workerCount = AlignerTrainer.workerCount(trainOpts);
+    try (ShardedExpectation sharded = new ShardedExpectation(workerCount)) {
+      this.labelledProbs = labelledExamples.makeNormalizedCopy();
+      Stopwatch total = Stopwatch.createStarted();
+      long recordCount = initStats(records);
+      maximization();
+      log.info("Initialized stepwise EM from " + recordCount + " records, " + stats.entryCount() + " gram pairs");
+
+      for (int pass = 1; pass <= trainOpts.alignerStepwisePasses; pass++) {
+        Stopwatch watch = Stopwatch.createStarted();
+        ProbTable passStart = probs;
+        int underflows = 0;
+        for (List<InputRecord> batch : Iterables.partition(records, trainOpts.alignerBatchSize)) {
+          underflows += stepBatch(batch, sharded);
+        }
+        double change = massChange(passStart, probs);
+        log.info("Completed stepwise EM pass " + pass + " (" + batchesSeen + " batches so far) mass delta " +
+                 String.format("%.15f", change) + " in " + watch + "; " + underflows + " records underflowed");
+        if (change < trainOpts.probDeltaConvergenceThreshold) {
+          log.info("Stepwise EM only had a mass shift by " + change + " training is complete.");
+          break;
+        }
+      }
+      log.info("Stepwise training complete, took " + total);
+      return new AlignModel(gramOpts, probs);
+    }
+  }
+
+  private long initStats(Iterable<InputRecord> records) {
+    long count = 0;
+    for (InputRecord record : records) {
+      count += 1;
+      walker.forward(record.getLeft(), record.getRight(), new XyWalker.Visitor() {
+        @Override
+        public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
+          double initValue = 1.0;
+          if (initFrom != null) {
+            double maybeInitFrom = initFrom.prob(xGram, yGram);
+            if (maybeInitFrom > 0) {
+              initValue = maybeInitFrom;
+            }
+          }
+          stats.addProb(xGram, yGram, initValue);
+        }
+      });
+    }
+    checkArgument(count > 0, "no training records");
+    // statistics are kept per record so that the batch counts blend in on the same scale
+    statsScale = 1.0 / count;
+    return count;
+  }
+
+  private int stepBatch(List<InputRecord> batch, ShardedExpectation sharded) {
+    EmLattices lattices = EmLattices.compile(batch, walker, trainOpts.alignerOffHeapLattices);
+    ProbTable batchCounts = new ProbTable();
+    int underflows = sharded.expectation(lattices, lattices.pairProbs(probs, penalizer), trainOpts.alignerScaledEm,
+                                         batchCounts);
+
+    double step = Math.pow(batchesSeen + 2, -trainOpts.alignerStepDecay);
+    batchesSeen += 1;
+    statsScale *= (1.0 - step);
+    double weight = step / (batch.size() * statsScale);
+    for (Table.Cell<String, String, Double> cell : batchCounts) {
+      stats.addProb(cell.getRowKey(), cell.getColumnKey(), cell.getValue() * weight);
+    }
+    if (statsScale < MIN_STATS_SCALE) {
+      foldScale();
+    }
+    maximization();
+    return underflows;
+  }
+
+  private void foldScale() {
+    ProbTable folded = new ProbTable();
+    for (Table.Cell<String, String, Double> cell : stats) {
+      folded.setProb(cell.getRowKey(), cell.getColumnKey(), cell.getValue() * statsScale);
+    }
+    stats = folded;
+    statsScale = 1.0;
+  }
+
+  // the maximizers only use ratios of the statistics so the scale doesn't matter here
+  private void maximization() {
+    ProbTable.Marginals marginals = stats.calculateMarginals();
+    double unsuperFactor = (1.0 - trainOpts.semiSupervisedFactor);
+    double superFactor = trainOpts.semiSupervisedFactor;
+    ProbTable next = new ProbTable();
+    for (Table.Cell<String, String, Double> cell : stats) {
+      if (cell.getValue() > 0) {
+        double unsupervised = trainOpts.trainingAlignerMaximizer.maximize(cell, marginals);
+        double supervised = labelledProbs.prob(cell.getRowKey(), cell.getColumnKey());
+        next.setProb(cell.getRowKey(), cell.getColumnKey(), (unsuperFactor * unsupervised) + (superFactor * supervised));
+      }
+    }
+    // labelled pairs that the walker never produced have no unsupervised mass
+    for (Table.Cell<String, String, Double> cell : labelledProbs) {
+      if (cell.getValue() > 0 && !(stats.prob(cell.getRowKey(), cell.getColumnKey()) > 0)) {
+        next.setProb(cell.getRowKey(), cell.getColumnKey(), superFactor * cell.getValue());
+      }
+    }
+    this.probs = next;
+  }
+
+  private double massChange(ProbTable before, ProbTable after) {
+    double change = 0;
+    for (Pair<String, String> xy : ProbTable.unionOfAllCells(before, after)) {
+      change += Math.abs(before.prob(xy.getLeft(), xy.getRight()) - after.prob(xy.getLeft(), xy.getRight()));
+    }
+    return trainOpts.trainingAlignerMaximizer.normalize(change, stats.calculateMarginals());
+  }
+}
@@ -77,6 +77,39 @@ public class TrainOptions implements Cloneable {
   @Option(name = "--windowWalkerPadding")
   public int windowPadding = 0;
 
+  @Option(name = "--alignerThreads")
+  public int alignerThreads = 0; // threads (and count shards) for the aligner's EM; 0 means one per processor
+
+  @Option(name = "--alignerOffHeapLattices")
+  public boolean alignerOffHeapLattices = false; // keep the aligner's compiled EM lattices in a direct buffer
+
+  @Option(name = "--alignerScaledEm")
+  public boolean alignerScaledEm = false; // rescale the aligner's forward-backward so long records don't underflow
+
+  @Option(name = "--alignerStepwise")
+  public boolean alignerStepwise = false; // train the aligner with stepwise EM over mini-batches of the records
+
+  @Option(name = "--alignerBatchSize")
+  public int alignerBatchSize = 10000; // records per stepwise EM mini-batch
+
+  @Option(name = "--alignerStepwisePasses")
+  public int alignerStepwisePasses = 3; // max passes over the records for stepwise EM
+
+  @Option(name = "--alignerStepDecay")
+  public double alignerStepDecay = 0.7; // stepwise EM step size for the k-th batch is (k + 2)^-decay, in (0.5, 1]
+
+  @Option(name = "--alignerCheckpointDir")
+  public File alignerCheckpointDir = null; // if set the aligner's EM writes checkpoints here
+
+  @Option(name = "--alignerCheckpointEvery")
+  public int alignerCheckpointEvery = 5; // EM rounds between aligner checkpoints
+
+  @Option(name = "--alignerCheckpointKeep")
+  public int alignerCheckpointKeep = 3; // only keep the newest K aligner checkpoints; 0 keeps them all
+
+  @Option(name = "--alignerResumeFrom")
+  public File alignerResumeFrom = null; // an aligner checkpoint file to resume the EM from
+
   /**
    * Syllable aligner options; syllable aligner is used to train the alignment model, then a
    * special syll-aligner-tagger is trained for runtime alignemtn + tagging of syllable structure
@@ -97,6 +130,30 @@ public class TrainOptions implements Cloneable {
   @Option(name = "--trimFeaturesByGradient")
   public double trimFeaturesByGradientGain = 0;
 
+  @Option(name = "--useInputRankedFeatures")
+  public File useInputRankedFeatures = null; // ranked features from an earlier run; cold starts w/o initCrfFromModelFile
+
+  @Option(name = "--writeOutputRankedFeatures")
+  public File writeOutputRankedFeatures = null; // where to write the gradient gain ratios for later runs
+
+  @Option(name = "--pipeCacheDir")
+  public File pipeCacheDir = null; // if set the pronouncer's piped training instances are cached here and reused
+
+  @Option(name = "--pronouncerHeldOut")
+  public double pronouncerHeldOutFraction = 0; // fraction of words held out to stop pronouncer training early; 0 is off
+
+  @Option(name = "--pronouncerEvalEvery")
+  public int pronouncerEvalEvery = 25; // iterations between evaluations on the held out words
+
+  @Option(name = "--pronouncerPatience")
+  public int pronouncerPatience = 3; // evaluations without improving word accuracy before stopping
+
+  @Option(name = "--pronouncerMinImprovement")
+  public double pronouncerMinImprovement = 0.0005; // word accuracy gain that counts as an improvement
+
+  @Option(name = "--pronouncerCheckpoint")
+  public File pronouncerCheckpointFile = null; // if set the best pronouncer so far is written here (for initCrfFrom)
+
   /**
    * Graphone language model options
    */
@@ -171,6 +228,18 @@ public class TrainOptions implements Cloneable {
   @Option(name = "--minAlignScore")
   public int minAlignScore = Integer.MIN_VALUE; // the min aligner score to consider for training
 
+  @Option(name = "--alignThreads")
+  public int alignThreads = 0; // threads to force align the training records with the trained aligner; 0 means one per processor
+
+  @Option(name = "--alignCacheDir")
+  public File alignCacheDir = null; // if set the force aligned training records are cached here and reused
+
+  @Option(name = "--concurrentStages")
+  public boolean concurrentStages = false; // train the stages that only need the aligned inputs at the same time
+
+  @Option(name = "--stageCpuBudget")
+  public int stageCpuBudget = 0; // threads split between the training stages; 0 means one per processor
+
   @Option(name = "--infile", required = true)
   public File trainingFile; // the input csv/tsv/etc
 
@@ -233,12 +302,36 @@ public class TrainOptions implements Cloneable {
            ",\n\tprobDeltaConvergenceThreshold=" + probDeltaConvergenceThreshold +
            ",\n\tmaxPronouncerTrainingIterations=" + maxPronouncerTrainingIterations +
            ",\n\ttrimFeaturesUnderPercentile=" + trimFeaturesUnderPercentile +
+           ",\n\ttrimFeaturesByGradientGain=" + trimFeaturesByGradientGain +
+           ",\n\tuseInputRankedFeatures=" + useInputRankedFeatures +
+           ",\n\twriteOutputRankedFeatures=" + writeOutputRankedFeatures +
+           ",\n\tpipeCacheDir=" + pipeCacheDir +
+           ",\n\tpronouncerHeldOutFraction=" + pronouncerHeldOutFraction +
+           ",\n\tpronouncerEvalEvery=" + pronouncerEvalEvery +
+           ",\n\tpronouncerPatience=" + pronouncerPatience +
+           ",\n\tpronouncerMinImprovement=" + pronouncerMinImprovement +
+           ",\n\tpronouncerCheckpointFile=" + pronouncerCheckpointFile +
            ",\n\tinitCrfFromModelFile='" + initCrfFromModelFile + '\'' +
            ",\n\tsemiSupervisedFactor=" + semiSupervisedFactor +
            ",\n\tuseWindowWalker=" + useWindowWalker +
            ",\n\twindowPadding=" + windowPadding +
+           ",\n\talignerThreads=" + alignerThreads +
+           ",\n\talignerOffHeapLattices=" + alignerOffHeapLattices +
+           ",\n\talignerScaledEm=" + alignerScaledEm +
+           ",\n\talignerStepwise=" + alignerStepwise +
+           ",\n\talignerBatchSize=" + alignerBatchSize +
+           ",\n\talignerStepwisePasses=" + alignerStepwisePasses +
+           ",\n\talignerStepDecay=" + alignerStepDecay +
+           ",\n\talignerCheckpointDir=" + alignerCheckpointDir +
+           ",\n\talignerCheckpointEvery=" + alignerCheckpointEvery +
+           ",\n\talignerCheckpointKeep=" + alignerCheckpointKeep +
+           ",\n\talignerResumeFrom=" + alignerResumeFrom +
            ",\n\ttopKAlignCandidates=" + topKAlignCandidates +
            ",\n\tminAlignScore=" + minAlignScore +
+           ",\n\talignThreads=" + alignThreads +
+           ",\n\talignCacheDir=" + alignCacheDir +
+           ",\n\tconcurrentStages=" + concurrentStages +
+           ",\n\tstageCpuBudget=" + stageCpuBudget +
            ",\n\ttrainingFile=" + trainingFile +
            ",\n\toutputFile=" + outputFile +
            ",\n\tformat=" + format +
@@ -22,6 +22,8 @@ import com.google.common.collect.Lists;
 import com.github.steveash.jg2p.Word;
 import com.github.steveash.jg2p.align.Aligner;
 import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.crf.CrfScorer;
+import com.github.steveash.jg2p.crf.ScoredSequence;
 
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -40,27 +42,45 @@ import cc.mallet.types.Sequence;
  */
 public class AlignTagModel implements Aligner, Serializable {
 
+  private static final long serialVersionUID = 2304885170437687171L;
+
   private final CRF crf;
+  // not serialized so loaded models decode with the compiled crf unless they're switched back
+  private transient volatile boolean malletLattices = false;
 
   public AlignTagModel(CRF crf) {
     this.crf = crf;
   }
 
+  public CRF getCrf() {
+    return crf;
+  }
+
+  public boolean isUseCompiled() {
+    return !malletLattices;
+  }
+
+  /**
+   * @param useCompiled false to decode with mallet's lattices instead of the (equivalent but faster) CompiledCrf
+   */
+  public void setUseCompiled(boolean useCompiled) {
+    this.malletLattices = !useCompiled;
+  }
+
   @Override
   public List<Alignment> inferAlignments(Word x, int nBest) {
     Instance instance = new Instance(x.getValue(), null, null, null);
     instance = crf.getInputPipe().instanceFrom(instance);
 
     Sequence inSeq = (Sequence) instance.getData();
-    List<Sequence<Object>> outSeqs = crf.getMaxLatticeFactory().newMaxLattice(crf, inSeq).bestOutputSequences(nBest);
+    List<ScoredSequence> outSeqs = CrfScorer.bestScoredSequences(crf, inSeq, nBest, true, !malletLattices);
 
     ArrayList<Alignment> results = Lists.newArrayListWithCapacity(outSeqs.size());
-    double z = crf.getSumLatticeFactory().newSumLattice(crf, inSeq).getTotalWeight();
-    for (Sequence<Object> outSeq : outSeqs) {
-      double score = crf.getSumLatticeFactory().newSumLattice(crf, inSeq, outSeq).getTotalWeight();
+    for (ScoredSequence scored : outSeqs) {
+      Sequence<Object> outSeq = scored.getOutput();
       List<Pair<String, String>> graphemes = makeGraphemes(x, outSeq);
       if (!resultsContain(graphemes, results)) {
-        results.add(new Alignment(x, graphemes, score - z));
+        results.add(new Alignment(x, graphemes, scored.getLogProbability()));
       }
     }
     return results;
@@ -16,15 +16,19 @@
 
 package com.github.steveash.jg2p.aligntag;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import com.github.steveash.jg2p.Word;
 import com.github.steveash.jg2p.align.AlignModel;
 import com.github.steveash.jg2p.align.Alignment;
 import com.github.steveash.jg2p.align.InputRecord;
+import com.github.steveash.jg2p.align.ParallelAligner;
 import com.github.steveash.jg2p.align.TrainOptions;
 import com.github.steveash.jg2p.seq.LeadingTrailingFeature;
 import com.github.steveash.jg2p.seq.NeighborShapeFeature;
@@ -33,6 +37,7 @@ import com.github.steveash.jg2p.seq.StringListToTokenSequence;
 import com.github.steveash.jg2p.seq.SurroundingTokenFeature;
 import com.github.steveash.jg2p.seq.TokenSequenceToFeature;
 import com.github.steveash.jg2p.seq.TokenWindow;
+import com.github.steveash.jg2p.util.ParallelPipes;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,26 +67,45 @@ public class AlignTagTrainer {
 
   private static final Logger log = LoggerFactory.getLogger(AlignTagTrainer.class);
 
+  private int threadCount = 0;
+
+  /**
+   * @param threadCount the threads to pipe the examples and train the crf with; 0 means the defaults
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
   public static List<Alignment> makeAlignmentInputFromRaw(List<InputRecord> inputs, AlignModel model, TrainOptions opts) {
-    List<Alignment> examples = Lists.newArrayListWithCapacity(inputs.size());
-    for (InputRecord input : inputs) {
-      List<Alignment> best = model.align(input.xWord, input.yWord, opts.topKAlignCandidates);
-
-      for (Alignment pairs : best) {
-        if (pairs.getScore() > opts.minAlignScore) {
-          examples.add(pairs);
-        }
+    return Lists.newArrayList(streamAlignmentInputFromRaw(inputs, model, opts));
+  }
+
+  /**
+   * @return the alignments of the inputs (force aligned in parallel) that score over the min align score, in the
+   * order of the inputs; the alignments come out as they're made so this can feed example construction directly.
+   * Each iteration aligns the inputs again
+   */
+  public static Iterable<Alignment> streamAlignmentInputFromRaw(Iterable<InputRecord> inputs, AlignModel model,
+                                                                final TrainOptions opts) {
+    ParallelAligner aligner = new ParallelAligner(model, ParallelAligner.threadCount(opts.alignThreads),
+                                                  opts.topKAlignCandidates);
+    return Iterables.filter(Iterables.concat(aligner.align(inputs)), new Predicate<Alignment>() {
+      @Override
+      public boolean apply(Alignment input) {
+        return input.getScore() > opts.minAlignScore;
       }
-    }
-    return examples;
+    });
   }
 
   public AlignTagModel train(List<InputRecord> inputs, AlignModel model, TrainOptions opts) {
-    List<Alignment> alignments = makeAlignmentInputFromRaw(inputs, model, opts);
-    return train(alignments);
+    return trainFrom(streamAlignmentInputFromRaw(inputs, model, opts));
   }
 
   public AlignTagModel train(Collection<Alignment> inputs) {
+    return trainFrom(inputs);
+  }
+
+  private AlignTagModel trainFrom(Iterable<Alignment> inputs) {
     InstanceList examples = makeExamplesFromAligns(inputs);
     Pipe pipe = examples.getPipe();
 
@@ -99,7 +123,8 @@ public class AlignTagTrainer {
     crf.addStartState();
 
     log.info("Starting alignTag training...");
-    CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, 8);
+    int crfThreads = (threadCount > 0 ? threadCount : 8);
+    CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, crfThreads);
     trainer.setGaussianPriorVariance(2);
 //    trainer.setUseSomeUnsupportedTrick(false);
     trainer.train(trainData);
@@ -113,25 +138,23 @@ public class AlignTagTrainer {
   }
 
   private InstanceList makeExamplesFromAligns(Iterable<Alignment> alignsToTrain) {
-    Pipe pipe = makePipe();
-    int count = 0;
-    InstanceList instances = new InstanceList(pipe);
-    for (Alignment align : alignsToTrain) {
-
-      Word orig = Word.fromSpaceSeparated(align.getWordAsSpaceString());
-      Word marks = Word.fromNormalString(align.getXBoundaryMarksAsString());
-      Preconditions.checkState(orig.unigramCount() == marks.unigramCount());
-
-      Instance ii = new Instance(orig.getValue(), marks.getValue(), null, null);
-      instances.addThruPipe(ii);
-      count += 1;
-
-    }
-    log.info("Read {} instances of training data for align tag", count);
+    SerialPipes pipe = makePipe();
+    InstanceList instances = ParallelPipes.pipeAll(pipe, ParallelPipes.VECTOR_AND_LABEL_PIPES, alignsToTrain,
+                                                   new Function<Alignment, Instance>() {
+      @Override
+      public Instance apply(Alignment align) {
+        Word orig = Word.fromSpaceSeparated(align.getWordAsSpaceString());
+        Word marks = Word.fromNormalString(align.getXBoundaryMarksAsString());
+        Preconditions.checkState(orig.unigramCount() == marks.unigramCount());
+
+        return new Instance(orig.getValue(), marks.getValue(), null, null);
+      }
+    }, ParallelPipes.threadCount(threadCount));
+    log.info("Read {} instances of training data for align tag", instances.size());
     return instances;
   }
 
-  private Pipe makePipe() {
+  private SerialPipes makePipe() {
     Alphabet alpha = new Alphabet();
     Target2LabelSequence labelPipe = new Target2LabelSequence();
     LabelAlphabet labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet();
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.crf;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.SparseVector;
+
+import static cc.mallet.fst.Transducer.IMPOSSIBLE_WEIGHT;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A read-only, flattened copy of a trained mallet CRF for inference. All of the object graph (states, transitions,
+ * weight groups, sparse weight vectors) is compiled in to int and double arrays:
+ * - the transitions of state s are [transStart[s], transStart[s + 1]) with their destination state, output label id
+ *   and the weight groups that they sum
+ * - the weights are stored feature-major (CSR): for feature f the non-zero (weight group, value) pairs are at
+ *   [featStart[f], featStart[f + 1])
+ * so scoring a position is one pass over its active features and then one pass over the transitions. The arithmetic
+ * is done in the same order as mallet's CRF.TransitionIterator and SumLatticeDefault (forward) so the scores agree
+ * with the mallet path bit for bit, and the decoding is the same viterbi + A* search as MaxLatticeDefault (down to
+ * how it breaks ties) so the n-best outputs are exactly mallet's.
+ * The models get at this through CrfScorer which caches the compiled form per CRF
+ * @author Steve Ash
+ */
+public class CompiledCrf {
+
+  private final int stateCount;
+  private final double[] initialWeights;
+  private final double[] finalWeights;
+  private final int[] transStart;
+  private final int[] transSource;
+  private final int[] transDest;
+  private final int[] transLabel;
+  private final int[] transWeightStart;
+  private final int[] transWeightIndex;
+  // the transitions in to state d are inTrans[inStart[d]..inStart[d + 1]) ordered by source state then transition
+  private final int[] inStart;
+  private final int[] inTrans;
+  private final String[] labelNames;
+  private final double[] defaultWeights;
+  private final int[] featStart;
+  private final int[] featWeightIndex;
+  private final double[] featWeightValue;
+  private final int valueStamp;
+  private final int structureStamp;
+  private final ThreadLocal<double[]> groupDotScratch = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[defaultWeights.length];
+    }
+  };
+
+  public static CompiledCrf compile(CRF crf) {
+    return new CompiledCrf(crf);
+  }
+
+  private CompiledCrf(CRF crf) {
+    this.valueStamp = crf.getWeightsValueChangeStamp();
+    this.structureStamp = crf.getWeightsStructureChangeStamp();
+    this.stateCount = crf.numStates();
+    this.initialWeights = new double[stateCount];
+    this.finalWeights = new double[stateCount];
+    this.transStart = new int[stateCount + 1];
+
+    int transCount = 0;
+    int transWeightCount = 0;
+    for (int i = 0; i < stateCount; i++) {
+      CRF.State state = (CRF.State) crf.getState(i);
+      initialWeights[i] = state.getInitialWeight();
+      finalWeights[i] = state.getFinalWeight();
+      transCount += state.numDestinations();
+      for (int j = 0; j < state.numDestinations(); j++) {
+        transWeightCount += state.getWeightNames(j).length;
+      }
+    }
+    this.transSource = new int[transCount];
+    this.transDest = new int[transCount];
+    this.transLabel = new int[transCount];
+    this.transWeightStart = new int[transCount + 1];
+    this.transWeightIndex = new int[transWeightCount];
+
+    Map<String, Integer> labelIds = Maps.newHashMap();
+    List<String> labels = Lists.newArrayList();
+    int next = 0;
+    int nextWeight = 0;
+    for (int i = 0; i < stateCount; i++) {
+      CRF.State state = (CRF.State) crf.getState(i);
+      transStart[i] = next;
+      for (int j = 0; j < state.numDestinations(); j++) {
+        transSource[next] = i;
+        transDest[next] = state.getDestinationState(j).getIndex();
+        String label = state.getLabelName(j);
+        Integer labelId = labelIds.get(label);
+        if (labelId == null) {
+          labelId = labels.size();
+          labelIds.put(label, labelId);
+          labels.add(label);
+        }
+        transLabel[next] = labelId;
+        transWeightStart[next] = nextWeight;
+        for (String weightName : state.getWeightNames(j)) {
+          transWeightIndex[nextWeight++] = crf.getParameters().weightAlphabet.lookupIndex(weightName, false);
+        }
+        next += 1;
+      }
+    }
+    transStart[stateCount] = next;
+    transWeightStart[transCount] = nextWeight;
+    this.labelNames = labels.toArray(new String[labels.size()]);
+
+    this.inStart = new int[stateCount + 1];
+    this.inTrans = new int[transCount];
+    for (int k = 0; k < transCount; k++) {
+      inStart[transDest[k] + 1] += 1;
+    }
+    for (int i = 0; i < stateCount; i++) {
+      inStart[i + 1] += inStart[i];
+    }
+    int[] inFill = Arrays.copyOf(inStart, stateCount);
+    for (int k = 0; k < transCount; k++) {
+      inTrans[inFill[transDest[k]]++] = k;
+    }
+
+    SparseVector[] weights = crf.getParameters().weights;
+    this.defaultWeights = Arrays.copyOf(crf.getParameters().defaultWeights, weights.length);
+    // weights are stored by weight group in mallet, flip them around to be by feature
+    int featCount = 0;
+    int entryCount = 0;
+    for (SparseVector weight : weights) {
+      for (int loc = 0; loc < weight.numLocations(); loc++) {
+        if (weight.valueAtLocation(loc) != 0) {
+          featCount = Math.max(featCount, weight.indexAtLocation(loc) + 1);
+          entryCount += 1;
+        }
+      }
+    }
+    this.featStart = new int[featCount + 1];
+    for (SparseVector weight : weights) {
+      for (int loc = 0; loc < weight.numLocations(); loc++) {
+        if (weight.valueAtLocation(loc) != 0) {
+          featStart[weight.indexAtLocation(loc) + 1] += 1;
+        }
+      }
+    }
+    for (int f = 0; f < featCount; f++) {
+      featStart[f + 1] += featStart[f];
+    }
+    this.featWeightIndex = new int[entryCount];
+    this.featWeightValue = new double[entryCount];
+    int[] fill = Arrays.copyOf(featStart, featCount);
+    for (int wi = 0; wi < weights.length; wi++) {
+      SparseVector weight = weights[wi];
+      for (int loc = 0; loc < weight.numLocations(); loc++) {
+        double value = weight.valueAtLocation(loc);
+        if (value != 0) {
+          int entry = fill[weight.indexAtLocation(loc)]++;
+          featWeightIndex[entry] = wi;
+          featWeightValue[entry] = value;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the given crf's weights have changed since this was compiled
+   */
+  public boolean isStaleFor(CRF crf) {
+    return crf.getWeightsValueChangeStamp() != valueStamp || crf.getWeightsStructureChangeStamp() != structureStamp;
+  }
+
+  public Lattice newLattice(Sequence<FeatureVector> input) {
+    return new Lattice(input);
+  }
+
+  /**
+   * @param features for each input position the sorted indexes of its (binary) features in the input alphabet
+   */
+  public Lattice newLattice(int[][] features) {
+    return new Lattice(features);
+  }
+
+  public List<Sequence<Object>> bestOutputSequences(Sequence<FeatureVector> input, int nBest) {
+    Lattice lattice = newLattice(input);
+    int[][] paths = lattice.bestPaths(nBest);
+    List<Sequence<Object>> results = Lists.newArrayListWithCapacity(paths.length);
+    for (int[] path : paths) {
+      results.add(toSequence(path));
+    }
+    return results;
+  }
+
+  public Sequence<Object> bestOutputSequence(Sequence<FeatureVector> input) {
+    int[][] paths = newLattice(input).bestPaths(1);
+    if (paths.length == 0) {
+      return null;
+    }
+    return toSequence(paths[0]);
+  }
+
+  public List<ScoredSequence> bestScoredSequences(Sequence<FeatureVector> input, int nBest) {
+    return bestScoredSequences(newLattice(input), nBest);
+  }
+
+  public List<ScoredSequence> bestScoredSequences(Lattice lattice, int nBest) {
+    return bestScoredSequences(lattice, nBest, true);
+  }
+
+  /**
+   * @param normalize if false then the partition function isn't computed and the scores are the unnormalized log
+   *                  weights of the outputs; these still rank the outputs of this lattice the same way but can't be
+   *                  compared to the scores from another input
+   */
+  public List<ScoredSequence> bestScoredSequences(Lattice lattice, int nBest, boolean normalize) {
+    int[][] paths = lattice.bestPaths(nBest);
+    double z = (normalize ? lattice.logZ() : 0);
+    List<ScoredSequence> results = Lists.newArrayListWithCapacity(paths.length);
+    for (int[] path : paths) {
+      results.add(new ScoredSequence(toSequence(path), lattice.logWeight(path) - z));
+    }
+    return results;
+  }
+
+  /**
+   * @return the label ids of the given output sequence (e.g. to score it with a Lattice)
+   */
+  public int[] toLabelPath(Sequence<?> output) {
+    int[] path = new int[output.size()];
+    for (int i = 0; i < path.length; i++) {
+      path[i] = Arrays.asList(labelNames).indexOf(output.get(i).toString());
+      checkArgument(path[i] >= 0, "unknown label %s", output.get(i));
+    }
+    return path;
+  }
+
+  private Sequence<Object> toSequence(int[] path) {
+    Object[] labels = new Object[path.length];
+    for (int i = 0; i < path.length; i++) {
+      labels[i] = labelNames[path[i]];
+    }
+    return new ArraySequence<>(labels, false);
+  }
+
+  public int getStateCount() {
+    return stateCount;
+  }
+
+  public int getTransitionCount() {
+    return transDest.length;
+  }
+
+  public String labelName(int labelId) {
+    return labelNames[labelId];
+  }
+
+  /**
+   * The transition weights for every (input position, transition) of one input sequence; each of the decoding
+   * operations is then just array loops over these
+   */
+  public class Lattice {
+
+    private final int length;
+    private final double[] transWeights; // [position * transitionCount + transition]
+
+    private Lattice(Sequence<FeatureVector> input) {
+      this.length = input.size();
+      this.transWeights = new double[length * transDest.length];
+      double[] groupDot = groupDotScratch.get();
+      for (int ip = 0; ip < length; ip++) {
+        Arrays.fill(groupDot, 0.0);
+        FeatureVector fv = input.get(ip);
+        for (int loc = 0; loc < fv.numLocations(); loc++) {
+          addFeature(groupDot, fv.indexAtLocation(loc), fv.valueAtLocation(loc));
+        }
+        fillPosition(ip, groupDot);
+      }
+    }
+
+    // binary features given as the (sorted) feature indexes for each position
+    private Lattice(int[][] features) {
+      this.length = features.length;
+      this.transWeights = new double[length * transDest.length];
+      double[] groupDot = groupDotScratch.get();
+      for (int ip = 0; ip < length; ip++) {
+        Arrays.fill(groupDot, 0.0);
+        for (int f : features[ip]) {
+          addFeature(groupDot, f, 1.0);
+        }
+        fillPosition(ip, groupDot);
+      }
+    }
+
+    private void addFeature(double[] groupDot, int f, double fvValue) {
+      if (f >= featStart.length - 1) {
+        return; // feature never seen in training so no weights
+      }
+      for (int e = featStart[f]; e < featStart[f + 1]; e++) {
+        groupDot[featWeightIndex[e]] += featWeightValue[e] * fvValue;
+      }
+    }
+
+    private void fillPosition(int ip, double[] groupDot) {
+      int transCount = transDest.length;
+      int offset = ip * transCount;
+      for (int k = 0; k < transCount; k++) {
+        double w = 0;
+        for (int e = transWeightStart[k]; e < transWeightStart[k + 1]; e++) {
+          int wi = transWeightIndex[e];
+          w += groupDot[wi] + defaultWeights[wi];
+        }
+        transWeights[offset + k] = w;
+      }
+    }
+
+    public int length() {
+      return length;
+    }
+
+    /**
+     * @return the log of the partition function (same as SumLattice total weight)
+     */
+    public double logZ() {
+      return forward(null, false);
+    }
+
+    /**
+     * @return the unnormalized log weight of all state paths that output the given label ids
+     */
+    public double logWeight(int[] labelPath) {
+      return forward(labelPath, false);
+    }
+
+    /**
+     * @return the unnormalized log weight of the best state path that outputs the given label ids (the viterbi
+     * score of that output)
+     */
+    public double bestPathWeight(int[] labelPath) {
+      return forward(labelPath, true);
+    }
+
+    private double forward(int[] labelPath, boolean max) {
+      double[] alpha = new double[stateCount];
+      double[] nextAlpha = new double[stateCount];
+      Arrays.fill(alpha, IMPOSSIBLE_WEIGHT);
+      for (int i = 0; i < stateCount; i++) {
+        if (initialWeights[i] > IMPOSSIBLE_WEIGHT) {
+          alpha[i] = initialWeights[i];
+        }
+      }
+      int transCount = transDest.length;
+      for (int ip = 0; ip < length; ip++) {
+        Arrays.fill(nextAlpha, IMPOSSIBLE_WEIGHT);
+        int offset = ip * transCount;
+        for (int i = 0; i < stateCount; i++) {
+          if (alpha[i] == IMPOSSIBLE_WEIGHT) {
+            continue;
+          }
+          for (int k = transStart[i]; k < transStart[i + 1]; k++) {
+            if (labelPath != null && transLabel[k] != labelPath[ip]) {
+              continue;
+            }
+            int d = transDest[k];
+            double w = alpha[i] + transWeights[offset + k];
+            nextAlpha[d] = (max ? Math.max(nextAlpha[d], w) : Transducer.sumLogProb(nextAlpha[d], w));
+          }
+        }
+        double[] swap = alpha;
+        alpha = nextAlpha;
+        nextAlpha = swap;
+      }
+      double total = IMPOSSIBLE_WEIGHT;
+      for (int i = 0; i < stateCount; i++) {
+        if (alpha[i] > IMPOSSIBLE_WEIGHT) {
+          double w = alpha[i] + finalWeights[i];
+          total = (max ? Math.max(total, w) : Transducer.sumLogProb(total, w));
+        }
+      }
+      return total;
+    }
+
+    /**
+     * The same search as mallet's MaxLatticeDefault: a viterbi pass forward and then an A* search backward from the
+     * end states with the viterbi scores as the completion costs. The loops visit the states and transitions in the
+     * same order and the heap sifts the same way as mallet's MinHeap so ties come out in the same order too. Like
+     * mallet the results are state paths so two of them can emit the same labels, and the label emitted at each
+     * (position, state) is that of the last transition in to it
+     * @return the label id paths of the nBest outputs, best first
+     */
+    public int[][] bestPaths(int nBest) {
+      int transCount = transDest.length;
+      int cells = (length + 1) * stateCount;
+      double[] delta = new double[cells];
+      int[] output = new int[cells];
+      Arrays.fill(delta, IMPOSSIBLE_WEIGHT);
+      for (int i = 0; i < stateCount; i++) {
+        if (initialWeights[i] > IMPOSSIBLE_WEIGHT) {
+          delta[i] = initialWeights[i];
+        }
+      }
+      for (int ip = 0; ip < length; ip++) {
+        int offset = ip * transCount;
+        for (int i = 0; i < stateCount; i++) {
+          double from = delta[ip * stateCount + i];
+          if (from == IMPOSSIBLE_WEIGHT) {
+            continue;
+          }
+          for (int k = transStart[i]; k < transStart[i + 1]; k++) {
+            double w = transWeights[offset + k];
+            if (w == IMPOSSIBLE_WEIGHT) {
+              continue;
+            }
+            int destCell = (ip + 1) * stateCount + transDest[k];
+            output[destCell] = transLabel[k];
+            double cand = from + w;
+            if (ip == length - 1) {
+              cand += finalWeights[transDest[k]];
+            }
+            if (cand > delta[destCell]) {
+              delta[destCell] = cand;
+            }
+          }
+        }
+      }
+
+      SearchHeap heap = new SearchHeap();
+      for (int i = 0; i < stateCount; i++) {
+        double d = delta[length * stateCount + i];
+        if (d > IMPOSSIBLE_WEIGHT) {
+          heap.insert(length, i, -1, 0.0, -d);
+        }
+      }
+      List<int[]> paths = Lists.newArrayList();
+      while (paths.size() < nBest && heap.size() > 0) {
+        int node = heap.extractMin();
+        int ip = heap.nodeIp[node];
+        int state = heap.nodeState[node];
+        if (ip == 0) {
+          if (initialWeights[state] > IMPOSSIBLE_WEIGHT) {
+            paths.add(labelPath(heap, node, output));
+          }
+          continue;
+        }
+        // the predecessors in state order; like mallet's weight cache, if a source has more than one transition
+        // in to this state then the last possible one is the one that counts
+        int offset = (ip - 1) * transCount;
+        double cost = heap.nodeCost[node];
+        int e = inStart[state];
+        while (e < inStart[state + 1]) {
+          int prev = transSource[inTrans[e]];
+          double w = IMPOSSIBLE_WEIGHT;
+          for (; e < inStart[state + 1] && transSource[inTrans[e]] == prev; e++) {
+            double tw = transWeights[offset + inTrans[e]];
+            if (tw != IMPOSSIBLE_WEIGHT) {
+              w = tw;
+            }
+          }
+          double prevDelta = delta[(ip - 1) * stateCount + prev];
+          if (w == IMPOSSIBLE_WEIGHT || prevDelta == IMPOSSIBLE_WEIGHT) {
+            continue;
+          }
+          double childCost = cost + -w;
+          heap.insert(ip - 1, prev, node, childCost, childCost + -prevDelta);
+        }
+      }
+      return paths.toArray(new int[paths.size()][]);
+    }
+
+    // the node is at position 0 and its parents lead to the end of the lattice
+    private int[] labelPath(SearchHeap heap, int node, int[] output) {
+      int[] path = new int[length];
+      int current = heap.nodeParent[node];
+      for (int ip = 1; ip <= length; ip++) {
+        path[ip - 1] = output[ip * stateCount + heap.nodeState[current]];
+        current = heap.nodeParent[current];
+      }
+      return path;
+    }
+  }
+
+  /**
+   * The nodes of the A* search (in parallel arrays) and a binary min heap of them by priority which sifts exactly
+   * like mallet's MinHeap
+   */
+  private static class SearchHeap {
+
+    private int[] nodeIp = new int[64];
+    private int[] nodeState = new int[64];
+    private int[] nodeParent = new int[64];
+    private double[] nodeCost = new double[64];
+    private double[] nodePriority = new double[64];
+    private int nodeCount = 0;
+    private int[] heap = new int[64];
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    void insert(int ip, int state, int parent, double cost, double priority) {
+      if (nodeCount == nodeIp.length) {
+        int grown = nodeCount * 2;
+        nodeIp = Arrays.copyOf(nodeIp, grown);
+        nodeState = Arrays.copyOf(nodeState, grown);
+        nodeParent = Arrays.copyOf(nodeParent, grown);
+        nodeCost = Arrays.copyOf(nodeCost, grown);
+        nodePriority = Arrays.copyOf(nodePriority, grown);
+      }
+      int node = nodeCount++;
+      nodeIp[node] = ip;
+      nodeState[node] = state;
+      nodeParent[node] = parent;
+      nodeCost[node] = cost;
+      nodePriority[node] = priority;
+
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, size * 2);
+      }
+      int i = size++;
+      heap[i] = node;
+      while (i > 0) {
+        int up = (i - 1) / 2;
+        if (!(nodePriority[heap[up]] > nodePriority[heap[i]])) {
+          break;
+        }
+        swap(up, i);
+        i = up;
+      }
+    }
+
+    int extractMin() {
+      int min = heap[0];
+      heap[0] = heap[--size];
+      int i = 0;
+      while (true) {
+        int left = 2 * i + 1;
+        int right = 2 * i + 2;
+        int smallest = i;
+        if (left < size && nodePriority[heap[left]] < nodePriority[heap[i]]) {
+          smallest = left;
+        }
+        if (right < size && nodePriority[heap[right]] < nodePriority[heap[smallest]]) {
+          smallest = right;
+        }
+        if (smallest == i) {
+          return min;
+        }
+        swap(i, smallest);
+        i = smallest;
+      }
+    }
+
+    private void swap(int a, int b) {
+      int tmp = heap[a];
+      heap[a] = heap[b];
+      heap[b] = tmp;
+    }
+  }
+}
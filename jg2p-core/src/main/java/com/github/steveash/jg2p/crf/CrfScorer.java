@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.crf;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.Sequence;
+
+import static cc.mallet.fst.Transducer.IMPOSSIBLE_WEIGHT;
+
+/**
+ * Entry point for CRF inference from the models. Each call says whether to decode with a CompiledCrf (compiled once
+ * per CRF and cached, recompiled if the weights change) or with mallet's lattices; the compiled CRF runs the same
+ * search with the same arithmetic so the outputs and scores are the same, just faster. The models default
+ * to the compiled form and can be switched back with their setUseCompiled; the overloads without the flag use mallet.
+ * On the mallet path this scores the n-best outputs of a transducer for a single input sequence without building a
+ * constrained SumLattice per candidate. The transition weights for each (input position, source state) are computed once (which
+ * is where the dot products happen) and cached; then the partition function z is one forward pass over the cache
+ * and the score of each candidate output is a forward pass restricted to the transitions that emit that candidate's
+ * labels (for a first order CRF that is O(length) as only one state is alive after the first position).
+ * The arithmetic is the same as the forward pass in mallet's SumLatticeDefault so the log probabilities agree with
+ * the old score - z calculation
+ * @author Steve Ash
+ */
+public class CrfScorer {
+
+  private static final LoadingCache<CRF, CompiledCrf> compiledCache = CacheBuilder.newBuilder()
+      .weakKeys()
+      .build(new CacheLoader<CRF, CompiledCrf>() {
+        @Override
+        public CompiledCrf load(CRF key) throws Exception {
+          return CompiledCrf.compile(key);
+        }
+      });
+
+  /**
+   * @return the compiled form of the given transducer or null if it can't be compiled (it isn't a CRF)
+   */
+  @Nullable
+  public static CompiledCrf compiledFor(Transducer tduc) {
+    if (!(tduc instanceof CRF)) {
+      return null;
+    }
+    CRF crf = (CRF) tduc;
+    CompiledCrf compiled = compiledCache.getUnchecked(crf);
+    if (compiled.isStaleFor(crf)) {
+      compiled = CompiledCrf.compile(crf);
+      compiledCache.put(crf, compiled);
+    }
+    return compiled;
+  }
+
+  /**
+   * @return the nBest output sequences (best first) with their normalized log probabilities
+   */
+  public static List<ScoredSequence> bestScoredSequences(Transducer tduc, Sequence<?> inSeq, int nBest) {
+    return bestScoredSequences(tduc, inSeq, nBest, true);
+  }
+
+  /**
+   * @param normalize if false then z isn't computed and the scores are the unnormalized log weights of the outputs
+   *                  (only good for ranking the outputs of this one input)
+   * @return the nBest output sequences (best first) with their log probabilities (or log weights)
+   */
+  public static List<ScoredSequence> bestScoredSequences(Transducer tduc, Sequence<?> inSeq, int nBest,
+                                                         boolean normalize) {
+    return bestScoredSequences(tduc, inSeq, nBest, normalize, false);
+  }
+
+  /**
+   * @param useCompiled if true then decode with the transducer's CompiledCrf (if it is a CRF)
+   * @see #bestScoredSequences(Transducer, Sequence, int, boolean)
+   */
+  @SuppressWarnings("unchecked")
+  public static List<ScoredSequence> bestScoredSequences(Transducer tduc, Sequence<?> inSeq, int nBest,
+                                                         boolean normalize, boolean useCompiled) {
+    CompiledCrf compiled = (useCompiled ? compiledFor(tduc) : null);
+    if (compiled != null) {
+      return compiled.bestScoredSequences(compiled.newLattice(featuresOf(inSeq)), nBest, normalize);
+    }
+    List<Sequence<Object>> outSeqs = tduc.getMaxLatticeFactory().newMaxLattice(tduc, inSeq).bestOutputSequences(nBest);
+    CrfScorer scorer = new CrfScorer(tduc, inSeq);
+    double z = (normalize ? scorer.logZ() : 0);
+    List<ScoredSequence> results = Lists.newArrayListWithCapacity(outSeqs.size());
+    for (Sequence<Object> outSeq : outSeqs) {
+      results.add(new ScoredSequence(outSeq, scorer.logWeight(outSeq) - z));
+    }
+    return results;
+  }
+
+  /**
+   * @return the nBest output sequences (best first)
+   */
+  public static List<Sequence<Object>> bestOutputSequences(Transducer tduc, Sequence<?> inSeq, int nBest) {
+    return bestOutputSequences(tduc, inSeq, nBest, false);
+  }
+
+  /**
+   * @param useCompiled if true then decode with the transducer's CompiledCrf (if it is a CRF)
+   * @return the nBest output sequences (best first)
+   */
+  @SuppressWarnings("unchecked")
+  public static List<Sequence<Object>> bestOutputSequences(Transducer tduc, Sequence<?> inSeq, int nBest,
+                                                           boolean useCompiled) {
+    CompiledCrf compiled = (useCompiled ? compiledFor(tduc) : null);
+    if (compiled != null) {
+      return compiled.bestOutputSequences(featuresOf(inSeq), nBest);
+    }
+    return tduc.getMaxLatticeFactory().newMaxLattice(tduc, inSeq).bestOutputSequences(nBest);
+  }
+
+  /**
+   * @return the viterbi output sequence
+   */
+  public static Sequence<Object> bestOutputSequence(Transducer tduc, Sequence<?> inSeq) {
+    return bestOutputSequence(tduc, inSeq, false);
+  }
+
+  /**
+   * @param useCompiled if true then decode with the transducer's CompiledCrf (if it is a CRF)
+   * @return the viterbi output sequence
+   */
+  @SuppressWarnings("unchecked")
+  public static Sequence<Object> bestOutputSequence(Transducer tduc, Sequence<?> inSeq, boolean useCompiled) {
+    CompiledCrf compiled = (useCompiled ? compiledFor(tduc) : null);
+    if (compiled != null) {
+      return compiled.bestOutputSequence(featuresOf(inSeq));
+    }
+    return tduc.getMaxLatticeFactory().newMaxLattice(tduc, inSeq).bestOutputSequence();
+  }
+
+  // a CRF's input is always its pipe's FeatureVectorSequence
+  @SuppressWarnings("unchecked")
+  private static Sequence<FeatureVector> featuresOf(Sequence<?> inSeq) {
+    return (Sequence<FeatureVector>) inSeq;
+  }
+
+  private final Transducer tduc;
+  private final Sequence<?> input;
+  private final int stateCount;
+  // per input position, per source state: the destination state indexes, weights, and output labels of the
+  // transitions; null until that source state is needed at that position
+  private final int[][][] dests;
+  private final double[][][] weights;
+  private final Object[][][] outputs;
+  private double[] alpha;
+  private double[] nextAlpha;
+
+  public CrfScorer(Transducer tduc, Sequence<?> input) {
+    this.tduc = tduc;
+    this.input = input;
+    this.stateCount = tduc.numStates();
+    this.dests = new int[input.size()][stateCount][];
+    this.weights = new double[input.size()][stateCount][];
+    this.outputs = new Object[input.size()][stateCount][];
+    this.alpha = new double[stateCount];
+    this.nextAlpha = new double[stateCount];
+  }
+
+  /**
+   * @return log of the partition function, the same as the total weight of the unconstrained SumLattice
+   */
+  public double logZ() {
+    return forward(null);
+  }
+
+  /**
+   * @return the unnormalized log weight of all of the paths that produce the given output, the same as the
+   * total weight of the SumLattice constrained to this output
+   */
+  public double logWeight(Sequence<?> output) {
+    return forward(output);
+  }
+
+  private double forward(@Nullable Sequence<?> output) {
+    Arrays.fill(alpha, IMPOSSIBLE_WEIGHT);
+    for (int i = 0; i < stateCount; i++) {
+      double initial = tduc.getState(i).getInitialWeight();
+      if (initial > IMPOSSIBLE_WEIGHT) {
+        alpha[i] = initial;
+      }
+    }
+    for (int ip = 0; ip < input.size(); ip++) {
+      Arrays.fill(nextAlpha, IMPOSSIBLE_WEIGHT);
+      Object label = (output != null ? output.get(ip) : null);
+      for (int i = 0; i < stateCount; i++) {
+        if (alpha[i] == IMPOSSIBLE_WEIGHT) {
+          continue;
+        }
+        fillTransitions(ip, i);
+        int[] dest = dests[ip][i];
+        double[] weight = weights[ip][i];
+        Object[] outs = outputs[ip][i];
+        for (int k = 0; k < dest.length; k++) {
+          if (label != null && !label.equals(outs[k])) {
+            continue;
+          }
+          nextAlpha[dest[k]] = Transducer.sumLogProb(nextAlpha[dest[k]], alpha[i] + weight[k]);
+        }
+      }
+      double[] swap = alpha;
+      alpha = nextAlpha;
+      nextAlpha = swap;
+    }
+    double total = IMPOSSIBLE_WEIGHT;
+    for (int i = 0; i < stateCount; i++) {
+      if (alpha[i] > IMPOSSIBLE_WEIGHT) {
+        total = Transducer.sumLogProb(total, alpha[i] + tduc.getState(i).getFinalWeight());
+      }
+    }
+    return total;
+  }
+
+  private void fillTransitions(int ip, int sourceIndex) {
+    if (dests[ip][sourceIndex] != null) {
+      return;
+    }
+    Transducer.TransitionIterator iter = tduc.getState(sourceIndex).transitionIterator(input, ip, null, ip);
+    int[] dest = new int[4];
+    double[] weight = new double[4];
+    Object[] outs = new Object[4];
+    int count = 0;
+    while (iter.hasNext()) {
+      Transducer.State destination = iter.next();
+      double w = iter.getWeight();
+      if (w == IMPOSSIBLE_WEIGHT) {
+        continue;
+      }
+      if (count == dest.length) {
+        dest = Arrays.copyOf(dest, count * 2);
+        weight = Arrays.copyOf(weight, count * 2);
+        outs = Arrays.copyOf(outs, count * 2);
+      }
+      dest[count] = destination.getIndex();
+      weight[count] = w;
+      outs[count] = iter.getOutput();
+      count += 1;
+    }
+    dests[ip][sourceIndex] = Arrays.copyOf(dest, count);
+    weights[ip][sourceIndex] = Arrays.copyOf(weight, count);
+    outputs[ip][sourceIndex] = Arrays.copyOf(outs, count);
+  }
+}
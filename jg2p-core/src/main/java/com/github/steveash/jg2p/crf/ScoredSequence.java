@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.crf;
+
+import cc.mallet.types.Sequence;
+
+/**
+ * One of the n-best output label sequences from a CRF along with its normalized log probability
+ * @author Steve Ash
+ */
+public class ScoredSequence {
+
+  private final Sequence<Object> output;
+  private final double logProbability;
+
+  public ScoredSequence(Sequence<Object> output, double logProbability) {
+    this.output = output;
+    this.logProbability = logProbability;
+  }
+
+  public Sequence<Object> getOutput() {
+    return output;
+  }
+
+  public double getLogProbability() {
+    return logProbability;
+  }
+
+  @Override
+  public String toString() {
+    return "ScoredSequence{" +
+           "output=" + output +
+           ", logProbability=" + logProbability +
+           '}';
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lexicon;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import com.github.steveash.jg2p.Word;
+import com.github.steveash.jg2p.align.InputRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * An immutable, compact dictionary of word -> pronunciation variants. The keys are the upper-cased graphemes of the
+ * word packed in to a single sorted char array (with an offset index) so lookups are a binary search with no
+ * allocation and there is no per-entry object overhead for the keys. The pronunciations are stored as space separated
+ * phone strings grouped by key in the order that they were read (so the first variant is the preferred one).
+ * Build one from the InputRecords from any of the InputReader formats (cmu, psaurus, default) or load the
+ * precompiled binary form written by writeTo for fast startup
+ * @author Steve Ash
+ */
+public class Lexicon {
+
+  private static final int MAGIC = 0x4A47504C; // JGPL
+  private static final int VERSION = 1;
+
+  private final char[] keyChars;
+  private final int[] keyStarts;    // size n + 1, key i is keyChars[keyStarts[i], keyStarts[i + 1])
+  private final String[] prons;
+  private final int[] pronStarts;   // size n + 1, prons for key i are prons[pronStarts[i], pronStarts[i + 1])
+
+  private Lexicon(char[] keyChars, int[] keyStarts, String[] prons, int[] pronStarts) {
+    this.keyChars = keyChars;
+    this.keyStarts = keyStarts;
+    this.prons = prons;
+    this.pronStarts = pronStarts;
+  }
+
+  public static Lexicon fromRecords(Collection<InputRecord> records) {
+    SortedMap<String, Set<String>> entries = Maps.newTreeMap();
+    for (InputRecord record : records) {
+      String key = keyFor(record.xWord);
+      Set<String> variants = entries.get(key);
+      if (variants == null) {
+        variants = Sets.newLinkedHashSet();
+        entries.put(key, variants);
+      }
+      variants.add(record.yWord.getAsSpaceString());
+    }
+    return fromSortedEntries(entries);
+  }
+
+  private static Lexicon fromSortedEntries(SortedMap<String, Set<String>> entries) {
+    int keyCharCount = 0;
+    int pronCount = 0;
+    for (Map.Entry<String, Set<String>> entry : entries.entrySet()) {
+      keyCharCount += entry.getKey().length();
+      pronCount += entry.getValue().size();
+    }
+    char[] keyChars = new char[keyCharCount];
+    int[] keyStarts = new int[entries.size() + 1];
+    String[] prons = new String[pronCount];
+    int[] pronStarts = new int[entries.size() + 1];
+    int i = 0;
+    int nextChar = 0;
+    int nextPron = 0;
+    for (Map.Entry<String, Set<String>> entry : entries.entrySet()) {
+      String key = entry.getKey();
+      keyStarts[i] = nextChar;
+      key.getChars(0, key.length(), keyChars, nextChar);
+      nextChar += key.length();
+      pronStarts[i] = nextPron;
+      for (String pron : entry.getValue()) {
+        prons[nextPron++] = pron;
+      }
+      i += 1;
+    }
+    keyStarts[i] = nextChar;
+    pronStarts[i] = nextPron;
+    return new Lexicon(keyChars, keyStarts, prons, pronStarts);
+  }
+
+  public static Lexicon readFromFile(File file) throws IOException {
+    return readFrom(Files.asByteSource(file));
+  }
+
+  public static Lexicon readFromClasspath(String resourceName) throws IOException {
+    return readFrom(Resources.asByteSource(Resources.getResource(resourceName)));
+  }
+
+  public static Lexicon readFrom(ByteSource source) throws IOException {
+    try (DataInputStream dis = new DataInputStream(source.openBufferedStream())) {
+      if (dis.readInt() != MAGIC) {
+        throw new IOException("Not a lexicon file, bad magic number");
+      }
+      int version = dis.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported lexicon version " + version);
+      }
+      int keyCount = dis.readInt();
+      int keyCharCount = dis.readInt();
+      int pronCount = dis.readInt();
+      char[] keyChars = new char[keyCharCount];
+      int[] keyStarts = new int[keyCount + 1];
+      String[] prons = new String[pronCount];
+      int[] pronStarts = new int[keyCount + 1];
+      for (int i = 0; i < keyCharCount; i++) {
+        keyChars[i] = dis.readChar();
+      }
+      for (int i = 0; i <= keyCount; i++) {
+        keyStarts[i] = dis.readInt();
+      }
+      for (int i = 0; i <= keyCount; i++) {
+        pronStarts[i] = dis.readInt();
+      }
+      for (int i = 0; i < pronCount; i++) {
+        prons[i] = dis.readUTF().intern();
+      }
+      return new Lexicon(keyChars, keyStarts, prons, pronStarts);
+    }
+  }
+
+  public void writeTo(File file) throws IOException {
+    writeTo(Files.asByteSink(file));
+  }
+
+  public void writeTo(ByteSink sink) throws IOException {
+    try (DataOutputStream dos = new DataOutputStream(sink.openBufferedStream())) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeInt(size());
+      dos.writeInt(keyChars.length);
+      dos.writeInt(prons.length);
+      for (char keyChar : keyChars) {
+        dos.writeChar(keyChar);
+      }
+      for (int keyStart : keyStarts) {
+        dos.writeInt(keyStart);
+      }
+      for (int pronStart : pronStarts) {
+        dos.writeInt(pronStart);
+      }
+      for (String pron : prons) {
+        dos.writeUTF(pron);
+      }
+    }
+  }
+
+  /**
+   * @return the pronunciation variants (each a list of phones) in preference order or an empty list if the
+   * word isn't in the lexicon
+   */
+  public List<List<String>> lookup(Word word) {
+    int index = indexOf(word);
+    if (index < 0) {
+      return ImmutableList.of();
+    }
+    int start = pronStarts[index];
+    int end = pronStarts[index + 1];
+    ImmutableList.Builder<List<String>> builder = ImmutableList.builder();
+    for (int i = start; i < end; i++) {
+      builder.add(Word.fromSpaceSeparated(prons[i]).getValue());
+    }
+    return builder.build();
+  }
+
+  public boolean contains(Word word) {
+    return indexOf(word) >= 0;
+  }
+
+  public int size() {
+    return keyStarts.length - 1;
+  }
+
+  public int pronunciationCount() {
+    return prons.length;
+  }
+
+  private int indexOf(Word word) {
+    int low = 0;
+    int high = size() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareKeyTo(mid, word);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // compares the key at index to the upper cased concatenation of the word's graphemes without building the string
+  private int compareKeyTo(int index, Word word) {
+    int k = keyStarts[index];
+    int kEnd = keyStarts[index + 1];
+    for (int g = 0; g < word.unigramCount(); g++) {
+      String gram = word.gramAt(g);
+      for (int c = 0; c < gram.length(); c++) {
+        if (k >= kEnd) {
+          return -1;
+        }
+        char wc = Character.toUpperCase(gram.charAt(c));
+        char kc = keyChars[k++];
+        if (kc != wc) {
+          return kc - wc;
+        }
+      }
+    }
+    return (k < kEnd ? 1 : 0);
+  }
+
+  // upper cased a char at a time exactly like compareKeyTo (String.toUpperCase depends on the default locale, e.g. i
+  // upper cases to a dotted I in Turkish, and can change the length)
+  private static String keyFor(Word word) {
+    String chars = word.getAsNoSpaceString();
+    StringBuilder sb = new StringBuilder(chars.length());
+    for (int i = 0; i < chars.length(); i++) {
+      sb.append(Character.toUpperCase(chars.charAt(i)));
+    }
+    return sb.toString();
+  }
+}
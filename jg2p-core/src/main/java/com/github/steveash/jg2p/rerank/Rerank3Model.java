@@ -86,8 +86,10 @@ public class Rerank3Model implements Serializable {
 
     List<RerankerResult> result = Lists.newArrayListWithCapacity(ex.size());
     for (int i = 0; i < ex.size(); i++) {
-      Label rankLabel = labeling.getLabelAlphabet().lookupLabel(Integer.toString(i));
-      result.add(new RerankerResult(ex.get(i), labeling.value(rankLabel)));
+      // with a frozen label alphabet a rank past the ones seen in training has no label, so no probability
+      Label rankLabel = labeling.getLabelAlphabet().lookupLabel(Integer.toString(i), false);
+      double prob = (rankLabel != null ? labeling.value(rankLabel) : 0.0);
+      result.add(new RerankerResult(ex.get(i), prob));
     }
     Collections.sort(result, Ordering.<RerankerResult>natural().reverse());
     return result;
@@ -96,4 +98,8 @@ public class Rerank3Model implements Serializable {
   public Pipe getPipe() {
     return model.getInstancePipe();
   }
+
+  public Classifier getClassifier() {
+    return model;
+  }
 }
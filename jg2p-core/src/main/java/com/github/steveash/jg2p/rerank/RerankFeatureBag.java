@@ -18,15 +18,20 @@ package com.github.steveash.jg2p.rerank;
 
 import com.google.common.collect.Maps;
 
+import com.github.steveash.jg2p.util.FrozenAlphabet;
+
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 
+import javax.annotation.Nullable;
+
 import cc.mallet.types.Alphabet;
 import cc.mallet.types.FeatureVector;
 
 /**
- * Holder for feature values in the reranking pipe
+ * Holder for feature values in the reranking pipe. If the data alphabet has been frozen (i.e. at inference time) then
+ * features that aren't in the alphabet are dropped instead of added
  * @author Steve Ash
  */
 public class RerankFeatureBag {
@@ -34,11 +39,17 @@ public class RerankFeatureBag {
   private static final Double ONE = 1.0;
 
   private final Alphabet dataAlphabet;
+  @Nullable private final FrozenAlphabet frozen;
   private final RerankExample example;
   private final SortedMap<Integer,Double> features = Maps.newTreeMap();
 
   public RerankFeatureBag(Alphabet dataAlphabet, RerankExample example) {
+    this(dataAlphabet, FrozenAlphabet.ifFrozen(dataAlphabet), example);
+  }
+
+  public RerankFeatureBag(Alphabet dataAlphabet, @Nullable FrozenAlphabet frozen, RerankExample example) {
     this.dataAlphabet = dataAlphabet;
+    this.frozen = frozen;
     this.example = example;
   }
 
@@ -48,17 +59,22 @@ public class RerankFeatureBag {
 
   public void setBinary(String key) {
     int idx = lookup(key);
-    features.put(idx, ONE);
+    if (idx >= 0) {
+      features.put(idx, ONE);
+    }
   }
 
   public void setFeature(String key, double value) {
     int idx = lookup(key);
-    if (value != 0) {
+    if (idx >= 0 && value != 0) {
       features.put(idx, value);
     }
   }
 
   private int lookup(String key) {
+    if (frozen != null) {
+      return frozen.indexOf(key);
+    }
     int idx = dataAlphabet.lookupIndex(key, true);
     if (idx < 0) {
       throw new IllegalArgumentException("Couldnt add new index for " + key);
@@ -18,6 +18,8 @@ package com.github.steveash.jg2p.rerank;
 
 import com.google.common.collect.ImmutableList;
 
+import com.github.steveash.jg2p.util.FrozenAlphabet;
+
 import java.util.List;
 
 import cc.mallet.pipe.Pipe;
@@ -46,8 +48,9 @@ public class RerankFeaturePipe extends Pipe {
   public Instance pipe(Instance inst) {
     List<RerankExample> entries = (List<RerankExample>) inst.getData();
     FeatureVector[] output = new FeatureVector[entries.size()];
+    FrozenAlphabet frozen = FrozenAlphabet.ifFrozen(dataDict);
     for (int i = 0; i < entries.size(); i++) {
-      RerankFeatureBag bag = new RerankFeatureBag(dataDict, entries.get(i));
+      RerankFeatureBag bag = new RerankFeatureBag(dataDict, frozen, entries.get(i));
       for (RerankFeature feature : features) {
         feature.emitFeatures(bag);
       }
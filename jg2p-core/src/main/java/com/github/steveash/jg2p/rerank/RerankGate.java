@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.rerank;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import com.github.steveash.jg2p.PhoneticEncoder;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Early exit policy for the reranking: if the phonetic encoder's top candidate is confident enough then the
+ * candidates are returned in the CRF (tag score) order and the graphone LM scoring and the reranker are skipped.
+ * The top candidate is confident when its tag probability is at least minTagProbability and (optionally) its phones
+ * are the unique mode of the candidate list (i.e. more alignments produced it than any other phone sequence).
+ * Counts how many results were checked and how many of those the gate let skip the reranker
+ * @author Steve Ash
+ */
+public class RerankGate {
+
+  private final double minTagProbability;
+  private final boolean requireUniqueMode;
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong fired = new AtomicLong();
+
+  public RerankGate(double minTagProbability, boolean requireUniqueMode) {
+    checkArgument(minTagProbability >= 0 && minTagProbability <= 1.0, "min tag probability must be a probability");
+    this.minTagProbability = minTagProbability;
+    this.requireUniqueMode = requireUniqueMode;
+  }
+
+  /**
+   * @return true if the given encoder result's top candidate is confident enough to skip reranking
+   */
+  public boolean canSkipRerank(PhoneticEncoder.Result result) {
+    checked.incrementAndGet();
+    if (!isConfident(result.overallResults)) {
+      return false;
+    }
+    fired.incrementAndGet();
+    return true;
+  }
+
+  private boolean isConfident(List<PhoneticEncoder.Encoding> candidates) {
+    if (candidates.isEmpty()) {
+      return false;
+    }
+    PhoneticEncoder.Encoding top = candidates.get(0);
+    if (top.tagProbability() < minTagProbability) {
+      return false;
+    }
+    if (!requireUniqueMode) {
+      return true;
+    }
+    Multiset<List<String>> counts = HashMultiset.create();
+    for (PhoneticEncoder.Encoding candidate : candidates) {
+      counts.add(candidate.getPhones());
+    }
+    int topCount = counts.count(top.getPhones());
+    for (Multiset.Entry<List<String>> entry : counts.entrySet()) {
+      if (entry.getCount() >= topCount && !entry.getElement().equals(top.getPhones())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public double getMinTagProbability() {
+    return minTagProbability;
+  }
+
+  public boolean isRequireUniqueMode() {
+    return requireUniqueMode;
+  }
+
+  /**
+   * @return how many encoder results have been checked by the gate
+   */
+  public long getCheckedCount() {
+    return checked.get();
+  }
+
+  /**
+   * @return how many encoder results skipped the reranking
+   */
+  public long getFiredCount() {
+    return fired.get();
+  }
+
+  public double getFiredRate() {
+    long total = checked.get();
+    return (total == 0 ? 0.0 : fired.get() / (double) total);
+  }
+
+  public void resetCounts() {
+    checked.set(0);
+    fired.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "RerankGate{" +
+           "minTagProbability=" + minTagProbability +
+           ", requireUniqueMode=" + requireUniqueMode +
+           ", checked=" + checked +
+           ", fired=" + fired +
+           '}';
+  }
+}
@@ -37,7 +37,13 @@ public class RerankableEncoder {
   }
 
   public RerankableResult encode(Word input) {
-    PhoneticEncoder.Result result = this.encoder.complexEncode(input);
+    return toRerankable(this.encoder.complexEncode(input));
+  }
+
+  /**
+   * Scores the given phonetic encoder result with the graphone lang model for reranking
+   */
+  public RerankableResult toRerankable(PhoneticEncoder.Result result) {
     RerankableResult rerankableResult = new RerankableResult(result, this.langModel);
     Preconditions.checkNotNull(rerankableResult.encoderResult(), "java stub not groovy class");
     return rerankableResult;
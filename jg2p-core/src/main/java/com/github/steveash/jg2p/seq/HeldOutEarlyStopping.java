@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.github.steveash.jg2p.crf.CrfScorer;
+import com.github.steveash.jg2p.crf.ScoredSequence;
+import com.github.steveash.jg2p.util.ReadWrite;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Watches the token and word accuracy of the pronouncer on held out words while it trains so that training can stop
+ * once more iterations stop paying off. The trainer hands over a copy of the crf every so many iterations and it is
+ * evaluated on its own thread while training carries on; the next hand-off first waits for the previous evaluation
+ * and only then takes the stop decision from it, so the decision always lags exactly one evaluation behind and is
+ * the same from run to run no matter how fast the eval thread is. Training should stop when the
+ * word accuracy hasn't improved by at least the min improvement for patience evaluations in a row. The best crf so
+ * far (by word accuracy) is kept and, if there is a checkpoint file, written there as a PhonemeCrfModel (which
+ * initCrfFromModelFile can resume from)
+ * @author Steve Ash
+ */
+public class HeldOutEarlyStopping {
+
+  private static final Logger log = LoggerFactory.getLogger(HeldOutEarlyStopping.class);
+
+  public static class Accuracy {
+
+    public final int iteration;
+    public final double tokenAccuracy;
+    public final double wordAccuracy;
+
+    public Accuracy(int iteration, double tokenAccuracy, double wordAccuracy) {
+      this.iteration = iteration;
+      this.tokenAccuracy = tokenAccuracy;
+      this.wordAccuracy = wordAccuracy;
+    }
+
+    @Override
+    public String toString() {
+      return "iteration " + iteration + " token accuracy " + tokenAccuracy + " word accuracy " + wordAccuracy;
+    }
+  }
+
+  private final InstanceList heldOut;
+  private final double minImprovement;
+  private final int patience;
+  private final File checkpointFile;
+  private final ExecutorService service = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("pronouncer-eval").build());
+
+  // written by the eval thread and read by the trainer's thread after waiting on that eval
+  private volatile CRF best = null;
+  private volatile Accuracy bestAccuracy = null;
+  private volatile int sinceBest = 0;
+  // only touched by the trainer's thread; plateaued is the decision as of the last evaluation that was waited on
+  private Future<?> pending = null;
+  private boolean plateaued = false;
+
+  public HeldOutEarlyStopping(InstanceList heldOut, double minImprovement, int patience,
+                              @Nullable File checkpointFile) {
+    checkArgument(heldOut.size() > 0, "need some held out instances");
+    checkArgument(patience > 0, "patience must be at least one evaluation");
+    this.heldOut = heldOut;
+    this.minImprovement = minImprovement;
+    this.patience = patience;
+    this.checkpointFile = checkpointFile;
+  }
+
+  /**
+   * @return the token and word accuracy of the best path of the crf on the instances
+   */
+  public static Accuracy accuracyOf(Transducer crf, InstanceList instances, int iteration) {
+    long tokens = 0;
+    long correctTokens = 0;
+    long correctWords = 0;
+    for (Instance instance : instances) {
+      Sequence input = (Sequence) instance.getData();
+      Sequence gold = (Sequence) instance.getTarget();
+      List<ScoredSequence> outputs = CrfScorer.bestScoredSequences(crf, input, 1, false);
+      Sequence predicted = (outputs.isEmpty() ? null : outputs.get(0).getOutput());
+      boolean allCorrect = (predicted != null);
+      for (int i = 0; i < gold.size(); i++) {
+        tokens += 1;
+        if (predicted != null && i < predicted.size() && gold.get(i).toString().equals(predicted.get(i).toString())) {
+          correctTokens += 1;
+        } else {
+          allCorrect = false;
+        }
+      }
+      if (allCorrect) {
+        correctWords += 1;
+      }
+    }
+    return new Accuracy(iteration, ratio(correctTokens, tokens), ratio(correctWords, instances.size()));
+  }
+
+  private static double ratio(long count, long total) {
+    return (total > 0 ? ((double) count) / total : 0);
+  }
+
+  /**
+   * Waits for the previous evaluation and then starts evaluating the given crf (which must not change any more, so
+   * pass a copy of the one being trained)
+   */
+  public void evaluate(final CRF snapshot, final int iteration) {
+    awaitPending();
+    plateaued = (sinceBest >= patience);
+    pending = service.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        record(snapshot, accuracyOf(snapshot, heldOut, iteration));
+        return null;
+      }
+    });
+  }
+
+  private void record(CRF snapshot, Accuracy accuracy) throws IOException {
+    if (bestAccuracy == null || accuracy.wordAccuracy >= bestAccuracy.wordAccuracy + minImprovement) {
+      log.info("Held out " + accuracy + " is the best so far");
+      best = snapshot;
+      bestAccuracy = accuracy;
+      sinceBest = 0;
+      writeCheckpoint(snapshot);
+      return;
+    }
+    if (accuracy.wordAccuracy > bestAccuracy.wordAccuracy) {
+      // not enough of a gain to count for patience, but still the best model to hand back
+      best = snapshot;
+      bestAccuracy = accuracy;
+      writeCheckpoint(snapshot);
+    }
+    sinceBest += 1;
+    log.info("Held out " + accuracy + "; " + sinceBest + " evaluations without improving on " + bestAccuracy);
+  }
+
+  private void writeCheckpoint(CRF snapshot) throws IOException {
+    if (checkpointFile == null) {
+      return;
+    }
+    File temp = new File(checkpointFile.getAbsolutePath() + ".tmp");
+    ReadWrite.writeTo(new PhonemeCrfModel(snapshot), temp);
+    if (checkpointFile.exists()) {
+      checkState(checkpointFile.delete(), "couldnt replace the pronouncer checkpoint %s", checkpointFile);
+    }
+    checkState(temp.renameTo(checkpointFile), "couldnt move the pronouncer checkpoint %s into place", temp);
+    log.info("Wrote the pronouncer checkpoint for iteration " + bestAccuracy.iteration + " to " + checkpointFile);
+  }
+
+  /**
+   * @return true if the word accuracy had plateaued as of the evaluation before the last one handed over
+   */
+  public boolean shouldStop() {
+    return plateaued;
+  }
+
+  /**
+   * Waits for the last evaluation and stops the eval thread
+   * @return the most accurate crf that was evaluated or null if none were
+   */
+  public CRF finish() {
+    try {
+      awaitPending();
+    } finally {
+      service.shutdownNow();
+    }
+    if (bestAccuracy != null) {
+      log.info("Best held out " + bestAccuracy);
+    }
+    return best;
+  }
+
+  @Nullable
+  public Accuracy getBestAccuracy() {
+    return bestAccuracy;
+  }
+
+  private void awaitPending() {
+    if (pending == null) {
+      return;
+    }
+    try {
+      pending.get();
+    } catch (Exception e) {
+      service.shutdownNow();
+      throw Throwables.propagate(e);
+    } finally {
+      pending = null;
+    }
+  }
+}
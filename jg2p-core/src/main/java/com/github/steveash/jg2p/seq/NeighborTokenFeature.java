@@ -82,4 +82,12 @@ public class NeighborTokenFeature extends Pipe {
   protected String getWindow(List<String> ts, int i, TokenWindow window) {
     return TokenSeqUtil.getWindowFromStrings(ts, i, window.offset, window.width);
   }
+
+  boolean isIncludeCurrent() {
+    return includeCurrent;
+  }
+
+  ImmutableList<TokenWindow> getWindows() {
+    return windows;
+  }
 }
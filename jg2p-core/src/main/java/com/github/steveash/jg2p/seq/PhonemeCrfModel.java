@@ -16,18 +16,25 @@
 
 package com.github.steveash.jg2p.seq;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 
 import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.crf.CompiledCrf;
+import com.github.steveash.jg2p.crf.CrfScorer;
+import com.github.steveash.jg2p.crf.ScoredSequence;
 import com.github.steveash.jg2p.util.GramBuilder;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import cc.mallet.fst.CRF;
 import cc.mallet.fst.Transducer;
+import cc.mallet.pipe.Pipe;
 import cc.mallet.types.Instance;
 import cc.mallet.types.Sequence;
 
@@ -41,23 +48,46 @@ public class PhonemeCrfModel implements Serializable {
   private static final long serialVersionUID = 1888858574145460221L;
 
   private final Transducer tduc;
+  // built lazily from the input pipe; absent if the pipe can't be reproduced by the extractor
+  private transient volatile Optional<PhonemeFeatureExtractor> extractor;
+  // not serialized so loaded models decode with the compiled crf unless they're switched back
+  private transient volatile boolean malletLattices = false;
 
   public PhonemeCrfModel(Transducer tduc) {
     this.tduc = tduc;
   }
 
   public List<TagResult> tag(Alignment alignment, int nBest) {
-    Instance instance = new Instance(alignment, null, null, null);
-    instance = tduc.getInputPipe().instanceFrom(instance);
+    return tag(alignment, nBest, true);
+  }
 
-    Sequence inSeq = (Sequence) instance.getData();
-    List<Sequence<Object>> outSeqs = tduc.getMaxLatticeFactory().newMaxLattice(tduc, inSeq).bestOutputSequences(nBest);
+  /**
+   * @param normalize if false then the partition function isn't computed and the tag results' scores are unnormalized
+   *                  log weights; they only rank the taggings of this one alignment (they aren't probabilities and
+   *                  can't be compared to the scores of other alignments or words)
+   */
+  public List<TagResult> tag(Alignment alignment, int nBest, boolean normalize) {
+    List<ScoredSequence> outSeqs;
+    CompiledCrf compiled = (malletLattices ? null : CrfScorer.compiledFor(tduc));
+    PhonemeFeatureExtractor featureExtractor = getExtractor();
+    if (compiled != null && featureExtractor != null) {
+      // skip the mallet pipe entirely and go straight from the alignment to feature ids
+      outSeqs = compiled.bestScoredSequences(compiled.newLattice(featureExtractor.extract(alignment)), nBest,
+                                             normalize);
+    } else {
+      Sequence<?> inSeq;
+      if (featureExtractor != null) {
+        inSeq = featureExtractor.extractSequence(alignment);
+      } else {
+        Instance instance = new Instance(alignment, null, null, null);
+        inSeq = (Sequence<?>) tduc.getInputPipe().instanceFrom(instance).getData();
+      }
+      outSeqs = CrfScorer.bestScoredSequences(tduc, inSeq, nBest, normalize, compiled != null);
+    }
 
     ArrayList<TagResult> results = Lists.newArrayListWithCapacity(outSeqs.size());
-    double z = tduc.getSumLatticeFactory().newSumLattice(tduc, inSeq).getTotalWeight();
-    for (Sequence<Object> outSeq : outSeqs) {
-      double score = tduc.getSumLatticeFactory().newSumLattice(tduc, inSeq, outSeq).getTotalWeight();
-      results.add(makeTagResult(outSeq, score - z));
+    for (ScoredSequence outSeq : outSeqs) {
+      results.add(makeTagResult(outSeq.getOutput(), outSeq.getLogProbability()));
     }
 
     return results;
@@ -91,6 +121,37 @@ public class PhonemeCrfModel implements Serializable {
     return (CRF) tduc;
   }
 
+  public boolean isUseCompiled() {
+    return !malletLattices;
+  }
+
+  /**
+   * @param useCompiled false to decode with mallet's lattices instead of the (equivalent but faster) CompiledCrf
+   */
+  public void setUseCompiled(boolean useCompiled) {
+    this.malletLattices = !useCompiled;
+  }
+
+  /**
+   * @return the feature extractor equivalent to this model's input pipe or null if there isn't one (or the model
+   * isn't frozen for inference yet)
+   */
+  @Nullable
+  public PhonemeFeatureExtractor getExtractor() {
+    Optional<PhonemeFeatureExtractor> maybe = this.extractor;
+    if (maybe == null) {
+      Pipe pipe = tduc.getInputPipe();
+      PhonemeFeatureExtractor created = PhonemeFeatureExtractor.tryCreate(pipe);
+      if (created == null && pipe.getDataAlphabet() != null && !pipe.getDataAlphabet().growthStopped()) {
+        // the pipe still adds new features; it can be replaced once the model is frozen for inference
+        return null;
+      }
+      maybe = Optional.fromNullable(created);
+      this.extractor = maybe;
+    }
+    return maybe.orNull();
+  }
+
   public static final Predicate<String> isNotEps = new Predicate<String>() {
     @Override
     public boolean apply(String input) {
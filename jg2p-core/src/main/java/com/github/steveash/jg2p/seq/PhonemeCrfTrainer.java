@@ -16,17 +16,22 @@
 
 package com.github.steveash.jg2p.seq;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
 import com.github.steveash.jg2p.align.Alignment;
 import com.github.steveash.jg2p.align.TrainOptions;
 import com.github.steveash.jg2p.util.FeatureSelections;
 import com.github.steveash.jg2p.util.GramBuilder;
+import com.github.steveash.jg2p.util.InstanceListCache;
 import com.github.steveash.jg2p.util.ModelReadWrite;
+import com.github.steveash.jg2p.util.ParallelPipes;
 import com.github.steveash.jg2p.util.ReadWrite;
 
 import org.slf4j.Logger;
@@ -37,12 +42,13 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import cc.mallet.fst.CRF;
 import cc.mallet.fst.CRFTrainerByLabelLikelihood;
 import cc.mallet.fst.CRFTrainerByThreadedLabelLikelihood;
 import cc.mallet.fst.TokenAccuracyEvaluator;
 import cc.mallet.fst.TransducerTrainer;
-import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.SerialPipes;
 import cc.mallet.pipe.Target2LabelSequence;
 import cc.mallet.pipe.TokenSequence2FeatureVectorSequence;
@@ -53,6 +59,7 @@ import cc.mallet.types.InstanceList;
 import cc.mallet.types.LabelAlphabet;
 import cc.mallet.types.RankedFeatureVector;
 
+import static com.google.common.base.Preconditions.checkState;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 /**
@@ -77,6 +84,7 @@ public class PhonemeCrfTrainer {
   private CRF crf = null;
   private CRF crfFrom = null;
   private TransducerTrainer lastTrainer = null;
+  private int threadCount = 0;
 
   private PhonemeCrfTrainer(TrainOptions opts) {
     this.opts = opts;
@@ -90,6 +98,13 @@ public class PhonemeCrfTrainer {
     }
   }
 
+  /**
+   * @param threadCount the threads to pipe the examples and train the crf with; 0 means one per processor
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
   private void initializeFor(InstanceList examples) {
     this.crf = new CRF(examples.getPipe(), null);
     crf.addOrderNStates(examples, new int[]{1}, null, null, null, null, false);
@@ -108,7 +123,28 @@ public class PhonemeCrfTrainer {
   public void trainFor(Collection<Alignment> inputs) {
     // this pipe is the default pipe with new alphabet
     Stopwatch watch = Stopwatch.createStarted();
-    trainRound(inputs, new Alphabet(), 0);
+    Collection<Alignment> heldOut = ImmutableList.of();
+    if (opts.pronouncerHeldOutFraction > 0) {
+      List<Alignment> training = Lists.newArrayList();
+      heldOut = Lists.newArrayList();
+      for (Alignment input : inputs) {
+        (isHeldOut(input, opts.pronouncerHeldOutFraction) ? heldOut : training).add(input);
+      }
+      log.info("Holding out " + heldOut.size() + " of the " + inputs.size() + " training alignments");
+      inputs = training;
+    }
+    if (opts.trimFeaturesByGradientGain > 0 && opts.useInputRankedFeatures != null) {
+      // an earlier run already ranked the features so go straight to training on the selected ones; a run that
+      // ranks them itself warm starts this round from the round 0 crf, which only initCrfFromModelFile can stand in for
+      log.info("Selecting features from the ranked features in " + opts.useInputRankedFeatures);
+      if (crfFrom == null) {
+        log.warn("Training on the ranked features from zero weights; unlike a run that ranks the features itself " +
+                 "there is no round 0 crf to start from (set initCrfFromModelFile to warm start)");
+      }
+      trainRound(inputs, heldOut, selectFeatures(readRankedFeatures()), 1, null, null);
+    } else {
+      trainRound(inputs, heldOut, new Alphabet(), 0, null, null);
+    }
 
     crf.getInputAlphabet().stopGrowth();
     crf.getOutputAlphabet().stopGrowth();
@@ -116,15 +152,34 @@ public class PhonemeCrfTrainer {
     log.info("Training took " + watch);
   }
 
-  private void trainRound(Collection<Alignment> inputs, Alphabet alpha, int trainRound) {
+  // holds out whole words (all of their alignments) picked by a hash of the word so the split is the same every run
+  static boolean isHeldOut(Alignment input, double fraction) {
+    int hash = Hashing.murmur3_32().hashString(input.getWordAsSpaceString(), Charsets.UTF_8).asInt();
+    return (hash & Integer.MAX_VALUE) % 10000 < fraction * 10000;
+  }
+
+  // a round after feature selection gets the previous round's examples so it can remap them instead of piping again
+  private void trainRound(Collection<Alignment> inputs, Collection<Alignment> heldOut, Alphabet alpha,
+                          int trainRound, @Nullable InstanceList previousExamples,
+                          @Nullable InstanceList previousHeldOut) {
     SerialPipes initialPipe = makePipe(alpha);
-    InstanceList examples = makeExamplesFromAligns(initialPipe, inputs);
+    InstanceList examples = makeOrReadExamples(initialPipe, inputs, previousExamples);
+    if (trainRound == 1 && opts.useInputRankedFeatures != null) {
+      checkRankedFeaturesOverlap(examples);
+    }
     initializeFor(examples);
 
-    CRFTrainerByThreadedLabelLikelihood trainer = makeNewTrainer(crf);
+    CRFTrainerByThreadedLabelLikelihood trainer = makeNewTrainer(crf, getCpuCount());
     this.lastTrainer = trainer;
 
-    trainer.train(examples, opts.maxPronouncerTrainingIterations);
+    InstanceList heldOutExamples = (previousHeldOut != null ?
+                                    FeatureSelections.remapThrough(previousHeldOut, initialPipe) :
+                                    makeHeldOutExamples(initialPipe, examples, heldOut));
+    if (heldOutExamples.isEmpty()) {
+      trainer.train(examples, opts.maxPronouncerTrainingIterations);
+    } else {
+      trainWithEarlyStopping(trainer, examples, heldOutExamples);
+    }
     trainer.shutdown(); // just closes the pool; next call to train will create a new one
 
     if (trainRound == 0 && opts.trimFeaturesUnderPercentile > 0) {
@@ -137,24 +192,134 @@ public class PhonemeCrfTrainer {
       // calc the gradients, report some stats on them, then move on for now
       log.info("Trimming based on gradiant gain ratio...");
 //      String dateString = DateFormatUtils.format(new Date(), "yyMMddmmss");
-      RankedFeatureVector rfv = FeatureSelections.gradientGainRatioFrom(examples, crf);
+      RankedFeatureVector rfv = FeatureSelections.gradientGainRatioFrom(examples, crf, getCpuCount());
+      if (opts.writeOutputRankedFeatures != null) {
+        writeRankedFeatures(rfv);
+      }
 
 //      writeRankedToFile(pair.getLeft(), new File("grads" + dateString + ".txt"));
 //      writeRankedToFile(pair.getRight(), new File("gradratio" + dateString + ".txt"));
 //      writeRankedToFile(featureCountsFrom(examples), new File("featcounts" + dateString + ".txt"));
 
-      Alphabet newDict = new Alphabet();
-      for (int i = 0; i < rfv.singleSize(); i++) {
-        double ratio = rfv.value(i);
-        if (ratio > opts.trimFeaturesByGradientGain) {
-          newDict.lookupIndex(alpha.lookupObject(i), true);
-        }
-      }
-      log.info("Feature selection before count " + alpha.size() + " after " + newDict.size());
-      newDict.stopGrowth();
+      Alphabet newDict = selectFeatures(rfv);
       this.crfFrom = this.crf;
 
-      trainRound(inputs, newDict, trainRound + 1);
+      trainRound(inputs, heldOut, newDict, trainRound + 1, examples, heldOutExamples);
+    }
+  }
+
+  private Alphabet selectFeatures(RankedFeatureVector rfv) {
+    Alphabet alpha = rfv.getAlphabet();
+    Alphabet newDict = new Alphabet();
+    for (int i = 0; i < rfv.singleSize(); i++) {
+      double ratio = rfv.value(i);
+      if (ratio > opts.trimFeaturesByGradientGain) {
+        newDict.lookupIndex(alpha.lookupObject(i), true);
+      }
+    }
+    log.info("Feature selection before count " + alpha.size() + " after " + newDict.size());
+    newDict.stopGrowth();
+    return newDict;
+  }
+
+  // the ranked features come from another run so check that they are (mostly) features of this training data
+  private void checkRankedFeaturesOverlap(InstanceList examples) {
+    RankedFeatureVector counts = FeatureSelections.featureCountsFrom(examples);
+    int used = 0;
+    for (int i = 0; i < counts.singleSize(); i++) {
+      if (counts.value(i) > 0) {
+        used += 1;
+      }
+    }
+    int selected = counts.singleSize();
+    checkState(used > 0, "none of the %s features selected from %s occur in this training data", selected,
+               opts.useInputRankedFeatures);
+    log.info(used + " of the " + selected + " selected features occur in this training data");
+    if (used < selected / 2) {
+      log.warn("Less than half of the features selected from " + opts.useInputRankedFeatures + " occur in this " +
+               "training data; were they ranked on a different corpus or with different feature settings?");
+    }
+  }
+
+  private RankedFeatureVector readRankedFeatures() {
+    try {
+      return FeatureSelections.readRanked(opts.useInputRankedFeatures);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private void writeRankedFeatures(RankedFeatureVector rfv) {
+    try {
+      FeatureSelections.writeRanked(rfv, opts.writeOutputRankedFeatures);
+      log.info("Wrote the ranked features to " + opts.writeOutputRankedFeatures);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  // pipes the held out words without adding any features to the training alphabet; words with phones that the
+  // training words never had are skipped since the crf has no states for them
+  private InstanceList makeHeldOutExamples(SerialPipes pipe, InstanceList examples,
+                                           Collection<Alignment> heldOut) {
+    List<Alignment> known = Lists.newArrayListWithCapacity(heldOut.size());
+    for (Alignment align : heldOut) {
+      List<String> phones = align.getAllYTokensAsList();
+      updateEpsilons(phones);
+      if (allKnown(examples.getTargetAlphabet(), phones)) {
+        known.add(align);
+      }
+    }
+    if (known.size() < heldOut.size()) {
+      log.info("Skipping " + (heldOut.size() - known.size()) + " held out words with phones not in training");
+    }
+    Alphabet features = pipe.getDataAlphabet();
+    boolean wasGrowing = !features.growthStopped();
+    features.stopGrowth();
+    try {
+      return makeExamplesFromAligns(pipe, known);
+    } finally {
+      if (wasGrowing) {
+        features.startGrowth();
+      }
+    }
+  }
+
+  private static boolean allKnown(Alphabet alphabet, List<String> entries) {
+    for (String entry : entries) {
+      if (!alphabet.contains(entry)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void trainWithEarlyStopping(CRFTrainerByThreadedLabelLikelihood trainer, InstanceList examples,
+                                      InstanceList heldOut) {
+    HeldOutEarlyStopping stopping = new HeldOutEarlyStopping(heldOut, opts.pronouncerMinImprovement,
+                                                             opts.pronouncerPatience,
+                                                             opts.pronouncerCheckpointFile);
+    int every = Math.max(1, opts.pronouncerEvalEvery);
+    int iterations = 0;
+    while (iterations < opts.maxPronouncerTrainingIterations) {
+      int step = Math.min(every, opts.maxPronouncerTrainingIterations - iterations);
+      boolean converged = trainer.train(examples, step); // the trainer keeps its optimizer between calls
+      iterations += step;
+      stopping.evaluate(new CRF(crf), iterations);
+      if (converged) {
+        log.info("Pronouncer converged after " + iterations + " iterations");
+        break;
+      }
+      if (stopping.shouldStop()) {
+        log.info("Stopping the pronouncer early after " + iterations + " iterations since held out accuracy " +
+                 "has plateaued");
+        break;
+      }
+    }
+    CRF best = stopping.finish();
+    if (best != null && stopping.getBestAccuracy().iteration != iterations) {
+      log.info("Restoring the pronouncer weights from iteration " + stopping.getBestAccuracy().iteration);
+      crf.initializeApplicableParametersFrom(best);
     }
   }
 
@@ -169,8 +334,8 @@ public class PhonemeCrfTrainer {
     return new PhonemeCrfModel(crf);
   }
 
-  private static CRFTrainerByThreadedLabelLikelihood makeNewTrainer(CRF crf) {
-    CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, getCpuCount());
+  private static CRFTrainerByThreadedLabelLikelihood makeNewTrainer(CRF crf, int threads) {
+    CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, threads);
     trainer.setGaussianPriorVariance(2);
     trainer.setAddNoFactors(true);
     trainer.setUseSomeUnsupportedTrick(false);
@@ -198,8 +363,8 @@ public class PhonemeCrfTrainer {
 //    return crf;
 //  }
 
-  private static int getCpuCount() {
-    return Runtime.getRuntime().availableProcessors();
+  private int getCpuCount() {
+    return ParallelPipes.threadCount(threadCount);
   }
 
   public void writeModel(File target) throws IOException {
@@ -208,17 +373,60 @@ public class PhonemeCrfTrainer {
     log.info("Wrote for whole data");
   }
 
-  private InstanceList makeExamplesFromAligns(Pipe pipe, Iterable<Alignment> alignsToTrain) {
-    int count = 0;
-    InstanceList instances = new InstanceList(pipe);
-    for (Alignment align : alignsToTrain) {
-      List<String> phones = align.getAllYTokensAsList();
-      updateEpsilons(phones);
-      Instance ii = new Instance(align, phones, null, null);
-      instances.addThruPipe(ii);
-      count += 1;
+  // every feature selection round has its own trimmed alphabet so each round is its own cache entry; a round after
+  // the first remaps the previous round's instances through its alphabet instead of piping the inputs again
+  private InstanceList makeOrReadExamples(SerialPipes pipe, Collection<Alignment> inputs,
+                                          @Nullable InstanceList previousRound) {
+    if (opts.pipeCacheDir == null) {
+      return makeExamples(pipe, inputs, previousRound);
+    }
+    InstanceListCache cache = new InstanceListCache(opts.pipeCacheDir);
+    String key = InstanceListCache.keyFor(pipe, inputs, pipedContent);
+    InstanceList cached = cache.read(key, pipe);
+    if (cached != null) {
+      return cached;
+    }
+    InstanceList examples = makeExamples(pipe, inputs, previousRound);
+    try {
+      cache.write(key, examples);
+      log.info("Cached " + examples.size() + " piped instances as " + key + " in " + opts.pipeCacheDir);
+    } catch (IOException e) {
+      log.warn("Couldnt cache the piped instances in " + opts.pipeCacheDir, e);
     }
-    log.info("Read {} instances of training data for pronouncer training", count);
+    return examples;
+  }
+
+  private InstanceList makeExamples(SerialPipes pipe, Collection<Alignment> inputs,
+                                    @Nullable InstanceList previousRound) {
+    if (previousRound == null) {
+      return makeExamplesFromAligns(pipe, inputs);
+    }
+    InstanceList examples = FeatureSelections.remapThrough(previousRound, pipe);
+    log.info("Remapped {} instances of the previous round onto {} features", examples.size(),
+             pipe.getDataAlphabet().size());
+    return examples;
+  }
+
+  // everything about an alignment that the pronouncer pipe looks at
+  private static final Function<Alignment, String> pipedContent = new Function<Alignment, String>() {
+    @Override
+    public String apply(Alignment input) {
+      return input.getXAsPipeString() + "\t" + input.getYAsPipeString() + "\t" +
+             input.getGraphoneSyllableGrams() + "\t" + input.getGraphemeSyllStarts();
+    }
+  };
+
+  private InstanceList makeExamplesFromAligns(SerialPipes pipe, Iterable<Alignment> alignsToTrain) {
+    InstanceList instances = ParallelPipes.pipeAll(pipe, ParallelPipes.VECTOR_AND_LABEL_PIPES, alignsToTrain,
+                                                   new Function<Alignment, Instance>() {
+      @Override
+      public Instance apply(Alignment align) {
+        List<String> phones = align.getAllYTokensAsList();
+        updateEpsilons(phones);
+        return new Instance(align, phones, null, null);
+      }
+    }, getCpuCount());
+    log.info("Read {} instances of training data for pronouncer training", instances.size());
     return instances;
   }
 
@@ -248,7 +456,7 @@ public class PhonemeCrfTrainer {
     }
   }
 
-  private SerialPipes makePipe(Alphabet alpha) {
+  static SerialPipes makePipe(Alphabet alpha) {
     Target2LabelSequence labelPipe = new Target2LabelSequence();
     LabelAlphabet labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet();
 
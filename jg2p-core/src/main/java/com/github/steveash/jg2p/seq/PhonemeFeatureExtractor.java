@@ -0,0 +1,808 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.phoseq.Graphemes;
+import com.github.steveash.jg2p.syll.SyllTagTrainer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.pipe.Target2LabelSequence;
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence;
+import cc.mallet.pipe.TokenSequenceLowercase;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Inference time replacement for the pronouncer's mallet input pipe (the one built by PhonemeCrfTrainer.makePipe).
+ * Instead of building a TokenSequence, putting dozens of feature strings per grapheme in to token property lists,
+ * and then looking each string up in the alphabet, this walks the graphemes (and syllable codes) of the alignment
+ * as char arrays and writes each feature's characters in to one reusable buffer; the buffer is hashed and the
+ * feature id comes from a primitive hash -> alphabet index map (the buffer is compared against the alphabet entry on
+ * a hit so this is exact, not probabilistic). The output is the sorted, distinct feature ids per graphone, which is
+ * exactly what the mallet pipe puts in the FeatureVectors for a model whose alphabet has stopped growing. The tokens
+ * are lower cased the same way as the pipe's TokenSequenceLowercase (String.toLowerCase in the default locale, which
+ * can change the length of a token) and the syllable parts are cased like SyllStructure does, so the features are
+ * the same in every locale.
+ * Use tryCreate on the model's input pipe; if any stage of that pipe isn't one that this knows how to reproduce then
+ * you get null and should keep using the pipe
+ * @author Steve Ash
+ */
+public class PhonemeFeatureExtractor {
+
+  private static final Logger log = LoggerFactory.getLogger(PhonemeFeatureExtractor.class);
+
+  private static final int AMBIGUOUS = -2;
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * @return an extractor that produces the same features as the given pipe or null if the pipe has stages that
+   * we can't reproduce (or an alphabet that is still growing)
+   */
+  @Nullable
+  public static PhonemeFeatureExtractor tryCreate(Pipe pipe) {
+    if (!(pipe instanceof SerialPipes)) {
+      return null;
+    }
+    List<Pipe> pipes = ((SerialPipes) pipe).pipes();
+    if (pipes.size() < 3 || !(pipes.get(0) instanceof AlignmentToTokenSequence)
+        || !(pipes.get(1) instanceof TokenSequenceLowercase)) {
+      return null;
+    }
+    List<Stage> stages = Lists.newArrayList();
+    Alphabet alphabet = null;
+    for (int i = 2; i < pipes.size(); i++) {
+      Pipe p = pipes.get(i);
+      if (alphabet != null) {
+        // only the label pipe can follow the conversion to feature vectors
+        if (p instanceof Target2LabelSequence && i == pipes.size() - 1) {
+          continue;
+        }
+        return unsupported(p);
+      }
+      if (p instanceof TokenSequence2FeatureVectorSequence) {
+        alphabet = p.getDataAlphabet();
+        continue;
+      }
+      Stage stage = stageFor(p);
+      if (stage == null) {
+        return unsupported(p);
+      }
+      stages.add(stage);
+    }
+    if (alphabet == null || !alphabet.growthStopped()) {
+      return null;
+    }
+    return new PhonemeFeatureExtractor(alphabet, stages);
+  }
+
+  private static PhonemeFeatureExtractor unsupported(Pipe p) {
+    log.info("Can't use the feature extractor because the pipe has an unsupported stage " + p.getClass().getName());
+    return null;
+  }
+
+  @Nullable
+  private static Stage stageFor(Pipe p) {
+    Class<?> clazz = p.getClass();
+    if (clazz == NeighborTokenFeature.class || clazz == NeighborShapeFeature.class) {
+      NeighborTokenFeature ntf = (NeighborTokenFeature) p;
+      return new NeighborTokenStage(ntf.prefix(), clazz == NeighborShapeFeature.class, ntf.isIncludeCurrent(),
+                                    ntf.getWindows());
+    }
+    if (clazz == NeighborSyllableFeature.class) {
+      return new NeighborSyllableStage(((NeighborSyllableFeature) p).getWindows());
+    }
+    if (clazz == SyllCountingFeature.class) {
+      return new SyllCountingStage();
+    }
+    if (clazz == SyllCharRoleFeature.class) {
+      return new SyllCharRoleStage();
+    }
+    if (clazz == EndingVowelFeature.class) {
+      return new EndingVowelStage();
+    }
+    if (clazz == VowelWindowFeature.class) {
+      VowelWindowFeature vwf = (VowelWindowFeature) p;
+      return new VowelWindowStage(vwf.getMaxOnset(), vwf.getMaxCoda(), vwf.getPrefix(), vwf.getRelativeIndex(),
+                                  vwf.isOnlyLast());
+    }
+    if (clazz == SurroundingTokenFeature2.class) {
+      SurroundingTokenFeature2 stf = (SurroundingTokenFeature2) p;
+      return new SurroundingStage(stf.isOnlyShape(), stf.getPrefix(), stf.getBeforeChars(), stf.getAfterChars());
+    }
+    if (clazz == TokenSequenceToFeature.class) {
+      return new TokenTextStage();
+    }
+    return null;
+  }
+
+  private final Alphabet alphabet;
+  private final Stage[] stages;
+  private final boolean needsSylls;
+  private final String[] entries;
+  private final LongIntOpenHashMap idsByHash;
+
+  private PhonemeFeatureExtractor(Alphabet alphabet, List<Stage> stages) {
+    this.alphabet = alphabet;
+    this.stages = stages.toArray(new Stage[stages.size()]);
+    boolean sylls = false;
+    for (Stage stage : stages) {
+      sylls |= stage.needsSylls();
+    }
+    this.needsSylls = sylls;
+    this.entries = new String[alphabet.size()];
+    this.idsByHash = new LongIntOpenHashMap(alphabet.size() * 2);
+    int ambiguous = 0;
+    for (int i = 0; i < entries.length; i++) {
+      String entry = alphabet.lookupObject(i).toString();
+      entries[i] = entry;
+      long hash = hash(entry);
+      if (idsByHash.containsKey(hash)) {
+        idsByHash.put(hash, AMBIGUOUS);
+        ambiguous += 1;
+      } else {
+        idsByHash.put(hash, i);
+      }
+    }
+    if (ambiguous > 0) {
+      log.warn("Feature extractor has " + ambiguous + " colliding feature hashes; those fall back to the alphabet");
+    }
+  }
+
+  public Alphabet getAlphabet() {
+    return alphabet;
+  }
+
+  /**
+   * @return for each graphone of the alignment the sorted distinct ids of its features in the alphabet
+   */
+  public int[][] extract(Alignment alignment) {
+    Input input = new Input(alignment, needsSylls);
+    FeatureKey key = new FeatureKey();
+    IntArrayList ids = new IntArrayList();
+    int[][] results = new int[input.size][];
+    for (int i = 0; i < input.size; i++) {
+      ids.elementsCount = 0;
+      for (Stage stage : stages) {
+        stage.addFeatures(input, i, key, this, ids);
+      }
+      results[i] = sortedDistinct(ids);
+    }
+    return results;
+  }
+
+  /**
+   * @return the same thing that the mallet pipe would produce for this alignment
+   */
+  public FeatureVectorSequence extractSequence(Alignment alignment) {
+    int[][] ids = extract(alignment);
+    FeatureVector[] vectors = new FeatureVector[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      vectors[i] = new FeatureVector(alphabet, ids[i]);
+    }
+    return new FeatureVectorSequence(vectors);
+  }
+
+  private void emit(FeatureKey key, IntArrayList ids) {
+    int id = idsByHash.getOrDefault(hash(key.buf, key.len), -1);
+    if (id == AMBIGUOUS) {
+      id = alphabet.lookupIndex(new String(key.buf, 0, key.len), false);
+    } else if (id >= 0 && !key.matches(entries[id])) {
+      id = -1; // hash collision with a feature that wasn't in training
+    }
+    if (id >= 0) {
+      ids.add(id);
+    }
+  }
+
+  private static int[] sortedDistinct(IntArrayList ids) {
+    int[] buffer = ids.buffer;
+    int count = ids.elementsCount;
+    Arrays.sort(buffer, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || buffer[distinct - 1] != buffer[i]) {
+        buffer[distinct++] = buffer[i];
+      }
+    }
+    return Arrays.copyOf(buffer, distinct);
+  }
+
+  // FNV-1a over the chars
+  private static long hash(CharSequence s) {
+    long h = FNV_OFFSET;
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  private static long hash(char[] buf, int len) {
+    long h = FNV_OFFSET;
+    for (int i = 0; i < len; i++) {
+      h = (h ^ buf[i]) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  private static char shapeOf(char c) {
+    if (Graphemes.consonants.matches(c)) {
+      return 'c';
+    }
+    if (Graphemes.vowels.matches(c)) {
+      return 'v';
+    }
+    if (CharMatcher.WHITESPACE.matches(c)) {
+      return 's';
+    }
+    return 'p';
+  }
+
+  /**
+   * Reusable char buffer that a feature is written in to, the equivalent of the feature string
+   */
+  private static class FeatureKey {
+    private char[] buf = new char[64];
+    private int len;
+
+    FeatureKey reset() {
+      len = 0;
+      return this;
+    }
+
+    FeatureKey append(char c) {
+      if (len == buf.length) {
+        buf = Arrays.copyOf(buf, len * 2);
+      }
+      buf[len++] = c;
+      return this;
+    }
+
+    FeatureKey append(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        append(s.charAt(i));
+      }
+      return this;
+    }
+
+    FeatureKey appendShape(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        append(shapeOf(s.charAt(i)));
+      }
+      return this;
+    }
+
+    FeatureKey append(char[] src, int start, int end) {
+      for (int i = start; i < end; i++) {
+        append(src[i]);
+      }
+      return this;
+    }
+
+    FeatureKey appendShape(char[] src, int start, int end) {
+      for (int i = start; i < end; i++) {
+        append(shapeOf(src[i]));
+      }
+      return this;
+    }
+
+    FeatureKey append(int value) {
+      if (value < 0) {
+        append('-');
+        value = -value;
+      }
+      int start = len;
+      do {
+        append((char) ('0' + (value % 10)));
+        value /= 10;
+      } while (value > 0);
+      // digits went in backwards
+      for (int i = start, j = len - 1; i < j; i++, j--) {
+        char swap = buf[i];
+        buf[i] = buf[j];
+        buf[j] = swap;
+      }
+      return this;
+    }
+
+    boolean matches(String entry) {
+      if (entry.length() != len) {
+        return false;
+      }
+      for (int i = 0; i < len; i++) {
+        if (entry.charAt(i) != buf[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The alignment laid out as the char arrays that the stages need
+   */
+  private static class Input {
+    final int size;
+    final List<String> texts;
+    final List<String> lowerTexts; // what the pipe's tokens hold after TokenSequenceLowercase
+    final Chars textChars;
+    // only when there are syllable stages
+    final List<String> oncGrams;
+    final Chars oncChars;
+    final int syllCount;
+    final int[] graphoneSyll;
+    final boolean[] graphoneNucleus;
+    final char[] syllText;   // the non whitespace graphemes in their original case
+    final char[] syllCodes;  // the onc code of each
+    final int[] syllStarts;  // size syllCount + 1, syll s is [syllStarts[s], syllStarts[s + 1])
+
+    Input(Alignment alignment, boolean needsSylls) {
+      this.texts = alignment.getAllXTokensAsList();
+      this.size = texts.size();
+      this.lowerTexts = Lists.newArrayListWithCapacity(size);
+      for (String text : texts) {
+        lowerTexts.add(text.toLowerCase());
+      }
+      this.textChars = new Chars(lowerTexts);
+      if (!needsSylls) {
+        this.oncGrams = null;
+        this.oncChars = null;
+        this.syllCount = 0;
+        this.graphoneSyll = null;
+        this.graphoneNucleus = null;
+        this.syllText = null;
+        this.syllCodes = null;
+        this.syllStarts = null;
+        return;
+      }
+      this.oncGrams = checkNotNull(alignment.getGraphoneSyllableGrams(), "no syllables", alignment);
+      Set<Integer> starts = checkNotNull(alignment.getGraphemeSyllStarts(), "no syllables", alignment);
+      Preconditions.checkArgument(oncGrams.size() == size, "mismatched arg lists");
+      this.oncChars = new Chars(oncGrams);
+      this.syllCount = starts.size();
+      this.graphoneSyll = new int[size];
+      this.graphoneNucleus = new boolean[size];
+      this.syllText = new char[textChars.count];
+      this.syllCodes = new char[textChars.count];
+      this.syllStarts = new int[syllCount + 1];
+      // same walk as SyllStructure
+      int xx = 0;
+      int syllIndex = -1;
+      for (int i = 0; i < size; i++) {
+        String textGram = texts.get(i);
+        String syllGram = oncGrams.get(i);
+        Preconditions.checkState(textGram.length() == syllGram.length(), "bad gram in", texts, oncGrams);
+        for (int j = 0; j < textGram.length(); j++) {
+          char textChar = textGram.charAt(j);
+          char syllCode = syllGram.charAt(j);
+          if (Character.isWhitespace(textChar) || Character.isWhitespace(syllCode)) {
+            Preconditions.checkState(textChar == syllCode, "mismatched whitespace");
+            continue;
+          }
+          if (Graphemes.isVowel(String.valueOf(textChar)) && syllCode == SyllTagTrainer.NucleusChar) {
+            graphoneNucleus[i] = true;
+          }
+          if (starts.contains(xx)) {
+            syllIndex += 1;
+            syllStarts[syllIndex] = xx;
+          }
+          graphoneSyll[i] = syllIndex;
+          syllText[xx] = textChar;
+          syllCodes[xx] = syllCode;
+          xx += 1;
+        }
+      }
+      Preconditions.checkState(syllIndex + 1 == syllCount, "syllable starts don't match the graphemes");
+      syllStarts[syllCount] = xx;
+    }
+
+    int lastSyllIndex() {
+      return syllCount - 1;
+    }
+  }
+
+  /**
+   * The grams concatenated without the spaces and the range of each gram; windows are then just ranges
+   * (this is the same as walking the grams in TokenSeqUtil.getWindowFromStrings)
+   */
+  private static class Chars {
+    final char[] chars;
+    final int[] gramStarts; // size grams + 1
+    final int count;
+
+    Chars(List<String> grams) {
+      int total = 0;
+      for (String gram : grams) {
+        total += gram.length();
+      }
+      this.chars = new char[total];
+      this.gramStarts = new int[grams.size() + 1];
+      int next = 0;
+      for (int i = 0; i < grams.size(); i++) {
+        gramStarts[i] = next;
+        String gram = grams.get(i);
+        for (int j = 0; j < gram.length(); j++) {
+          char c = gram.charAt(j);
+          if (c == ' ') {
+            continue;
+          }
+          chars[next++] = c;
+        }
+      }
+      gramStarts[grams.size()] = next;
+      this.count = next;
+    }
+
+    /**
+     * @return the start of the window relative to gram i or -1 if it runs off either end
+     */
+    int windowStart(int i, int offset, int width) {
+      if (offset < 0) {
+        int start = gramStarts[i] + offset;
+        return (start >= 0 ? start : -1);
+      }
+      int start = gramStarts[i + 1] + offset - 1;
+      return (start + width <= count ? start : -1);
+    }
+
+    boolean isBlank(int start, int end) {
+      for (int i = start; i < end; i++) {
+        if (!CharMatcher.WHITESPACE.matches(chars[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private abstract static class Stage {
+
+    boolean needsSylls() {
+      return true;
+    }
+
+    abstract void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids);
+  }
+
+  // NeighborTokenFeature and NeighborShapeFeature
+  private static class NeighborTokenStage extends Stage {
+    private final String prefix;
+    private final boolean shape;
+    private final boolean includeCurrent;
+    private final int[] offsets;
+    private final int[] widths;
+
+    NeighborTokenStage(String prefix, boolean shape, boolean includeCurrent, List<TokenWindow> windows) {
+      this.prefix = prefix;
+      this.shape = shape;
+      this.includeCurrent = includeCurrent;
+      this.offsets = new int[windows.size()];
+      this.widths = new int[windows.size()];
+      for (int i = 0; i < windows.size(); i++) {
+        offsets[i] = windows.get(i).offset;
+        widths[i] = windows.get(i).width;
+        checkWindow(offsets[i], widths[i]);
+      }
+    }
+
+    @Override
+    boolean needsSylls() {
+      return false;
+    }
+
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      for (int w = 0; w < offsets.length; w++) {
+        int start = in.textChars.windowStart(i, offsets[w], widths[w]);
+        if (start < 0) {
+          continue;
+        }
+        key.reset().append(prefix);
+        if (shape) {
+          key.appendShape(in.textChars.chars, start, start + widths[w]);
+        } else {
+          key.append(in.textChars.chars, start, start + widths[w]);
+        }
+        key.append('@').append(offsets[w]);
+        if (includeCurrent) {
+          key.append('^').append(in.lowerTexts.get(i));
+        }
+        ex.emit(key, ids);
+      }
+    }
+  }
+
+  private static class NeighborSyllableStage extends Stage {
+    private final int[] offsets;
+    private final int[] widths;
+
+    NeighborSyllableStage(List<TokenWindow> windows) {
+      this.offsets = new int[windows.size()];
+      this.widths = new int[windows.size()];
+      for (int i = 0; i < windows.size(); i++) {
+        offsets[i] = windows.get(i).offset;
+        widths[i] = windows.get(i).width;
+        checkWindow(offsets[i], widths[i]);
+      }
+    }
+
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      if (in.lowerTexts.get(i).length() != in.oncGrams.get(i).length()) {
+        throw new IllegalStateException("grams doesnt match syll grams " + in.lowerTexts + " - " + in.oncGrams);
+      }
+      for (int w = 0; w < offsets.length; w++) {
+        int start = in.oncChars.windowStart(i, offsets[w], widths[w]);
+        if (start < 0) {
+          continue;
+        }
+        key.reset().append("SYN_").append(in.oncChars.chars, start, start + widths[w]).append('@').append(offsets[w]);
+        ex.emit(key, ids);
+      }
+    }
+  }
+
+  private static class SyllCountingStage extends Stage {
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      key.reset().append("SYLLCNT_").append(in.graphoneSyll[i]);
+      ex.emit(key, ids);
+    }
+  }
+
+  private static class SyllCharRoleStage extends Stage {
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      // pair up the whitespace separated symbols of the grapheme gram and the onc gram
+      String text = in.lowerTexts.get(i);
+      String onc = in.oncGrams.get(i);
+      int t = nextSymbol(text, 0);
+      int o = nextSymbol(onc, 0);
+      while (t < text.length()) {
+        if (o >= onc.length()) {
+          throw new IndexOutOfBoundsException("fewer onc codes than graphemes in " + text + " - " + onc);
+        }
+        int tEnd = symbolEnd(text, t);
+        int oEnd = symbolEnd(onc, o);
+        key.reset().append("SYLLCHROL_");
+        for (int c = t; c < tEnd; c++) {
+          key.append(text.charAt(c));
+        }
+        key.append('_');
+        for (int c = o; c < oEnd; c++) {
+          key.append(onc.charAt(c));
+        }
+        ex.emit(key, ids);
+        t = nextSymbol(text, tEnd);
+        o = nextSymbol(onc, oEnd);
+      }
+    }
+
+    private static int nextSymbol(String s, int from) {
+      while (from < s.length() && CharMatcher.WHITESPACE.matches(s.charAt(from))) {
+        from += 1;
+      }
+      return from;
+    }
+
+    private static int symbolEnd(String s, int from) {
+      while (from < s.length() && !CharMatcher.WHITESPACE.matches(s.charAt(from))) {
+        from += 1;
+      }
+      return from;
+    }
+  }
+
+  private static class EndingVowelStage extends Stage {
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      String lastToken = in.lowerTexts.get(in.size - 1);
+      char lastChar = lastToken.charAt(lastToken.length() - 1);
+      if (lastChar != 'y' && lastChar != 'e') {
+        return;
+      }
+      String text = in.lowerTexts.get(i);
+      String s = in.oncGrams.get(i);
+      Preconditions.checkState(text.length() == s.length(), "grams doesnt match syll grams");
+      boolean tagged = false;
+      for (int j = 0; j < text.length(); j++) {
+        char textChar = text.charAt(j);
+        char syllChar = s.charAt(j);
+        if (Character.isWhitespace(textChar) || Character.isWhitespace(syllChar)) {
+          Preconditions.checkState(textChar == syllChar, "mismatched whitespace in gram");
+          continue;
+        }
+        if (!tagged && Graphemes.isVowel(String.valueOf(textChar)) && syllChar == SyllTagTrainer.NucleusChar) {
+          key.reset().append("TE_VOWEL_").append(textChar).append('_')
+              .append(in.graphoneSyll[i] < in.lastSyllIndex() ? "BEFORE" : "END");
+          ex.emit(key, ids);
+          tagged = true;
+        }
+      }
+    }
+  }
+
+
+  private static class VowelWindowStage extends Stage {
+    private final int maxOnset;
+    private final int maxCoda;
+    private final String prefix;
+    private final int relativeIndex;
+    private final boolean onlyLast;
+
+    VowelWindowStage(int maxOnset, int maxCoda, String prefix, int relativeIndex, boolean onlyLast) {
+      this.maxOnset = maxOnset;
+      this.maxCoda = maxCoda;
+      this.prefix = prefix;
+      this.relativeIndex = relativeIndex;
+      this.onlyLast = onlyLast;
+    }
+
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      if (!in.graphoneNucleus[i]) {
+        return;
+      }
+      int syllIndex = in.graphoneSyll[i];
+      int targetSyll = -1;
+      if (onlyLast) {
+        if (syllIndex < in.lastSyllIndex()) {
+          targetSyll = in.lastSyllIndex();
+        }
+      } else if (relativeIndex != 0) {
+        int target = syllIndex + relativeIndex;
+        if (target >= 0 && target <= in.lastSyllIndex()) {
+          targetSyll = target;
+        }
+      }
+      if (targetSyll < 0) {
+        return;
+      }
+      key.reset().append(prefix);
+      appendSyllPart(in, targetSyll, key);
+      ex.emit(key, ids);
+    }
+
+    // same as SyllStructure.getSyllPart(syll, maxOnset, -1, maxCoda)
+    private void appendSyllPart(Input in, int syll, FeatureKey key) {
+      int start = in.syllStarts[syll];
+      int end = in.syllStarts[syll + 1];
+      int onsetCount = 0;
+      for (int i = start; i < end; i++) {
+        char code = in.syllCodes[i];
+        if (code == SyllTagTrainer.OnsetChar) {
+          onsetCount += 1;
+        } else if (code != SyllTagTrainer.NucleusChar && code != SyllTagTrainer.CodaChar) {
+          throw new IllegalStateException("unknown code " + code);
+        }
+      }
+      // each part is cased as a whole string like SyllStructure (so in the default locale)
+      StringBuilder part = new StringBuilder(end - start);
+      int skipOnset = (maxOnset < 0 ? 0 : Math.max(0, onsetCount - maxOnset));
+      for (int i = start; i < end; i++) {
+        if (in.syllCodes[i] == SyllTagTrainer.OnsetChar && skipOnset-- <= 0) {
+          part.append(in.syllText[i]);
+        }
+      }
+      key.append(part.toString().toLowerCase());
+      part.setLength(0);
+      for (int i = start; i < end; i++) {
+        if (in.syllCodes[i] == SyllTagTrainer.NucleusChar) {
+          part.append(in.syllText[i]);
+        }
+      }
+      key.append(part.toString().toUpperCase());
+      part.setLength(0);
+      int coda = 0;
+      for (int i = start; i < end; i++) {
+        if (in.syllCodes[i] == SyllTagTrainer.CodaChar && (maxCoda < 0 || coda++ < maxCoda)) {
+          part.append(in.syllText[i]);
+        }
+      }
+      key.append(part.toString().toLowerCase());
+    }
+
+  }
+
+  private static class SurroundingStage extends Stage {
+    private final boolean onlyShape;
+    private final String prefix;
+    private final int beforeChars;
+    private final int afterChars;
+
+    SurroundingStage(boolean onlyShape, String prefix, int beforeChars, int afterChars) {
+      this.onlyShape = onlyShape;
+      this.prefix = prefix;
+      this.beforeChars = beforeChars;
+      this.afterChars = afterChars;
+      checkWindow(-beforeChars, beforeChars);
+      checkWindow(1, afterChars);
+    }
+
+    @Override
+    boolean needsSylls() {
+      return false;
+    }
+
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      if (i < 1 || i >= in.size - 1) {
+        return;
+      }
+      Chars chars = in.textChars;
+      int before = chars.windowStart(i, -beforeChars, beforeChars);
+      int after = chars.windowStart(i, 1, afterChars);
+      if (before < 0 || after < 0 || chars.isBlank(before, before + beforeChars)
+          || chars.isBlank(after, after + afterChars)) {
+        return;
+      }
+      key.reset().append(prefix);
+      if (onlyShape) {
+        key.appendShape(chars.chars, before, before + beforeChars).append('^')
+            .appendShape(in.lowerTexts.get(i)).append('^')
+            .appendShape(chars.chars, after, after + afterChars);
+      } else {
+        key.append(chars.chars, before, before + beforeChars).append('^')
+            .append(in.lowerTexts.get(i)).append('^')
+            .append(chars.chars, after, after + afterChars);
+      }
+      ex.emit(key, ids);
+    }
+  }
+
+  private static class TokenTextStage extends Stage {
+    @Override
+    boolean needsSylls() {
+      return false;
+    }
+
+    @Override
+    void addFeatures(Input in, int i, FeatureKey key, PhonemeFeatureExtractor ex, IntArrayList ids) {
+      key.reset().append(in.lowerTexts.get(i));
+      ex.emit(key, ids);
+    }
+  }
+
+  // the same argument checks that TokenSeqUtil.getWindowFromStrings makes
+  private static void checkWindow(int offset, int width) {
+    if (offset < 0) {
+      Preconditions.checkArgument(offset + width <= 0, "bad window", offset, width);
+    } else {
+      Preconditions.checkArgument(offset > 0 && width > 0, "bad window", offset, width);
+    }
+  }
+}
@@ -70,4 +70,20 @@ public class SurroundingTokenFeature2 extends Pipe {
     }
     return data;
   }
+
+  boolean isOnlyShape() {
+    return onlyShape;
+  }
+
+  String getPrefix() {
+    return prefix;
+  }
+
+  int getBeforeChars() {
+    return beforeChars;
+  }
+
+  int getAfterChars() {
+    return afterChars;
+  }
 }
@@ -18,7 +18,10 @@ package com.github.steveash.jg2p.seqvow;
 
 import com.google.common.collect.Lists;
 
+import com.github.steveash.jg2p.util.FrozenAlphabet;
+
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -82,11 +85,19 @@ public class RetaggerMasterPipe extends Pipe implements Serializable {
 
   private FeatureVector makeVector(PartialTagging data, int phoneIndex) {
     Set<String> features = data.getFeatures().get(phoneIndex);
+    FrozenAlphabet frozen = FrozenAlphabet.ifFrozen(getDataAlphabet());
     int[] tags = new int[features.size()];
     int i = 0;
     for (String feature : features) {
-      tags[i] = getDataAlphabet().lookupIndex(feature, true);
-      i += 1;
+      // once the alphabet is frozen (inference) unknown features are dropped
+      int idx = (frozen != null ? frozen.indexOf(feature) : getDataAlphabet().lookupIndex(feature, true));
+      if (idx >= 0) {
+        tags[i] = idx;
+        i += 1;
+      }
+    }
+    if (i < tags.length) {
+      tags = Arrays.copyOf(tags, i);
     }
     return new FeatureVector(this.getDataAlphabet(), tags);
   }
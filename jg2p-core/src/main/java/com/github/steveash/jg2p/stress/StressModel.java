@@ -17,6 +17,7 @@
 package com.github.steveash.jg2p.stress;
 
 import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.crf.CrfScorer;
 import com.github.steveash.jg2p.syll.SyllTagTrainer;
 
 import java.io.Serializable;
@@ -36,11 +37,24 @@ public class StressModel implements Serializable {
   private static final int MAX_SYLL_LEN = 6;
 
   private final CRF crf;
+  // not serialized so loaded models decode with the compiled crf unless they're switched back
+  private transient volatile boolean malletLattices = false;
 
   public StressModel(CRF crf) {
     this.crf = crf;
   }
 
+  public boolean isUseCompiled() {
+    return !malletLattices;
+  }
+
+  /**
+   * @param useCompiled false to decode with mallet's lattices instead of the (equivalent but faster) CompiledCrf
+   */
+  public void setUseCompiled(boolean useCompiled) {
+    this.malletLattices = !useCompiled;
+  }
+
   public Alignment sylls(Alignment align) {
     Set<Integer> starts = tagSyllStarts(align.getWordUnigrams());
     return enrichWithSyllStarts(align, starts);
@@ -56,7 +70,7 @@ public class StressModel implements Serializable {
     instance = crf.getInputPipe().instanceFrom(instance);
 
     Sequence inSeq = (Sequence) instance.getData();
-    Sequence<Object> outSeqs = crf.getMaxLatticeFactory().newMaxLattice(crf, inSeq).bestOutputSequence();
+    Sequence<Object> outSeqs = CrfScorer.bestOutputSequence(crf, inSeq, !malletLattices);
     return SyllTagTrainer.startsFromGraphemeSyllEnding(outSeqs);
   }
 }
@@ -19,6 +19,7 @@ package com.github.steveash.jg2p.syll;
 import com.google.common.base.Preconditions;
 
 import com.github.steveash.jg2p.Word;
+import com.github.steveash.jg2p.crf.CrfScorer;
 import com.github.steveash.jg2p.phoseq.Phonemes;
 
 import java.io.Serializable;
@@ -40,6 +41,8 @@ public class PhoneSyllTagModel implements Serializable {
   private static final long serialVersionUID = -5644996659039364023L;
 
   private final CRF crf;
+  // not serialized so loaded models decode with the compiled crf unless they're switched back
+  private transient volatile boolean malletLattices = false;
 
   public PhoneSyllTagModel(CRF crf) {
     this.crf = crf;
@@ -49,6 +52,17 @@ public class PhoneSyllTagModel implements Serializable {
     return crf;
   }
 
+  public boolean isUseCompiled() {
+    return !malletLattices;
+  }
+
+  /**
+   * @param useCompiled false to decode with mallet's lattices instead of the (equivalent but faster) CompiledCrf
+   */
+  public void setUseCompiled(boolean useCompiled) {
+    this.malletLattices = !useCompiled;
+  }
+
   public List<Integer> syllStarts(Word word) {
     return syllStarts(word, -1);
   }
@@ -66,7 +80,7 @@ public class PhoneSyllTagModel implements Serializable {
     Instance instance = new Instance(word, null, null, null);
     instance = crf.getInputPipe().instanceFrom(instance);
     Sequence inSeq = (Sequence) instance.getData();
-    List<Sequence<Object>> outSeqs = crf.getMaxLatticeFactory().newMaxLattice(crf, inSeq).bestOutputSequences(10);
+    List<Sequence<Object>> outSeqs = CrfScorer.bestOutputSequences(crf, inSeq, 10, !malletLattices);
     for (Sequence outSeq : outSeqs) {
       // see if the outSeq is legal and if so then return it
       if (isLegal(word.getValue(), outSeq, expectedSylls)) {
@@ -16,6 +16,7 @@
 
 package com.github.steveash.jg2p.syllchain;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
@@ -33,6 +34,7 @@ import com.github.steveash.jg2p.seq.TokenSequenceToFeature;
 import com.github.steveash.jg2p.seq.TokenWindow;
 import com.github.steveash.jg2p.syll.SWord;
 import com.github.steveash.jg2p.syll.SyllTagTrainer;
+import com.github.steveash.jg2p.util.ParallelPipes;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
@@ -65,11 +67,19 @@ public class SyllChainTrainer {
   private static final Logger log = LoggerFactory.getLogger(SyllChainTrainer.class);
 
   private CRF initFrom = null;
+  private int threadCount = 0;
 
   public void setInitFrom(CRF initFrom) {
     this.initFrom = initFrom;
   }
 
+  /**
+   * @param threadCount the threads to pipe the examples and train the crf with; 0 means the defaults
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
   public SyllChainModel train(List<Alignment> aligns) {
     log.info("About to train the syll chain...");
     InstanceList examples = makeExamplesFromAligns(aligns);
@@ -93,7 +103,8 @@ public class SyllChainTrainer {
     }
 
     log.info("Starting syllchain training...");
-    CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, 8);
+    int crfThreads = (threadCount > 0 ? threadCount : 8);
+    CRFTrainerByThreadedLabelLikelihood trainer = new CRFTrainerByThreadedLabelLikelihood(crf, crfThreads);
     trainer.setGaussianPriorVariance(2);
     trainer.setAddNoFactors(true);
 //    trainer.setUseSomeUnsupportedTrick(true);
@@ -108,29 +119,27 @@ public class SyllChainTrainer {
   }
 
   private InstanceList makeExamplesFromAligns(List<Alignment> aligns) {
-    Pipe pipe = makePipe();
-    int count = 0;
-    InstanceList instances = new InstanceList(pipe);
-    for (Alignment align : aligns) {
-
-      Set<Integer> graphStarts = SyllChainTrainer.splitGraphsByPhoneSylls(align);
-      Word orig = Word.fromSpaceSeparated(align.getWordAsSpaceString());
+    SerialPipes pipe = makePipe();
+    InstanceList instances = ParallelPipes.pipeAll(pipe, ParallelPipes.VECTOR_AND_LABEL_PIPES, aligns,
+                                                   new Function<Alignment, Instance>() {
+      @Override
+      public Instance apply(Alignment align) {
+        Set<Integer> graphStarts = SyllChainTrainer.splitGraphsByPhoneSylls(align);
+        Word orig = Word.fromSpaceSeparated(align.getWordAsSpaceString());
 //      Word marks = Word.fromGrams(SyllTagTrainer.makeSyllableGraphEndMarksFor(align));
 //      Word marks = Word.fromGrams(SyllTagTrainer.makeOncForGraphemes(align));
-      Word marks = Word.fromGrams(SyllTagTrainer.makeSyllableGraphEndMarksFromGraphStarts(align.getInputWord(), graphStarts));
+        Word marks = Word.fromGrams(SyllTagTrainer.makeSyllableGraphEndMarksFromGraphStarts(align.getInputWord(), graphStarts));
 
-      Preconditions.checkState(orig.unigramCount() == marks.unigramCount());
+        Preconditions.checkState(orig.unigramCount() == marks.unigramCount());
 
-      Instance ii = new Instance(orig.getValue(), marks.getValue(), null, null);
-      instances.addThruPipe(ii);
-      count += 1;
-
-    }
-    log.info("Read {} instances of training data for align tag", count);
+        return new Instance(orig.getValue(), marks.getValue(), null, null);
+      }
+    }, ParallelPipes.threadCount(threadCount));
+    log.info("Read {} instances of training data for align tag", instances.size());
     return instances;
   }
 
-  private Pipe makePipe() {
+  private SerialPipes makePipe() {
     Alphabet alpha = new Alphabet();
     Target2LabelSequence labelPipe = new Target2LabelSequence();
     LabelAlphabet labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet();
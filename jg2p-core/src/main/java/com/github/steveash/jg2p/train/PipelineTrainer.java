@@ -28,7 +28,9 @@ import com.github.steveash.jg2p.align.AlignModel;
 import com.github.steveash.jg2p.align.Aligner;
 import com.github.steveash.jg2p.align.AlignerTrainer;
 import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.align.AlignmentCache;
 import com.github.steveash.jg2p.align.InputRecord;
+import com.github.steveash.jg2p.align.StepwiseAlignerTrainer;
 import com.github.steveash.jg2p.align.TrainOptions;
 import com.github.steveash.jg2p.aligntag.AlignTagTrainer;
 import com.github.steveash.jg2p.lm.LangModel;
@@ -52,6 +54,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
@@ -61,7 +64,10 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 /**
  * Trains the entire pipeline and uses TrainOptions to control overall what stages are loaded from previous runs vs what
- * is re-trained from scratch
+ * is re-trained from scratch. The stages run through a StageScheduler: after the inputs are aligned the test time
+ * aligner, syll chain, pronouncer, and graphone models only need the aligned inputs so with concurrentStages they
+ * train at the same time (splitting the stage cpu budget by rough relative cost), and the reranker waits for all of
+ * them
  *
  * @author Steve Ash
  */
@@ -83,6 +89,11 @@ public class PipelineTrainer {
   private Rerank3Model loadedReranker;
   private PhoneSyllTagModel phoneSyllTagModel;
 
+  // results of stages that later stages use
+  private Aligner trainedAlignTag;
+  private SyllChainModel trainedSyllTag;
+  private LangModel rerankTrainingGraphone;
+
   public static Predicate<? super InputRecord> keepTrainable = new Predicate<InputRecord>() {
     private final SkipTrainings skips = SkipTrainings.defaultSkips();
 
@@ -115,7 +126,7 @@ public class PipelineTrainer {
     }
   };
 
-  public void train(List<InputRecord> inputs, TrainOptions opts, PipelineModel model) {
+  public void train(List<InputRecord> inputs, final TrainOptions opts, final PipelineModel model) {
     inputs = FluentIterable.from(inputs)
         .filter(keepTrainable)
         .transform(trainingXforms)
@@ -124,12 +135,74 @@ public class PipelineTrainer {
     this.opts = opts;
     validateInputs();
 
-    model.setTrainingAlignerModel(makeTrainingAligner());
-    this.alignedInputs = alignInputs(model.getTrainingAlignerModel());
-    model.setTestingAlignerModel(makeTestAligner());
-    model.setPronouncerModel(makePronouncer());
-    model.setGraphoneModel(makeGraphoneModel());
-    model.setRerankerModel(makeRerankerModel(model));
+    StageScheduler stages = new StageScheduler(opts.stageCpuBudget, opts.concurrentStages);
+    stages.add("trainingAligner", 1, new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        model.setTrainingAlignerModel(makeTrainingAligner());
+      }
+    });
+    stages.add("align", 1, new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        alignedInputs = alignInputs(model.getTrainingAlignerModel());
+      }
+    }, "trainingAligner");
+    stages.add("alignTag", costIf(opts.trainTestingAligner, 1), new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        trainedAlignTag = makeAlignTag(stageThreads(threads));
+      }
+    }, "align");
+    boolean trainsSyllChain = opts.trainTestingAligner && opts.useSyllableTagger && opts.trainSyllTag;
+    stages.add("syllChain", costIf(trainsSyllChain, 1), new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        if (opts.trainTestingAligner) {
+          trainedSyllTag = makeSyllTag(stageThreads(threads));
+        }
+      }
+    }, "align");
+    stages.add("testAligner", 0, new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        model.setTestingAlignerModel(makeTestAligner());
+      }
+    }, "alignTag", "syllChain");
+    stages.add("pronouncer", costIf(opts.trainPronouncer, 4), new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        model.setPronouncerModel(makePronouncer(stageThreads(threads)));
+      }
+    }, "align");
+    stages.add("graphone", costIf(opts.trainGraphoneModel, 1), new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        model.setGraphoneModel(makeGraphoneModel());
+      }
+    }, "align");
+    stages.add("rerankGraphone", costIf(needsRerankGraphone(), 1), new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        rerankTrainingGraphone = makeRerankGraphoneModel();
+      }
+    }, "align");
+    stages.add("reranker", 1, new StageScheduler.Stage() {
+      @Override
+      public void run(int threads) {
+        model.setRerankerModel(makeRerankerModel(model));
+      }
+    }, "testAligner", "pronouncer", "graphone", "rerankGraphone");
+    stages.run();
+  }
+
+  private static double costIf(boolean training, double cost) {
+    return (training ? cost : 0);
+  }
+
+  // the trainers keep their own thread defaults unless the stages are split or given an explicit budget
+  private int stageThreads(int threads) {
+    return (opts.concurrentStages || opts.stageCpuBudget > 0 ? threads : 0);
   }
 
 
@@ -177,12 +250,8 @@ public class PipelineTrainer {
     if (opts.trainReranker) {
       LangModel existing = modelSoFar.getGraphoneModel();
       try {
-        if (opts.graphoneLanguageModelOrder != opts.graphoneLanguageModelOrderForTraining) {
-          // train a graphone model for the different order
-          log.info("Need to train a separate graphone model for training...");
-          LangModel graphoneModelForTraining = new LangModelTrainer(opts, false).trainFor(alignedInputs);
-          log.info("Finished the training graphone model");
-          modelSoFar.setGraphoneModel(graphoneModelForTraining);
+        if (rerankTrainingGraphone != null) {
+          modelSoFar.setGraphoneModel(rerankTrainingGraphone);
         }
         Collection<List<RerankExample>> rrExamples = collectExamples(modelSoFar);
         Rerank3Trainer trainer = new Rerank3Trainer();
@@ -198,6 +267,21 @@ public class PipelineTrainer {
     return checkNotNull(loadedReranker, "shouldve already been loaded in init()");
   }
 
+  private boolean needsRerankGraphone() {
+    return opts.trainReranker && opts.graphoneLanguageModelOrder != opts.graphoneLanguageModelOrderForTraining;
+  }
+
+  private LangModel makeRerankGraphoneModel() {
+    if (!needsRerankGraphone()) {
+      return null;
+    }
+    // train a graphone model for the different order
+    log.info("Need to train a separate graphone model for training...");
+    LangModel graphoneModelForTraining = new LangModelTrainer(opts, false).trainFor(alignedInputs);
+    log.info("Finished the training graphone model");
+    return graphoneModelForTraining;
+  }
+
   private Collection<List<RerankExample>> collectExamples(PipelineModel modelSoFar) {
     if (isNotBlank(this.opts.useInputRerankExampleCsv)) {
       log.info("Using the reranker examples csv " + this.opts.useInputRerankExampleCsv);
@@ -215,9 +299,10 @@ public class PipelineTrainer {
     return checkNotNull(loadedGraphone, "shouldve already been loaded in init()");
   }
 
-  private PhonemeCrfModel makePronouncer() {
+  private PhonemeCrfModel makePronouncer(int threads) {
     if (opts.trainPronouncer) {
       PhonemeCrfTrainer crfTrainer = PhonemeCrfTrainer.open(opts);
+      crfTrainer.setThreadCount(threads);
       crfTrainer.trainFor(this.alignedInputs);
       PhonemeCrfModel phonemeCrfModel = crfTrainer.buildModel();
       phonemeCrfModel.getCrf().makeParametersHashSparse();
@@ -227,23 +312,47 @@ public class PipelineTrainer {
   }
 
   private List<Alignment> alignInputs(AlignModel alignModel) {
-    return AlignTagTrainer.makeAlignmentInputFromRaw(this.inputs, alignModel, this.opts);
+    if (opts.alignCacheDir == null) {
+      return AlignTagTrainer.makeAlignmentInputFromRaw(this.inputs, alignModel, this.opts);
+    }
+    AlignmentCache cache = new AlignmentCache(opts.alignCacheDir);
+    String key = AlignmentCache.keyFor(this.inputs, alignModel, opts.topKAlignCandidates, opts.minAlignScore);
+    List<Alignment> cached = cache.read(key);
+    if (cached != null) {
+      log.info("Using " + cached.size() + " cached alignments " + key + " from " + opts.alignCacheDir);
+      return cached;
+    }
+    List<Alignment> aligned = AlignTagTrainer.makeAlignmentInputFromRaw(this.inputs, alignModel, this.opts);
+    try {
+      cache.write(key, aligned);
+      log.info("Cached " + aligned.size() + " alignments as " + key + " in " + opts.alignCacheDir);
+    } catch (IOException e) {
+      log.warn("Couldnt cache the alignments in " + opts.alignCacheDir, e);
+    }
+    return aligned;
   }
 
   // this is the aligner -> syll split into two separate models
   private Aligner makeTestAligner() {
     if (opts.trainTestingAligner) {
-      AlignTagTrainer alignTagTrainer = new AlignTagTrainer();
-      Aligner aligner = alignTagTrainer.train(this.alignedInputs);
+      Aligner aligner = checkNotNull(trainedAlignTag, "the align tag stage shouldve trained the aligner");
       if (opts.useSyllableTagger) {
-        SyllChainModel syllTagModel = makeSyllTag();
-        aligner = new SyllTagAlignerAdapter(aligner, syllTagModel);
+        aligner = new SyllTagAlignerAdapter(aligner, trainedSyllTag);
       }
       return aligner;
     }
     return checkNotNull(loadedTestAligner, "shouldve already been loaded in init()");
   }
 
+  private Aligner makeAlignTag(int threads) {
+    if (!opts.trainTestingAligner) {
+      return null;
+    }
+    AlignTagTrainer alignTagTrainer = new AlignTagTrainer();
+    alignTagTrainer.setThreadCount(threads);
+    return alignTagTrainer.train(this.alignedInputs);
+  }
+
   // this is the aligner + syll marker in the same model
 //  private Aligner makeTestAligner() {
 //    if (opts.trainTestingAligner) {
@@ -266,6 +375,13 @@ public class PipelineTrainer {
 
   private AlignModel makeTrainingAligner() {
     if (opts.trainTrainingAligner) {
+      if (opts.alignerStepwise) {
+        StepwiseAlignerTrainer stepwiseTrainer = new StepwiseAlignerTrainer(opts);
+        if (loadedTrainingAligner != null) {
+          stepwiseTrainer.setInitFrom(loadedTrainingAligner.getTransitions());
+        }
+        return stepwiseTrainer.train(inputs);
+      }
       AlignerTrainer alignTrainer = new AlignerTrainer(opts);
       if (loadedTrainingAligner != null) {
         alignTrainer.setInitFrom(loadedTrainingAligner.getTransitions());
@@ -275,12 +391,13 @@ public class PipelineTrainer {
     return checkNotNull(loadedTrainingAligner, "shouldve already been loaded in init()");
   }
 
-  private SyllChainModel makeSyllTag() {
+  private SyllChainModel makeSyllTag(int threads) {
     if (!opts.useSyllableTagger) {
       return null;
     }
     if (opts.trainSyllTag) {
       SyllChainTrainer trainer = new SyllChainTrainer();
+      trainer.setThreadCount(threads);
       return trainer.train(this.alignedInputs);
     }
     return checkNotNull(loadedSyllTag, "shoulve already loaded syll tag model");
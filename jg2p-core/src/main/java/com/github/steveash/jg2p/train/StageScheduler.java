@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.train;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs a DAG of training stages, starting each one as soon as all of the stages that it depends on are done, so
+ * stages that don't depend on each other run at the same time. Stages are added in an order where every dependency
+ * is added before the stages that use it (so there can't be cycles).
+ * The cpu budget is split between stages that can run at the same time: a stage's depth is one more than the
+ * deepest stage it depends on and the stages at the same depth split the budget by their cpu weights (a stage that
+ * doesn't do any real work, like one that just hands back a loaded model, should have weight 0). Each stage is
+ * handed its number of threads when it runs. When the scheduler isn't concurrent the stages run one at a time in the
+ * order they were added and each gets the whole budget.
+ * If any stage fails the stages still running are interrupted, no more are started, and run() throws with the
+ * failure. Each stage's start offset, elapsed time, threads, and the peak heap used while it ran (sampled, and the
+ * whole heap so concurrent stages see each other's memory too) are logged at the end and kept in the reports
+ * @author Steve Ash
+ */
+public class StageScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(StageScheduler.class);
+
+  private static final long HEAP_SAMPLE_MILLIS = 200;
+
+  /**
+   * The work of one stage
+   */
+  public interface Stage {
+
+    /**
+     * @param threads the number of threads this stage should use for its own work
+     */
+    void run(int threads) throws Exception;
+  }
+
+  /**
+   * What happened when a stage ran
+   */
+  public static class StageReport {
+
+    public final String name;
+    public final int threads;
+    public final long startOffsetMillis;
+    public final long elapsedMillis;
+    public final long peakHeapBytes;
+
+    StageReport(String name, int threads, long startOffsetMillis, long elapsedMillis, long peakHeapBytes) {
+      this.name = name;
+      this.threads = threads;
+      this.startOffsetMillis = startOffsetMillis;
+      this.elapsedMillis = elapsedMillis;
+      this.peakHeapBytes = peakHeapBytes;
+    }
+
+    @Override
+    public String toString() {
+      return name + " threads=" + threads + " started=+" + startOffsetMillis + "ms took=" + elapsedMillis +
+             "ms peakHeap=" + (peakHeapBytes / (1024 * 1024)) + "mb";
+    }
+  }
+
+  private static class Node {
+
+    private final String name;
+    private final double cpuWeight;
+    private final Stage stage;
+    private final List<Node> dependsOn;
+    private final int depth;
+    private final AtomicLong peakHeap = new AtomicLong();
+    private int threads;
+    private boolean started = false;
+    private boolean done = false;
+
+    private Node(String name, double cpuWeight, Stage stage, List<Node> dependsOn, int depth) {
+      this.name = name;
+      this.cpuWeight = cpuWeight;
+      this.stage = stage;
+      this.dependsOn = dependsOn;
+      this.depth = depth;
+    }
+
+    private boolean isReady() {
+      if (started) {
+        return false;
+      }
+      for (Node dep : dependsOn) {
+        if (!dep.done) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void sampleHeap(long used) {
+      while (true) {
+        long peak = peakHeap.get();
+        if (used <= peak || peakHeap.compareAndSet(peak, used)) {
+          return;
+        }
+      }
+    }
+  }
+
+  private final int cpuBudget;
+  private final boolean concurrent;
+  private final LinkedHashMap<String, Node> nodes = Maps.newLinkedHashMap();
+  private final List<StageReport> reports = Lists.newArrayList();
+
+  /**
+   * @param cpuBudget the total threads to split between the stages; 0 (or less) means one per processor
+   * @param concurrent whether independent stages should run at the same time
+   */
+  public StageScheduler(int cpuBudget, boolean concurrent) {
+    this.cpuBudget = (cpuBudget > 0 ? cpuBudget : Runtime.getRuntime().availableProcessors());
+    this.concurrent = concurrent;
+  }
+
+  /**
+   * Adds a stage that runs after all of the given stages (which must already be added) are done
+   */
+  public void add(String name, double cpuWeight, Stage stage, String... dependsOn) {
+    checkArgument(!nodes.containsKey(name), "already have a stage named %s", name);
+    checkArgument(cpuWeight >= 0, "cpu weight cant be negative");
+    List<Node> deps = Lists.newArrayListWithCapacity(dependsOn.length);
+    int depth = 0;
+    for (String depName : dependsOn) {
+      Node dep = nodes.get(depName);
+      checkArgument(dep != null, "stage %s depends on %s which hasnt been added", name, depName);
+      deps.add(dep);
+      depth = Math.max(depth, dep.depth + 1);
+    }
+    nodes.put(name, new Node(name, cpuWeight, stage, deps, depth));
+  }
+
+  /**
+   * Runs all of the stages and blocks until they're done; throws if any of them fails
+   */
+  public void run() {
+    assignThreads();
+    final Map<Node, Boolean> running = new ConcurrentHashMap<>();
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stage-heap-sampler").build());
+    ExecutorService service = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stage-%d").build());
+    CompletionService<Node> completions = new ExecutorCompletionService<>(service);
+    final Stopwatch overall = Stopwatch.createStarted();
+    List<Future<Node>> futures = Lists.newArrayList();
+    try {
+      sampler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          long used = memory.getHeapMemoryUsage().getUsed();
+          for (Node node : running.keySet()) {
+            node.sampleHeap(used);
+          }
+        }
+      }, 0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+      int remaining = nodes.size();
+      int inFlight = 0;
+      while (remaining > 0) {
+        for (final Node node : nodes.values()) {
+          if (inFlight > 0 && !concurrent) {
+            break;
+          }
+          if (!node.isReady()) {
+            continue;
+          }
+          node.started = true;
+          inFlight += 1;
+          futures.add(completions.submit(new Callable<Node>() {
+            @Override
+            public Node call() throws Exception {
+              long startOffset = overall.elapsed(TimeUnit.MILLISECONDS);
+              log.info("Starting stage " + node.name + " with " + node.threads + " threads...");
+              node.sampleHeap(memory.getHeapMemoryUsage().getUsed());
+              running.put(node, Boolean.TRUE);
+              Stopwatch watch = Stopwatch.createStarted();
+              try {
+                node.stage.run(node.threads);
+              } finally {
+                running.remove(node);
+                node.sampleHeap(memory.getHeapMemoryUsage().getUsed());
+              }
+              StageReport report = new StageReport(node.name, node.threads, startOffset,
+                                                    watch.elapsed(TimeUnit.MILLISECONDS), node.peakHeap.get());
+              synchronized (reports) {
+                reports.add(report);
+              }
+              log.info("Finished stage " + report);
+              return node;
+            }
+          }));
+        }
+        checkState(inFlight > 0, "no stage can run; this shouldnt happen");
+        Node finished = takeNext(completions, futures);
+        finished.done = true;
+        inFlight -= 1;
+        remaining -= 1;
+      }
+      log.info("All " + nodes.size() + " stages finished in " + overall + ":\n" + describeReports());
+    } finally {
+      service.shutdownNow();
+      sampler.shutdownNow();
+    }
+  }
+
+  private Node takeNext(CompletionService<Node> completions, List<Future<Node>> futures) {
+    Future<Node> next;
+    try {
+      next = completions.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancelAll(futures);
+      throw new IllegalStateException("Interrupted while waiting for the training stages", e);
+    }
+    try {
+      return next.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancelAll(futures);
+      throw new IllegalStateException("Interrupted while waiting for the training stages", e);
+    } catch (ExecutionException e) {
+      cancelAll(futures);
+      throw new IllegalStateException("A training stage failed so stopping all of the others", e.getCause());
+    }
+  }
+
+  private static void cancelAll(List<Future<Node>> futures) {
+    for (Future<Node> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  private void assignThreads() {
+    Map<Integer, Double> weightByDepth = Maps.newHashMap();
+    for (Node node : nodes.values()) {
+      Double sum = weightByDepth.get(node.depth);
+      weightByDepth.put(node.depth, (sum == null ? 0 : sum) + node.cpuWeight);
+    }
+    for (Node node : nodes.values()) {
+      double depthWeight = weightByDepth.get(node.depth);
+      if (!concurrent || depthWeight <= 0) {
+        node.threads = cpuBudget;
+      } else {
+        node.threads = Math.max(1, (int) Math.round(cpuBudget * node.cpuWeight / depthWeight));
+      }
+    }
+  }
+
+  private String describeReports() {
+    StringBuilder sb = new StringBuilder();
+    for (StageReport report : getReports()) {
+      sb.append("\t").append(report).append("\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return what happened in each stage that finished, in the order they finished
+   */
+  public List<StageReport> getReports() {
+    synchronized (reports) {
+      return ImmutableList.copyOf(reports);
+    }
+  }
+}
@@ -19,37 +19,57 @@ package com.github.steveash.jg2p.util;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
-
-import com.github.steveash.jg2p.eval.ParallelEval;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 import cc.mallet.fst.CRF;
 import cc.mallet.fst.SumLattice;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.AugmentableFeatureVector;
 import cc.mallet.types.FeatureVector;
 import cc.mallet.types.FeatureVectorSequence;
 import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
 import cc.mallet.types.Label;
+import cc.mallet.types.LabelAlphabet;
 import cc.mallet.types.LabelSequence;
 import cc.mallet.types.LabelVector;
 import cc.mallet.types.RankedFeatureVector;
+import cc.mallet.types.Sequence;
 
 /**
+ * Feature statistics for feature selection. The gradient statistics are summed over the instances by a pool of
+ * threads: the instance list is split into one contiguous shard per thread, each thread sums its shard into its own
+ * arrays (so there's no locking per feature), and the shards are added up in order at the end so the result doesn't
+ * depend on how the threads were scheduled. That costs one set of feature-sized arrays per thread.
+ * Ranked features can be written to and read from a compact binary file so a later run can reuse a selection
  * @author Steve Ash
  */
 public class FeatureSelections {
 
   private static final Logger log = LoggerFactory.getLogger(FeatureSelections.class);
 
+  private static final int RANKED_MAGIC = 0x6A327266; // "j2rf"
+  private static final int RANKED_VERSION = 1;
+
   /**
    * Returns a ranked feature vector of the gradient gain for the given training data on the given trained CRF.  The
    * instance list must have the target labels as LabelSequence
@@ -57,15 +77,19 @@ public class FeatureSelections {
   public static RankedFeatureVector gradientGainFrom(InstanceList ilist, CRF crf) {
     int numFeatures = ilist.getDataAlphabet().size();
     double[] gradientgains = new double[numFeatures];
-    fillResults(ilist, crf, gradientgains, null, null);
+    fillResults(ilist, crf, gradientgains, null, null, defaultThreads());
     return new RankedFeatureVector(ilist.getDataAlphabet(), gradientgains);
   }
 
   public static RankedFeatureVector gradientGainRatioFrom(InstanceList ilist, CRF crf) {
+    return gradientGainRatioFrom(ilist, crf, defaultThreads());
+  }
+
+  public static RankedFeatureVector gradientGainRatioFrom(InstanceList ilist, CRF crf, int threadCount) {
     int numFeatures = ilist.getDataAlphabet().size();
     double[] gradientgains = new double[numFeatures];
     double[] gradientlosses = new double[numFeatures];
-    fillResults(ilist, crf, null, gradientgains, gradientlosses);
+    fillResults(ilist, crf, null, gradientgains, gradientlosses, threadCount);
 
     return makeRatioVector(ilist, numFeatures, gradientgains, gradientlosses);
   }
@@ -75,7 +99,7 @@ public class FeatureSelections {
     double[] gradientgains = new double[numFeatures];
     double[] pos = new double[numFeatures];
     double[] neg = new double[numFeatures];
-    fillResults(ilist, crf, gradientgains, pos, neg);
+    fillResults(ilist, crf, gradientgains, pos, neg, defaultThreads());
     return Pair.of(new RankedFeatureVector(ilist.getDataAlphabet(), gradientgains),
                    makeRatioVector(ilist, numFeatures, pos, neg));
   }
@@ -92,47 +116,111 @@ public class FeatureSelections {
     return new RankedFeatureVector(ilist.getDataAlphabet(), ratios);
   }
 
-  private static void fillResults(final InstanceList ilist, CRF crf, final double[] abssum, final double[] pos,
-                                  final double[] neg) {
-    // Populate targetFeatureCount, et al
+  private static int defaultThreads() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  // one shard's sums; only the arrays that the caller asked for are allocated
+  private static class GradientSums {
+
+    private final double[] abssum;
+    private final double[] pos;
+    private final double[] neg;
+
+    private GradientSums(int numFeatures, boolean abssum, boolean pos, boolean neg) {
+      this.abssum = (abssum ? new double[numFeatures] : null);
+      this.pos = (pos ? new double[numFeatures] : null);
+      this.neg = (neg ? new double[numFeatures] : null);
+    }
+
+    private void addTo(double[] abssumTotal, double[] posTotal, double[] negTotal) {
+      add(abssum, abssumTotal);
+      add(pos, posTotal);
+      add(neg, negTotal);
+    }
+
+    private static void add(double[] from, double[] to) {
+      if (from == null) {
+        return;
+      }
+      for (int i = 0; i < from.length; i++) {
+        to[i] += from[i];
+      }
+    }
+  }
+
+  private static void fillResults(final InstanceList ilist, final CRF crf, double[] abssum, double[] pos,
+                                  double[] neg, int threadCount) {
+    Preconditions.checkArgument(threadCount > 0, "need at least one thread");
+    final int numFeatures = ilist.getDataAlphabet().size();
+    final boolean wantAbssum = (abssum != null);
+    final boolean wantPos = (pos != null);
+    final boolean wantNeg = (neg != null);
+    final LabelAlphabet alpha = (LabelAlphabet) ilist.getTargetAlphabet();
     final AtomicLong count = new AtomicLong(0);
-    new ParallelEval(crf).parallelSum(ilist, new ParallelEval.SumVisitor() {
-      @Override
-      public void visit(int index, Instance inst, SumLattice lattice) {
-        LabelSequence targetSeq = (LabelSequence) inst.getTarget();
-        FeatureVectorSequence fvs = (FeatureVectorSequence) inst.getData();
-        double instanceWeight = ilist.getInstanceWeight(index);
-        Preconditions.checkState(targetSeq.size() == fvs.size(), "input output size diff");
-        for (int j = 0; j < targetSeq.size(); j++) {
-          // The code below relies on labelWeights summing to 1 over all labels!
-          LabelVector predicated = lattice.getLabelingAtPosition(j);
-          Label expected = targetSeq.getLabelAtPosition(j);
-          FeatureVector fv = fvs.get(j);
-          for (int ll = 0; ll < predicated.numLocations(); ll++) {
-            int li = predicated.indexAtLocation(ll);
-            double[] toUpdate = (expected.getBestIndex() == li ? pos : neg);
-            double expectedWeight = (expected.getBestIndex() == li ? 1.0 : 0.0);
-            double predWeight = predicated.value(li);
-            double labelWeightDiff = Math.abs(expectedWeight - predWeight);
-            synchronized (count) {
-              for (int fl = 0; fl < fv.numLocations(); fl++) {
-                int fli = fv.indexAtLocation(fl);
-                if (abssum != null) {
-                  abssum[fli] += fv.valueAtLocation(fl) * labelWeightDiff * instanceWeight;
-                }
-                if (toUpdate != null) {
-                  toUpdate[fli] += fv.valueAtLocation(fl) * predWeight * instanceWeight;
-                }
+    int shards = Math.max(1, Math.min(threadCount, ilist.size()));
+    ExecutorService service = Executors.newFixedThreadPool(
+        shards, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("grad-gain-%d").build());
+    try {
+      List<Future<GradientSums>> futures = Lists.newArrayListWithCapacity(shards);
+      for (int shard = 0; shard < shards; shard++) {
+        final int from = (int) (((long) ilist.size()) * shard / shards);
+        final int to = (int) (((long) ilist.size()) * (shard + 1) / shards);
+        futures.add(service.submit(new Callable<GradientSums>() {
+          @Override
+          public GradientSums call() throws Exception {
+            GradientSums sums = new GradientSums(numFeatures, wantAbssum, wantPos, wantNeg);
+            for (int index = from; index < to; index++) {
+              Instance inst = ilist.get(index);
+              SumLattice lattice = crf.getSumLatticeFactory().newSumLattice(crf, (Sequence) inst.getData(), null,
+                                                                            null, alpha);
+              accumulate(inst, ilist.getInstanceWeight(index), lattice, sums);
+              long newCount = count.incrementAndGet();
+              if (newCount % 10000 == 0) {
+                log.info("Processed " + newCount + " examples for grad accum...");
               }
             }
+            return sums;
+          }
+        }));
+      }
+      // added up in shard order so the sums come out the same every time
+      for (Future<GradientSums> future : futures) {
+        future.get().addTo(abssum, pos, neg);
+      }
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    } finally {
+      service.shutdownNow();
+    }
+  }
+
+  private static void accumulate(Instance inst, double instanceWeight, SumLattice lattice, GradientSums sums) {
+    LabelSequence targetSeq = (LabelSequence) inst.getTarget();
+    FeatureVectorSequence fvs = (FeatureVectorSequence) inst.getData();
+    Preconditions.checkState(targetSeq.size() == fvs.size(), "input output size diff");
+    for (int j = 0; j < targetSeq.size(); j++) {
+      // The code below relies on labelWeights summing to 1 over all labels!
+      LabelVector predicated = lattice.getLabelingAtPosition(j);
+      Label expected = targetSeq.getLabelAtPosition(j);
+      FeatureVector fv = fvs.get(j);
+      for (int ll = 0; ll < predicated.numLocations(); ll++) {
+        int li = predicated.indexAtLocation(ll);
+        double[] toUpdate = (expected.getBestIndex() == li ? sums.pos : sums.neg);
+        double expectedWeight = (expected.getBestIndex() == li ? 1.0 : 0.0);
+        double predWeight = predicated.value(li);
+        double labelWeightDiff = Math.abs(expectedWeight - predWeight);
+        for (int fl = 0; fl < fv.numLocations(); fl++) {
+          int fli = fv.indexAtLocation(fl);
+          if (sums.abssum != null) {
+            sums.abssum[fli] += fv.valueAtLocation(fl) * labelWeightDiff * instanceWeight;
+          }
+          if (toUpdate != null) {
+            toUpdate[fli] += fv.valueAtLocation(fl) * predWeight * instanceWeight;
           }
-        }
-        long newCount = count.incrementAndGet();
-        if (newCount % 10000 == 0) {
-          log.info("Processed " + newCount + " examples for grad accum...");
         }
       }
-    });
+    }
   }
 
   public static RankedFeatureVector featureCountsFrom(InstanceList ilist) {
@@ -174,6 +262,96 @@ public class FeatureSelections {
     }
   }
 
+  /**
+   * Remaps piped (binary) instances onto a pipe whose feature alphabet holds a subset of the instances' features,
+   * e.g. the features selected from them, instead of piping the inputs all over again: every feature index goes
+   * through the new alphabet and the features that aren't in it are dropped, and the labels are looked up in the new
+   * pipe's label alphabet in instance order. The vectors come out the same as piping the inputs through the new pipe
+   * would make them
+   */
+  public static InstanceList remapThrough(InstanceList instances, Pipe pipe) {
+    Alphabet from = instances.getDataAlphabet();
+    Alphabet to = pipe.getDataAlphabet();
+    LabelAlphabet labels = (LabelAlphabet) pipe.getTargetAlphabet();
+    int[] indexes = new int[from.size()];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = to.lookupIndex(from.lookupObject(i), false);
+    }
+    InstanceList remapped = new InstanceList(pipe);
+    for (Instance inst : instances) {
+      FeatureVectorSequence fvs = (FeatureVectorSequence) inst.getData();
+      FeatureVector[] vectors = new FeatureVector[fvs.size()];
+      for (int i = 0; i < vectors.length; i++) {
+        vectors[i] = remapVector(fvs.get(i), to, indexes);
+      }
+      LabelSequence target = (LabelSequence) inst.getTarget();
+      int[] labelIndexes = new int[target.size()];
+      for (int i = 0; i < labelIndexes.length; i++) {
+        labelIndexes[i] = labels.lookupIndex(target.getLabelAtPosition(i).getEntry());
+      }
+      remapped.add(new Instance(new FeatureVectorSequence(vectors), new LabelSequence(labels, labelIndexes),
+                                inst.getName(), inst.getSource()));
+    }
+    return remapped;
+  }
+
+  // the same as the binary FeatureVector that the CRF pipes make from the token's features
+  private static FeatureVector remapVector(FeatureVector fv, Alphabet to, int[] indexes) {
+    Preconditions.checkArgument(fv.getValues() == null, "can only remap binary feature vectors");
+    AugmentableFeatureVector remapped = new AugmentableFeatureVector(to, true);
+    for (int i = 0; i < fv.numLocations(); i++) {
+      int index = indexes[fv.indexAtLocation(i)];
+      if (index >= 0) {
+        remapped.add(index, 1.0);
+      }
+    }
+    return remapped.toFeatureVector();
+  }
+
+  /**
+   * Writes every feature's name and value (in the order of the vector's alphabet) as a compact binary file that
+   * readRanked can load in a later run; the feature names must be strings
+   */
+  public static void writeRanked(RankedFeatureVector rfv, File outputFile) throws IOException {
+    Alphabet alphabet = rfv.getAlphabet();
+    try (DataOutputStream out = new DataOutputStream(Files.asByteSink(outputFile).openBufferedStream())) {
+      out.writeInt(RANKED_MAGIC);
+      out.writeInt(RANKED_VERSION);
+      out.writeInt(alphabet.size());
+      for (int i = 0; i < alphabet.size(); i++) {
+        Object feature = alphabet.lookupObject(i);
+        Preconditions.checkState(feature instanceof String, "can only write string features not %s", feature);
+        out.writeUTF((String) feature);
+        out.writeDouble(rfv.value(i));
+      }
+    }
+  }
+
+  /**
+   * @return the ranked features written by writeRanked over a new alphabet of their names
+   */
+  public static RankedFeatureVector readRanked(File inputFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.asByteSource(inputFile).openBufferedStream())) {
+      if (in.readInt() != RANKED_MAGIC) {
+        throw new IOException(inputFile + " isnt a ranked feature file");
+      }
+      int version = in.readInt();
+      if (version != RANKED_VERSION) {
+        throw new IOException("unsupported ranked feature file version " + version);
+      }
+      int count = in.readInt();
+      Alphabet alphabet = new Alphabet(count);
+      double[] values = new double[count];
+      for (int i = 0; i < count; i++) {
+        int index = alphabet.lookupIndex(in.readUTF(), true);
+        Preconditions.checkState(index == i, "duplicate feature in %s", inputFile);
+        values[i] = in.readDouble();
+      }
+      alphabet.stopGrowth();
+      return new RankedFeatureVector(alphabet, values);
+    }
+  }
+
   public static void writeRankedToFile(RankedFeatureVector rfv, File outputFile) {
     try {
       try (PrintWriter writer = new PrintWriter(Files.newWriter(outputFile, Charsets.UTF_8))) {
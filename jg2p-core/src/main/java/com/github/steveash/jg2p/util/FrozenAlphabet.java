@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import javax.annotation.Nullable;
+
+import cc.mallet.types.Alphabet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Immutable snapshot of a mallet Alphabet whose growth has been stopped. Lookups go through an open addressing
+ * (linear probing) table of the entries and never take a lock, unlike Alphabet.lookupIndex which takes the
+ * alphabet's read lock on every call. Unknown entries return -1 and nothing is ever added. The snapshots are
+ * built once per alphabet and cached (weakly) so that pipes can grab them per instance; if the alphabet somehow
+ * changed size since the snapshot was taken a new one is built
+ * @author Steve Ash
+ */
+public class FrozenAlphabet {
+
+  private static final LoadingCache<Alphabet, FrozenAlphabet> frozenCache = CacheBuilder.newBuilder()
+      .weakKeys()
+      .build(new CacheLoader<Alphabet, FrozenAlphabet>() {
+        @Override
+        public FrozenAlphabet load(Alphabet key) throws Exception {
+          return new FrozenAlphabet(key);
+        }
+      });
+
+  /**
+   * @return the frozen snapshot for the given alphabet or null if the alphabet is still allowed to grow (in which
+   * case callers should use the alphabet itself)
+   */
+  @Nullable
+  public static FrozenAlphabet ifFrozen(Alphabet alphabet) {
+    if (alphabet == null || !alphabet.growthStopped()) {
+      return null;
+    }
+    return forAlphabet(alphabet);
+  }
+
+  /**
+   * @return the frozen snapshot for the given alphabet; the alphabet must have had its growth stopped
+   */
+  public static FrozenAlphabet forAlphabet(Alphabet alphabet) {
+    checkArgument(alphabet.growthStopped(), "can only freeze an alphabet whose growth is stopped");
+    FrozenAlphabet frozen = frozenCache.getUnchecked(alphabet);
+    if (frozen.size() != alphabet.size()) {
+      frozen = new FrozenAlphabet(alphabet);
+      frozenCache.put(alphabet, frozen);
+    }
+    return frozen;
+  }
+
+  private final Object[] keys;
+  private final int[] values;
+  private final int mask;
+  private final int size;
+
+  public FrozenAlphabet(Alphabet alphabet) {
+    Object[] entries = alphabet.toArray();
+    this.size = entries.length;
+    int capacity = Integer.highestOneBit(Math.max(4, size * 2 - 1)) << 1;
+    this.keys = new Object[capacity];
+    this.values = new int[capacity];
+    this.mask = capacity - 1;
+    for (int i = 0; i < entries.length; i++) {
+      int slot = slotFor(entries[i]);
+      keys[slot] = entries[i];
+      values[slot] = i;
+    }
+  }
+
+  /**
+   * @return the index of the entry in the alphabet or -1 if the entry isn't in the alphabet
+   */
+  public int indexOf(Object entry) {
+    int slot = slotFor(entry);
+    return keys[slot] != null ? values[slot] : -1;
+  }
+
+  public boolean contains(Object entry) {
+    return indexOf(entry) >= 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // the slot containing the entry or the empty slot that ends its probe sequence
+  private int slotFor(Object entry) {
+    int slot = mix(entry.hashCode()) & mask;
+    while (keys[slot] != null && !keys[slot].equals(entry)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int mix(int hash) {
+    // murmur3 finalizer; string hash codes of the feature names share a lot of low bits
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+}
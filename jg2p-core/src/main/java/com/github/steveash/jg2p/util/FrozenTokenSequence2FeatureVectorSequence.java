@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import java.lang.reflect.Field;
+
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.AugmentableFeatureVector;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.TokenSequence;
+import cc.mallet.util.PropertyList;
+
+/**
+ * Drop in replacement for a CRF pipe's TokenSequence2FeatureVectorSequence once its alphabet is frozen: the
+ * features are looked up in the FrozenAlphabet instead of going through Alphabet.lookupIndex (and its lock) for
+ * every feature of every token. Unknown features are dropped and the vectors are built the same way that mallet's
+ * FeatureVector and AugmentableFeatureVector constructors build them, so the output is identical to the original
+ * pipe with growth stopped. Serializing this writes the original pipe so saved models don't depend on this class
+ * @author Steve Ash
+ */
+public class FrozenTokenSequence2FeatureVectorSequence extends TokenSequence2FeatureVectorSequence {
+
+  private static final long serialVersionUID = 6751905834645075060L;
+
+  /**
+   * @return a frozen replacement for the given pipe; its data alphabet must have had its growth stopped
+   */
+  public static FrozenTokenSequence2FeatureVectorSequence replacing(TokenSequence2FeatureVectorSequence original) {
+    return new FrozenTokenSequence2FeatureVectorSequence(original, readFlag(original, "binary"),
+                                                         readFlag(original, "augmentable"));
+  }
+
+  private final TokenSequence2FeatureVectorSequence original;
+  private final FrozenAlphabet frozen;
+  private final boolean binary;
+  private final boolean augmentable;
+
+  private FrozenTokenSequence2FeatureVectorSequence(TokenSequence2FeatureVectorSequence original, boolean binary,
+                                                    boolean augmentable) {
+    super(original.getDataAlphabet(), binary, augmentable);
+    this.original = original;
+    this.frozen = FrozenAlphabet.forAlphabet(original.getDataAlphabet());
+    this.binary = binary;
+    this.augmentable = augmentable;
+  }
+
+  public TokenSequence2FeatureVectorSequence getOriginal() {
+    return original;
+  }
+
+  @Override
+  public Instance pipe(Instance carrier) {
+    TokenSequence tokens = (TokenSequence) carrier.getData();
+    Alphabet dict = getDataAlphabet();
+    if (tokens.isEmpty()) {
+      // nothing to look up and FeatureVectorSequence(FeatureVector[]) needs at least one vector for its alphabet
+      carrier.setData(new FeatureVectorSequence(dict, tokens, binary, augmentable, false));
+      return carrier;
+    }
+    FeatureVector[] vectors = new FeatureVector[tokens.size()];
+    for (int i = 0; i < vectors.length; i++) {
+      vectors[i] = makeVector(dict, tokens.get(i).getFeatures());
+    }
+    carrier.setData(new FeatureVectorSequence(vectors));
+    return carrier;
+  }
+
+  private FeatureVector makeVector(Alphabet dict, PropertyList features) {
+    if (augmentable) {
+      // the same as AugmentableFeatureVector(dict, features, binary, false)
+      AugmentableFeatureVector vector = new AugmentableFeatureVector(dict, binary);
+      addFeatures(vector, features);
+      return vector;
+    }
+    // the same as FeatureVector(dict, features, binary, false) which goes through SparseVector's constructor
+    if (features == null) {
+      return new FeatureVector(dict, new int[0]);
+    }
+    boolean isBinary = binary || allOnes(features);
+    AugmentableFeatureVector vector = new AugmentableFeatureVector(dict, isBinary);
+    addFeatures(vector, features);
+    return vector.toFeatureVector();
+  }
+
+  private void addFeatures(AugmentableFeatureVector vector, PropertyList features) {
+    if (features == null) {
+      return;
+    }
+    PropertyList.Iterator iter = features.numericIterator();
+    while (iter.hasNext()) {
+      iter.nextProperty();
+      int index = frozen.indexOf(iter.getKey());
+      if (index >= 0) {
+        vector.add(index, iter.getNumericValue());
+      }
+    }
+  }
+
+  private static boolean allOnes(PropertyList features) {
+    PropertyList.Iterator iter = features.numericIterator();
+    while (iter.hasNext()) {
+      iter.nextProperty();
+      if (iter.getNumericValue() != 1.0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // mallet doesn't expose the pipe's settings
+  private static boolean readFlag(TokenSequence2FeatureVectorSequence pipe, String name) {
+    try {
+      Field field = TokenSequence2FeatureVectorSequence.class.getDeclaredField(name);
+      field.setAccessible(true);
+      return field.getBoolean(pipe);
+    } catch (NoSuchFieldException | IllegalAccessException e) {
+      throw new IllegalStateException("cant read the " + name + " setting of " + pipe, e);
+    }
+  }
+
+  private Object writeReplace() {
+    return original;
+  }
+}
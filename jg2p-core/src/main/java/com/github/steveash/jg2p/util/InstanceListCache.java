@@ -0,0 +1,341 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.LabelSequence;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * On-disk cache of piped CRF training data (instances of a FeatureVectorSequence with a LabelSequence target) so that
+ * repeated training runs over the same corpus and pipes skip the feature extraction. Each entry is a file in the
+ * cache dir named by a hash of the pipe configuration (every pipe's class and settings and the alphabets as they are
+ * before piping, e.g. a selected feature dictionary) and of the examples.
+ * The file has the data and label alphabet entries followed by each instance's feature indexes (and values for non
+ * binary vectors) and label indexes; it's read back through a memory mapped buffer and the alphabets of the given
+ * pipe are filled in the stored order so the feature indexes are exactly the ones that piping would have made. The
+ * whole file is decoded and checked before the alphabets are filled so an entry that can't be read leaves the pipe
+ * untouched (and it's just a miss)
+ * @author Steve Ash
+ */
+public class InstanceListCache {
+
+  private static final Logger log = LoggerFactory.getLogger(InstanceListCache.class);
+
+  private static final int MAGIC = 0x6A32696C; // "j2il"
+  private static final int VERSION = 1;
+  private static final int MAX_DESCRIBE_DEPTH = 8;
+
+  private final File dir;
+
+  public InstanceListCache(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * @param exampleKey the content of an example that the pipes look at
+   * @return the key of the instances made by running the examples through the (not yet used) pipes
+   */
+  public static <T> String keyFor(SerialPipes pipes, Iterable<T> examples, Function<? super T, String> exampleKey) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(VERSION);
+    StringBuilder sb = new StringBuilder();
+    for (Pipe pipe : pipes.pipes()) {
+      sb.append(pipe.getClass().getName()).append(pipe.isTargetProcessing() ? "+target" : "");
+      describeFields(pipe, pipe.getClass(), sb, 0);
+      sb.append('\n');
+    }
+    hasher.putString(sb, Charsets.UTF_8);
+    putAlphabet(hasher, pipes.getDataAlphabet());
+    putAlphabet(hasher, pipes.getTargetAlphabet());
+    for (T example : examples) {
+      hasher.putString(exampleKey.apply(example), Charsets.UTF_8).putByte((byte) '\n');
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putAlphabet(Hasher hasher, Alphabet alphabet) {
+    if (alphabet == null) {
+      hasher.putInt(-1);
+      return;
+    }
+    hasher.putInt(alphabet.size()).putBoolean(alphabet.growthStopped());
+    for (int i = 0; i < alphabet.size(); i++) {
+      hasher.putString(alphabet.lookupObject(i).toString(), Charsets.UTF_8).putByte((byte) '\n');
+    }
+  }
+
+  // the settings of a pipe are its fields (the alphabets are hashed separately and the base Pipe class just has
+  // alphabets and a random instance id)
+  private static void describeFields(Object value, Class<?> type, StringBuilder sb, int depth) {
+    sb.append('{');
+    for (Class<?> c = type; c != null && c != Pipe.class && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+          continue;
+        }
+        field.setAccessible(true);
+        sb.append(field.getName()).append('=');
+        try {
+          describe(field.get(value), sb, depth + 1);
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+        sb.append(',');
+      }
+    }
+    sb.append('}');
+  }
+
+  private static void describe(Object value, StringBuilder sb, int depth) {
+    checkState(depth <= MAX_DESCRIBE_DEPTH, "pipe settings nested too deeply to describe");
+    if (value == null || value instanceof Alphabet) {
+      sb.append(value == null ? "null" : "alphabet");
+    } else if (value instanceof Number || value instanceof Boolean || value instanceof Character ||
+               value instanceof CharSequence || value instanceof Enum) {
+      sb.append(value);
+    } else if (value instanceof Map) {
+      describe(((Map<?, ?>) value).entrySet(), sb, depth + 1);
+    } else if (value instanceof Map.Entry) {
+      describe(((Map.Entry<?, ?>) value).getKey(), sb, depth + 1);
+      sb.append(':');
+      describe(((Map.Entry<?, ?>) value).getValue(), sb, depth + 1);
+    } else if (value instanceof Iterable) {
+      sb.append('[');
+      for (Object item : (Iterable<?>) value) {
+        describe(item, sb, depth + 1);
+        sb.append(',');
+      }
+      sb.append(']');
+    } else if (value.getClass().isArray()) {
+      sb.append('[');
+      for (int i = 0; i < Array.getLength(value); i++) {
+        describe(Array.get(value, i), sb, depth + 1);
+        sb.append(',');
+      }
+      sb.append(']');
+    } else if (value.getClass().getName().startsWith("java.")) {
+      sb.append(value); // e.g. a regex pattern
+    } else {
+      sb.append(value.getClass().getName());
+      describeFields(value, value.getClass(), sb, depth);
+    }
+  }
+
+  File fileFor(String key) {
+    return new File(dir, "piped-" + key + ".bin");
+  }
+
+  /**
+   * @param pipes the (not yet used) pipes that the key was made with; their alphabets get filled from the cache
+   * @return the cached instances for the key or null if there aren't any (or they couldn't be read)
+   */
+  public InstanceList read(String key, SerialPipes pipes) {
+    File file = fileFor(key);
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      checkState(channel.size() <= Integer.MAX_VALUE, "cached instances %s too big to map", file);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      checkState(buffer.getInt() == MAGIC, "%s isnt a piped instance cache file", file);
+      int version = buffer.getInt();
+      checkState(version == VERSION, "unsupported piped instance cache version %s", version);
+      String[] features = readStrings(buffer);
+      String[] labels = readStrings(buffer);
+      Alphabet dataAlphabet = pipes.getDataAlphabet();
+      LabelAlphabet labelAlphabet = (LabelAlphabet) pipes.getTargetAlphabet();
+      checkState(canFill(dataAlphabet, features) && canFill(labelAlphabet, labels),
+                 "the pipe alphabets dont match the cached alphabets");
+
+      // decode (and check) every instance before touching the alphabets so a truncated or corrupt file leaves the
+      // pipes as they were for piping again
+      int count = readLength(buffer, 4);
+      int[][][] featureIndexes = new int[count][][];
+      double[][][] featureValues = new double[count][][];
+      int[][] labelIndexes = new int[count][];
+      for (int i = 0; i < count; i++) {
+        int length = readLength(buffer, 5);
+        featureIndexes[i] = new int[length][];
+        featureValues[i] = new double[length][];
+        for (int j = 0; j < length; j++) {
+          boolean binary = (buffer.get() != 0);
+          featureIndexes[i][j] = readIndexes(buffer, features.length);
+          if (!binary) {
+            double[] values = new double[featureIndexes[i][j].length];
+            checkState(buffer.remaining() >= values.length * 8, "truncated feature values");
+            for (int k = 0; k < values.length; k++) {
+              values[k] = buffer.getDouble();
+            }
+            featureValues[i][j] = values;
+          }
+        }
+        labelIndexes[i] = readIndexes(buffer, labels.length);
+      }
+      checkState(!buffer.hasRemaining(), "%s bytes past the last cached instance", buffer.remaining());
+
+      fill(dataAlphabet, features);
+      fill(labelAlphabet, labels);
+      InstanceList instances = new InstanceList(pipes);
+      for (int i = 0; i < count; i++) {
+        FeatureVector[] vectors = new FeatureVector[featureIndexes[i].length];
+        for (int j = 0; j < vectors.length; j++) {
+          if (featureValues[i][j] == null) {
+            vectors[j] = new FeatureVector(dataAlphabet, featureIndexes[i][j]);
+          } else {
+            vectors[j] = new FeatureVector(dataAlphabet, featureIndexes[i][j], featureValues[i][j]);
+          }
+        }
+        LabelSequence target = new LabelSequence(labelAlphabet, labelIndexes[i]);
+        instances.add(new Instance(new FeatureVectorSequence(vectors), target, null, null));
+      }
+      log.info("Read " + count + " cached piped instances from " + file);
+      return instances;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Couldnt read the cached piped instances in " + file + " so they will be piped again", e);
+      return null;
+    }
+  }
+
+  private static boolean canFill(Alphabet alphabet, String[] entries) {
+    if (alphabet.size() > entries.length || (alphabet.growthStopped() && alphabet.size() != entries.length)) {
+      return false;
+    }
+    for (int i = 0; i < alphabet.size(); i++) {
+      if (!alphabet.lookupObject(i).equals(entries[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void fill(Alphabet alphabet, String[] entries) {
+    for (int i = alphabet.size(); i < entries.length; i++) {
+      checkState(alphabet.lookupIndex(entries[i], true) == i, "duplicate alphabet entry %s", entries[i]);
+    }
+  }
+
+  private static String[] readStrings(MappedByteBuffer buffer) {
+    String[] strings = new String[readLength(buffer, 4)];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[readLength(buffer, 1)];
+      buffer.get(bytes);
+      strings[i] = new String(bytes, Charsets.UTF_8);
+    }
+    return strings;
+  }
+
+  // a length prefix of things that take at least minBytes each; checked against what's left so a corrupt length
+  // can't make a huge array
+  private static int readLength(MappedByteBuffer buffer, int minBytes) {
+    int length = buffer.getInt();
+    checkState(length >= 0 && ((long) length) * minBytes <= buffer.remaining(), "bad length %s", length);
+    return length;
+  }
+
+  private static int[] readIndexes(MappedByteBuffer buffer, int limit) {
+    int[] values = new int[readLength(buffer, 4)];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + values.length * 4);
+    for (int value : values) {
+      checkState(value >= 0 && value < limit, "index %s isnt in the cached alphabet", value);
+    }
+    return values;
+  }
+
+  /**
+   * Writes the instances for the key (through a temp file so a crash mid-write never leaves a partial entry); the
+   * alphabet entries must be strings
+   */
+  public void write(String key, InstanceList instances) throws IOException {
+    if (!dir.exists()) {
+      checkState(dir.mkdirs(), "couldnt create the piped instance cache dir %s", dir);
+    }
+    File target = fileFor(key);
+    File temp = new File(dir, target.getName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(Files.asByteSink(temp).openBufferedStream())) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeStrings(out, instances.getDataAlphabet());
+      writeStrings(out, instances.getTargetAlphabet());
+      out.writeInt(instances.size());
+      for (Instance instance : instances) {
+        FeatureVectorSequence data = (FeatureVectorSequence) instance.getData();
+        out.writeInt(data.size());
+        for (int j = 0; j < data.size(); j++) {
+          FeatureVector vector = data.getFeatureVector(j);
+          out.writeByte(vector.isBinary() ? 1 : 0);
+          out.writeInt(vector.numLocations());
+          for (int k = 0; k < vector.numLocations(); k++) {
+            out.writeInt(vector.indexAtLocation(k));
+          }
+          if (!vector.isBinary()) {
+            for (int k = 0; k < vector.numLocations(); k++) {
+              out.writeDouble(vector.valueAtLocation(k));
+            }
+          }
+        }
+        LabelSequence labels = (LabelSequence) instance.getTarget();
+        out.writeInt(labels.size());
+        for (int j = 0; j < labels.size(); j++) {
+          out.writeInt(labels.getIndexAtPosition(j));
+        }
+      }
+    }
+    if (target.exists()) {
+      checkState(target.delete(), "couldnt replace the cached piped instances %s", target);
+    }
+    checkState(temp.renameTo(target), "couldnt move the cached piped instances %s into place", temp);
+  }
+
+  private static void writeStrings(DataOutputStream out, Alphabet alphabet) throws IOException {
+    out.writeInt(alphabet.size());
+    for (int i = 0; i < alphabet.size(); i++) {
+      byte[] bytes = ((String) alphabet.lookupObject(i)).getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+}
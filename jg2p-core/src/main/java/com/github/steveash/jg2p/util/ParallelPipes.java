@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pipes training examples into an InstanceList using multiple threads for the feature extraction. Mallet's alphabets
+ * aren't thread safe and hand out indexes in the order that they first see things, so the pipe chain is split in
+ * two: the leading pipes that only work on the instance itself (making the token sequence and emitting the feature
+ * strings, which is where nearly all of the time goes) run on worker threads a chunk of examples at a time, and the
+ * trailing pipes that look things up in the alphabets (e.g. TokenSequence2FeatureVectorSequence and the label pipe)
+ * run on the calling thread in the order of the examples. The alphabets (and so the feature indexes) and the
+ * instances come out exactly the same as piping the examples one at a time with InstanceList.addThruPipe
+ * @author Steve Ash
+ */
+public class ParallelPipes {
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelPipes.class);
+
+  /**
+   * The number of trailing pipes in the training pipes of the CRF trainers that touch the alphabets: the feature
+   * vector sequence pipe and the label pipe
+   */
+  public static final int VECTOR_AND_LABEL_PIPES = 2;
+
+  private static final int CHUNK_SIZE = 128;
+  private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+
+  /**
+   * @return the threads to use for the given setting; 0 (or less) means one per processor
+   */
+  public static int threadCount(int configured) {
+    return (configured > 0 ? configured : Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Pipes the examples with one thread per processor
+   * @see #pipeAll(SerialPipes, int, Iterable, Function, int)
+   */
+  public static <T> InstanceList pipeAll(SerialPipes pipes, int orderedTailSize, Iterable<T> examples,
+                                         Function<? super T, Instance> toInstance) {
+    return pipeAll(pipes, orderedTailSize, examples, toInstance, threadCount(0));
+  }
+
+  /**
+   * @param pipes the pipes of the resulting instance list
+   * @param orderedTailSize the number of pipes at the end of the chain that must run in order on one thread
+   *                        because they touch the alphabets (or have any other shared state); the ones before
+   *                        these must be safe to run concurrently
+   * @param examples the training examples
+   * @param toInstance makes the (unpiped) instance for an example; runs on the worker threads
+   */
+  public static <T> InstanceList pipeAll(SerialPipes pipes, int orderedTailSize, Iterable<T> examples,
+                                         final Function<? super T, Instance> toInstance, int threadCount) {
+    checkArgument(orderedTailSize >= 0 && orderedTailSize <= pipes.size(), "bad ordered tail size %s",
+                  orderedTailSize);
+    checkArgument(threadCount > 0, "need at least one thread");
+    final List<Pipe> concurrent = pipes.pipes().subList(0, pipes.size() - orderedTailSize);
+    List<Pipe> ordered = pipes.pipes().subList(pipes.size() - orderedTailSize, pipes.size());
+
+    Stopwatch watch = Stopwatch.createStarted();
+    InstanceList instances = new InstanceList(pipes);
+    ListeningExecutorService service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+        threadCount, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("pipe-%d").build()));
+    try {
+      Iterator<T> source = examples.iterator();
+      ArrayDeque<ListenableFuture<List<Instance>>> inFlight = new ArrayDeque<>();
+      int maxInFlight = threadCount * CHUNKS_IN_FLIGHT_PER_THREAD;
+      while (true) {
+        while (inFlight.size() < maxInFlight && source.hasNext()) {
+          final List<T> chunk = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+          Iterators.addAll(chunk, Iterators.limit(source, CHUNK_SIZE));
+          inFlight.addLast(service.submit(new Callable<List<Instance>>() {
+            @Override
+            public List<Instance> call() throws Exception {
+              return Lists.newArrayList(pipeThrough(concurrent, Iterators.transform(chunk.iterator(), toInstance)));
+            }
+          }));
+        }
+        if (inFlight.isEmpty()) {
+          break;
+        }
+        Iterator<Instance> piped = pipeThrough(ordered, take(inFlight.removeFirst()).iterator());
+        while (piped.hasNext()) {
+          instances.add(piped.next());
+        }
+      }
+    } finally {
+      service.shutdownNow();
+    }
+    log.info("Piped " + instances.size() + " instances with " + threadCount + " threads in " + watch);
+    return instances;
+  }
+
+  // the same chaining as SerialPipes so each pipe's preconditions and target processing are honored
+  private static Iterator<Instance> pipeThrough(List<Pipe> pipes, Iterator<Instance> source) {
+    Iterator<Instance> result = source;
+    for (Pipe pipe : pipes) {
+      result = pipe.newIteratorFrom(result);
+    }
+    return result;
+  }
+
+  private static <V> V take(ListenableFuture<V> future) {
+    try {
+      return future.get();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.google.common.collect.Lists;
 import com.github.steveash.jg2p.align.AlignModel;
 import com.github.steveash.jg2p.align.Alignment;
 import com.github.steveash.jg2p.align.InputRecord;
+import com.github.steveash.jg2p.align.ParallelAligner;
 import com.github.steveash.kylm.model.ngram.NgramLM;
 import com.github.steveash.kylm.model.ngram.smoother.MKNSmoother;
 
@@ -43,12 +44,20 @@ public class G2pFstTrainer {
   private static final Joiner tieJoiner = Joiner.on(SeqTransducer.SEP);
 
   private NgramLM lastLm;
+  private int alignThreads = 0;
+
+  /**
+   * @param alignThreads the threads to force align the records with in alignAndTrain; 0 means one per processor
+   */
+  public void setAlignThreads(int alignThreads) {
+    this.alignThreads = alignThreads;
+  }
 
   public SeqTransducer alignAndTrain(List<InputRecord> records, AlignModel alignModel, int order) {
     log.info("Preparing training input for WFST trainer");
     List<String[]> sentences = Lists.newArrayListWithCapacity(records.size());
-    for (InputRecord record : records) {
-      List<Alignment> best = alignModel.align(record.xWord, record.yWord, 1);
+    ParallelAligner aligner = new ParallelAligner(alignModel, ParallelAligner.threadCount(alignThreads), 1);
+    for (List<Alignment> best : aligner.align(records)) {
       if (!best.isEmpty()) {
         sentences.add(alignToExample(best.get(0)));
       }
@@ -0,0 +1,81 @@
+import com.github.steveash.jg2p.PipelineEncoder
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.github.steveash.jg2p.util.ReadWrite
+import com.google.common.base.Stopwatch
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.TimeUnit
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Compares the top-1 word accuracy and the latency of PipelineEncoder.encodeBest in the full reranked mode against
+ * the best-only mode (for a few alignment budgets, and without normalizing for one alignment) on the cmu7b test set.
+ * A word is right if the best encoding matches any of its reference pronunciations. Run this against the model you
+ * deploy to decide which mode to use
+ */
+def testFile = "cmu7b.test"
+def modelFile = "../resources/pipe_43sy_cmu7_fixsg_1.dat"
+def alignmentBudgets = [1, 2, 3]
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def test = InputReader.makePSaurusReader().readFromClasspath(testFile)
+def expected = test.groupBy { it.left.asNoSpaceString }.collectEntries { word, recs ->
+  [(word): recs.collect { it.right.value } as Set]
+}
+def words = expected.keySet().collect { Word.fromNormalString(it) }
+def model = ReadWrite.readFromFile(PipelineModel, new File(modelFile))
+model.freezeForInference()
+def enc = new PipelineEncoder(model)
+
+def run = { String label ->
+  int right = 0
+  def watch = Stopwatch.createStarted()
+  words.each { word ->
+    def best = enc.encodeBest(word)
+    if (best != null && expected[word.asNoSpaceString].contains(best.phones)) {
+      right += 1
+    }
+  }
+  watch.stop()
+  def accuracy = right / (double) words.size()
+  def micros = watch.elapsed(TimeUnit.MICROSECONDS) / (double) words.size()
+  out.println(String.format("%-16s accuracy %.4f  avg latency %.1f us/word  (%s total)", label, accuracy, micros, watch))
+}
+
+// warm up each mode once before measuring
+enc.bestOnly = false
+run("warmup reranked")
+enc.bestOnly = true
+run("warmup bestOnly")
+
+enc.bestOnly = false
+run("reranked")
+alignmentBudgets.each { budget ->
+  enc.bestOnly = true
+  enc.bestOnlyAlignments = budget
+  run("bestOnly k=$budget")
+}
+// skipping z only changes the scores (which are then just log weights) not which encoding is best
+enc.bestOnlyAlignments = 1
+enc.bestOnlyNormalized = false
+run("bestOnly k=1 unnorm")
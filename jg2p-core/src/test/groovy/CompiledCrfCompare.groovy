@@ -0,0 +1,77 @@
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.github.steveash.jg2p.util.ReadWrite
+import com.google.common.base.Stopwatch
+import org.slf4j.LoggerFactory
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Compares the compiled CRF inference against the mallet lattices for the aligner and pronouncer of a pipeline
+ * model on the cmu7b test set and reports the time for each. They run the same search so every n-best list and
+ * score must be the same
+ */
+def testFile = "cmu7b.test"
+def modelFile = "../resources/pipe_43sy_cmu7_fixsg_1.dat"
+def nBest = 5
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def test = InputReader.makePSaurusReader().readFromClasspath(testFile)
+def model = ReadWrite.readFromFile(PipelineModel, new File(modelFile))
+def aligner = model.testingAlignerModel
+def pronouncer = model.pronouncerModel
+
+def run = { boolean compiled ->
+  model.setUseCompiledCrfs(compiled)
+  def results = []
+  def watch = Stopwatch.createStarted()
+  test.each { rec ->
+    def aligns = aligner.inferAlignments(Word.fromNormalString(rec.left.asNoSpaceString), nBest)
+    def tags = aligns.collect { pronouncer.tag(it, nBest) }
+    results << [aligns, tags]
+  }
+  watch.stop()
+  out.println("compiled=$compiled took $watch for ${test.size()} words")
+  return results
+}
+
+// warm up both paths once then measure
+run(false)
+run(true)
+def mallet = run(false)
+def compiled = run(true)
+
+int alignDiffs = 0
+int tagDiffs = 0
+mallet.eachWithIndex { m, i ->
+  def c = compiled[i]
+  if (m[0]*.graphones != c[0]*.graphones || m[0]*.score != c[0]*.score) {
+    alignDiffs += 1
+  }
+  if ([m[1], c[1]].transpose().any { tags, other ->
+    tags*.phones() != other*.phones() || tags*.sequenceLogProbability() != other*.sequenceLogProbability()
+  }) {
+    tagDiffs += 1
+  }
+}
+out.println("Words with different alignments: $alignDiffs, with different taggings: $tagDiffs")
+assert alignDiffs == 0
+assert tagDiffs == 0
@@ -28,6 +28,7 @@ out = new GroovyLogger(log)
 out.println("Starting the test...")
 
 def model = ReadWrite.readFromFile(PipelineModel, new File(modelFile))
+model.freezeForInference()
 
 def enc = new PipelineEncoder(model)
 println("state count " + model.pronouncerModel.crf.numStates())
@@ -98,6 +98,7 @@ if (testImmediately) {
   println "testing right now..."
   def test = InputReader.makePSaurusReader().readFromClasspath(testFile)
   pm.makeSparse()
+  pm.freezeForInference()
   def enc = new PipelineEncoder(pm)
 
   println "Starting eval with encoder $enc"
@@ -0,0 +1,75 @@
+import com.github.steveash.jg2p.PipelineEncoder
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.rerank.RerankGate
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.github.steveash.jg2p.util.ReadWrite
+import com.google.common.base.Stopwatch
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.TimeUnit
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Sweeps the rerank early exit gate over tag probability thresholds (with and without the unique mode requirement)
+ * and reports for each the top-1 word accuracy, throughput, and how often the gate fired (skipping the LM and the
+ * reranker) on the cmu7b test set. The first row is the always-rerank baseline
+ */
+def testFile = "cmu7b.test"
+def modelFile = "../resources/pipe_43sy_cmu7_fixsg_1.dat"
+def thresholds = [0.5, 0.8, 0.9, 0.95, 0.98, 0.99, 0.995, 0.999]
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def test = InputReader.makePSaurusReader().readFromClasspath(testFile)
+def expected = test.groupBy { it.left.asNoSpaceString }.collectEntries { word, recs ->
+  [(word): recs.collect { it.right.value } as Set]
+}
+def words = expected.keySet().collect { Word.fromNormalString(it) }
+def model = ReadWrite.readFromFile(PipelineModel, new File(modelFile))
+model.freezeForInference()
+def enc = new PipelineEncoder(model)
+
+def run = { RerankGate gate ->
+  enc.rerankGate = gate
+  int right = 0
+  def watch = Stopwatch.createStarted()
+  words.each { word ->
+    def results = enc.encode(word)
+    if (!results.isEmpty() && expected[word.asNoSpaceString].contains(results[0].phones)) {
+      right += 1
+    }
+  }
+  watch.stop()
+  def accuracy = right / (double) words.size()
+  def wordsPerSec = words.size() / (watch.elapsed(TimeUnit.MICROSECONDS) / 1e6)
+  def label = (gate == null ? "always rerank" : "p>=${gate.minTagProbability} mode=${gate.requireUniqueMode}")
+  def fired = (gate == null ? 0.0 : gate.firedRate)
+  out.println(String.format("%-28s accuracy %.4f  %8.1f words/sec  gate fired %.3f", label, accuracy, wordsPerSec,
+                            fired))
+}
+
+run(null) // warm up
+run(null)
+[true, false].each { mode ->
+  thresholds.each { threshold ->
+    run(new RerankGate(threshold, mode))
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p
+
+import com.google.common.base.Supplier
+import org.junit.Test
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * @author Steve Ash
+ */
+class BatchEncoderTest {
+
+  @Test
+  public void shouldPreserveOrderAndDedupe() throws Exception {
+    def calls = new AtomicInteger()
+    def enc = new Encoder() {
+      @Override
+      List<? extends EncodingResult> encode(Word input) {
+        calls.incrementAndGet()
+        def value = input.asNoSpaceString
+        return (0..<3).collect { i ->
+          PhoneticEncoder.Encoding.createEncoding(input.value, [value.toUpperCase(), "R" + i], [], 0, 0, 0, 0)
+        }
+      }
+    }
+    def batch = new BatchEncoder(enc, new ForkJoinPool(4), 2)
+    def inputs = ["one", "two", "one", "three", "four", "two", "five"].collect { Word.fromNormalString(it) }
+    def results = batch.encodeAll(inputs, 2)
+
+    assert calls.get() == 5
+    assert results.size() == inputs.size()
+    assert results.collect { it.size() }.unique() == [2]
+    assert results.collect { it[0].phones[0] } == ["ONE", "TWO", "ONE", "THREE", "FOUR", "TWO", "FIVE"]
+    assert results[0].is(results[2])
+  }
+
+  @Test
+  public void shouldNotForceLazyResultsForTopOne() throws Exception {
+    def modelCalls = new AtomicInteger()
+    def enc = new Encoder() {
+      @Override
+      List<? extends EncodingResult> encode(Word input) {
+        def rule = PhoneticEncoder.Encoding.createEncoding(input.value, ["R"], [], 0, 0, 0, 0)
+        return new PipelineEncoder.RuleFirstResults(rule, {
+          modelCalls.incrementAndGet()
+          return [PhoneticEncoder.Encoding.createEncoding(input.value, ["M"], [], 0, 0, 0, 0)]
+        } as Supplier)
+      }
+    }
+    def batch = new BatchEncoder(enc, new ForkJoinPool(2), 1)
+    def inputs = ["ibm", "nasa"].collect { Word.fromNormalString(it) }
+    def best = batch.encodeAll(inputs, 1)
+    assert best.collect { it*.phones } == [[["R"]], [["R"]]]
+    assert modelCalls.get() == 0
+
+    def all = batch.encodeAll(inputs, 5)
+    assert all.collect { it*.phones } == [[["R"], ["M"]], [["R"], ["M"]]]
+    assert modelCalls.get() == 2
+  }
+
+  @Test
+  public void shouldOnlyShutDownThePoolItMade() throws Exception {
+    def enc = new Encoder() {
+      @Override
+      List<? extends EncodingResult> encode(Word input) {
+        return [PhoneticEncoder.Encoding.createEncoding(input.value, ["X"], [], 0, 0, 0, 0)]
+      }
+    }
+    def own = new BatchEncoder(enc, 2)
+    assert own.encodeAll([Word.fromNormalString("one")], 1)*.size() == [1]
+    own.close()
+    assert own.pool.isTerminated()
+
+    def given = new ForkJoinPool(2)
+    def shared = new BatchEncoder(enc, given)
+    shared.close()
+    assert !given.isShutdown()
+    assert shared.encodeAll([Word.fromNormalString("one")], 1)*.size() == [1]
+    given.shutdown()
+
+    new BatchEncoder(enc).close()
+    assert !BatchEncoder.defaultPool().isShutdown()
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p
+
+import com.google.common.base.Supplier
+import com.google.common.io.CharSource
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class CachingEncoderTest {
+
+  private int calls = 0
+
+  private final Encoder counting = new Encoder() {
+    @Override
+    List<? extends EncodingResult> encode(Word input) {
+      calls += 1
+      return [PhoneticEncoder.Encoding.createEncoding(input.value, input.value, [], 0, 0, 0, 0)]
+    }
+  }
+
+  @Test
+  public void shouldCacheAndCount() throws Exception {
+    def enc = new CachingEncoder(counting, 2)
+    def a = enc.encode(Word.fromNormalString("ABC"))
+    def b = enc.encode(Word.fromNormalString("ABC"))
+    assert a.is(b)
+    assert calls == 1
+    assert enc.hitCount() == 1
+    assert enc.missCount() == 1
+
+    enc.encode(Word.fromNormalString("DEF"))
+    enc.encode(Word.fromNormalString("GHI"))
+    assert enc.size() <= 2
+    assert enc.evictionCount() >= 1
+  }
+
+  @Test
+  public void shouldReadFrequencyListByDescendingCount() throws Exception {
+    def source = CharSource.wrap("SMITH 10\nJONES 300\n\nBROWN\nLEE 300\n")
+    def words = CachingEncoder.readFrequencyList(source)
+    assert words*.asNoSpaceString == ["JONES", "LEE", "SMITH", "BROWN"]
+
+    def enc = new CachingEncoder(counting, 3)
+    enc.preload(words)
+    assert calls == 3
+    enc.encode(Word.fromNormalString("JONES"))
+    assert calls == 3
+  }
+
+  @Test
+  public void shouldNotForceLazyResultsOnAMiss() throws Exception {
+    def rule = PhoneticEncoder.Encoding.createEncoding(["A"], ["AH"], [], 0, 0, 0, 0)
+    def candidates = 0
+    def lazy = new Encoder() {
+      @Override
+      List<? extends EncodingResult> encode(Word input) {
+        return new PipelineEncoder.RuleFirstResults(rule, new Supplier<List<PhoneticEncoder.Encoding>>() {
+          @Override
+          List<PhoneticEncoder.Encoding> get() {
+            candidates += 1
+            return []
+          }
+        })
+      }
+    }
+    def enc = new CachingEncoder(lazy, 2)
+    def results = enc.encode(Word.fromNormalString("A"))
+    assert results.get(0).is(rule)
+    assert enc.encode(Word.fromNormalString("A")).get(0).is(rule)
+    assert candidates == 0
+    assert results.size() == 1
+    assert candidates == 1
+    try {
+      results.add(rule)
+      assert false, "should have failed"
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+}
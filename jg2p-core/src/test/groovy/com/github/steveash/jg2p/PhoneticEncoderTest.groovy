@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.Sequence
+import com.github.steveash.jg2p.align.Aligner
+import com.github.steveash.jg2p.crf.CrfScorer
+import com.github.steveash.jg2p.seq.PhonemeCrfModel
+import com.github.steveash.jg2p.seq.PhonemeCrfTrainer
+import com.github.steveash.jg2p.seq.PhonemeFeatureExtractorTest
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class PhoneticEncoderTest {
+
+  // a few different (syllabified) alignments of each word, always the same ones for the same word
+  private static final Aligner aligner = { Word x, int nBest ->
+    def word = x.asNoSpaceString
+    def rand = new Random(word.hashCode())
+    return (0..<nBest).collect { PhonemeFeatureExtractorTest.makeAlignment(word, rand) }
+  } as Aligner
+
+  private static final List<String> words = ["psychology", "knight", "phoenix", "strength", "rhythm", "queue",
+                                             "above", "tomato", "oxygen"]
+
+  private static PhonemeCrfModel trainTagger() {
+    def instances = new InstanceList(PhonemeCrfTrainer.makePipe(new Alphabet()))
+    words.each { word ->
+      aligner.inferAlignments(Word.fromNormalString(word), 2).each { align ->
+        def labels = align.graphones.collect { "aeiouy".contains(it.left.substring(0, 1)) ? "V" : "C" }
+        instances.addThruPipe(new Instance(align, labels, null, null))
+      }
+    }
+    def crf = new CRF(instances.getPipe(), null)
+    crf.addOrderNStates(instances, [1] as int[], null, null, null, null, false)
+    crf.addStartState()
+    crf.setWeightsDimensionAsIn(instances, false)
+    new CRFTrainerByLabelLikelihood(crf).train(instances, 3)
+    return new PhonemeCrfModel(crf)
+  }
+
+  @Test
+  public void shouldScoreBestWithNormalizedProbabilities() throws Exception {
+    def tagger = trainTagger()
+    def encoder = new PhoneticEncoder(aligner, tagger, 5, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY)
+
+    words.each { word ->
+      def input = Word.fromNormalString(word)
+      def one = encoder.encodeBest(input, 1)
+      def expected = tagger.tag(aligner.inferAlignments(input, 1)[0], 1)[0]
+      assert one.phones == expected.phones()
+      assert one.tagScore == expected.sequenceLogProbability()
+      assert one.tagProbability() <= 1.0
+
+      // with more alignments the best can only get more probable and is scored the same way
+      def three = encoder.encodeBest(input, 3)
+      assert three.tagProbability() <= 1.0
+      assert three.tagScore >= one.tagScore
+    }
+  }
+
+  @Test
+  public void shouldSkipNormalizingOnlyWhenAskedWithOneAlignment() throws Exception {
+    def tagger = trainTagger()
+    def encoder = new PhoneticEncoder(aligner, tagger, 5, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY)
+
+    words.each { word ->
+      def input = Word.fromNormalString(word)
+      def align = aligner.inferAlignments(input, 1)[0]
+      def normalized = encoder.encodeBest(input, 1)
+      def unnormalized = encoder.encodeBest(input, 1, false)
+      def expected = tagger.tag(align, 1, false)[0]
+      assert unnormalized.phones == normalized.phones
+      assert unnormalized.tagScore == expected.sequenceLogProbability()
+      // the log weight is the log probability plus log z
+      def inSeq = tagger.crf.inputPipe.instanceFrom(new Instance(align, null, null, null)).data as Sequence
+      assert Math.abs(unnormalized.tagScore - normalized.tagScore - new CrfScorer(tagger.crf, inSeq).logZ()) < 1e-9
+
+      // the taggings of more than one alignment are ranked against each other so those are still normalized
+      assert encoder.encodeBest(input, 3, false).tagScore == encoder.encodeBest(input, 3).tagScore
+    }
+  }
+}
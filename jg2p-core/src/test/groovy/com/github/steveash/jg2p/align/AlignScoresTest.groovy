@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.github.steveash.jg2p.Word
+import com.google.common.math.DoubleMath
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * @author Steve Ash
+ */
+class AlignScoresTest {
+
+  private static ProbTable table() {
+    def probs = new ProbTable()
+    probs.setProb("c", "K", 0.25d)
+    probs.setProb("c h", "CH", 0.125d)
+    probs.setProb("h", "", 0.0625d)
+    probs.setProb("a", "AE", 0.5d)
+    probs.setProb("a", "EY", 0.0625d)
+    return probs
+  }
+
+  @Test
+  public void shouldLookupGramsWithoutStrings() throws Exception {
+    def probs = table()
+    def scores = new AlignScores(probs, NullPenalizer.Instance)
+    int[] ids = new int[3 * 2]
+    scores.gramIds(Word.fromNormalString("cha"), 2, ids)
+    int c = ids[0], ch = ids[1], h = ids[2], ha = ids[3], a = ids[4]
+    assert ids[5] == AlignScores.UNKNOWN // past the end of the word
+    assert ha == AlignScores.UNKNOWN // never in the table
+
+    int[] yIds = new int[3]
+    scores.gramIds(Word.fromSpaceSeparated("K CH AE"), 1, yIds)
+    assert scores.jointScore(c, yIds[0]) == -2.0d
+    assert scores.jointScore(ch, yIds[1]) == -3.0d
+    assert scores.jointScore(h, AlignScores.EPSILON) == -4.0d
+    assert scores.jointScore(a, yIds[2]) == -1.0d
+    assert scores.jointScore(c, yIds[2]) == Double.NEGATIVE_INFINITY
+    assert scores.jointScore(ha, yIds[2]) == Double.NEGATIVE_INFINITY
+
+    def margs = probs.calculateMarginals()
+    assert scores.xScore(a) == DoubleMath.log2(margs.probX("a"))
+    assert scores.xScore(ch) == DoubleMath.log2(margs.probX("c h"))
+    assert scores.xScore(yIds[0]) == Double.NEGATIVE_INFINITY // only a y gram
+  }
+
+  @Test
+  public void shouldFoldInThePenalizer() throws Exception {
+    def probs = table()
+    def scores = new AlignScores(probs, CityBlockPenalizer.Instance)
+    int[] ids = new int[2 * 2]
+    scores.gramIds(Word.fromNormalString("ch"), 2, ids)
+    int[] yIds = new int[1]
+    scores.gramIds(Word.fromSpaceSeparated("CH"), 1, yIds)
+    def expected = DoubleMath.log2(CityBlockPenalizer.Instance.penalize("c h", "CH", 0.125d))
+    assert scores.jointScore(ids[1], yIds[0]) == expected
+    assert expected != -3.0d
+  }
+
+  @Test
+  public void shouldScoreTheSameFromManyThreads() throws Exception {
+    def scores = new AlignScores(table(), NullPenalizer.Instance)
+    int[] ids = new int[3 * 2]
+    scores.gramIds(Word.fromNormalString("cha"), 2, ids)
+    int[] yIds = new int[3]
+    scores.gramIds(Word.fromSpaceSeparated("K CH AE"), 1, yIds)
+    // hits and misses interleaved so a lookup that kept state between calls would mix them up
+    def pairs = [[ids[0], yIds[0], -2.0d], [ids[1], yIds[1], -3.0d], [ids[2], AlignScores.EPSILON, -4.0d],
+                 [ids[4], yIds[2], -1.0d], [ids[0], yIds[2], Double.NEGATIVE_INFINITY]]
+    def service = Executors.newFixedThreadPool(8)
+    try {
+      def futures = (0..<8).collect { int t ->
+        service.submit({
+          int wrong = 0
+          for (int i = 0; i < 200000; i++) {
+            def pair = pairs[(i + t) % pairs.size()]
+            if (scores.jointScore(pair[0] as int, pair[1] as int) != pair[2]) {
+              wrong += 1
+            }
+          }
+          return wrong
+        } as Callable<Integer>)
+      }
+      assert futures*.get() == [0] * 8
+    } finally {
+      service.shutdownNow()
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.google.common.io.Files
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class AlignerCheckpointTest {
+
+  private static TrainOptions options(int maxIterations) {
+    def opts = new TrainOptions()
+    opts.alignerThreads = 2
+    opts.trainingAlignerMaxIterations = maxIterations
+    return opts
+  }
+
+  @Test
+  public void shouldRoundTrip() throws Exception {
+    def probs = new ProbTable()
+    probs.setProb("a", "A", 0.25d)
+    probs.setProb("a b", "B", 1.0d / 3.0d)
+    probs.setProb("c", "", 0.0d)
+    def dir = Files.createTempDir()
+    def file = new AlignerCheckpoint(7, 100, 4, "xGrams=1-2", [0.5d, 0.25d] as double[], probs).writeTo(dir, 0)
+    def back = AlignerCheckpoint.readFrom(file)
+    assert back.iteration == 7
+    assert back.recordCount == 100
+    assert back.workerCount == 4
+    assert back.walkerOptions == "xGrams=1-2"
+    assert back.massDeltas == [0.5d, 0.25d] as double[]
+    assert back.probs.entryCount() == 3
+    probs.each { assert back.probs.prob(it.rowKey, it.columnKey) == it.value }
+  }
+
+  @Test
+  public void shouldResumeToSameModelAsUninterrupted() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def uninterrupted = new AlignerTrainer(options(6)).train(records).transitions
+
+    def dir = Files.createTempDir()
+    def firstOpts = options(4)
+    firstOpts.alignerCheckpointDir = dir
+    firstOpts.alignerCheckpointEvery = 1
+    firstOpts.alignerCheckpointKeep = 2
+    new AlignerTrainer(firstOpts).train(records)
+    // the last round doesnt checkpoint as training is over
+    assert AlignerCheckpoint.checkpointsIn(dir)*.name == ["aligner-em-000002.ckpt", "aligner-em-000003.ckpt"]
+
+    def resumeOpts = options(6)
+    resumeOpts.alignerResumeFrom = AlignerCheckpoint.fileFor(dir, 3)
+    def resumed = new AlignerTrainer(resumeOpts).train(records).transitions
+
+    assert resumed.entryCount() == uninterrupted.entryCount()
+    uninterrupted.each { assert resumed.prob(it.rowKey, it.columnKey) == it.value }
+  }
+
+  @Test
+  public void shouldRejectResumeWithDifferentWalkerOptions() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def dir = Files.createTempDir()
+    def firstOpts = options(3)
+    firstOpts.alignerCheckpointDir = dir
+    firstOpts.alignerCheckpointEvery = 1
+    new AlignerTrainer(firstOpts).train(records)
+
+    def changes = [{ it.maxXGram = 3 }, { it.useWindowWalker = false }, { it.windowPadding = 1 },
+                   { it.includeXEpsilons = false }]
+    changes.each { change ->
+      def resumeOpts = options(6)
+      resumeOpts.alignerResumeFrom = AlignerCheckpoint.fileFor(dir, 2)
+      change(resumeOpts)
+      try {
+        new AlignerTrainer(resumeOpts).train(records)
+        assert false, "should have failed"
+      } catch (IllegalStateException e) {
+        assert e.message.contains("was written with the aligner options")
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.github.steveash.jg2p.syll.SWord
+import com.google.common.io.Files
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class AlignmentCacheTest {
+
+  @Test
+  public void shouldRoundTripAlignments() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 3
+    def model = new AlignerTrainer(opts).train(records)
+    def aligned = records.collectMany { model.align(it.xWord, it.yWord, 2) }
+    def syll = model.align(records[0].xWord, new SWord("HH AA R L AH K ER", "0 3 5", "1 0 0"), 1)
+    assert syll.size() == 1
+    aligned.addAll(syll)
+
+    def cache = new AlignmentCache(Files.createTempDir())
+    def key = AlignmentCache.keyFor(records, model, 2, Integer.MIN_VALUE)
+    assert cache.read(key) == null
+    cache.write(key, aligned)
+    def back = cache.read(key)
+    assert back.size() == aligned.size()
+    aligned.eachWithIndex { Alignment expected, int i ->
+      assert back[i].inputWord == expected.inputWord
+      assert back[i].graphones == expected.graphones
+      assert back[i].score == expected.score
+      assert back[i].graphoneSyllableGrams == expected.graphoneSyllableGrams
+    }
+    assert back.last().syllWord.bounds == [0, 3, 5] as int[]
+    assert back.last().syllWord.syllableStress == [1, 0, 0] as int[]
+    assert back.last().syllWord.value == syll[0].syllWord.value
+  }
+
+  @Test
+  public void shouldChangeKeyWithRecordsOrModel() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 2
+    def model = new AlignerTrainer(opts).train(records)
+    def key = AlignmentCache.keyFor(records, model, 1, Integer.MIN_VALUE)
+    assert AlignmentCache.keyFor(records, model, 1, Integer.MIN_VALUE) == key
+    // the same table loaded in a different order is the same model
+    def shuffled = new ProbTable()
+    model.transitions.toList().reverse().each { shuffled.setProb(it.rowKey, it.columnKey, it.value) }
+    assert AlignmentCache.keyFor(records, new AlignModel(model.gramOptions, shuffled), 1, Integer.MIN_VALUE) == key
+
+    assert AlignmentCache.keyFor(records.subList(1, records.size()), model, 1, Integer.MIN_VALUE) != key
+    assert AlignmentCache.keyFor(records, model, 2, Integer.MIN_VALUE) != key
+    def changed = new ProbTable()
+    changed.addAll(model.transitions)
+    changed.addProb("A", "AH", 0.01d)
+    assert AlignmentCache.keyFor(records, new AlignModel(model.gramOptions, changed), 1, Integer.MIN_VALUE) != key
+  }
+
+  @Test
+  public void shouldMissOnCorruptEntry() throws Exception {
+    def cache = new AlignmentCache(Files.createTempDir())
+    Files.write("junk".bytes, cache.fileFor("abc"))
+    assert cache.read("abc") == null
+  }
+}
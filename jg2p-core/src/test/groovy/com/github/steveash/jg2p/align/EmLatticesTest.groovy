@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.github.steveash.jg2p.Word
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class EmLatticesTest {
+
+  private static List<InputRecord> sample() {
+    return InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+  }
+
+  @Test
+  public void shouldMatchOffHeapLattices() throws Exception {
+    def records = sample()
+    def walker = new FullXyWalker(new TrainOptions().makeGramOptions())
+    def onHeap = EmLattices.compile(records, walker, false)
+    def offHeap = EmLattices.compile(records, walker, true)
+    assert onHeap.pairCount() == offHeap.pairCount()
+    assert onHeap.edgeCount() == offHeap.edgeCount()
+    double[] pairProbs = new double[onHeap.pairCount()]
+    Arrays.fill(pairProbs, 0.2d)
+    double[] onCounts = new double[onHeap.pairCount()]
+    double[] offCounts = new double[offHeap.pairCount()]
+    boolean[] visited = new boolean[onHeap.pairCount()]
+    (0..<records.size()).each {
+      onHeap.expectation(it, pairProbs, onCounts, visited)
+      offHeap.expectation(it, pairProbs, offCounts, visited)
+    }
+    assert onCounts == offCounts
+  }
+
+  @Test
+  public void shouldMatchUnscaledWhenNoUnderflow() throws Exception {
+    def records = sample()
+    def withEpsY = new TrainOptions()
+    withEpsY.includeEpsilonYs = true
+    def walkers = [new FullXyWalker(withEpsY.makeGramOptions()), new WindowXyWalker(new TrainOptions().makeGramOptions())]
+    walkers.each { walker ->
+      def lattices = EmLattices.compile(records, walker, false)
+      def rand = new Random(0xCAFE)
+      double[] pairProbs = new double[lattices.pairCount()]
+      (0..<pairProbs.length).each { pairProbs[it] = rand.nextDouble() * 0.3d }
+      double[] plainCounts = new double[lattices.pairCount()]
+      double[] scaledCounts = new double[lattices.pairCount()]
+      boolean[] plainVisited = new boolean[lattices.pairCount()]
+      boolean[] scaledVisited = new boolean[lattices.pairCount()]
+      (0..<records.size()).each {
+        assert !lattices.expectation(it, pairProbs, plainCounts, plainVisited)
+        assert !lattices.expectationScaled(it, pairProbs, scaledCounts, scaledVisited)
+      }
+      assert plainVisited == scaledVisited
+      (0..<pairProbs.length).each {
+        assert Math.abs(plainCounts[it] - scaledCounts[it]) <= 1.0e-9 * Math.max(1.0d, plainCounts[it])
+      }
+    }
+  }
+
+  @Test
+  public void shouldKeepCountsForRecordsThatUnderflow() throws Exception {
+    def opts = new TrainOptions()
+    opts.maxXGram = 1
+    opts.includeXEpsilons = false
+    def x = Word.fromNormalString("a" * 400)
+    def y = Word.fromSpaceSeparated((["A"] * 400).join(" "))
+    def lattices = EmLattices.compile([new InputRecord(x, y)], new FullXyWalker(opts.makeGramOptions()), false)
+    assert lattices.pairCount() == 1
+    double[] pairProbs = [1.0e-3d] as double[]
+
+    double[] plainCounts = new double[1]
+    assert lattices.expectation(0, pairProbs, plainCounts, new boolean[1])
+    assert plainCounts[0] == 0.0d
+
+    // only one path through the lattice so every edge on it has an expected count of one
+    double[] scaledCounts = new double[1]
+    assert lattices.expectationScaled(0, pairProbs, scaledCounts, new boolean[1])
+    assert Math.abs(scaledCounts[0] - 400.0d) < 1.0e-6
+  }
+
+  @Test
+  public void shouldMatchWithSmallChunksAndReusedScratch() throws Exception {
+    def records = sample()
+    def walker = new FullXyWalker(new TrainOptions().makeGramOptions())
+    def oneChunk = EmLattices.compile(records, walker, false)
+    def manyChunks = EmLattices.compile(records, walker, true, 64) // most records get a chunk of their own
+    assert manyChunks.edgeCount() == oneChunk.edgeCount()
+    def rand = new Random(0xBEEF)
+    double[] pairProbs = new double[oneChunk.pairCount()]
+    (0..<pairProbs.length).each { pairProbs[it] = rand.nextDouble() * 0.3d }
+    [true, false].each { scaled ->
+      double[] freshCounts = new double[oneChunk.pairCount()]
+      double[] reusedCounts = new double[oneChunk.pairCount()]
+      boolean[] visited = new boolean[oneChunk.pairCount()]
+      def scratch = new EmLattices.Scratch()
+      // longest first so the scratch arrays are bigger than (and dirty past) every later record
+      def order = (0..<records.size()).toList().sort { -records[it].xWord.unigramCount() }
+      order.each {
+        if (scaled) {
+          oneChunk.expectationScaled(it, pairProbs, freshCounts, visited)
+          manyChunks.expectationScaled(it, pairProbs, reusedCounts, visited, scratch)
+        } else {
+          oneChunk.expectation(it, pairProbs, freshCounts, visited)
+          manyChunks.expectation(it, pairProbs, reusedCounts, visited, scratch)
+        }
+      }
+      assert freshCounts == reusedCounts
+    }
+  }
+}
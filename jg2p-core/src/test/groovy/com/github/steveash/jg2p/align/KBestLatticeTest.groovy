@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class KBestLatticeTest {
+
+  // every way to cover xSize - 1 steps with hops of 1 or 2, where a hop of length n scores -n * n
+  private static List<Double> bestScores(KBestLattice t, int xSize, int k) {
+    t.reset(xSize, 1, k)
+    t.start()
+    for (int xx = 1; xx < xSize; xx++) {
+      for (int i = 1; i <= 2 && xx - i >= 0; i++) {
+        t.extend(xx, 0, xx - i, 0, -i * i, i, 0)
+      }
+    }
+    def scores = (0..<t.size(xSize - 1, 0)).collect { t.score(xSize - 1, 0, it) }
+    return scores.sort().reverse()
+  }
+
+  private static List<Integer> hopsOf(KBestLattice t, int xSize, int slot) {
+    def hops = []
+    int xx = xSize - 1
+    while (xx > 0) {
+      int back = t.xBackRef(xx, 0, slot)
+      hops.add(0, back)
+      slot = t.parentSlot(xx, 0, slot)
+      xx -= back
+    }
+    return hops
+  }
+
+  @Test
+  public void shouldKeepTheKBestPaths() throws Exception {
+    def t = new KBestLattice()
+    // 4 unit steps: all ones = -4, one hop of two = -6 (three ways), two hops of two = -8 (one way)
+    assert bestScores(t, 5, 3) == [-4.0d, -6.0d, -6.0d]
+    assert bestScores(t, 5, 10) == [-4.0d, -6.0d, -6.0d, -6.0d, -8.0d]
+    assert bestScores(t, 5, 1) == [-4.0d]
+    int best = (0..<t.size(4, 0)).max { t.score(4, 0, it) }
+    assert hopsOf(t, 5, best) == [1, 1, 1, 1]
+  }
+
+  @Test
+  public void shouldGiveSameResultsWhenReused() throws Exception {
+    def t = new KBestLattice()
+    def small = bestScores(t, 6, 4)
+    bestScores(t, 40, 8)
+    assert bestScores(t, 6, 4) == small
+    assert bestScores(new KBestLattice(), 6, 4) == small
+  }
+}
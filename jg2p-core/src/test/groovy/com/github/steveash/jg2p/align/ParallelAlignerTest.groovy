@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+/**
+ * @author Steve Ash
+ */
+class ParallelAlignerTest {
+
+  @Test
+  public void shouldMatchSequentialAlignmentsInOrder() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 5
+    def model = new AlignerTrainer(opts).train(records)
+    def expected = records.collect { model.align(it.xWord, it.yWord, 2) }
+    assert expected.count { !it.isEmpty() } > 1000
+
+    [1, 3, 8].each { threads ->
+      def aligned = new ParallelAligner(model, threads, 2).align(records)
+      // twice as every iteration aligns the records again
+      2.times {
+        def actual = aligned.collect { it }
+        assert actual.size() == expected.size()
+        actual.eachWithIndex { best, i ->
+          assert best.collect { it.graphones } == expected[i].collect { it.graphones }
+          assert best.collect { it.score } == expected[i].collect { it.score }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldAlignTheSameFromManyThreadsOnOneModel() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 5
+    def model = new AlignerTrainer(opts).train(records)
+    def expected = records.collect { model.align(it.xWord, it.yWord, 3) }
+    def expectedInferred = records.collect { model.inferAlignments(it.xWord, 2) }
+
+    int threads = 16
+    def start = new CountDownLatch(1)
+    def service = Executors.newFixedThreadPool(threads)
+    try {
+      def futures = (0..<threads).collect { int t ->
+        service.submit({
+          start.await()
+          int mismatches = 0
+          // each thread walks the records from a different offset so they align different words at once
+          for (int n = 0; n < records.size(); n++) {
+            int i = (n + t * 97) % records.size()
+            def best = model.align(records[i].xWord, records[i].yWord, 3)
+            if (best*.graphones != expected[i]*.graphones || best*.score != expected[i]*.score) {
+              mismatches += 1
+            }
+            def inferred = model.inferAlignments(records[i].xWord, 2)
+            if (inferred*.graphones != expectedInferred[i]*.graphones) {
+              mismatches += 1
+            }
+          }
+          return mismatches
+        } as Callable<Integer>)
+      }
+      start.countDown()
+      assert futures*.get() == [0] * threads
+    } finally {
+      service.shutdownNow()
+    }
+
+    def aligned = new ParallelAligner(model, threads, 3).align(records).collect { it }
+    aligned.eachWithIndex { best, i ->
+      assert best*.graphones == expected[i]*.graphones
+      assert best*.score == expected[i]*.score
+    }
+  }
+
+  @Test
+  public void shouldAlignNothing() throws Exception {
+    def model = new AlignModel(new TrainOptions().makeGramOptions(), new ProbTable())
+    assert new ParallelAligner(model, 2, 1).align([]).collect { it } == []
+  }
+}
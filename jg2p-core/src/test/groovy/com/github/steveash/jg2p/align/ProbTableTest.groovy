@@ -40,4 +40,57 @@ class ProbTableTest {
     assert c.size() == 5
     assert c.collect { it.left + it.right }.toList().sort() == ["13", "23", "45", "67", "78"]
   }
+
+  @Test
+  public void shouldMergeAndMarginalize() throws Exception {
+    def a = new ProbTable()
+    a.addProb("a", "AH", 1.0)
+    a.addProb("a", "AH", 1.0)
+    a.addProb("a", "EY", 2.0)
+    def b = new ProbTable()
+    b.addProb("b", "B", 4.0)
+    b.addProb("a", "EY", 2.0)
+    def sink = new ProbTable()
+    ProbTable.mergeAll([a, b], sink)
+
+    assert sink.entryCount() == 3
+    assert sink.prob("a", "AH") == 2.0
+    assert sink.prob("a", "EY") == 4.0
+    assert sink.prob("b", "B") == 4.0
+    assert sink.prob("b", "AH") == 0.0
+    assert sink.prob("zz", "AH") == 0.0
+    assert sink.xRows() == ["a", "b"] as Set
+    assert sink.yCols() == ["AH", "EY", "B"] as Set
+    assert sink.getYProbForX("a") == [AH: 2.0, EY: 4.0]
+
+    def norm = sink.makeNormalizedCopy()
+    def margs = norm.calculateMarginals()
+    assert margs.countX() == 2
+    assert margs.countY() == 3
+    assert Math.abs(margs.sumOfAllJointProbabilities() - 1.0) < 1e-12
+    assert Math.abs(margs.probX("a") - 0.6) < 1e-12
+    assert Math.abs(margs.probY("EY") - 0.4) < 1e-12
+
+    def rows = sink.makeRowNormalizedCopy()
+    assert Math.abs(rows.prob("a", "AH") - (1.0d / 3.0d)) < 1e-12
+    assert rows.prob("b", "B") == 1.0
+
+    sink.clear()
+    assert sink.entryCount() == 0
+    assert sink.xRows().isEmpty()
+    assert sink.calculateMarginals().countX() == 0
+  }
+
+  @Test
+  public void shouldRoundTripSerialization() throws Exception {
+    def a = new ProbTable()
+    a.setProb("a", "AH", 0.25)
+    a.setProb("ph", "F", 1.0)
+    def bytes = new ByteArrayOutputStream()
+    new ObjectOutputStream(bytes).writeObject(a)
+    ProbTable b = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject() as ProbTable
+    assert b.entryCount() == 2
+    assert b.prob("a", "AH") == 0.25
+    assert b.prob("ph", "F") == 1.0
+  }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class ShardedExpectationTest {
+
+  @Test
+  public void shouldMatchSerialCountsForAnyWorkerCount() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def lattices = EmLattices.compile(records, new FullXyWalker(new TrainOptions().makeGramOptions()), false)
+    double[] pairProbs = new double[lattices.pairCount()]
+    Arrays.fill(pairProbs, 0.1d)
+    double[] serialCounts = new double[lattices.pairCount()]
+    boolean[] serialVisited = new boolean[lattices.pairCount()]
+    (0..<lattices.recordCount()).each { lattices.expectation(it, pairProbs, serialCounts, serialVisited) }
+    def expected = new ProbTable()
+    (0..<lattices.pairCount()).each {
+      if (serialVisited[it]) {
+        expected.addProb(lattices.pairX(it), lattices.pairY(it), serialCounts[it])
+      }
+    }
+    assert expected.entryCount() > 0
+
+    [1, 2, 3, 7, records.size() + 5].each { workers ->
+      def sharded = new ShardedExpectation(workers)
+      try {
+        // twice to make sure that the worker arrays are reset between iterations
+        2.times {
+          def sink = new ProbTable()
+          assert sharded.expectation(lattices, pairProbs, false, sink) == 0
+          assert sink.entryCount() == expected.entryCount()
+          expected.each { cell -> assert Math.abs(sink.prob(cell.rowKey, cell.columnKey) - cell.value) < 1.0e-9 }
+        }
+      } finally {
+        sharded.close()
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.google.common.base.Charsets
+import com.google.common.io.Resources
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class StepwiseAlignerTrainerTest {
+
+  private final InputReader reader = InputReader.makeDefaultFormatReader()
+
+  private Iterable<InputRecord> streamSample() {
+    return reader.stream(Resources.asCharSource(Resources.getResource("sample.txt"), Charsets.UTF_8))
+  }
+
+  @Test
+  public void shouldStreamSameRecordsAsRead() throws Exception {
+    def records = reader.readFromClasspath("sample.txt")
+    def streamed = streamSample()
+    // twice as every pass re-reads the source
+    2.times { assert streamed.collect { it } == records }
+  }
+
+  @Test
+  public void shouldMostlyAgreeWithBatchEm() throws Exception {
+    def records = reader.readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.alignerBatchSize = 50
+    opts.alignerStepwisePasses = 3
+    def batch = new AlignerTrainer(opts).train(records)
+    def stepwise = new StepwiseAlignerTrainer(opts).train(streamSample())
+
+    int same = 0
+    int total = 0
+    records.each { rec ->
+      def batchBest = batch.align(rec.left, rec.right, 1)
+      def stepwiseBest = stepwise.align(rec.left, rec.right, 1)
+      if (batchBest.isEmpty()) {
+        return
+      }
+      total += 1
+      if (!stepwiseBest.isEmpty() && batchBest[0].graphones == stepwiseBest[0].graphones) {
+        same += 1
+      }
+    }
+    assert total > 1000
+    assert same / (double) total > 0.95
+  }
+
+  @Test
+  public void shouldBlendInLabelledExamples() throws Exception {
+    def opts = new TrainOptions()
+    opts.alignerBatchSize = 50
+    opts.alignerStepwisePasses = 1
+    opts.semiSupervisedFactor = 0.5
+    def labelled = new ProbTable()
+    labelled.setProb("a", "AA", 1.0)
+    labelled.setProb("qq", "ZZZ", 3.0)
+    def normalized = labelled.makeNormalizedCopy()
+
+    def unlabelled = new StepwiseAlignerTrainer(opts).train(streamSample()).transitions
+    assert unlabelled.every { it.value <= 0.5 + 1e-12 }
+    assert unlabelled.prob("qq", "ZZZ") == 0
+
+    def withLabels = new StepwiseAlignerTrainer(opts).train(streamSample(), labelled).transitions
+    assert withLabels.prob("qq", "ZZZ") == 0.5 * normalized.prob("qq", "ZZZ")
+    assert withLabels.prob("a", "AA") > unlabelled.prob("a", "AA")
+    assert withLabels.prob("a", "AA") >= 0.5 * normalized.prob("a", "AA")
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.crf
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.fst.SimpleTagger
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class CompiledCrfTest {
+
+  static InstanceList makeExamples() {
+    def rnd = new Random(7)
+    def labels = ["A", "B", "C", "D", "E"]
+    def pipe = new SimpleTagger.SimpleTaggerSentence2FeatureVectorSequence()
+    pipe.setTargetProcessing(true)
+    def examples = new InstanceList(pipe)
+    100.times {
+      def lines = []
+      def prev = "A"
+      (2 + rnd.nextInt(10)).times {
+        def label = (rnd.nextDouble() < 0.4 ? prev : labels[rnd.nextInt(labels.size())])
+        lines << ["w" + label.toLowerCase() + rnd.nextInt(3), "p" + prev, "n" + rnd.nextInt(9), label].join(" ")
+        prev = label
+      }
+      examples.addThruPipe(new Instance(lines.join("\n"), null, null, null))
+    }
+    return examples
+  }
+
+  static CRF makeCrf(InstanceList examples) {
+    def crf = new CRF(examples.pipe, null)
+    crf.addOrderNStates(examples, [1] as int[], null, null, null, null, false)
+    new CRFTrainerByLabelLikelihood(crf).train(examples, 10)
+    return crf
+  }
+
+  // every example's n-best list (repeated outputs and all) and its scores must be exactly mallet's
+  private static void assertDecodesLikeMallet(CRF crf, InstanceList examples) {
+    def compiled = CompiledCrf.compile(crf)
+    examples.each { Instance inst ->
+      def maxLattice = crf.getMaxLatticeFactory().newMaxLattice(crf, inst.data)
+      def mallet = maxLattice.bestOutputSequences(10)
+      assert compiled.bestOutputSequence(inst.data).toString() == maxLattice.bestOutputSequence().toString()
+      assert compiled.bestOutputSequences(inst.data, 10)*.toString() == mallet*.toString()
+
+      def lattice = compiled.newLattice(inst.data)
+      def z = crf.getSumLatticeFactory().newSumLattice(crf, inst.data).totalWeight
+      assert lattice.logZ() == z
+      def scored = compiled.bestScoredSequences(lattice, 4)
+      assert scored*.output*.toString() == mallet.take(4)*.toString()
+      scored.each {
+        assert it.logProbability == crf.getSumLatticeFactory().newSumLattice(crf, inst.data, it.output).totalWeight - z
+      }
+
+      // skipping z gives the same outputs in the same order, just unnormalized
+      def unnormalized = compiled.bestScoredSequences(lattice, 4, false)
+      assert unnormalized*.output*.toString() == scored*.output*.toString()
+      [scored, unnormalized].transpose().each { norm, raw ->
+        assert Math.abs(raw.logProbability - z - norm.logProbability) < 1e-9
+      }
+    }
+  }
+
+  @Test
+  public void shouldDecodeExactlyLikeMalletForFirstOrder() throws Exception {
+    def examples = makeExamples()
+    assertDecodesLikeMallet(makeCrf(examples), examples)
+  }
+
+  @Test
+  public void shouldDecodeExactlyLikeMalletForSecondOrder() throws Exception {
+    def examples = makeExamples()
+    def crf = new CRF(examples.pipe, null)
+    crf.addOrderNStates(examples, [1, 2] as int[], null, null, null, null, false)
+    new CRFTrainerByLabelLikelihood(crf).train(examples, 5)
+    assertDecodesLikeMallet(crf, examples)
+  }
+
+  @Test
+  public void shouldBreakTiesLikeMallet() throws Exception {
+    // untrained so every path has the same (zero) weight and the order is all down to the tie breaking
+    def examples = makeExamples()
+    def crf = new CRF(examples.pipe, null)
+    crf.addOrderNStates(examples, [1] as int[], null, null, null, null, false)
+    assertDecodesLikeMallet(crf, examples)
+  }
+
+  @Test
+  public void shouldUseCompiledOnlyWhenAsked() throws Exception {
+    def examples = makeExamples()
+    def crf = makeCrf(examples)
+    assert CrfScorer.compiledFor(crf).is(CrfScorer.compiledFor(crf))
+    examples.each { Instance inst ->
+      def mallet = CrfScorer.bestScoredSequences(crf, inst.data, 4)
+      def compiled = CrfScorer.bestScoredSequences(crf, inst.data, 4, true, true)
+      assert compiled*.output*.toString() == mallet*.output*.toString()
+      [mallet, compiled].transpose().each { m, c ->
+        assert Math.abs(m.logProbability - c.logProbability) < 1e-9
+      }
+      assert CrfScorer.bestOutputSequences(crf, inst.data, 4, true)*.toString() ==
+             CrfScorer.bestOutputSequences(crf, inst.data, 4)*.toString()
+      assert CrfScorer.bestOutputSequence(crf, inst.data, true).toString() ==
+             CrfScorer.bestOutputSequence(crf, inst.data).toString()
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.crf
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class CrfScorerTest {
+
+  private static void assertMatchesSumLattices(CRF crf, InstanceList examples) {
+    examples.each { Instance inst ->
+      def z = crf.getSumLatticeFactory().newSumLattice(crf, inst.data).totalWeight
+      def scorer = new CrfScorer(crf, inst.data)
+      assert Math.abs(scorer.logZ() - z) < 1e-9
+
+      def scored = CrfScorer.bestScoredSequences(crf, inst.data, 5)
+      def outputs = crf.getMaxLatticeFactory().newMaxLattice(crf, inst.data).bestOutputSequences(5)
+      assert scored*.output*.toString() == outputs*.toString()
+      scored.each {
+        def constrained = crf.getSumLatticeFactory().newSumLattice(crf, inst.data, it.output).totalWeight
+        assert Math.abs(it.logProbability - (constrained - z)) < 1e-9
+        // the same scorer answers again from its cached transitions
+        assert Math.abs(scorer.logWeight(it.output) - constrained) < 1e-9
+      }
+
+      def unnormalized = CrfScorer.bestScoredSequences(crf, inst.data, 5, false)
+      [scored, unnormalized].transpose().each { norm, raw ->
+        assert Math.abs(raw.logProbability - z - norm.logProbability) < 1e-9
+      }
+    }
+  }
+
+  @Test
+  public void shouldMatchSumLatticesForFirstOrder() throws Exception {
+    def examples = CompiledCrfTest.makeExamples()
+    assertMatchesSumLattices(CompiledCrfTest.makeCrf(examples), examples)
+  }
+
+  @Test
+  public void shouldMatchSumLatticesForSecondOrder() throws Exception {
+    // label pair states so more than one state emits each label and the restricted pass keeps several alive
+    def examples = CompiledCrfTest.makeExamples()
+    def crf = new CRF(examples.pipe, null)
+    crf.addOrderNStates(examples, [1, 2] as int[], null, null, null, null, false)
+    new CRFTrainerByLabelLikelihood(crf).train(examples, 5)
+    assertMatchesSumLattices(crf, examples)
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lexicon
+
+import com.github.steveash.jg2p.Encoder
+import com.github.steveash.jg2p.EncodingResult
+import com.github.steveash.jg2p.LexiconEncoder
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.align.InputRecord
+import com.google.common.io.CharSource
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class LexiconTest {
+
+  private static final String cmuLines = """;;; comment
+ABBE  AE1 B IY0
+ABBE(1)  AE0 B EY1
+ABBENHAUS  AE1 B AH0 N HH AW2 S
+ABBEY  AE1 B IY0
+"""
+
+  @Test
+  public void shouldLookupVariantsAndRoundTrip() throws Exception {
+    def recs = InputReader.makeCmuReader().read(CharSource.wrap(cmuLines))
+    def lex = Lexicon.fromRecords(recs)
+    assertLexicon(lex)
+
+    def file = File.createTempFile("lexicon", ".dat")
+    file.deleteOnExit()
+    lex.writeTo(file)
+    assertLexicon(Lexicon.readFromFile(file))
+  }
+
+  private static void assertLexicon(Lexicon lex) {
+    assert lex.size() == 3
+    assert lex.pronunciationCount() == 4
+    assert lex.lookup(Word.fromNormalString("abbe")) == [["AE", "B", "IY"], ["AE", "B", "EY"]]
+    assert lex.lookup(Word.fromNormalString("ABBEY")) == [["AE", "B", "IY"]]
+    assert lex.lookup(Word.fromNormalString("ABB")).isEmpty()
+    assert lex.lookup(Word.fromNormalString("ABBEYS")).isEmpty()
+    assert lex.lookup(Word.fromNormalString("AAA")).isEmpty()
+    assert lex.lookup(Word.fromNormalString("ZZZ")).isEmpty()
+  }
+
+  @Test
+  public void shouldFallbackOnMiss() throws Exception {
+    def recs = InputReader.makeCmuReader().read(CharSource.wrap(cmuLines))
+    def fallbackCalls = 0
+    def fallback = new Encoder() {
+      @Override
+      List<? extends EncodingResult> encode(Word input) {
+        fallbackCalls += 1
+        return []
+      }
+    }
+    def enc = new LexiconEncoder(Lexicon.fromRecords(recs), fallback)
+    def results = enc.encode(Word.fromNormalString("ABBE"))
+    assert results*.phones == [["AE", "B", "IY"], ["AE", "B", "EY"]]
+    assert results*.rank == [0, 1]
+    assert fallbackCalls == 0
+
+    assert enc.encode(Word.fromNormalString("SMITH")).isEmpty()
+    assert fallbackCalls == 1
+  }
+
+  @Test
+  public void shouldKeyTheSameInAnyLocale() throws Exception {
+    def original = Locale.getDefault()
+    try {
+      // in Turkish "i".toUpperCase() is a dotted capital I but looking up a word upper cases a char at a time
+      Locale.setDefault(new Locale("tr", "TR"))
+      def lex = Lexicon.fromRecords([new InputRecord(Word.fromNormalString("list"), Word.fromSpaceSeparated("L IH S T"))])
+      assert lex.lookup(Word.fromNormalString("list")) == [["L", "IH", "S", "T"]]
+      assert lex.lookup(Word.fromNormalString("LIST")) == [["L", "IH", "S", "T"]]
+    } finally {
+      Locale.setDefault(original)
+    }
+  }
+}
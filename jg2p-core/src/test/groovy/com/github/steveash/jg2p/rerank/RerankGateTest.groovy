@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.rerank
+
+import com.github.steveash.jg2p.PhoneticEncoder
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class RerankGateTest {
+
+  private static PhoneticEncoder.Result resultOf(List<List<Object>> phonesAndProbs) {
+    def result = new PhoneticEncoder.Result()
+    phonesAndProbs.each { phones, prob ->
+      result.overallResults.add(PhoneticEncoder.Encoding.createEncoding(
+          ["x"], phones as List<String>, [], 0, Math.log(prob as double), 0, 0))
+    }
+    return result
+  }
+
+  @Test
+  public void shouldFireOnlyWhenConfident() throws Exception {
+    def gate = new RerankGate(0.9, true)
+    assert gate.canSkipRerank(resultOf([[["AH"], 0.95], [["AH"], 0.9], [["EH"], 0.05]]))
+    // confident but the top isn't the unique mode
+    assert !gate.canSkipRerank(resultOf([[["AH"], 0.95], [["EH"], 0.9], [["EH"], 0.05]]))
+    assert !gate.canSkipRerank(resultOf([[["AH"], 0.95], [["EH"], 0.9]]))
+    // not confident
+    assert !gate.canSkipRerank(resultOf([[["AH"], 0.6], [["AH"], 0.3]]))
+    assert !gate.canSkipRerank(resultOf([]))
+    assert gate.checkedCount == 5
+    assert gate.firedCount == 1
+
+    def noMode = new RerankGate(0.9, false)
+    assert noMode.canSkipRerank(resultOf([[["AH"], 0.95], [["EH"], 0.9]]))
+    assert noMode.firedRate == 1.0
+    noMode.resetCounts()
+    assert noMode.checkedCount == 0
+  }
+}
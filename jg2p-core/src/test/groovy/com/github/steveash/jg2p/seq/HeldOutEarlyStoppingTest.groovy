@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.fst.CRF
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import com.github.steveash.jg2p.util.ModelReadWrite
+import com.google.common.io.Files
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class HeldOutEarlyStoppingTest {
+
+  private static InstanceList makeInstances() {
+    def rand = new Random(1234)
+    def pipe = PhonemeCrfTrainer.makePipe(new Alphabet())
+    def instances = new InstanceList(pipe)
+    ["psychology", "knight", "phoenix", "strength", "rhythm", "queue", "above", "tomato", "oxygen"].each {
+      def align = PhonemeFeatureExtractorTest.makeAlignment(it, rand)
+      instances.addThruPipe(new Instance(align, align.getAllYTokensAsList(), null, null))
+    }
+    return instances
+  }
+
+  private static CRF makeCrf(InstanceList instances) {
+    def crf = new CRF(instances.getPipe(), null)
+    crf.addOrderNStates(instances, [1] as int[], null, null, null, null, false)
+    crf.addStartState()
+    crf.setWeightsDimensionAsIn(instances, false)
+    return crf
+  }
+
+  @Test
+  public void shouldScoreTokensAndWords() throws Exception {
+    def instances = makeInstances()
+    // every phone is the same label so even an untrained crf gets them all right
+    def accuracy = HeldOutEarlyStopping.accuracyOf(makeCrf(instances), instances, 7)
+    assert accuracy.iteration == 7
+    assert accuracy.tokenAccuracy == 1.0d
+    assert accuracy.wordAccuracy == 1.0d
+  }
+
+  @Test
+  public void shouldStopAfterPatienceAndCheckpointTheBest() throws Exception {
+    def instances = makeInstances()
+    def crf = makeCrf(instances)
+    def checkpoint = new File(Files.createTempDir(), "pron.dat")
+    def stopping = new HeldOutEarlyStopping(instances, 0.001, 2, checkpoint)
+
+    // each hand-off waits for the previous evaluation and decides from it, so this doesnt depend on how quickly
+    // the eval thread gets through them
+    stopping.evaluate(new CRF(crf), 5)
+    assert !stopping.shouldStop()
+    stopping.evaluate(new CRF(crf), 10)
+    assert !stopping.shouldStop()
+    stopping.evaluate(new CRF(crf), 15) // 10 was the first without improving
+    assert !stopping.shouldStop()
+    Thread.sleep(200) // even once 15 is done it doesnt count until the next hand-off
+    assert !stopping.shouldStop()
+    stopping.evaluate(new CRF(crf), 20)
+    assert stopping.shouldStop()
+
+    assert stopping.finish() != null
+    assert stopping.bestAccuracy.iteration == 5
+    assert checkpoint.exists()
+    def resumed = ModelReadWrite.readPronouncerFrom(checkpoint.absolutePath)
+    assert HeldOutEarlyStopping.accuracyOf(resumed.crf, instances, 0).wordAccuracy == 1.0d
+  }
+
+  @Test
+  public void shouldHoldOutTheSameWordsEveryTime() throws Exception {
+    def rand = new Random(1234)
+    def words = (1..2000).collect { "word" + it }
+    def heldOut = words.findAll {
+      PhonemeCrfTrainer.isHeldOut(PhonemeFeatureExtractorTest.makeAlignment(it, rand), 0.1)
+    }
+    assert heldOut.size() > 100 && heldOut.size() < 300
+    def again = words.findAll {
+      PhonemeCrfTrainer.isHeldOut(PhonemeFeatureExtractorTest.makeAlignment(it, rand), 0.1)
+    }
+    assert again == heldOut
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import com.github.steveash.jg2p.crf.CrfScorer
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class PhonemeCrfModelTest {
+
+  @Test
+  public void shouldTagWithTheExtractorOnceFrozen() throws Exception {
+    def rand = new Random(42)
+    def words = ["psychology", "knight", "phoenix", "strength", "rhythm", "queue", "above", "tomato", "oxygen"]
+    def alphabet = new Alphabet()
+    def instances = new InstanceList(PhonemeCrfTrainer.makePipe(alphabet))
+    words.each { word ->
+      2.times {
+        def align = PhonemeFeatureExtractorTest.makeAlignment(word, rand)
+        def labels = align.graphones.collect { "aeiouy".contains(it.left.substring(0, 1)) ? "V" : "C" }
+        instances.addThruPipe(new Instance(align, labels, null, null))
+      }
+    }
+    def crf = new CRF(instances.getPipe(), null)
+    crf.addOrderNStates(instances, [1] as int[], null, null, null, null, false)
+    new CRFTrainerByLabelLikelihood(crf).train(instances, 3)
+    def model = new PhonemeCrfModel(crf)
+    def aligns = (words + ["pterodactyl", "Mississippi"]).collect { PhonemeFeatureExtractorTest.makeAlignment(it, rand) }
+
+    // the pipe can still grow so it's used, but that isn't remembered
+    assert model.getExtractor() == null
+    alphabet.stopGrowth()
+    assert model.getExtractor() != null
+    assert model.isUseCompiled()
+
+    aligns.each { align ->
+      def inSeq = crf.inputPipe.instanceFrom(new Instance(align, null, null, null)).data
+      def expected = CrfScorer.bestScoredSequences(crf, inSeq, 3)
+      def compiled = model.tag(align, 3)
+      model.setUseCompiled(false)
+      def lattices = model.tag(align, 3)
+      model.setUseCompiled(true)
+      [compiled, lattices].each { results ->
+        assert results*.phoneGrams() == expected.collect { s -> (0..<s.output.size()).collect { s.output.get(it) } }
+        [results, expected].transpose().each { TagResult result, scored ->
+          assert Math.abs(result.sequenceLogProbability() - scored.logProbability) < 1e-9
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.types.Alphabet
+import cc.mallet.types.RankedFeatureVector
+import com.github.steveash.jg2p.align.TrainOptions
+import com.github.steveash.jg2p.util.FeatureSelections
+import com.google.common.io.Files
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class PhonemeCrfTrainerTest {
+
+  @Test
+  public void shouldRejectRankedFeaturesFromAnotherCorpus() throws Exception {
+    def rand = new Random(1234)
+    def aligns = ["psychology", "knight", "phoenix", "strength", "rhythm"].collect {
+      PhonemeFeatureExtractorTest.makeAlignment(it, rand)
+    }
+    def other = new Alphabet()
+    ["not_a_feature", "nor_this_one"].each { other.lookupIndex(it) }
+    def file = new File(Files.createTempDir(), "ranked.bin")
+    FeatureSelections.writeRanked(new RankedFeatureVector(other, [1.0, 2.0] as double[]), file)
+
+    def opts = new TrainOptions()
+    opts.trimFeaturesByGradientGain = 0.5
+    opts.useInputRankedFeatures = file
+    opts.maxPronouncerTrainingIterations = 1
+    def trainer = PhonemeCrfTrainer.open(opts)
+    trainer.setThreadCount(1)
+    try {
+      trainer.trainFor(aligns)
+      assert false, "should have failed"
+    } catch (IllegalStateException e) {
+      assert e.message.contains("none of the 2 features selected")
+    }
+  }
+
+  @Test
+  public void shouldTrainAndCacheTheSelectedFeatureRound() throws Exception {
+    def rand = new Random(1234)
+    def aligns = ["psychology", "knight", "phoenix", "strength", "rhythm", "queue", "above", "tomato"].collect {
+      PhonemeFeatureExtractorTest.makeAlignment(it, rand)
+    }
+    def opts = new TrainOptions()
+    opts.trimFeaturesByGradientGain = 1.0
+    opts.maxPronouncerTrainingIterations = 2
+    opts.pipeCacheDir = Files.createTempDir()
+    def trainer = PhonemeCrfTrainer.open(opts)
+    trainer.setThreadCount(1)
+    trainer.trainFor(aligns)
+
+    // the round with the selected features was remapped from the first round's instances and cached too
+    assert opts.pipeCacheDir.listFiles().findAll { it.name.endsWith(".bin") }.size() == 2
+    def crf = trainer.buildModel().crf
+    assert crf.inputAlphabet.size() > 0
+    assert crf.inputAlphabet.growthStopped()
+    assert crf.inputPipe.dataAlphabet.is(crf.inputAlphabet)
+  }
+}
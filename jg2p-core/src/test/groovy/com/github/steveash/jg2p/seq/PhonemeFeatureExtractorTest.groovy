@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.types.Alphabet
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.Alignment
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.align.InputRecord
+import org.apache.commons.lang3.tuple.Pair
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class PhonemeFeatureExtractorTest {
+
+  private static final def vowels = "aeiouyAEIOUY"
+
+  // a crude syllabification (onsets before vowels) with some graphemes paired up in to two grapheme graphones
+  static Alignment makeAlignment(String word, Random rand) {
+    def chars = word.toList()
+    def codes = []
+    def starts = [] as Set
+    chars.eachWithIndex { c, i ->
+      if (vowels.contains(c)) {
+        codes << "N"
+      } else {
+        codes << ((i + 1 < chars.size() && vowels.contains(chars[i + 1])) ? "O" : "C")
+      }
+      def prev = (i > 0 ? codes[i - 1] : null)
+      if (i == 0 || (codes[i] == "O" && prev != "O") || (codes[i] == "N" && prev != "O" && prev != "N")) {
+        starts << i
+      }
+    }
+    def graphones = []
+    def sylls = []
+    int i = 0
+    while (i < chars.size()) {
+      if (i + 1 < chars.size() && rand.nextInt(4) == 0) {
+        graphones << Pair.of(chars[i] + " " + chars[i + 1], "X")
+        sylls << codes[i] + " " + codes[i + 1]
+        i += 2
+      } else {
+        graphones << Pair.of(chars[i], "X")
+        sylls << codes[i]
+        i += 1
+      }
+    }
+    return new Alignment(Word.fromNormalString(word), graphones, 0.0, sylls, null).withGraphemeSyllStarts(starts)
+  }
+
+  // the features of each graphone from the pipe and the extractor (or the exception that they threw) must be the same
+  private static int assertMatchesPipe(List<String> training, List<String> words, int times, Random rand) {
+    def alphabet = new Alphabet()
+    def pipe = PhonemeCrfTrainer.makePipe(alphabet)
+    training.each {
+      try {
+        pipe.instanceFrom(new Instance(makeAlignment(it, rand), null, null, null))
+      } catch (IllegalStateException e) {
+        // lower casing changed the length of a gram so the pipe can't line it up with the syllables
+      }
+    }
+    alphabet.stopGrowth()
+
+    def extractor = PhonemeFeatureExtractor.tryCreate(pipe)
+    assert extractor != null
+
+    int features = 0
+    words.each { word ->
+      times.times {
+        def align = makeAlignment(word, rand)
+        def expected
+        try {
+          def fvs = pipe.instanceFrom(new Instance(align, null, null, null)).data as FeatureVectorSequence
+          expected = (0..<fvs.size()).collect { fvs.get(it).indices as List }
+        } catch (RuntimeException e) {
+          expected = e.class
+        }
+        def actual
+        try {
+          actual = extractor.extract(align).collect { it as List }
+        } catch (RuntimeException e) {
+          actual = e.class
+        }
+        assert actual == expected, "mismatch in $word"
+        if (actual instanceof List) {
+          features += actual.sum { it.size() }
+        }
+      }
+    }
+    return features
+  }
+
+  @Test
+  public void shouldMatchMalletPipe() throws Exception {
+    def training = ["psychology", "McDonald", "knight", "phoenix", "strength", "rhythm", "queue", "above",
+                    "ache", "tomato", "oxygen", "BEAUTY", "xylophone", "antidisestablishment", "ox", "a", "eye",
+                    "steve", "ash", "jg2p", "o'neil"]
+    def unseen = ["pterodactyl", "Mississippi", "cwm", "zyzzyva", "hypothesize", "tree"]
+    assert assertMatchesPipe(training, training + unseen, 3, new Random(1234)) > 1000
+  }
+
+  @Test
+  public void shouldMatchMalletPipeOverSampleCorpus() throws Exception {
+    def words = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt").withIndex().collect {
+      InputRecord rec, int i ->
+      def word = rec.left.asNoSpaceString
+      return (i % 3 == 0 ? word.toUpperCase() : word)
+    }
+    // the last words weren't seen when the alphabet was built
+    assert assertMatchesPipe(words.take(900), words, 1, new Random(99)) > 100000
+  }
+
+  @Test
+  public void shouldLowerCaseLikeThePipeInEveryLocale() throws Exception {
+    // dotted/dotless i lower case differently in turkish and the dotted capital I becomes two chars elsewhere
+    def words = ["DIVISION", "LIGHT", "kilim", "\u0130STANBUL", "\u0131rmak", "I\u0130\u0131i", "SKIE", "EYE",
+                 "p\u0130e"]
+    Locale saved = Locale.getDefault()
+    try {
+      [new Locale("tr", "TR"), Locale.ENGLISH].each { Locale locale ->
+        Locale.setDefault(locale)
+        assertMatchesPipe(words, words + ["BILLY", "TIE"], 2, new Random(5))
+      }
+    } finally {
+      Locale.setDefault(saved)
+    }
+  }
+
+  @Test
+  public void shouldRejectGrowingAlphabet() throws Exception {
+    assert PhonemeFeatureExtractor.tryCreate(PhonemeCrfTrainer.makePipe(new Alphabet())) == null
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.train
+
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * @author Steve Ash
+ */
+class StageSchedulerTest {
+
+  private static StageScheduler.Stage stage(Closure body) {
+    return body as StageScheduler.Stage
+  }
+
+  @Test
+  public void shouldRunDependenciesFirstAndSplitTheBudget() throws Exception {
+    def order = Collections.synchronizedList([])
+    def threads = Collections.synchronizedMap([:])
+    // b and c wait for each other so they can only finish if they run at the same time
+    def bothStarted = new CountDownLatch(2)
+    def sched = new StageScheduler(8, true)
+    sched.add("a", 1, stage { int t -> order << "a"; threads.a = t })
+    sched.add("b", 3, stage { int t ->
+      bothStarted.countDown(); assert bothStarted.await(10, TimeUnit.SECONDS); order << "b"; threads.b = t
+    }, "a")
+    sched.add("c", 1, stage { int t ->
+      bothStarted.countDown(); assert bothStarted.await(10, TimeUnit.SECONDS); order << "c"; threads.c = t
+    }, "a")
+    sched.add("d", 0, stage { int t -> order << "d"; threads.d = t }, "b", "c")
+    sched.run()
+
+    assert order.first() == "a"
+    assert order.last() == "d"
+    assert order.size() == 4
+    assert threads == [a: 8, b: 6, c: 2, d: 8]
+    assert sched.reports*.name.toSet() == ["a", "b", "c", "d"] as Set
+    assert sched.reports.every { it.elapsedMillis >= 0 && it.peakHeapBytes > 0 }
+  }
+
+  @Test
+  public void shouldRunInOrderWithTheWholeBudgetWhenNotConcurrent() throws Exception {
+    def order = []
+    def threads = []
+    def sched = new StageScheduler(4, false)
+    sched.add("a", 1, stage { int t -> order << "a"; threads << t })
+    sched.add("b", 3, stage { int t -> order << "b"; threads << t }, "a")
+    sched.add("c", 1, stage { int t -> order << "c"; threads << t }, "a")
+    sched.run()
+
+    assert order == ["a", "b", "c"]
+    assert threads == [4, 4, 4]
+  }
+
+  @Test
+  public void shouldFailFastAndStopTheOtherStages() throws Exception {
+    def slowStarted = new CountDownLatch(1)
+    def interrupted = new CountDownLatch(1)
+    def neverRan = true
+    def sched = new StageScheduler(2, true)
+    sched.add("slow", 1, stage { int t ->
+      slowStarted.countDown()
+      try {
+        new CountDownLatch(1).await(30, TimeUnit.SECONDS)
+      } catch (InterruptedException e) {
+        interrupted.countDown()
+      }
+    })
+    sched.add("boom", 1, stage { int t ->
+      assert slowStarted.await(10, TimeUnit.SECONDS)
+      throw new IllegalArgumentException("boom")
+    })
+    sched.add("after", 1, stage { int t -> neverRan = false }, "slow", "boom")
+    try {
+      sched.run()
+      assert false, "should have failed"
+    } catch (IllegalStateException e) {
+      assert e.cause instanceof IllegalArgumentException
+      assert e.cause.message == "boom"
+    }
+    assert interrupted.await(10, TimeUnit.SECONDS)
+    assert neverRan
+  }
+
+  @Test
+  public void shouldRejectUnknownDependencies() throws Exception {
+    try {
+      new StageScheduler(1, true).add("a", 1, stage { int t -> }, "b")
+      assert false, "should have failed"
+    } catch (IllegalArgumentException e) {
+      assert e.message.contains("b")
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.pipe.SerialPipes
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.LabelSequence
+import cc.mallet.types.RankedFeatureVector
+import com.github.steveash.jg2p.seq.PhonemeCrfTrainer
+import com.github.steveash.jg2p.seq.PhonemeFeatureExtractorTest
+import com.google.common.io.Files
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class FeatureSelectionsTest {
+
+  private static InstanceList makeInstances() {
+    return makeInstances(PhonemeCrfTrainer.makePipe(new Alphabet()))
+  }
+
+  private static InstanceList makeInstances(SerialPipes pipe) {
+    def rand = new Random(1234)
+    def instances = new InstanceList(pipe)
+    def words = ["psychology", "knight", "phoenix", "strength", "rhythm", "queue", "above", "tomato", "oxygen",
+                 "beauty", "xylophone", "steve", "ash", "eye", "ox", "tree", "hypothesize", "mississippi"]
+    words.each {
+      def align = PhonemeFeatureExtractorTest.makeAlignment(it, rand)
+      // label each graphone by its first letter being a vowel or not so there's something to learn
+      def labels = align.graphones.collect { "aeiouy".contains(it.left.substring(0, 1)) ? "V" : "C" }
+      instances.addThruPipe(new Instance(align, labels, null, null))
+    }
+    return instances
+  }
+
+  private static CRF trainCrf(InstanceList instances) {
+    def crf = new CRF(instances.getPipe(), null)
+    crf.addOrderNStates(instances, [1] as int[], null, null, null, null, false)
+    crf.addStartState()
+    crf.setWeightsDimensionAsIn(instances, false)
+    new CRFTrainerByLabelLikelihood(crf).train(instances, 3)
+    return crf
+  }
+
+  @Test
+  public void shouldSumTheSameWithAnyNumberOfThreads() throws Exception {
+    def instances = makeInstances()
+    def crf = trainCrf(instances)
+    def single = FeatureSelections.gradientGainRatioFrom(instances, crf, 1)
+    def sharded = FeatureSelections.gradientGainRatioFrom(instances, crf, 3)
+    def moreThreadsThanInstances = FeatureSelections.gradientGainRatioFrom(instances, crf, 50)
+    assert single.singleSize() == instances.getDataAlphabet().size()
+    assert (0..<single.singleSize()).any { single.value(it) != 1.0d }
+    (0..<single.singleSize()).each {
+      assert Math.abs(single.value(it) - sharded.value(it)) < 1e-9
+      assert Math.abs(single.value(it) - moreThreadsThanInstances.value(it)) < 1e-9
+    }
+    // summed in shard order so the same thread count always gives exactly the same values
+    def again = FeatureSelections.gradientGainRatioFrom(instances, crf, 3)
+    (0..<single.singleSize()).each { assert sharded.value(it) == again.value(it) }
+  }
+
+  @Test
+  public void shouldRoundTripRankedFeatures() throws Exception {
+    def instances = makeInstances()
+    RankedFeatureVector rfv = FeatureSelections.gradientGainRatioFrom(instances, trainCrf(instances), 2)
+    def file = new File(Files.createTempDir(), "ranked.bin")
+    FeatureSelections.writeRanked(rfv, file)
+    def read = FeatureSelections.readRanked(file)
+
+    assert read.singleSize() == rfv.singleSize()
+    assert read.getAlphabet().growthStopped()
+    (0..<rfv.singleSize()).each {
+      assert read.getAlphabet().lookupObject(it) == rfv.getAlphabet().lookupObject(it)
+      assert read.value(it) == rfv.value(it)
+    }
+    assert read.getObjectAtRank(0) == rfv.getObjectAtRank(0)
+  }
+
+  @Test
+  public void shouldRemapTheSameAsPipingAgain() throws Exception {
+    def instances = makeInstances()
+    // every other feature in reverse order (so the new indexes aren't in the old order) and one that was never seen
+    def selected = new Alphabet()
+    selected.lookupIndex("never_seen_feature")
+    (instances.dataAlphabet.size() - 1..0).step(2).each {
+      selected.lookupIndex(instances.dataAlphabet.lookupObject(it))
+    }
+    selected.stopGrowth()
+
+    def piped = makeInstances(PhonemeCrfTrainer.makePipe(selected))
+    def remapped = FeatureSelections.remapThrough(instances, PhonemeCrfTrainer.makePipe(selected))
+    assert remapped.dataAlphabet.is(selected)
+    assert remapped.targetAlphabet.toArray() == piped.targetAlphabet.toArray()
+    assert remapped.size() == piped.size()
+    int kept = 0
+    for (int i = 0; i < piped.size(); i++) {
+      def expected = piped.get(i)
+      def actual = remapped.get(i)
+      assert actual.name == expected.name
+      assert actual.data.size() == expected.data.size()
+      for (int j = 0; j < expected.data.size(); j++) {
+        def expectedVector = expected.data.get(j)
+        def actualVector = actual.data.get(j)
+        assert actualVector.alphabet.is(selected)
+        assert actualVector.values == null
+        assert actualVector.indices == expectedVector.indices
+        kept += actualVector.numLocations()
+      }
+      assert (actual.target as LabelSequence).features == (expected.target as LabelSequence).features
+    }
+    assert kept > 0
+  }
+
+  @Test
+  public void shouldRejectOtherFiles() throws Exception {
+    def file = new File(Files.createTempDir(), "notranked.bin")
+    file.bytes = [1, 2, 3, 4, 5, 6, 7, 8] as byte[]
+    try {
+      FeatureSelections.readRanked(file)
+      assert false, "should have failed"
+    } catch (IOException e) {
+      assert e.message.contains("isnt a ranked feature file")
+    }
+  }
+}
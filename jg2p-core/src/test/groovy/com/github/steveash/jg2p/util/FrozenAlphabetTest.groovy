@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.LabelAlphabet
+import com.github.steveash.jg2p.PipelineEncoder
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.Aligner
+import com.github.steveash.jg2p.align.TrainOptions
+import com.github.steveash.jg2p.aligntag.AlignTagModel
+import com.github.steveash.jg2p.lm.LangModelTrainer
+import com.github.steveash.jg2p.rerank.RerankFeatureBag
+import com.github.steveash.jg2p.seq.PhonemeCrfModel
+import com.github.steveash.jg2p.seq.PhonemeCrfTrainer
+import com.github.steveash.jg2p.seq.PhonemeFeatureExtractorTest
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * @author Steve Ash
+ */
+class FrozenAlphabetTest {
+
+  @Test
+  public void shouldMatchAlphabetIndexes() throws Exception {
+    def alpha = new Alphabet()
+    (0..<1000).each { alpha.lookupIndex("feat_" + it) }
+    alpha.stopGrowth()
+    def frozen = FrozenAlphabet.forAlphabet(alpha)
+    assert frozen.size() == 1000
+    (0..<1000).each { assert frozen.indexOf("feat_" + it) == alpha.lookupIndex("feat_" + it) }
+    assert frozen.indexOf("unknown") == -1
+    assert FrozenAlphabet.ifFrozen(new Alphabet()) == null
+  }
+
+  @Test
+  public void shouldNeverGrowFromManyThreads() throws Exception {
+    def input = new Alphabet()
+    def output = new LabelAlphabet()
+    ["a", "b", "c"].each { input.lookupIndex(it) }
+    ["A", "B"].each { output.lookupLabel(it) }
+    def model = new PipelineModel()
+    model.testingAlignerModel = new AlignTagModel(new CRF(input, new LabelAlphabet()))
+    model.pronouncerModel = new PhonemeCrfModel(new CRF(input, output))
+    model.freezeForInference()
+
+    def alphabets = model.reachableAlphabets()
+    assert alphabets.contains(input)
+    assert alphabets.contains(output)
+    assert alphabets.every { it.growthStopped() }
+    def sizes = alphabets.collect { it.size() }
+
+    def exec = Executors.newFixedThreadPool(8)
+    try {
+      def tasks = (0..<8).collect { t ->
+        return { ->
+          int found = 0
+          (0..<5000).each { i ->
+            def bag = new RerankFeatureBag(input, null)
+            bag.setBinary("a")
+            bag.setBinary("unseen_" + t + "_" + i)
+            bag.setFeature("c", 2.0)
+            bag.setFeature("other_" + i, 1.0)
+            found += bag.toVector().numLocations()
+          }
+          return found
+        } as Callable<Integer>
+      }
+      exec.invokeAll(tasks).each { assert it.get() == 2 * 5000 }
+    } finally {
+      exec.shutdown()
+    }
+    assert alphabets.collect { it.size() } == sizes
+    assert input.size() == 3
+  }
+
+  @Test
+  public void shouldNotGrowWhenEncodingFromManyThreadsThroughOneEncoder() throws Exception {
+    // aligns every word the same way each time (with syllables, which the pronouncer's pipe needs)
+    def aligner = { Word x, int nBest ->
+      def word = x.asNoSpaceString
+      return [PhonemeFeatureExtractorTest.makeAlignment(word, new Random(word.hashCode()))]
+    } as Aligner
+    def training = ["psychology", "knight", "phoenix", "strength", "rhythm", "queue", "above", "tomato", "oxygen",
+                    "beauty", "xylophone", "steve", "ash", "eye", "ox", "tree", "hypothesize", "mississippi"]
+    def aligns = training.collect { aligner.inferAlignments(Word.fromNormalString(it), 1)[0] }
+    def instances = new InstanceList(PhonemeCrfTrainer.makePipe(new Alphabet()))
+    aligns.each { align ->
+      def labels = align.graphones.collect { "aeiouy".contains(it.left.substring(0, 1)) ? "V" : "C" }
+      instances.addThruPipe(new Instance(align, labels, null, null))
+    }
+    def crf = new CRF(instances.getPipe(), null)
+    crf.addOrderNStates(instances, [1] as int[], null, null, null, null, false)
+    crf.addStartState()
+    crf.setWeightsDimensionAsIn(instances, false)
+    new CRFTrainerByLabelLikelihood(crf).train(instances, 3)
+
+    def model = new PipelineModel()
+    model.testingAlignerModel = aligner
+    model.pronouncerModel = new PhonemeCrfModel(crf)
+    model.graphoneModel = new LangModelTrainer(new TrainOptions(), true).trainFor(aligns)
+    def encoder = new PipelineEncoder(model)
+    encoder.setBestOnly(true)
+    def alphabets = model.reachableAlphabets()
+    assert alphabets.contains(crf.getInputAlphabet())
+    // making the encoder leaves the model alone; the caller freezes it once it's done training
+    assert !crf.getInputAlphabet().growthStopped()
+    model.freezeForInference()
+    assert alphabets.every { it.growthStopped() }
+    def sizes = alphabets.collect { it.size() }
+
+    // plus words that weren't in training so there are features that the crf never saw
+    def words = (training + ["zyzzyva", "quixotic", "bookkeeper", "strengths", "rhythmic"]).collect {
+      Word.fromNormalString(it)
+    }
+    def expected = words.collect { encoder.encodeBest(it).phones }
+    def exec = Executors.newFixedThreadPool(8)
+    try {
+      def tasks = (0..<8).collect { t ->
+        return { ->
+          int mismatches = 0
+          500.times { n ->
+            int i = (n + t * 7) % words.size()
+            if (encoder.encodeBest(words[i]).phones != expected[i]) {
+              mismatches += 1
+            }
+          }
+          return mismatches
+        } as Callable<Integer>
+      }
+      exec.invokeAll(tasks).each { assert it.get() == 0 }
+    } finally {
+      exec.shutdown()
+    }
+    assert alphabets.collect { it.size() } == sizes
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.fst.CRF
+import cc.mallet.pipe.SerialPipes
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence
+import cc.mallet.types.Alphabet
+import cc.mallet.types.FeatureVector
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import cc.mallet.types.Token
+import cc.mallet.types.TokenSequence
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.aligntag.AlignTagModel
+import com.github.steveash.jg2p.seq.PhonemeCrfModel
+import com.github.steveash.jg2p.seq.PhonemeCrfTrainer
+import org.apache.commons.lang3.SerializationUtils
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class FrozenTokenSequence2FeatureVectorSequenceTest {
+
+  // binary vectors can only have values of 1.0 (the non-binary ones get all 1.0 sometimes too)
+  private static TokenSequence makeTokens(Random rand, int vocab, boolean binary) {
+    def tokens = new TokenSequence()
+    int count = 1 + rand.nextInt(6)
+    count.times {
+      def token = new Token("t" + it)
+      // some tokens have no features at all and some repeat a feature
+      int feats = rand.nextInt(5)
+      feats.times {
+        def value = (!binary && rand.nextInt(4) == 0 ? 0.5 + rand.nextInt(3) : 1.0)
+        token.setFeatureValue("f" + rand.nextInt(vocab), value)
+      }
+      if (rand.nextInt(5) == 0) {
+        token.setFeatureValue("f0", 1.0)
+        token.setFeatureValue("f0", 1.0)
+      }
+      tokens.add(token)
+    }
+    return tokens
+  }
+
+  private static void assertSameVector(FeatureVector expected, FeatureVector actual) {
+    assert actual.getClass() == expected.getClass()
+    assert actual.alphabet.is(expected.alphabet)
+    assert actual.numLocations() == expected.numLocations()
+    assert (actual.values == null) == (expected.values == null)
+    for (int i = 0; i < expected.numLocations(); i++) {
+      assert actual.indexAtLocation(i) == expected.indexAtLocation(i)
+      assert actual.valueAtLocation(i) == expected.valueAtLocation(i)
+    }
+  }
+
+  @Test
+  public void shouldMatchMalletPipeForEverySetting() throws Exception {
+    [[true, false], [true, true], [false, false], [false, true]].each { settings ->
+      def rand = new Random(1234)
+      def alphabet = new Alphabet()
+      def original = new TokenSequence2FeatureVectorSequence(alphabet, settings[0], settings[1])
+      200.times { original.instanceFrom(new Instance(makeTokens(rand, 50, settings[0]), null, null, null)) }
+      alphabet.stopGrowth()
+      def size = alphabet.size()
+      def frozen = FrozenTokenSequence2FeatureVectorSequence.replacing(original)
+      assert frozen.dataAlphabet.is(alphabet)
+      assert frozen.original.is(original)
+
+      // twice the vocabulary so that about half of the features are unknown
+      1000.times {
+        def tokens = makeTokens(rand, 100, settings[0])
+        def expected = original.instanceFrom(new Instance(tokens, null, null, null)).data as FeatureVectorSequence
+        def actual = frozen.instanceFrom(new Instance(tokens, null, null, null)).data as FeatureVectorSequence
+        assert actual.alphabet.is(expected.alphabet)
+        assert actual.size() == expected.size()
+        for (int i = 0; i < expected.size(); i++) {
+          assertSameVector(expected.get(i), actual.get(i))
+        }
+      }
+      def empty = frozen.instanceFrom(new Instance(new TokenSequence(), null, null, null)).data as FeatureVectorSequence
+      assert empty.size() == 0
+      assert alphabet.size() == size
+    }
+  }
+
+  @Test
+  public void shouldSwapIntoCrfPipesAndSerializeTheOriginal() throws Exception {
+    def input = new Alphabet()
+    def pipe = PhonemeCrfTrainer.makePipe(input)
+    def model = new PipelineModel()
+    model.testingAlignerModel = new AlignTagModel(new CRF(new SerialPipes([
+        new TokenSequence2FeatureVectorSequence(new Alphabet(), true, true)]), null))
+    model.pronouncerModel = new PhonemeCrfModel(new CRF(pipe, null))
+    model.freezeForInference()
+
+    def swapped = pipe.pipes().findAll { it instanceof FrozenTokenSequence2FeatureVectorSequence }
+    assert swapped.size() == 1
+    def alignPipes = (model.testingAlignerModel as AlignTagModel).crf.inputPipe as SerialPipes
+    assert alignPipes.pipes()[0] instanceof FrozenTokenSequence2FeatureVectorSequence
+    // freezing again leaves the frozen ones alone
+    model.freezeForInference()
+    assert pipe.pipes().findAll { it instanceof FrozenTokenSequence2FeatureVectorSequence } == swapped
+
+    def copy = SerializationUtils.clone(pipe)
+    assert copy.pipes().every { !(it instanceof FrozenTokenSequence2FeatureVectorSequence) }
+    assert copy.pipes().count { it.getClass() == TokenSequence2FeatureVectorSequence } == 1
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.pipe.SerialPipes
+import cc.mallet.pipe.Target2LabelSequence
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence
+import cc.mallet.pipe.TokenSequenceLowercase
+import cc.mallet.types.Alphabet
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.LabelAlphabet
+import cc.mallet.types.LabelSequence
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.align.InputRecord
+import com.github.steveash.jg2p.seq.NeighborTokenFeature
+import com.github.steveash.jg2p.seq.StringListToTokenSequence
+import com.github.steveash.jg2p.seq.SurroundingTokenFeature
+import com.github.steveash.jg2p.seq.TokenSequenceToFeature
+import com.google.common.base.Function
+import com.google.common.io.Files
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class InstanceListCacheTest {
+
+  private final List<InputRecord> records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+
+  private static SerialPipes makePipe(Alphabet alpha, int... neighbors) {
+    def labelPipe = new Target2LabelSequence()
+    def labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet()
+    return new SerialPipes([
+        new StringListToTokenSequence(alpha, labelAlpha),
+        new TokenSequenceLowercase(),
+        new NeighborTokenFeature(true, neighbors),
+        new SurroundingTokenFeature(false),
+        new TokenSequenceToFeature(),
+        new TokenSequence2FeatureVectorSequence(alpha, true, false),
+        labelPipe
+    ])
+  }
+
+  private static final Function<InputRecord, String> content = new Function<InputRecord, String>() {
+    @Override
+    String apply(InputRecord input) {
+      return input.xWord.asSpaceString + "\t" + input.yWord.asSpaceString
+    }
+  }
+
+  private static InstanceList pipe(SerialPipes pipes, List<InputRecord> records) {
+    def instances = new InstanceList(pipes)
+    records.each { rec ->
+      def labels = rec.xWord.value.collect { rec.yWord.value[0] }
+      instances.addThruPipe(new Instance(rec.xWord.value, labels, null, null))
+    }
+    return instances
+  }
+
+  private static void assertSame(InstanceList actual, InstanceList expected) {
+    assert actual.size() == expected.size()
+    assert actual.dataAlphabet.toArray() == expected.dataAlphabet.toArray()
+    assert actual.targetAlphabet.toArray() == expected.targetAlphabet.toArray()
+    expected.eachWithIndex { Instance exp, int i ->
+      def expData = (FeatureVectorSequence) exp.data
+      def actData = (FeatureVectorSequence) actual.get(i).data
+      assert actData.size() == expData.size()
+      (0..<expData.size()).each { j ->
+        assert actData.get(j).indices == expData.get(j).indices
+        assert actData.get(j).binary == expData.get(j).binary
+      }
+      def expTarget = (LabelSequence) exp.target
+      def actTarget = (LabelSequence) actual.get(i).target
+      assert (0..<actTarget.size()).collect { actTarget.getIndexAtPosition(it) } ==
+             (0..<expTarget.size()).collect { expTarget.getIndexAtPosition(it) }
+    }
+  }
+
+  @Test
+  public void shouldRoundTripInstances() throws Exception {
+    def cache = new InstanceListCache(Files.createTempDir())
+    def key = InstanceListCache.keyFor(makePipe(new Alphabet(), 1, 2), records, content)
+    def expected = pipe(makePipe(new Alphabet(), 1, 2), records)
+    cache.write(key, expected)
+
+    def fresh = makePipe(new Alphabet(), 1, 2)
+    assert InstanceListCache.keyFor(fresh, records, content) == key
+    def actual = cache.read(key, fresh)
+    assertSame(actual, expected)
+    assert fresh.dataAlphabet.size() == expected.dataAlphabet.size()
+  }
+
+  @Test
+  public void shouldRoundTripWithSelectedFeatures() throws Exception {
+    def all = pipe(makePipe(new Alphabet(), 1, 2), records)
+    def selected = new Alphabet()
+    all.dataAlphabet.toArray().eachWithIndex { entry, int i -> if (i % 3 == 0) selected.lookupIndex(entry, true) }
+    selected.stopGrowth()
+    def expected = pipe(makePipe(selected, 1, 2), records)
+
+    def cache = new InstanceListCache(Files.createTempDir())
+    def key = InstanceListCache.keyFor(makePipe(copyOf(selected), 1, 2), records, content)
+    assert key != InstanceListCache.keyFor(makePipe(new Alphabet(), 1, 2), records, content)
+    cache.write(key, expected)
+    assertSame(cache.read(key, makePipe(copyOf(selected), 1, 2)), expected)
+  }
+
+  private static Alphabet copyOf(Alphabet alphabet) {
+    def copy = new Alphabet()
+    alphabet.toArray().each { copy.lookupIndex(it, true) }
+    copy.stopGrowth()
+    return copy
+  }
+
+  @Test
+  public void shouldChangeKeyWithPipeSettingsOrExamples() throws Exception {
+    def key = InstanceListCache.keyFor(makePipe(new Alphabet(), 1, 2), records, content)
+    assert InstanceListCache.keyFor(makePipe(new Alphabet(), 1, 3), records, content) != key
+    assert InstanceListCache.keyFor(makePipe(new Alphabet(), 1, 2), records.subList(1, records.size()), content) != key
+  }
+
+  @Test
+  public void shouldMissOnCorruptEntry() throws Exception {
+    def cache = new InstanceListCache(Files.createTempDir())
+    Files.write("junk".bytes, cache.fileFor("abc"))
+    def pipes = makePipe(new Alphabet(), 1, 2)
+    assert cache.read("abc", pipes) == null
+    assert pipes.dataAlphabet.size() == 0
+
+    // a valid file cut off partway through the instances
+    def key = InstanceListCache.keyFor(makePipe(new Alphabet(), 1, 2), records, content)
+    def expected = pipe(makePipe(new Alphabet(), 1, 2), records)
+    cache.write(key, expected)
+    def file = cache.fileFor(key)
+    def bytes = file.bytes
+    file.bytes = Arrays.copyOf(bytes, (int) (bytes.length * 0.8))
+    def fresh = makePipe(new Alphabet(), 1, 2)
+    assert cache.read(key, fresh) == null
+    assert fresh.dataAlphabet.size() == 0
+    assert fresh.targetAlphabet.size() == 0
+    // so piping again with the same pipes gives the same instances
+    assertSame(pipe(fresh, records), expected)
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.pipe.SerialPipes
+import cc.mallet.pipe.Target2LabelSequence
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence
+import cc.mallet.pipe.TokenSequenceLowercase
+import cc.mallet.types.Alphabet
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.LabelAlphabet
+import cc.mallet.types.LabelSequence
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.align.InputRecord
+import com.github.steveash.jg2p.seq.NeighborTokenFeature
+import com.github.steveash.jg2p.seq.StringListToTokenSequence
+import com.github.steveash.jg2p.seq.SurroundingTokenFeature
+import com.github.steveash.jg2p.seq.TokenSequenceToFeature
+import com.google.common.base.Function
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class ParallelPipesTest {
+
+  private static SerialPipes makePipe() {
+    def alpha = new Alphabet()
+    def labelPipe = new Target2LabelSequence()
+    def labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet()
+    return new SerialPipes([
+        new StringListToTokenSequence(alpha, labelAlpha),
+        new TokenSequenceLowercase(),
+        new NeighborTokenFeature(true, 1, 2, -1, -2),
+        new SurroundingTokenFeature(false),
+        new TokenSequenceToFeature(),
+        new TokenSequence2FeatureVectorSequence(alpha, true, false),
+        labelPipe
+    ])
+  }
+
+  // the graphemes labelled by their first phoneme so that the label alphabet grows too
+  private static final Function<InputRecord, Instance> toInstance = new Function<InputRecord, Instance>() {
+    @Override
+    Instance apply(InputRecord input) {
+      def labels = input.xWord.value.collect { input.yWord.value[0] }
+      return new Instance(input.xWord.value, labels, null, null)
+    }
+  }
+
+  @Test
+  public void shouldMatchSequentialPiping() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def expected = new InstanceList(makePipe())
+    records.each { expected.addThruPipe(toInstance.apply(it)) }
+
+    [1, 3, 8].each { threads ->
+      def actual = ParallelPipes.pipeAll(makePipe(), ParallelPipes.VECTOR_AND_LABEL_PIPES, records, toInstance, threads)
+      assert actual.size() == expected.size()
+      assert actual.dataAlphabet.toArray() == expected.dataAlphabet.toArray()
+      assert actual.targetAlphabet.toArray() == expected.targetAlphabet.toArray()
+      expected.eachWithIndex { Instance exp, int i ->
+        def expData = (FeatureVectorSequence) exp.data
+        def actData = (FeatureVectorSequence) actual.get(i).data
+        assert actData.size() == expData.size()
+        (0..<expData.size()).each { j ->
+          assert actData.get(j).indices == expData.get(j).indices
+          assert actData.get(j).values == expData.get(j).values
+        }
+        assert ((LabelSequence) actual.get(i).target).features == ((LabelSequence) exp.target).features
+      }
+    }
+  }
+
+  @Test
+  public void shouldPipeNothing() throws Exception {
+    def actual = ParallelPipes.pipeAll(makePipe(), ParallelPipes.VECTOR_AND_LABEL_PIPES, [], toInstance, 2)
+    assert actual.size() == 0
+  }
+}